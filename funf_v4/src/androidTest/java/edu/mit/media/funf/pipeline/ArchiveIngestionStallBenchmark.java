@@ -0,0 +1,215 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.pipeline;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.google.gson.JsonObject;
+
+import edu.mit.media.funf.FunfManager;
+import edu.mit.media.funf.config.RuntimeTypeAdapterFactory;
+import edu.mit.media.funf.json.IJsonObject;
+import edu.mit.media.funf.storage.FileArchive;
+import edu.mit.media.funf.util.LogUtil;
+import edu.mit.media.funf.util.Metrics;
+import edu.mit.media.funf.util.StringUtil;
+
+/**
+ * Sends 200 records a second to a {@link BasicPipeline}, and archives its database partway through
+ * with an archive that takes 2 seconds to add a file, like copying, compressing and encrypting a 
+ * large database.  The longest time any record waits between onDataReceived and its write is 
+ * logged for each run.
+ * 
+ * "inline" archives on the pipeline's thread, between writes, as runArchive did before it handed
+ * sealed databases to the archive thread.  "rotated" runs the archive action as it is now.
+ */
+public class ArchiveIngestionStallBenchmark extends AndroidTestCase {
+
+	private static final int RATE_HZ = 200;
+	private static final int ROWS = RATE_HZ * 6;
+	private static final int ARCHIVE_AT_ROW = RATE_HZ * 2;
+	private static final long ARCHIVE_MILLIS = 2000;
+	private static final long TIMEOUT_MILLIS = 60000;
+	
+	public void testArchivingDoesNotStallIngestion() throws Exception {
+		Result inline = run("inline", true);
+		Result rotated = run("rotated", false);
+		Log.i(LogUtil.TAG, inline.toString());
+		Log.i(LogUtil.TAG, rotated.toString());
+		assertEquals(ROWS, inline.rows);
+		assertEquals(ROWS, rotated.rows);
+		assertTrue(inline.maxStallMillis >= ARCHIVE_MILLIS);
+		assertTrue(rotated.maxStallMillis < ARCHIVE_MILLIS / 4);
+	}
+	
+	private Result run(String label, boolean archiveInline) throws Exception {
+		final SlowArchive archive = new SlowArchive();
+		final TimedPipeline pipeline = new TimedPipeline();
+		pipeline.name = "benchmark_" + label + "_" + System.currentTimeMillis();
+		pipeline.maxQueuedData = 0; // Measure the stall, not the overload policy
+		pipeline.setArchive(archive);
+		pipeline.onCreate(new TestManager(getContext()));
+		Metrics.Counter records = Metrics.counter("pipeline." + pipeline.name + ".records");
+		
+		IJsonObject probeConfig = getProbeConfig();
+		long start = System.nanoTime();
+		for (int i = 0; i < ROWS; i++) {
+			long due = start + i * 1000000000L / RATE_HZ;
+			long wait = due - System.nanoTime();
+			if (wait > 0) {
+				Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+			}
+			if (i == ARCHIVE_AT_ROW) {
+				if (archiveInline) {
+					pipeline.getHandler().post(new Runnable() {
+						@Override
+						public void run() {
+							archive.add(new File(pipeline.getDb().getPath()));
+						}
+					});
+				} else {
+					pipeline.onRun(BasicPipeline.ACTION_ARCHIVE, null);
+				}
+			}
+			pipeline.receivedNanos[i] = System.nanoTime();
+			pipeline.onDataReceived(probeConfig, getData(i));
+		}
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (records.get() < ROWS && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertTrue(archive.added.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+		
+		Result result = new Result(label, (int)records.get(), pipeline.getMaxStallMillis());
+		pipeline.onDestroy();
+		pipeline.getHandler().getLooper().getThread().join(TIMEOUT_MILLIS);
+		pipeline.getDatabaseHelper().close();
+		getContext().deleteDatabase(StringUtil.simpleFilesafe(pipeline.name));
+		return result;
+	}
+	
+	private static IJsonObject getProbeConfig() {
+		JsonObject config = new JsonObject();
+		config.addProperty(RuntimeTypeAdapterFactory.TYPE, "edu.mit.media.funf.probe.builtin.AccelerometerSensorProbe");
+		return new IJsonObject(config);
+	}
+	
+	private static IJsonObject getData(int i) {
+		JsonObject data = new JsonObject();
+		data.addProperty("timestamp", 1400000000.0 + i * 0.005);
+		data.addProperty("i", i);
+		data.addProperty("x", 0.12345);
+		data.addProperty("y", 9.80665);
+		data.addProperty("z", -0.5);
+		return new IJsonObject(data);
+	}
+	
+	/**
+	 * Records when each record is written.
+	 */
+	private static class TimedPipeline extends BasicPipeline {
+		private final long[] receivedNanos = new long[ROWS];
+		private final long[] writtenNanos = new long[ROWS];
+		
+		@Override
+		protected void writeData(String name, IJsonObject data) {
+			super.writeData(name, data);
+			writtenNanos[data.get("i").getAsInt()] = System.nanoTime();
+		}
+		
+		private long getMaxStallMillis() {
+			long max = 0;
+			for (int i = 0; i < ROWS; i++) {
+				max = Math.max(max, writtenNanos[i] - receivedNanos[i]);
+			}
+			return max / 1000000;
+		}
+	}
+	
+	/**
+	 * Takes ARCHIVE_MILLIS to add a file, and keeps nothing.
+	 */
+	private static class SlowArchive implements FileArchive {
+		private final CountDownLatch added = new CountDownLatch(1);
+		
+		@Override
+		public boolean add(File item) {
+			try {
+				Thread.sleep(ARCHIVE_MILLIS);
+			} catch (InterruptedException e) {
+				return false;
+			}
+			added.countDown();
+			return true;
+		}
+
+		@Override
+		public boolean remove(File item) {
+			return false;
+		}
+
+		@Override
+		public boolean contains(File item) {
+			return false;
+		}
+
+		@Override
+		public File[] getAll() {
+			return new File[0];
+		}
+	}
+	
+	/**
+	 * Gives the pipeline a context without starting the manager service.
+	 */
+	private static class TestManager extends FunfManager {
+		private TestManager(Context context) {
+			attachBaseContext(context);
+		}
+	}
+	
+	private static class Result {
+		private final String label;
+		private final int rows;
+		private final long maxStallMillis;
+		
+		private Result(String label, int rows, long maxStallMillis) {
+			this.label = label;
+			this.rows = rows;
+			this.maxStallMillis = maxStallMillis;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%s: %d rows at %d/s, longest ingestion stall while archiving %d ms", 
+					label, rows, RATE_HZ, maxStallMillis);
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.pipeline;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.google.gson.JsonObject;
+
+import edu.mit.media.funf.FunfManager;
+import edu.mit.media.funf.config.RuntimeTypeAdapterFactory;
+import edu.mit.media.funf.json.IJsonObject;
+import edu.mit.media.funf.storage.NameValueDatabaseHelper;
+import edu.mit.media.funf.util.LogUtil;
+import edu.mit.media.funf.util.Metrics;
+import edu.mit.media.funf.util.StringUtil;
+
+/**
+ * Sends records through {@link BasicPipeline#onDataReceived(IJsonObject, IJsonObject)} into its SQLite 
+ * database, once writing every record on its own and once with writeBatchSize and writeBatchInterval set.
+ * 
+ * Transactions are counted with the pipeline's write metric, which records each database write, 
+ * and rows are counted in the database.  Rows per second and transactions are logged for each run.
+ */
+public class BatchedWriteBenchmark extends AndroidTestCase {
+
+	private static final int ROWS = 1000;
+	private static final int BATCH_SIZE = 100;
+	private static final long TIMEOUT_MILLIS = 60000;
+	
+	public void testBatchedWritesCommitOncePerBatch() throws Exception {
+		Result perRow = write("per_row", 1, 0);
+		Result batched = write("batched", BATCH_SIZE, 60);
+		Log.i(LogUtil.TAG, perRow.toString());
+		Log.i(LogUtil.TAG, batched.toString());
+		Log.i(LogUtil.TAG, String.format("batched/per-row throughput: %.1fx", batched.getRowsPerSecond() / perRow.getRowsPerSecond()));
+		assertEquals(ROWS, perRow.rows);
+		assertEquals(ROWS, batched.rows);
+		assertEquals(ROWS, perRow.transactions);
+		// Full batches only, the interval is longer than the run
+		assertEquals(ROWS / BATCH_SIZE, batched.transactions);
+	}
+	
+	private Result write(String label, int writeBatchSize, double writeBatchInterval) throws Exception {
+		BasicPipeline pipeline = new BasicPipeline();
+		pipeline.name = "benchmark_" + label + "_" + System.currentTimeMillis();
+		pipeline.writeBatchSize = writeBatchSize;
+		pipeline.writeBatchInterval = writeBatchInterval;
+		pipeline.maxQueuedData = 0; // Measure writes, not the overload policy
+		pipeline.onCreate(new TestManager(getContext()));
+		String metricPrefix = "pipeline." + pipeline.name + ".";
+		Metrics.Counter records = Metrics.counter(metricPrefix + "records");
+		Metrics.Histogram writes = Metrics.histogram(metricPrefix + "write");
+		
+		IJsonObject probeConfig = getProbeConfig();
+		long start = System.nanoTime();
+		for (int i = 0; i < ROWS; i++) {
+			pipeline.onDataReceived(probeConfig, getData(i));
+		}
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (records.get() < ROWS && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		long nanos = System.nanoTime() - start;
+		
+		Result result = new Result(label, nanos, countRows(pipeline), writes.getCount());
+		pipeline.onDestroy();
+		pipeline.getHandler().getLooper().getThread().join(TIMEOUT_MILLIS);
+		pipeline.getDatabaseHelper().close();
+		getContext().deleteDatabase(StringUtil.simpleFilesafe(pipeline.name));
+		return result;
+	}
+	
+	private static int countRows(BasicPipeline pipeline) {
+		Cursor cursor = pipeline.getDb().rawQuery("SELECT COUNT(*) FROM " + NameValueDatabaseHelper.DATA_TABLE.name, null);
+		try {
+			cursor.moveToFirst();
+			return cursor.getInt(0);
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	private static IJsonObject getProbeConfig() {
+		JsonObject config = new JsonObject();
+		config.addProperty(RuntimeTypeAdapterFactory.TYPE, "edu.mit.media.funf.probe.builtin.AccelerometerSensorProbe");
+		return new IJsonObject(config);
+	}
+	
+	private static IJsonObject getData(int i) {
+		JsonObject data = new JsonObject();
+		data.addProperty("timestamp", 1400000000.0 + i * 0.02);
+		data.addProperty("x", 0.12345);
+		data.addProperty("y", 9.80665);
+		data.addProperty("z", -0.5);
+		return new IJsonObject(data);
+	}
+	
+	/**
+	 * Gives the pipeline a context without starting the manager service.
+	 */
+	private static class TestManager extends FunfManager {
+		private TestManager(Context context) {
+			attachBaseContext(context);
+		}
+	}
+	
+	private static class Result {
+		private final String label;
+		private final long nanos;
+		private final int rows;
+		private final long transactions;
+		
+		private Result(String label, long nanos, int rows, long transactions) {
+			this.label = label;
+			this.nanos = nanos;
+			this.rows = rows;
+			this.transactions = transactions;
+		}
+		
+		private double getRowsPerSecond() {
+			return rows * 1e9 / nanos;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%s: %d rows in %.1f ms, %.0f rows/s, %d transactions", 
+					label, rows, nanos / 1e6, getRowsPerSecond(), transactions);
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.probe;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import edu.mit.media.funf.json.IJsonObject;
+import edu.mit.media.funf.probe.Probe.DataListener;
+import edu.mit.media.funf.util.LogUtil;
+
+/**
+ * A probe sends 200 samples a second to 4 active and 4 passive listeners, plus one listener 
+ * registered both ways, each doing about 50us of work per sample.  The time each sendData call 
+ * takes is compared with and without another thread registering and unregistering a listener 
+ * every millisecond, as FunfManager does from the main thread when requests change.
+ * 
+ * Runs on a device, since the contention depends on the probe and registering threads 
+ * running on separate cores.
+ */
+public class ProbeListenerContentionBenchmark extends AndroidTestCase {
+
+	private static final int RATE_HZ = 200;
+	private static final int SECONDS = 10;
+	private static final int SAMPLES = RATE_HZ * SECONDS;
+	private static final int ACTIVE_LISTENERS = 4, PASSIVE_LISTENERS = 4;
+	private static final int WORK_ITERATIONS = 20000;
+	
+	public void testDispatchWhileListenersChange() throws Exception {
+		run(false); // Warm up, so neither run pays for compiling the dispatch path
+		Result quiet = run(false);
+		Result churn = run(true);
+		Log.i(LogUtil.TAG, "No registrations:         " + quiet);
+		Log.i(LogUtil.TAG, "Registrations every 1 ms: " + churn);
+		for (Result result : new Result[] {quiet, churn}) {
+			assertEquals(SAMPLES, result.samples);
+			assertEquals(0, result.missed);
+			assertEquals(0, result.duplicates);
+		}
+		assertTrue(churn.registrations > 0);
+	}
+	
+	private Result run(final boolean churn) throws Exception {
+		final EmittingProbe probe = new EmittingProbe(getContext());
+		CountingListener[] listeners = new CountingListener[ACTIVE_LISTENERS + PASSIVE_LISTENERS + 1];
+		// The last listener is registered both ways
+		DataListener[] active = new DataListener[ACTIVE_LISTENERS + 1];
+		DataListener[] passive = new DataListener[PASSIVE_LISTENERS + 1];
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i] = new CountingListener();
+			if (i < ACTIVE_LISTENERS) {
+				active[i] = listeners[i];
+			} else if (i < ACTIVE_LISTENERS + PASSIVE_LISTENERS) {
+				passive[i - ACTIVE_LISTENERS] = listeners[i];
+			}
+		}
+		active[ACTIVE_LISTENERS] = passive[PASSIVE_LISTENERS] = listeners[listeners.length - 1];
+		
+		final long[] registrationNanos = new long[SAMPLES * 10];
+		final int[] registrations = new int[1];
+		Thread registering = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				CountingListener extra = new CountingListener();
+				while (probe.done.getCount() > 0 && registrations[0] < registrationNanos.length) {
+					long start = System.nanoTime();
+					probe.registerListener(extra);
+					probe.unregisterListener(extra);
+					registrationNanos[registrations[0]++] = System.nanoTime() - start;
+					try {
+						Thread.sleep(1);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		});
+		
+		probe.registerPassiveListener(passive);
+		probe.registerListener(active); // Starts the probe, so every active listener goes in one call
+		if (churn) {
+			registering.start();
+		}
+		assertTrue(probe.done.await(SECONDS * 3, TimeUnit.SECONDS));
+		if (churn) {
+			registering.join();
+		}
+		probe.unregisterListener(active);
+		probe.unregisterPassiveListener(passive);
+		probe.destroy();
+		
+		Result result = new Result();
+		result.samples = probe.sent;
+		for (CountingListener listener : listeners) {
+			result.missed += SAMPLES - listener.received;
+			result.duplicates += listener.duplicates;
+		}
+		result.dispatchMicros = percentiles(probe.dispatchNanos, probe.sent);
+		result.registrations = registrations[0];
+		result.registrationMicros = percentiles(registrationNanos, registrations[0]);
+		return result;
+	}
+	
+	/**
+	 * @return p50, p99 and max in microseconds
+	 */
+	private static long[] percentiles(long[] nanos, int count) {
+		if (count == 0) {
+			return new long[3];
+		}
+		long[] sorted = new long[count];
+		System.arraycopy(nanos, 0, sorted, 0, count);
+		Arrays.sort(sorted);
+		return new long[] {sorted[count / 2] / 1000, sorted[(int)(count * 0.99)] / 1000, sorted[count - 1] / 1000};
+	}
+	
+	private static class Result {
+		int samples, missed, duplicates, registrations;
+		long[] dispatchMicros, registrationMicros;
+		
+		@Override
+		public String toString() {
+			return String.format("sendData p50 %dus p99 %dus max %dus, %d register+unregister p50 %dus p99 %dus max %dus", 
+					dispatchMicros[0], dispatchMicros[1], dispatchMicros[2], registrations, 
+					registrationMicros[0], registrationMicros[1], registrationMicros[2]);
+		}
+	}
+	
+	/**
+	 * Sends numbered samples at a fixed rate from the probe's handler, and times each sendData call.
+	 */
+	private static class EmittingProbe extends Probe.Base implements Probe.ContinuousProbe {
+		
+		private final CountDownLatch done = new CountDownLatch(1);
+		private final long[] dispatchNanos = new long[SAMPLES];
+		private volatile int sent = 0;
+		
+		private final Runnable emit = new Runnable() {
+			@Override
+			public void run() {
+				if (sent == SAMPLES) {
+					done.countDown();
+					return;
+				}
+				JsonObject data = new JsonObject();
+				data.addProperty("i", sent);
+				long start = System.nanoTime();
+				sendData(data);
+				dispatchNanos[sent] = System.nanoTime() - start;
+				sent++;
+				getHandler().postDelayed(this, 1000 / RATE_HZ);
+			}
+		};
+		
+		private EmittingProbe(Context context) {
+			super(context);
+		}
+		
+		@Override
+		protected void onStart() {
+			super.onStart();
+			getHandler().post(emit);
+		}
+		
+		@Override
+		protected void onStop() {
+			getHandler().removeCallbacks(emit);
+			super.onStop();
+		}
+		
+		@Override
+		protected boolean isWakeLockedWhileRunning() {
+			return false;
+		}
+	}
+	
+	/**
+	 * Counts samples, and any sample received more than once.
+	 */
+	private static class CountingListener implements DataListener {
+		
+		private int received = 0, duplicates = 0;
+		private int last = -1;
+		private long sink;
+		
+		@Override
+		public void onDataReceived(IJsonObject probeConfig, IJsonObject data) {
+			int i = data.get("i").getAsInt();
+			if (i <= last) {
+				duplicates++;
+			} else {
+				received++;
+				last = i;
+			}
+			for (int w = 0; w < WORK_ITERATIONS; w++) {
+				sink += w ^ sink;
+			}
+		}
+
+		@Override
+		public void onDataCompleted(IJsonObject probeConfig, JsonElement checkpoint) {
+		}
+	}
+}
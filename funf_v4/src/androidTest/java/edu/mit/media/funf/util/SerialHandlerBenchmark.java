@@ -0,0 +1,209 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.util;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.util.Log;
+
+/**
+ * Compares 40 probes each on their own HandlerThread, as probes ran before, with 40 SerialHandlers 
+ * on the shared pool.  Every probe gets 50 messages a second, each with about 50us of work, and the 
+ * thread count, resident memory and message latency of each setup are logged.
+ * 
+ * Runs on a device, since thread stacks and Looper wakeups are what is being measured.
+ */
+public class SerialHandlerBenchmark extends TestCase {
+
+	private static final int PROBES = 40;
+	private static final int MESSAGES_PER_SECOND = 50;
+	private static final int SECONDS = 5;
+	private static final int WORK_ITERATIONS = 20000;
+	
+	public void testSharedPoolAgainstHandlerThreads() throws Exception {
+		Result threads = run(false);
+		Result pool = run(true);
+		Log.i(LogUtil.TAG, "HandlerThreads: " + threads);
+		Log.i(LogUtil.TAG, "SerialHandler:  " + pool);
+		assertEquals(0, threads.serialViolations);
+		assertEquals(0, pool.serialViolations);
+		assertTrue(threads.addedThreads >= PROBES);
+		assertTrue(pool.addedThreads <= 4);
+	}
+	
+	/**
+	 * A handler with its own thread, like a pipeline's, blocks without holding up the shared pool.
+	 */
+	public void testOwnThreadDoesNotBlockPool() throws Exception {
+		final CountDownLatch blocking = new CountDownLatch(1);
+		SerialHandler blocked = new SerialHandler("benchmark-blocking", new Handler.Callback() {
+			@Override
+			public boolean handleMessage(Message msg) {
+				blocking.countDown();
+				try {
+					Thread.sleep(2000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return true;
+			}
+		});
+		blocked.sendEmptyMessage(0);
+		assertTrue(blocking.await(1, TimeUnit.SECONDS));
+		SerialHandler[] probes = new SerialHandler[8]; // Covers every pool thread
+		final CountDownLatch handled = new CountDownLatch(probes.length);
+		for (int i = 0; i < probes.length; i++) {
+			probes[i] = new SerialHandler(new Handler.Callback() {
+				@Override
+				public boolean handleMessage(Message msg) {
+					handled.countDown();
+					return true;
+				}
+			});
+			probes[i].sendEmptyMessage(0);
+		}
+		assertTrue(handled.await(500, TimeUnit.MILLISECONDS));
+		blocked.quit();
+		for (SerialHandler probe : probes) {
+			probe.quit();
+		}
+	}
+	
+	private Result run(boolean shared) throws Exception {
+		final long[] latencies = new long[PROBES * MESSAGES_PER_SECOND * SECONDS];
+		final AtomicInteger handled = new AtomicInteger();
+		final AtomicInteger serialViolations = new AtomicInteger();
+		System.gc();
+		int baseThreads = readStatus("Threads:");
+		int baseRss = readStatus("VmRSS:");
+		
+		Handler[] handlers = new Handler[PROBES];
+		HandlerThread[] threads = new HandlerThread[PROBES];
+		for (int i = 0; i < PROBES; i++) {
+			final AtomicInteger running = new AtomicInteger();
+			Handler.Callback callback = new Handler.Callback() {
+				@Override
+				public boolean handleMessage(Message msg) {
+					if (running.incrementAndGet() != 1) {
+						serialViolations.incrementAndGet();
+					}
+					long x = 0;
+					for (int k = 0; k < WORK_ITERATIONS; k++) {
+						x += k * 31 ^ x;
+					}
+					if (x == 42) {
+						Log.v(LogUtil.TAG, ""); // Keep the work from being optimized away
+					}
+					int index = handled.getAndIncrement();
+					if (index < latencies.length) {
+						latencies[index] = System.nanoTime() - (Long)msg.obj;
+					}
+					running.decrementAndGet();
+					return true;
+				}
+			};
+			if (shared) {
+				handlers[i] = new SerialHandler(callback);
+			} else {
+				threads[i] = new HandlerThread("benchmark-probe-" + i);
+				threads[i].start();
+				handlers[i] = new Handler(threads[i].getLooper(), callback);
+			}
+		}
+		
+		long start = System.nanoTime();
+		for (int s = 0; s < SECONDS * MESSAGES_PER_SECOND; s++) {
+			for (Handler handler : handlers) {
+				handler.obtainMessage(0, Long.valueOf(System.nanoTime())).sendToTarget();
+			}
+			long wait = start + (s + 1) * (1000000000L / MESSAGES_PER_SECOND) - System.nanoTime();
+			if (wait > 0) {
+				Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+			}
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		while (handled.get() < latencies.length && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		
+		Result result = new Result();
+		result.addedThreads = readStatus("Threads:") - baseThreads;
+		result.addedRssKb = readStatus("VmRSS:") - baseRss;
+		result.serialViolations = serialViolations.get();
+		long[] sorted = new long[Math.min(handled.get(), latencies.length)];
+		System.arraycopy(latencies, 0, sorted, 0, sorted.length);
+		Arrays.sort(sorted);
+		result.messages = sorted.length;
+		result.p50Micros = sorted[sorted.length / 2] / 1000;
+		result.p99Micros = sorted[(int)(sorted.length * 0.99)] / 1000;
+		
+		for (int i = 0; i < PROBES; i++) {
+			if (shared) {
+				((SerialHandler)handlers[i]).quit();
+			} else {
+				threads[i].quit();
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the number in a line of /proc/self/status, such as thread count or resident kB
+	 */
+	private static int readStatus(String key) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(key)) {
+					return Integer.parseInt(line.substring(key.length()).replaceAll("\\D", ""));
+				}
+			}
+			return -1;
+		} finally {
+			reader.close();
+		}
+	}
+	
+	private static class Result {
+		int addedThreads, addedRssKb, serialViolations, messages;
+		long p50Micros, p99Micros;
+		
+		@Override
+		public String toString() {
+			return String.format("+%d threads, +%d kB RSS, %d messages, p50 %dus, p99 %dus, %d serial violations", 
+					addedThreads, addedRssKb, messages, p50Micros, p99Micros, serialViolations);
+		}
+	}
+}
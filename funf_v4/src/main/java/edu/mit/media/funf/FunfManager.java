@@ -30,6 +30,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.Uri;
@@ -86,14 +87,19 @@ import edu.mit.media.funf.probe.Probe.DataListener;
 import edu.mit.media.funf.probe.Probe.PassiveProbe;
 import edu.mit.media.funf.probe.Probe.State;
 import edu.mit.media.funf.probe.Probe.StateListener;
+import edu.mit.media.funf.probe.ProbeRegistry;
+import edu.mit.media.funf.probe.Sampling;
 import edu.mit.media.funf.storage.DefaultArchive;
 import edu.mit.media.funf.storage.FileArchive;
 import edu.mit.media.funf.storage.HttpArchive;
 import edu.mit.media.funf.storage.RemoteFileArchive;
+import edu.mit.media.funf.time.DecimalTimeUnit;
 import edu.mit.media.funf.time.TimeUtil;
+import edu.mit.media.funf.time.WakeupScheduler;
 import edu.mit.media.funf.util.IOUtil;
 import edu.mit.media.funf.util.LogUtil;
 import edu.mit.media.funf.util.StringUtil;
+import edu.mit.media.funf.util.Tracing;
 
 import static edu.mit.media.funf.util.LogUtil.TAG;
 
@@ -101,7 +107,8 @@ public class FunfManager extends Service {
 	
 	public static final String 
 	ACTION_KEEP_ALIVE = "funf.keepalive",
-	ACTION_INTERNAL = "funf.internal";
+	ACTION_INTERNAL = "funf.internal",
+	ACTION_WAKEUP = "funf.wakeup";
 	
 	private static final String 
 	PROBE_TYPE = "funf/probe",
@@ -125,9 +132,11 @@ public class FunfManager extends Service {
 	private Map<String,Pipeline> pipelines;
 	private Map<String,Pipeline> disabledPipelines;
 	private Set<String> disabledPipelineNames;
-	private Map<IJsonObject,List<DataRequestInfo>> dataRequests; 	
+	private ProbeRegistry probeRegistry;
+	private Map<String,List<DataRequestInfo>> dataRequests; // Keyed by probe id	
 	private class DataRequestInfo {
 		private DataListener listener;
+		private DataListener probeListener; // Listener registered with the probe, which applies any sampling
 		private Schedule schedule;
 		private BigDecimal lastSatisfied;
 		private JsonElement checkpoint;
@@ -138,9 +147,12 @@ public class FunfManager extends Service {
 		public void onStateChanged(Probe probe, State previousState) {
 			if (probe instanceof ContinuableProbe && previousState == State.RUNNING) {
 				JsonElement checkpoint = ((ContinuableProbe)probe).getCheckpoint();
-				IJsonObject config = (IJsonObject)JsonUtils.immutable(gson.toJsonTree(probe));
-				for (DataRequestInfo requestInfo : dataRequests.get(config)) {
-					requestInfo.checkpoint = checkpoint;
+				ProbeRegistry.Entry entry = probeRegistry.get(probe);
+				List<DataRequestInfo> requests = entry == null ? null : dataRequests.get(entry.getId());
+				if (requests != null) {
+					for (DataRequestInfo requestInfo : requests) {
+						requestInfo.checkpoint = checkpoint;
+					}
 				}
 			}
 		}
@@ -155,11 +167,14 @@ public class FunfManager extends Service {
 	@Override
 	public void onCreate() {
 		super.onCreate();
+		// Catch probes that modify data after sending it, which listeners may still be reading
+		IJsonObject.setCheckViews((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
 		this.parser = new JsonParser();
 		this.scheduler = new Scheduler();
 		this.handler = new Handler();
 		getGson(); // Sets gson
-		this.dataRequests = new HashMap<IJsonObject, List<DataRequestInfo>>();
+		this.probeRegistry = new ProbeRegistry();
+		this.dataRequests = new HashMap<String, List<DataRequestInfo>>();
 		this.prefs = getSharedPreferences(getClass().getName(), MODE_PRIVATE);
 		this.pipelines = new HashMap<String, Pipeline>();
 		this.disabledPipelines = new HashMap<String, Pipeline>();
@@ -243,6 +258,30 @@ public class FunfManager extends Service {
 		return version;
 	}
 
+	/**
+	 * @return latency percentiles of traced records, keyed by probe and then stage, 
+	 * empty unless a pipeline sets traceSampleInterval
+	 */
+	public JsonObject getLatencies() {
+		return Tracing.getLatencies();
+	}
+
+	/**
+	 * Sets how early non-strict scheduled actions may run, so that they share the wakeup of an 
+	 * action that is due instead of waking the device on their own.  0 disables coalescing.
+	 * @param coalescingWindowMillis
+	 */
+	public void setWakeupCoalescingWindowMillis(long coalescingWindowMillis) {
+		scheduler.setCoalescingWindowMillis(coalescingWindowMillis);
+	}
+	
+	/**
+	 * @return number of times scheduled actions have woken FunfManager since it was created
+	 */
+	public int getWakeupCount() {
+		return scheduler.getWakeupCount();
+	}
+
 	public JsonObject getPipelineConfig(String name) {
 	  String configString = prefs.getString(name, null);
 	  Bundle metadata = getMetadata();
@@ -284,12 +323,14 @@ public class FunfManager extends Service {
 		// TODO: remove all remaining Alarms
 
 		// TODO: make sure to destroy all probes
+		for (ProbeRegistry.Entry entry : probeRegistry.getAll()) {
+			cancelProbe(entry.getId());
+		}
 		for (Object probeObject : getProbeFactory().getCached()) {
-			String componentString = JsonUtils.immutable(gson.toJsonTree(probeObject)).toString();
-			cancelProbe(componentString);
 			((Probe)probeObject).destroy();
 		}
 		getProbeFactory().clearCache();
+		probeRegistry.clear();
 	}
 	
 	@Override
@@ -297,98 +338,109 @@ public class FunfManager extends Service {
 		String action = intent.getAction();
 		if (action == null || ACTION_KEEP_ALIVE.equals(action)) {
 			// Does nothing, but wakes up FunfManager
+		} else if (ACTION_WAKEUP.equals(action)) {
+			scheduler.onWakeup();
 		} else if (ACTION_INTERNAL.equals(action)) {
-			String type = intent.getType();
-			Uri componentUri = intent.getData();
-			if (PROBE_TYPE.equals(type)) {
-				// Handle probe action
-				IJsonObject probeConfig = (IJsonObject)JsonUtils.immutable(parser.parse(getComponentName(componentUri)));
-				String probeAction = getAction(componentUri);
-				
-				BigDecimal now = TimeUtil.getTimestamp();
-				final Probe probe = getGson().fromJson(probeConfig, Probe.class); 
-				List<DataRequestInfo> requests = dataRequests.get(probeConfig);
-				
-				// TODO: Need to allow for some listeners to be registered and unregistered on different schedules
-				if (probe != null) {
-	 				if (PROBE_ACTION_REGISTER.equals(probeAction)) {
-	 					if (requests != null) {
-		 					List<DataListener> listenersThatNeedData = new ArrayList<Probe.DataListener>();
-		 					List<DataRequestInfo> infoForListenersThatNeedData = new ArrayList<FunfManager.DataRequestInfo>();
-	 						for (DataRequestInfo requestInfo : requests) {
-	 							BigDecimal interval = requestInfo.schedule.getInterval();
-	 							// Compare date last satisfied to schedule interval
-	 							if (requestInfo.lastSatisfied == null || now.subtract(requestInfo.lastSatisfied).compareTo(interval) >= 0) {
-	 								listenersThatNeedData.add(requestInfo.listener);
-	 								infoForListenersThatNeedData.add(requestInfo);
-	 							}
-	 						}
-	 						
-	 						
-	 						final DataListener[] listenerArray = new DataListener[listenersThatNeedData.size()];
-	 						listenersThatNeedData.toArray(listenerArray);
-		 					if (listenerArray.length > 0) {
-		 						if (probe instanceof ContinuableProbe) {
-		 							// TODO: how do we take care of multiple registrants with different checkpoints
-		 							((ContinuableProbe)probe).setCheckpoint(requests.get(0).checkpoint);
-		 						}
-		 						probe.registerListener(listenerArray);
-		 					}
-		 					
-		 					Log.d(TAG, "Request: " + probe.getClass().getName());
-		 					
-		 					// Schedule unregister if continuous
-		 					// TODO: do different durations for each schedule
-		 					if (probe instanceof ContinuousProbe) {
-		 						Schedule mergedSchedule = getMergedSchedule(infoForListenersThatNeedData);
-		 						if (mergedSchedule != null) {
-			 						long duration = TimeUtil.secondsToMillis(mergedSchedule.getDuration());
-			 						Log.d(TAG, "DURATION: " + duration);
-			 						if (duration > 0) {
-			 							handler.postDelayed(new Runnable() {
-											@Override
-											public void run() {
-												((ContinuousProbe) probe).unregisterListener(listenerArray);
-											}
-										}, TimeUtil.secondsToMillis(mergedSchedule.getDuration()));
-			 						}
-		 						}
-		 					}
-	 					}
-					} else if (PROBE_ACTION_UNREGISTER.equals(probeAction) && probe instanceof ContinuousProbe) {
-						for (DataRequestInfo requestInfo : requests) {
-							((ContinuousProbe)probe).unregisterListener(requestInfo.listener);
-						}
-					} else if (PROBE_ACTION_REGISTER_PASSIVE.equals(probeAction) && probe instanceof PassiveProbe) {
-	 					if (requests != null) {
-	 						for (DataRequestInfo requestInfo : requests) {
-	 							if (requestInfo.schedule.isOpportunistic()) {
-	 								((PassiveProbe)probe).registerPassiveListener(requestInfo.listener);
-	 							}
+			runInternalAction(intent.getType(), intent.getData());
+		}
+		return Service.START_FLAG_RETRY; // TODO: may want the last intent always redelivered to make sure system starts up
+	}
+
+	/**
+	 * Runs a probe or pipeline action, as scheduled by the {@link Scheduler}.
+	 */
+	private void runInternalAction(String type, Uri componentUri) {
+		if (PROBE_TYPE.equals(type)) {
+			// Handle probe action
+			String probeId = getComponentName(componentUri);
+			String probeAction = getAction(componentUri);
+			ProbeRegistry.Entry entry = probeRegistry.get(probeId);
+			if (entry == null) {
+				Log.w(TAG, "No probe registered with id " + probeId);
+				return;
+			}
+			
+			BigDecimal now = TimeUtil.getTimestamp();
+			final Probe probe = entry.getProbe(); 
+			List<DataRequestInfo> requests = dataRequests.get(probeId);
+			
+			// TODO: Need to allow for some listeners to be registered and unregistered on different schedules
+			if (probe != null) {
+ 				if (PROBE_ACTION_REGISTER.equals(probeAction)) {
+ 					if (requests != null) {
+	 					List<DataListener> listenersThatNeedData = new ArrayList<Probe.DataListener>();
+	 					List<DataRequestInfo> infoForListenersThatNeedData = new ArrayList<FunfManager.DataRequestInfo>();
+ 						for (DataRequestInfo requestInfo : requests) {
+ 							BigDecimal interval = requestInfo.schedule.getInterval();
+ 							// Compare date last satisfied to schedule interval
+ 							if (requestInfo.lastSatisfied == null || now.subtract(requestInfo.lastSatisfied).compareTo(interval) >= 0) {
+ 								listenersThatNeedData.add(requestInfo.probeListener);
+ 								infoForListenersThatNeedData.add(requestInfo);
+ 							}
+ 						}
+ 						
+ 						
+ 						final DataListener[] listenerArray = new DataListener[listenersThatNeedData.size()];
+ 						listenersThatNeedData.toArray(listenerArray);
+	 					if (listenerArray.length > 0) {
+	 						if (probe instanceof ContinuableProbe) {
+	 							// TODO: how do we take care of multiple registrants with different checkpoints
+	 							((ContinuableProbe)probe).setCheckpoint(requests.get(0).checkpoint);
 	 						}
+	 						probe.registerListener(listenerArray);
 	 					}
-					} else if (PROBE_ACTION_UNREGISTER_PASSIVE.equals(probeAction) && probe instanceof PassiveProbe) {
-	 					if (requests != null) {
-	 						for (DataRequestInfo requestInfo : requests) {
-	 							((PassiveProbe)probe).unregisterPassiveListener(requestInfo.listener);
+	 					
+	 					Log.d(TAG, "Request: " + probe.getClass().getName());
+	 					
+	 					// Schedule unregister if continuous
+	 					// TODO: do different durations for each schedule
+	 					if (probe instanceof ContinuousProbe) {
+	 						Schedule mergedSchedule = getMergedSchedule(infoForListenersThatNeedData);
+	 						if (mergedSchedule != null) {
+		 						long duration = TimeUtil.secondsToMillis(mergedSchedule.getDuration());
+		 						Log.d(TAG, "DURATION: " + duration);
+		 						if (duration > 0) {
+		 							handler.postDelayed(new Runnable() {
+										@Override
+										public void run() {
+											((ContinuousProbe) probe).unregisterListener(listenerArray);
+										}
+									}, TimeUtil.secondsToMillis(mergedSchedule.getDuration()));
+		 						}
 	 						}
 	 					}
+ 					}
+				} else if (PROBE_ACTION_UNREGISTER.equals(probeAction) && probe instanceof ContinuousProbe) {
+					for (DataRequestInfo requestInfo : requests) {
+						((ContinuousProbe)probe).unregisterListener(requestInfo.probeListener);
 					}
-				}
-
-				// TODO: Calculate new schedule for probe
-			} else if (PIPELINE_TYPE.equals(type)) {
-				// Handle pipeline action
-				String pipelineName = getComponentName(componentUri);
-				String pipelineAction = getAction(componentUri);
-				Pipeline pipeline = pipelines.get(pipelineName);
-				if (pipeline != null) {
-					pipeline.onRun(pipelineAction, null);
+				} else if (PROBE_ACTION_REGISTER_PASSIVE.equals(probeAction) && probe instanceof PassiveProbe) {
+ 					if (requests != null) {
+ 						for (DataRequestInfo requestInfo : requests) {
+ 							if (requestInfo.schedule.isOpportunistic()) {
+ 								((PassiveProbe)probe).registerPassiveListener(requestInfo.probeListener);
+ 							}
+ 						}
+ 					}
+				} else if (PROBE_ACTION_UNREGISTER_PASSIVE.equals(probeAction) && probe instanceof PassiveProbe) {
+ 					if (requests != null) {
+ 						for (DataRequestInfo requestInfo : requests) {
+ 							((PassiveProbe)probe).unregisterPassiveListener(requestInfo.probeListener);
+ 						}
+ 					}
 				}
 			}
 
+			// TODO: Calculate new schedule for probe
+		} else if (PIPELINE_TYPE.equals(type)) {
+			// Handle pipeline action
+			String pipelineName = getComponentName(componentUri);
+			String pipelineAction = getAction(componentUri);
+			Pipeline pipeline = pipelines.get(pipelineName);
+			if (pipeline != null) {
+				pipeline.onRun(pipelineAction, null);
+			}
 		}
-		return Service.START_FLAG_RETRY; // TODO: may want the last intent always redelivered to make sure system starts up
 	}
 
 	private Bundle getMetadata() {
@@ -550,42 +602,59 @@ public class FunfManager extends Service {
 			}
 			schedule = gson.fromJson(scheduleObject, Schedule.class);
 		}
-		IJsonObject completeProbeConfig = (IJsonObject)JsonUtils.immutable(gson.toJsonTree(probe));  // Make sure probe config is complete and consistent
-		requestData(listener, completeProbeConfig, schedule);
+		// Use sampling in probeConfig @sampling annotation
+		Sampling sampling = null;
+		if (probeConfig.isJsonObject() && probeConfig.getAsJsonObject().has(PipelineFactory.SAMPLING)) {
+			sampling = gson.fromJson(probeConfig.getAsJsonObject().get(PipelineFactory.SAMPLING), Sampling.class);
+		}
+		requestData(listener, getProbeEntry(probe), schedule, sampling);
 	}
 	
-	private void requestData(DataListener listener, IJsonObject completeProbeConfig, Schedule schedule) {
+	private void requestData(DataListener listener, ProbeRegistry.Entry probeEntry, Schedule schedule, Sampling sampling) {
 		if (listener == null) {
 			throw new IllegalArgumentException("Listener cannot be null");
 		}
-		if (completeProbeConfig == null) {
-			throw new IllegalArgumentException("Probe config cannot be null");
-		}
 		DataRequestInfo newDataRequest = new DataRequestInfo();
 		newDataRequest.lastSatisfied = null;
 		newDataRequest.listener = listener;
+		newDataRequest.probeListener = sampling == null ? listener : sampling.wrap(probeEntry.getProbe(), listener);
 		newDataRequest.schedule = schedule;
 		synchronized (dataRequests) {
-			List<DataRequestInfo> requests = dataRequests.get(completeProbeConfig);
+			List<DataRequestInfo> requests = dataRequests.get(probeEntry.getId());
 			if (requests == null) {
 				requests = new ArrayList<FunfManager.DataRequestInfo>();
-				dataRequests.put(completeProbeConfig, requests);
+				dataRequests.put(probeEntry.getId(), requests);
 			}
-			unrequestData(listener, completeProbeConfig);
+			unrequestData(listener, probeEntry);
 			requests.add(newDataRequest);
 		}
-		rescheduleProbe(completeProbeConfig);
+		rescheduleProbe(probeEntry);
 	}
 	
 	public void unrequestAllData(DataListener listener) {
-		unrequestData(listener, (IJsonObject)null);
+		for (ProbeRegistry.Entry probeEntry : probeRegistry.getAll()) {
+			unrequestData(listener, probeEntry);
+			rescheduleProbe(probeEntry);
+		}
 	}
 	
 	public void unrequestData(DataListener listener, JsonElement probeConfig) {
 		Probe probe = gson.fromJson(probeConfig, Probe.class);
-		IJsonObject completeProbeConfig = (IJsonObject)JsonUtils.immutable(gson.toJsonTree(probe));  // Make sure probe config is complete and consistent
-		unrequestData(listener, completeProbeConfig);
-		rescheduleProbe(completeProbeConfig);
+		ProbeRegistry.Entry probeEntry = getProbeEntry(probe);
+		unrequestData(listener, probeEntry);
+		rescheduleProbe(probeEntry);
+	}
+	
+	/**
+	 * Returns the registry entry for the probe, registering its complete config the first time the probe is seen.
+	 */
+	private ProbeRegistry.Entry getProbeEntry(Probe probe) {
+		ProbeRegistry.Entry probeEntry = probeRegistry.get(probe);
+		if (probeEntry == null) {
+			IJsonObject completeProbeConfig = (IJsonObject)JsonUtils.immutable(gson.toJsonTree(probe));  // Make sure probe config is complete and consistent
+			probeEntry = probeRegistry.register(completeProbeConfig, probe);
+		}
+		return probeEntry;
 	}
 	
 	private String getPipelineName(Pipeline pipeline) {
@@ -614,28 +683,23 @@ public class FunfManager extends Service {
 	/**
 	 * This version does not reschedule.
 	 * @param listener
-	 * @param completeProbeConfig
+	 * @param probeEntry
 	 */
-	private void unrequestData(DataListener listener, IJsonObject completeProbeConfig) {
+	private void unrequestData(DataListener listener, ProbeRegistry.Entry probeEntry) {
 		synchronized (dataRequests) {
-			List<DataRequestInfo> requests = null;
-			if (completeProbeConfig == null) {
-				requests = new ArrayList<FunfManager.DataRequestInfo>();
-				for (List<DataRequestInfo> requestInfos : dataRequests.values()) {
-					requests.addAll(requestInfos);
-				}
-			} else {
-				requests = dataRequests.get(completeProbeConfig);
+			List<DataRequestInfo> requests = dataRequests.get(probeEntry.getId());
+			if (requests == null) {
+				return;
 			}
-			Probe probe = gson.fromJson(completeProbeConfig, Probe.class);
+			Probe probe = probeEntry.getProbe();
 			for (int i = 0; i < requests.size(); i++) {
 				if (requests.get(i).listener == listener) {
-					requests.remove(i);
+					DataListener probeListener = requests.remove(i).probeListener;
 					if (probe instanceof ContinuousProbe) {
-						((ContinuousProbe)probe).unregisterListener(listener);
+						((ContinuousProbe)probe).unregisterListener(probeListener);
 					}
 					if (probe instanceof PassiveProbe) {
-						((PassiveProbe)probe).unregisterPassiveListener(listener);
+						((PassiveProbe)probe).unregisterPassiveListener(probeListener);
 					}
 					break; // Should only have one request for this listener and probe
 				}
@@ -660,26 +724,26 @@ public class FunfManager extends Service {
 		return mergedSchedule;
 	}
 	
-	private void rescheduleProbe(IJsonObject completeProbeConfig) {
+	private void rescheduleProbe(ProbeRegistry.Entry probeEntry) {
 		synchronized (dataRequests) {
 			// Simple schedule merge for now
 			// TODO: make this more efficient
-			String componentString = completeProbeConfig.toString();
-			List<DataRequestInfo> requests = dataRequests.get(completeProbeConfig);
-			if (requests.isEmpty()) {
-				cancelProbe(componentString);
+			String probeId = probeEntry.getId();
+			List<DataRequestInfo> requests = dataRequests.get(probeId);
+			if (requests == null || requests.isEmpty()) {
+				cancelProbe(probeId);
 			} else {
 				Schedule mergedSchedule = getMergedSchedule(requests);
 				for (DataRequestInfo request: requests) {
 					// Schedule passive listening if opportunistic
 					if (request.schedule.isOpportunistic()) {
-						Probe probe = gson.fromJson(completeProbeConfig, Probe.class);
+						Probe probe = probeEntry.getProbe();
 						if (probe instanceof PassiveProbe) {
-							((PassiveProbe)probe).registerPassiveListener(request.listener);
+							((PassiveProbe)probe).registerPassiveListener(request.probeListener);
 						}
 					}
 				}
-				scheduler.set(PROBE_TYPE, getComponenentUri(componentString, PROBE_ACTION_REGISTER), mergedSchedule);
+				scheduler.set(PROBE_TYPE, getComponenentUri(probeId, PROBE_ACTION_REGISTER), mergedSchedule);
 			}
 		}
 	}
@@ -735,11 +799,11 @@ public class FunfManager extends Service {
 	}
 	
 
-	private void cancelProbe(String probeConfig) {
-		scheduler.cancel(PROBE_TYPE, getComponenentUri(probeConfig, PROBE_ACTION_REGISTER));
-		scheduler.cancel(PROBE_TYPE, getComponenentUri(probeConfig, PROBE_ACTION_UNREGISTER));
-		scheduler.cancel(PROBE_TYPE, getComponenentUri(probeConfig, PROBE_ACTION_REGISTER_PASSIVE));
-		scheduler.cancel(PROBE_TYPE, getComponenentUri(probeConfig, PROBE_ACTION_UNREGISTER_PASSIVE));
+	private void cancelProbe(String probeId) {
+		scheduler.cancel(PROBE_TYPE, getComponenentUri(probeId, PROBE_ACTION_REGISTER));
+		scheduler.cancel(PROBE_TYPE, getComponenentUri(probeId, PROBE_ACTION_UNREGISTER));
+		scheduler.cancel(PROBE_TYPE, getComponenentUri(probeId, PROBE_ACTION_REGISTER_PASSIVE));
+		scheduler.cancel(PROBE_TYPE, getComponenentUri(probeId, PROBE_ACTION_UNREGISTER_PASSIVE));
 	}
 
 	public void setAuthToken(String url, String accessToken) {
@@ -767,10 +831,39 @@ public class FunfManager extends Service {
 		return scheduler;
 	}
 	
+	private static final class ScheduledAction {
+		private final String type;
+		private final Uri componentAndAction;
+		
+		private ScheduledAction(String type, Uri componentAndAction) {
+			this.type = type;
+			this.componentAndAction = componentAndAction;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (type == null ? 0 : type.hashCode()) 
+					+ (componentAndAction == null ? 0 : componentAndAction.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof ScheduledAction)) {
+				return false;
+			}
+			ScheduledAction other = (ScheduledAction)o;
+			return (type == null ? other.type == null : type.equals(other.type))
+					&& (componentAndAction == null ? other.componentAndAction == null : componentAndAction.equals(other.componentAndAction));
+		}
+	}
+	
 	private class Scheduler {
 	
+		private static final long DEFAULT_COALESCING_WINDOW_MILLIS = 60000L;
+		
 		private AlarmManager alarmManager;
 		private Context context;
+		private WakeupScheduler<ScheduledAction> wakeups;
 		
 		// private Map<Pipeline,Config,Schedule>
 		// Need to be able to merge schedules for common types quickly, across pipelines
@@ -787,13 +880,34 @@ public class FunfManager extends Service {
 		public Scheduler() {
 			this.alarmManager = (AlarmManager)getSystemService(Context.ALARM_SERVICE);
 			this.context = FunfManager.this;
+			this.wakeups = new WakeupScheduler<ScheduledAction>(WakeupScheduler.SYSTEM_CLOCK, new WakeupAlarm(), 
+					new WakeupScheduler.ActionRunner<ScheduledAction>() {
+						@Override
+						public void run(ScheduledAction key) {
+							runInternalAction(key.type, key.componentAndAction);
+						}
+					}, DEFAULT_COALESCING_WINDOW_MILLIS);
+		}
+		
+		public void onWakeup() {
+			wakeups.onWakeup();
 		}
 		
+		public void setCoalescingWindowMillis(long coalescingWindowMillis) {
+			wakeups.setCoalescingWindowMillis(Math.max(0L, coalescingWindowMillis));
+		}
+		
+		public int getWakeupCount() {
+			return wakeups.getWakeupCount();
+		}
 		
 		public void cancel(String type, Uri componentAndAction) {
+			wakeups.cancel(new ScheduledAction(type, componentAndAction));
+			// Clear alarms registered per component by earlier versions
 			Intent intent = getFunfIntent(context, type, componentAndAction);
 			PendingIntent operation = PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_NO_CREATE);
 			if (operation != null) {
+				alarmManager.cancel(operation);
 				operation.cancel();
 			}
 		}
@@ -807,34 +921,45 @@ public class FunfManager extends Service {
 		}
 		
 		public void set(String type, Uri componentAndAction, Schedule schedule) {
-			
-			// Creates pending intents that will call back into FunfManager
-			// Uses alarm manager to time them
-			Intent intent = getFunfIntent(context, type, componentAndAction);
-			PendingIntent operation = PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
-			
-			// TODO: figure out how to do previous time for all components, including pipeline actions
-			Number previousTime = null;
+			ScheduledAction key = new ScheduledAction(type, componentAndAction);
+			Long lastRunMillis = wakeups.getLastRunTime(key);
+			Number previousTime = lastRunMillis == null ? null : DecimalTimeUnit.MILLISECONDS.toSeconds(lastRunMillis);
 			
 			// TODO: add random start for initial
 			// startTimeMillis += random;
 			
-
 			BigDecimal startTime = schedule.getNextTime(previousTime);
-			if (startTime != null) {
+			if (startTime == null) {
+				wakeups.cancel(key);
+			} else {
 				long startTimeMillis = TimeUtil.secondsToMillis(startTime);
-				if (schedule.getInterval() == null || schedule.getInterval().intValue() == 0) {
-					alarmManager.set(AlarmManager.RTC_WAKEUP, startTimeMillis, operation);
-				} else {
-					long intervalMillis = TimeUtil.secondsToMillis(schedule.getInterval());
-					if (schedule.isStrict()) {
-						alarmManager.setRepeating(AlarmManager.RTC_WAKEUP, startTimeMillis, intervalMillis, operation);
-					} else {
-						alarmManager.setInexactRepeating(AlarmManager.RTC_WAKEUP, startTimeMillis, intervalMillis, operation);
-					}
-				}
+				long intervalMillis = schedule.getInterval() == null ? 0L : TimeUtil.secondsToMillis(schedule.getInterval());
+				wakeups.set(key, startTimeMillis, intervalMillis, schedule.isStrict());
+			}
+		}
+		
+		/**
+		 * Backs the wakeup scheduler with a single RTC_WAKEUP alarm that calls back into FunfManager.
+		 */
+		private class WakeupAlarm implements WakeupScheduler.Alarm {
+			
+			private PendingIntent getOperation() {
+				Intent intent = new Intent();
+				intent.setClass(context, FunfManager.class);
+				intent.setPackage(context.getPackageName());
+				intent.setAction(ACTION_WAKEUP);
+				return PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+			}
+			
+			@Override
+			public void set(long wakeupTimeMillis) {
+				alarmManager.set(AlarmManager.RTC_WAKEUP, wakeupTimeMillis, getOperation());
+			}
+
+			@Override
+			public void cancel() {
+				alarmManager.cancel(getOperation());
 			}
-						
 		}
 
 		// TODO: Feature to wait a certain amount of seconds after boot to begin
@@ -1,5 +1,7 @@
 package edu.mit.media.funf.json;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.ArrayList;
@@ -10,6 +12,7 @@ import java.util.List;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * An immutable JsonArray implementation, which contains no mutation functions
@@ -300,9 +303,17 @@ public class IJsonArray extends JsonElement {
 		return (o == this) || (o instanceof IJsonArray && ((IJsonArray) o).elements.equals(elements));
 	}
 
+	private int hashCodeCache = 0;
 	@Override
 	public int hashCode() {
-		return elements.hashCode();
+		// Since this is immutable, the hash code can be cached
+		// Does not need to be synchronized, last one is kept
+		int hash = hashCodeCache;
+		if (hash == 0) {
+			hash = elements.hashCode();
+			hashCodeCache = hash;
+		}
+		return hash;
 	}
 	
 	private String toStringCache = null;
@@ -311,8 +322,27 @@ public class IJsonArray extends JsonElement {
 		// Since this is immutable, the string result can be cached
 		// Does not need to be synchronized, last one is kept
 		if (toStringCache == null) {
-			toStringCache = super.toString();
+			StringWriter stringWriter = new StringWriter();
+			JsonWriter jsonWriter = new JsonWriter(stringWriter);
+			jsonWriter.setLenient(true);
+			try {
+				write(jsonWriter);
+			} catch (IOException e) {
+				throw new AssertionError(e);
+			}
+			toStringCache = stringWriter.toString();
 		}
 		return toStringCache;
 	}
+	
+	/**
+	 * Writes the elements without copying them into a mutable JsonArray first.
+	 */
+	void write(JsonWriter out) throws IOException {
+		out.beginArray();
+		for (JsonElement element : elements) {
+			JsonUtils.write(out, element);
+		}
+		out.endArray();
+	}
 }
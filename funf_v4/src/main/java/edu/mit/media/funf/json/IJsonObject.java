@@ -1,15 +1,20 @@
 package edu.mit.media.funf.json;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * An immutable JsonObject that orders keys alphabetically for consistency in
@@ -19,23 +24,109 @@ import com.google.gson.JsonPrimitive;
  */
 public class IJsonObject extends JsonElement {
 	/**
-	 * The immutable map of entries
+	 * The immutable map of entries.  For views this is built on first access.
 	 */
-	private final SortedMap<String, JsonElement> members;
+	private volatile SortedMap<String, JsonElement> members;
+	
+	/**
+	 * The object a view was created from, which is never modified.  Null when members are copied eagerly.
+	 */
+	private final JsonObject source;
+	
+	/**
+	 * Immutable copies of the members of a view that have been looked up one at a time.
+	 */
+	private volatile ConcurrentMap<String, JsonElement> memberCache;
+	
+	private static volatile boolean checkViews = false;
+	private final boolean checked;
+	private final int sourceHashCode;
 
 	public IJsonObject(IJsonObject jsonObject) {
 		this.members = jsonObject.members;
+		this.source = jsonObject.source;
+		this.memberCache = jsonObject.memberCache;
+		this.checked = jsonObject.checked;
+		this.sourceHashCode = jsonObject.sourceHashCode;
+		this.hashCodeCache = jsonObject.hashCodeCache;
+		this.toStringCache = jsonObject.toStringCache;
 	}
 	
 	public IJsonObject(JsonObject jsonObject) {
 		if (jsonObject == null) {
 			throw new IllegalStateException("Cannot create null IJsonObject");
 		}
+		this.source = null;
+		this.members = copyMembers(jsonObject, false);
+		this.checked = false;
+		this.sourceHashCode = 0;
+	}
+	
+	private IJsonObject(JsonObject source, boolean view) {
+		if (source == null) {
+			throw new IllegalStateException("Cannot create null IJsonObject");
+		}
+		this.source = source;
+		this.members = null;
+		this.checked = checkViews;
+		this.sourceHashCode = checked ? source.hashCode() : 0;
+	}
+	
+	/**
+	 * Creates an immutable view of the JsonObject, without copying it.  Members are copied 
+	 * the first time the whole object is accessed, while single member lookups and serialization 
+	 * read the source object directly.  The caller must not modify the source object, or any of 
+	 * its children, after the view is created.
+	 * 
+	 * @param source
+	 * @return
+	 */
+	public static IJsonObject view(JsonObject source) {
+		return new IJsonObject(source, true);
+	}
+	
+	/**
+	 * Turns on a check that the source of each view created afterwards is not modified, for debugging.
+	 * Reading a view whose source has changed throws an IllegalStateException.  The check 
+	 * hashes the whole source on every read, so it should be off in production.
+	 * 
+	 * @param enabled
+	 */
+	public static void setCheckViews(boolean enabled) {
+		checkViews = enabled;
+	}
+	
+	/**
+	 * @return the source of this view, after checking it has not changed if checks are on
+	 */
+	private JsonObject getSource() {
+		if (checked && source.hashCode() != sourceHashCode) {
+			throw new IllegalStateException("JsonObject was modified after a view of it was created: " + source);
+		}
+		return source;
+	}
+	
+	private static SortedMap<String, JsonElement> copyMembers(JsonObject jsonObject, boolean view) {
 		SortedMap<String, JsonElement> map = new TreeMap<String, JsonElement>();
 		for (Map.Entry<String, JsonElement> entry : jsonObject.entrySet()) {
-			map.put(entry.getKey(), JsonUtils.immutable(entry.getValue()));
+			map.put(entry.getKey(), immutable(entry.getValue(), view));
+		}
+		return Collections.unmodifiableSortedMap(map);
+	}
+	
+	private static JsonElement immutable(JsonElement el, boolean view) {
+		// Children of a view belong to the same source tree, so they can be views as well
+		return (view && el instanceof JsonObject) ? view((JsonObject)el) : JsonUtils.immutable(el);
+	}
+	
+	private SortedMap<String, JsonElement> getMembers() {
+		SortedMap<String, JsonElement> map = members;
+		if (map == null) {
+			// Does not need to be synchronized, copies are identical and last one is kept
+			map = copyMembers(getSource(), true);
+			members = map;
 		}
-		members = Collections.unmodifiableSortedMap(map);
+		return map;
 	}
 
 	@Override
@@ -46,7 +137,7 @@ public class IJsonObject extends JsonElement {
 	@Override
 	public JsonObject getAsJsonObject() {
 		JsonObject jsonObject = new JsonObject();
-		for (Map.Entry<String, JsonElement> entry : members.entrySet()) {
+		for (Map.Entry<String, JsonElement> entry : getMembers().entrySet()) {
 			jsonObject.add(entry.getKey(), entry.getValue());
 		}
 		return jsonObject;
@@ -58,7 +149,7 @@ public class IJsonObject extends JsonElement {
 	 * @return a set of members of this object.
 	 */
 	public Set<Map.Entry<String, JsonElement>> entrySet() {
-		return Collections.unmodifiableSet(members.entrySet());
+		return Collections.unmodifiableSet(getMembers().entrySet());
 	}
 
 	/**
@@ -71,7 +162,8 @@ public class IJsonObject extends JsonElement {
 	 *         otherwise.
 	 */
 	public boolean has(String memberName) {
-		return members.containsKey(memberName);
+		SortedMap<String, JsonElement> map = members;
+		return map == null ? getSource().has(memberName) : map.containsKey(memberName);
 	}
 
 	/**
@@ -82,8 +174,28 @@ public class IJsonObject extends JsonElement {
 	 * @return the member matching the name. Null if no such member exists.
 	 */
 	public JsonElement get(String memberName) {
-		if (members.containsKey(memberName)) {
-			JsonElement member = members.get(memberName);
+		SortedMap<String, JsonElement> map = members;
+		if (map == null) {
+			// Looking up a single member of a view does not require copying the whole object
+			ConcurrentMap<String, JsonElement> cache = memberCache;
+			JsonElement cached = cache == null ? null : cache.get(memberName);
+			if (cached != null) {
+				return cached;
+			}
+			JsonObject source = getSource();
+			if (source.has(memberName)) {
+				JsonElement member = source.get(memberName);
+				JsonElement immutableMember = member == null ? JsonNull.INSTANCE : immutable(member, true);
+				if (cache == null) {
+					// Does not need to be synchronized, a member cached in a lost map is copied again
+					cache = new ConcurrentHashMap<String, JsonElement>(4);
+					memberCache = cache;
+				}
+				cached = cache.putIfAbsent(memberName, immutableMember);
+				return cached == null ? immutableMember : cached;
+			}
+		} else if (map.containsKey(memberName)) {
+			JsonElement member = map.get(memberName);
 			return member == null ? JsonNull.INSTANCE : member;
 		}
 		return null;
@@ -98,7 +210,7 @@ public class IJsonObject extends JsonElement {
 	 * @return the JsonPrimitive corresponding to the specified member.
 	 */
 	public JsonPrimitive getAsJsonPrimitive(String memberName) {
-		return (JsonPrimitive) members.get(memberName);
+		return (JsonPrimitive) getMembers().get(memberName);
 	}
 
 	/**
@@ -109,7 +221,7 @@ public class IJsonObject extends JsonElement {
 	 * @return the JsonArray corresponding to the specified member.
 	 */
 	public IJsonArray getAsJsonArray(String memberName) {
-		return (IJsonArray) members.get(memberName);
+		return (IJsonArray) getMembers().get(memberName);
 	}
 
 	/**
@@ -120,18 +232,26 @@ public class IJsonObject extends JsonElement {
 	 * @return the JsonObject corresponding to the specified member.
 	 */
 	public IJsonObject getAsJsonObject(String memberName) {
-		return (IJsonObject) members.get(memberName);
+		return (IJsonObject) getMembers().get(memberName);
 	}
 
 	@Override
 	public boolean equals(Object o) {
 		return (o == this) || (o instanceof IJsonObject 
-				&& ((IJsonObject) o).members.equals(members));
+				&& ((IJsonObject) o).getMembers().equals(getMembers()));
 	}
 
+	private int hashCodeCache = 0;
 	@Override
 	public int hashCode() {
-		return members.hashCode();
+		// Since this is immutable, the hash code can be cached
+		// Does not need to be synchronized, last one is kept
+		int hash = hashCodeCache;
+		if (hash == 0) {
+			hash = getMembers().hashCode();
+			hashCodeCache = hash;
+		}
+		return hash;
 	}
 
 	private String toStringCache = null;
@@ -140,10 +260,40 @@ public class IJsonObject extends JsonElement {
 		// Since this is immutable, the string result can be cached
 		// Does not need to be synchronized, last one is kept
 		if (toStringCache == null) {
-			toStringCache = super.toString();
+			StringWriter stringWriter = new StringWriter();
+			JsonWriter jsonWriter = new JsonWriter(stringWriter);
+			jsonWriter.setLenient(true);
+			try {
+				write(jsonWriter);
+			} catch (IOException e) {
+				throw new AssertionError(e);
+			}
+			toStringCache = stringWriter.toString();
 		}
 		return toStringCache;
 	}
 	
+	/**
+	 * Writes the object with keys in alphabetical order, directly from the source object for views.
+	 * Produces the same output as serializing the copied members.
+	 */
+	void write(JsonWriter out) throws IOException {
+		out.beginObject();
+		SortedMap<String, JsonElement> map = members;
+		if (map == null) {
+			JsonObject source = getSource();
+			for (String key : JsonUtils.sortedKeys(source)) {
+				out.name(key);
+				JsonUtils.write(out, source.get(key));
+			}
+		} else {
+			for (Map.Entry<String, JsonElement> entry : map.entrySet()) {
+				out.name(entry.getKey());
+				JsonUtils.write(out, entry.getValue());
+			}
+		}
+		out.endObject();
+	}
+	
 	
 }
@@ -24,7 +24,10 @@
 package edu.mit.media.funf.json;
 
 
+import java.io.IOException;
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -40,6 +43,7 @@ import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
 
 public class JsonUtils {
 
@@ -125,6 +129,85 @@ public class JsonUtils {
 		return el;
 	}
 	
+	/**
+	 * Returns a number whose string form matches the one used by immutable elements,
+	 * which convert all numbers to BigDecimal.  Avoids the conversion when the number's
+	 * own string form is already identical, as it is for integers and plain decimals.
+	 * @param number
+	 * @return
+	 */
+	public static Number canonicalNumber(Number number) {
+		if (number instanceof BigDecimal) {
+			return number;
+		}
+		String string = number.toString();
+		boolean plain = true;
+		boolean zero = true;
+		for (int i = 0; i < string.length() && plain; i++) {
+			char c = string.charAt(i);
+			if (c >= '1' && c <= '9') {
+				zero = false;
+			} else if (c != '0' && c != '.' && !(c == '-' && i == 0)) {
+				plain = false; // Exponents, NaN and Infinity
+			}
+		}
+		// Negative zero loses its sign in a BigDecimal
+		if (plain && !(zero && string.startsWith("-"))) {
+			return number;
+		}
+		return new BigDecimal(string);
+	}
+	
+	static String[] sortedKeys(JsonObject object) {
+		String[] keys = new String[object.entrySet().size()];
+		int i = 0;
+		for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+			keys[i++] = entry.getKey();
+		}
+		Arrays.sort(keys);
+		return keys;
+	}
+	
+	/**
+	 * Writes the element as its immutable form would be serialized, without creating the immutable copy.
+	 * Object keys are written in alphabetical order, and numbers in their canonical form.
+	 * @param out
+	 * @param el
+	 * @throws IOException
+	 */
+	static void write(JsonWriter out, JsonElement el) throws IOException {
+		if (el == null || el.isJsonNull()) {
+			out.nullValue();
+		} else if (el instanceof IJsonObject) {
+			((IJsonObject)el).write(out);
+		} else if (el instanceof IJsonArray) {
+			((IJsonArray)el).write(out);
+		} else if (el.isJsonObject()) {
+			JsonObject object = el.getAsJsonObject();
+			out.beginObject();
+			for (String key : sortedKeys(object)) {
+				out.name(key);
+				write(out, object.get(key));
+			}
+			out.endObject();
+		} else if (el.isJsonArray()) {
+			out.beginArray();
+			for (JsonElement subEl : el.getAsJsonArray()) {
+				write(out, subEl);
+			}
+			out.endArray();
+		} else {
+			JsonPrimitive primitive = el.getAsJsonPrimitive();
+			if (primitive.isNumber()) {
+				out.value(canonicalNumber(primitive.getAsNumber()));
+			} else if (primitive.isBoolean()) {
+				out.value(primitive.getAsBoolean());
+			} else {
+				out.value(primitive.getAsString());
+			}
+		}
+	}
+	
 	/**
 	 * In place copy of one objects values onto another, with option to replace existing values in copy.
 	 * @param source
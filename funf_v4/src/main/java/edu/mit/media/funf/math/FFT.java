@@ -23,6 +23,9 @@
  */
 package edu.mit.media.funf.math;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class FFT
 {
 	int n, m;
@@ -30,6 +33,77 @@ public class FFT
 	// Lookup tables.  Only need to recompute when size of FFT changes.
 	double[] cos;
 	double[] sin;
+	
+	// Index pairs to swap for the bit-reversal permutation, of the full and half size transforms
+	private int[] bitReverse;
+	private int[] halfBitReverse;
+	
+	/**
+	 * Tables for one transform size, shared by every FFT of that size.
+	 */
+	private static final class Tables
+	{
+		private final double[] cos, sin;
+		private final int[] bitReverse, halfBitReverse;
+		
+		private Tables(int n)
+		{
+			cos = new double[n/2];
+			sin = new double[n/2];
+			for(int i=0; i<n/2; i++)
+			{
+				cos[i] = Math.cos(-2*Math.PI*i/n);
+				sin[i] = Math.sin(-2*Math.PI*i/n);
+			}
+			bitReverse = bitReversePairs(n);
+			halfBitReverse = bitReversePairs(n/2);
+		}
+	}
+	
+	private static final Map<Integer,Tables> TABLES = new HashMap<Integer,Tables>();
+	
+	private static Tables getTables(int n)
+	{
+		synchronized (TABLES)
+		{
+			Tables tables = TABLES.get(n);
+			if (tables == null)
+			{
+				tables = new Tables(n);
+				TABLES.put(n, tables);
+			}
+			return tables;
+		}
+	}
+	
+	/**
+	 * @return the index pairs (i, j), with i < j, swapped by the bit-reversal permutation of length n
+	 */
+	private static int[] bitReversePairs(int n)
+	{
+		int count = 0;
+		int[] pairs = new int[Math.max(n, 2)];
+		int i, j = 0, n1, n2 = n/2;
+		for (i=1; i < n - 1; i++)
+		{
+			n1 = n2;
+			while ( j >= n1 )
+			{
+				j = j - n1;
+				n1 = n1/2;
+			}
+			j = j + n1;
+
+			if (i < j)
+			{
+				pairs[count++] = i;
+				pairs[count++] = j;
+			}
+		}
+		int[] trimmed = new int[count];
+		System.arraycopy(pairs, 0, trimmed, 0, count);
+		return trimmed;
+	}
 
 	public FFT(int n)
 	{
@@ -42,15 +116,12 @@ public class FFT
 			throw new RuntimeException("FFT length must be power of 2");
 		}
 
-		// precompute tables
-		cos = new double[n/2];
-		sin = new double[n/2];
-
-		for(int i=0; i<n/2; i++)
-		{
-			cos[i] = Math.cos(-2*Math.PI*i/n);
-			sin[i] = Math.sin(-2*Math.PI*i/n);
-		}
+		// Shared precomputed tables
+		Tables tables = getTables(n);
+		cos = tables.cos;
+		sin = tables.sin;
+		bitReverse = tables.bitReverse;
+		halfBitReverse = tables.halfBitReverse;
 	}
 
 
@@ -75,39 +146,93 @@ public class FFT
 	 *   as long as this header is included. 
 	 ****************************************************************/
 	public void fft(double[] re, double[] im)
+	{
+		transform(re, im, n, m, 1, bitReverse);
+	}
+	
+	/**
+	 * In-place DFT of real input, with the same output as {@link #fft(double[], double[])} 
+	 * called with a zeroed imaginary part, in about half the time.
+	 * 
+	 * The n real samples are packed into an n/2 point complex transform, as even samples in the 
+	 * real part and odd samples in the imaginary part, which is then split into the spectrum 
+	 * of the real input.  Bins above n/2 are filled in as conjugates of the bins below.
+	 * 
+	 * @param re input samples, replaced with the real part of the spectrum
+	 * @param im ignored on input, replaced with the imaginary part of the spectrum
+	 */
+	public void realFft(double[] re, double[] im)
+	{
+		if (n < 2)
+		{
+			im[0] = 0;
+			return;
+		}
+		int half = n/2;
+		
+		// Pack even samples as real and odd samples as imaginary, in place
+		for (int k = 0; k < half; k++)
+		{
+			im[k] = re[2*k + 1];
+			re[k] = re[2*k];
+		}
+		
+		// Half size complex transform, every other twiddle factor
+		transform(re, im, half, m - 1, 2, halfBitReverse);
+		
+		// Split into the spectrum of the real input, bins k and half - k together
+		double zr = re[0], zi = im[0];
+		re[0] = zr + zi;
+		im[0] = 0;
+		re[half] = zr - zi;
+		im[half] = 0;
+		for (int k = 1; k <= half/2; k++)
+		{
+			int j = half - k;
+			double kr = re[k], ki = im[k], jr = re[j], ji = im[j];
+			// Spectra of even and odd samples
+			double er = 0.5*(kr + jr), ei = 0.5*(ki - ji);
+			double or = 0.5*(ki + ji), oi = -0.5*(kr - jr);
+			// Odd spectrum times the twiddle factor
+			double tr = cos[k]*or - sin[k]*oi;
+			double ti = cos[k]*oi + sin[k]*or;
+			re[k] = er + tr;
+			im[k] = ei + ti;
+			re[j] = er - tr;
+			im[j] = ti - ei;
+		}
+		
+		// Conjugate symmetric upper half
+		for (int k = 1; k < half; k++)
+		{
+			re[n - k] = re[k];
+			im[n - k] = -im[k];
+		}
+	}
+	
+	private void transform(double[] re, double[] im, int size, int log2Size, int twiddleStride, int[] bitReversePairs)
 	{
 		int i,j,k,n1,n2,a;
 		double c,s,t1,t2;
 
 		// Bit-reverse
-		j = 0;
-		n2 = n/2;
-		for (i=1; i < n - 1; i++)
+		for (i=0; i < bitReversePairs.length; i += 2)
 		{
-			n1 = n2;
-			while ( j >= n1 )
-			{
-				j = j - n1;
-				n1 = n1/2;
-			}
-			j = j + n1;
-
-			if (i < j)
-			{
-				t1 = re[i];
-				re[i] = re[j];
-				re[j] = t1;
-				t1 = im[i];
-				im[i] = im[j];
-				im[j] = t1;
-			}
+			j = bitReversePairs[i];
+			k = bitReversePairs[i+1];
+			t1 = re[j];
+			re[j] = re[k];
+			re[k] = t1;
+			t1 = im[j];
+			im[j] = im[k];
+			im[k] = t1;
 		}
 
 		// FFT
 		n1 = 0;
 		n2 = 1;
 
-		for (i=0; i < m; i++)
+		for (i=0; i < log2Size; i++)
 		{
 			n1 = n2;
 			n2 = n2 + n2;
@@ -117,9 +242,9 @@ public class FFT
 			{
 				c = cos[a];
 				s = sin[a];
-				a +=  1 << (m-i-1);
+				a +=  (1 << (log2Size-i-1)) * twiddleStride;
 
-				for (k=j; k < n; k=k+n2)
+				for (k=j; k < size; k=k+n2)
 				{
 					t1 = c*re[k+n1] - s*im[k+n1];
 					t2 = s*re[k+n1] + c*im[k+n1];
@@ -132,4 +257,4 @@ public class FFT
 		}
 	}                          
 
-}
\ No newline at end of file
+}
@@ -36,6 +36,14 @@ public class MFCC
 	public Matrix melWeights = null;
 	public Matrix dctMat = null;
 	public double[] lifterWeights;
+	
+	// Mel filterbank as sparse rows: band i has weights melWeightValues[melWeightOffset[i]...] 
+	// for frequency bins melBinStart[i] up to, but not including, melBinEnd[i]
+	private int[] melBinStart, melBinEnd, melWeightOffset;
+	private double[] melWeightValues;
+	
+	// Reused by every call to cepstrum
+	private double[] logMelSpec;
 
 	public MFCC(int fftSize, int numCoeffs, int melBands, double sampleRate)
 	{
@@ -76,6 +84,36 @@ public class MFCC
 	    // Keep only positive frequency parts of Fourier transform
 	    melWeights = melWeights.getMatrix(0, melBands - 1, 0, numFreqs - 1);
 	    
+	    // Each triangular filter covers a narrow band, so keep only the range of non-zero weights
+	    melBinStart = new int[melBands];
+	    melBinEnd = new int[melBands];
+	    melWeightOffset = new int[melBands];
+	    int weightCount = 0;
+	    for (int i = 0; i < melBands; i ++)
+	    {
+	    	double[] row = melWeights.A[i];
+	    	int start = 0;
+	    	while (start < numFreqs && row[start] == 0)
+	    	{
+	    		start++;
+	    	}
+	    	int end = numFreqs;
+	    	while (end > start && row[end - 1] == 0)
+	    	{
+	    		end--;
+	    	}
+	    	melBinStart[i] = start;
+	    	melBinEnd[i] = end;
+	    	melWeightOffset[i] = weightCount;
+	    	weightCount += end - start;
+	    }
+	    melWeightValues = new double[weightCount];
+	    for (int i = 0; i < melBands; i ++)
+	    {
+	    	System.arraycopy(melWeights.A[i], melBinStart[i], melWeightValues, melWeightOffset[i], melBinEnd[i] - melBinStart[i]);
+	    }
+	    logMelSpec = new double[melBands];
+	    
 	    // Precompute DCT matrix
 	    dctMat = new Matrix(numCoeffs, melBands, 0);
 	    double scale = Math.sqrt(2.0/melBands);
@@ -104,35 +142,44 @@ public class MFCC
 	
 	public double[] cepstrum(double[] re, double[] im)
 	{
-		Matrix powerSpec = new Matrix(numFreqs, 1);
-		for (int i = 0; i < numFreqs; i ++)
-		{
-			powerSpec.A[i][0] = re[i]*re[i] + im[i]*im[i];
-		}
-
-		// melWeights - melBands x numFreqs
-		// powerSpec  - numFreqs x 1
-		// melWeights*powerSpec - melBands x 1
-		// aSpec      - melBands x 1
-		// dctMat     - numCoeffs x melBands
-		// dctMat*log(aSpec) - numCoeffs x 1
-		
-		Matrix aSpec = melWeights.times(powerSpec);
-		Matrix logMelSpec = new Matrix(melBands, 1);
+		double[] ceps = new double[numCoeffs];
+		cepstrum(re, im, ceps);
+		return ceps;
+	}
+	
+	/**
+	 * Computes the mel cepstrum of a spectrum without allocating.  Reuses internal buffers, 
+	 * so an instance must not be used by more than one thread at a time.
+	 * 
+	 * @param re real part of the spectrum, at least fftSize/2 + 1 bins
+	 * @param im imaginary part of the spectrum
+	 * @param ceps receives the numCoeffs liftered cepstral coefficients
+	 */
+	public void cepstrum(double[] re, double[] im, double[] ceps)
+	{
+		// Mel spectrum, summing the power of only the bins under each filter
 		for (int i = 0; i < melBands; i ++)
 		{
-			logMelSpec.A[i][0] = Math.log(aSpec.A[i][0]);
+			int w = melWeightOffset[i];
+			double s = 0;
+			for (int j = melBinStart[i]; j < melBinEnd[i]; j ++)
+			{
+				s += melWeightValues[w++]*(re[j]*re[j] + im[j]*im[j]);
+			}
+			logMelSpec[i] = Math.log(s);
 		}
 
-		Matrix melCeps = dctMat.times(logMelSpec);
-			
-		double[] ceps = new double[numCoeffs];
+		// DCT and liftering
 		for (int i = 0; i < numCoeffs; i ++)
 		{
-			ceps[i] = lifterWeights[i]*melCeps.A[i][0];
+			double[] dctRow = dctMat.A[i];
+			double s = 0;
+			for (int j = 0; j < melBands; j ++)
+			{
+				s += dctRow[j]*logMelSpec[j];
+			}
+			ceps[i] = lifterWeights[i]*s;
 		}
-
-		return ceps;
 	}
 
 	
@@ -0,0 +1,165 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.math;
+
+import java.util.Arrays;
+
+/**
+ * Streaming short-time Fourier transform over overlapping frames.
+ * 
+ * Samples are written into a circular buffer that holds one frame.  Every hopSize samples, 
+ * once the buffer is full, the frame is windowed straight out of the circular buffer into 
+ * the FFT buffer, zero padded to the next power of two, and transformed.  Overlapping frames 
+ * share the samples in the circular buffer, and nothing is allocated after construction.
+ * 
+ * Not thread safe.
+ */
+public class STFT
+{
+	/**
+	 * Receives the spectrum of each frame.  The buffers are reused for the next frame.
+	 */
+	public interface FrameListener
+	{
+		/**
+		 * @param re real part of the spectrum, fftSize bins
+		 * @param im imaginary part of the spectrum, fftSize bins
+		 */
+		public void onFrame(double[] re, double[] im);
+	}
+	
+	private final int frameSize, hopSize, fftSize;
+	private final double[] window;
+	private final FFT fft;
+	private final double[] ring;
+	private final double[] fftBufferR, fftBufferI;
+	private int position = 0; // Next slot to write, and the oldest sample once the ring is full
+	private int filled = 0;
+	private int untilNextFrame = 0;
+	
+	/**
+	 * @param frameSize samples per frame
+	 * @param hopSize samples between the starts of consecutive frames
+	 * @param windowType one of the Window types
+	 */
+	public STFT(int frameSize, int hopSize, String windowType)
+	{
+		if (frameSize < 2 || hopSize < 1)
+		{
+			throw new IllegalArgumentException("Frame size must be at least 2 and hop size at least 1.");
+		}
+		this.frameSize = frameSize;
+		this.hopSize = hopSize;
+		this.fftSize = getFftSize(frameSize);
+		this.window = new Window(frameSize, windowType).window;
+		this.fft = new FFT(fftSize);
+		this.ring = new double[frameSize];
+		this.fftBufferR = new double[fftSize];
+		this.fftBufferI = new double[fftSize];
+	}
+	
+	/**
+	 * @return the smallest power of two that holds a frame of frameSize samples
+	 */
+	public static int getFftSize(int frameSize)
+	{
+		int size = 1;
+		while (size < frameSize)
+		{
+			size <<= 1;
+		}
+		return size;
+	}
+	
+	public int getFrameSize()
+	{
+		return frameSize;
+	}
+	
+	public int getHopSize()
+	{
+		return hopSize;
+	}
+	
+	public int getFftSize()
+	{
+		return fftSize;
+	}
+	
+	/**
+	 * Adds samples, transforming every frame they complete.
+	 * @param samples
+	 * @param offset
+	 * @param count
+	 * @param listener called with the spectrum of each completed frame
+	 */
+	public void write(short[] samples, int offset, int count, FrameListener listener)
+	{
+		int end = offset + count;
+		for (int i = offset; i < end; i++)
+		{
+			ring[position] = samples[i];
+			if (++position == frameSize)
+			{
+				position = 0;
+			}
+			if (filled < frameSize)
+			{
+				filled++;
+			}
+			if (--untilNextFrame <= 0 && filled == frameSize)
+			{
+				transformFrame();
+				listener.onFrame(fftBufferR, fftBufferI);
+				untilNextFrame = hopSize;
+			}
+		}
+	}
+	
+	/**
+	 * Drops buffered samples, so the next frame starts with the next sample written.
+	 */
+	public void reset()
+	{
+		position = 0;
+		filled = 0;
+		untilNextFrame = 0;
+	}
+	
+	private void transformFrame()
+	{
+		// Oldest sample first, in two runs around the end of the ring
+		int firstRun = frameSize - position;
+		for (int j = 0; j < firstRun; j++)
+		{
+			fftBufferR[j] = ring[position + j]*window[j];
+		}
+		for (int j = firstRun; j < frameSize; j++)
+		{
+			fftBufferR[j] = ring[j - firstRun]*window[j];
+		}
+		Arrays.fill(fftBufferR, frameSize, fftSize, 0);
+		fft.realFft(fftBufferR, fftBufferI);
+	}
+}
@@ -25,21 +25,55 @@ package edu.mit.media.funf.math;
 
 public class Window
 {
+	public static final String
+		HAMMING = "hamming",
+		HANN = "hann",
+		RECTANGULAR = "rectangular";
+	
 	public double[] window;
 	public int n;
-	
+
 	public Window(int windowSize)
+	{
+		this(windowSize, HAMMING);
+	}
+	
+	/**
+	 * @param windowSize
+	 * @param type one of HAMMING, HANN or RECTANGULAR
+	 */
+	public Window(int windowSize, String type)
 	{
 		n = windowSize;
-		
-		// Make a Hamming window
 		window = new double[n];
-		for(int i = 0; i < n; i++)
+		if (RECTANGULAR.equals(type))
+		{
+			for(int i = 0; i < n; i++)
+			{
+				window[i] = 1.0;
+			}
+		}
+		else if (HANN.equals(type))
 		{
-			window[i] = 0.54 - 0.46*Math.cos(2*Math.PI*(double)i/((double)n-1));
+			for(int i = 0; i < n; i++)
+			{
+				window[i] = 0.5 - 0.5*Math.cos(2*Math.PI*(double)i/((double)n-1));
+			}
+		}
+		else if (HAMMING.equals(type))
+		{
+			// Make a Hamming window
+			for(int i = 0; i < n; i++)
+			{
+				window[i] = 0.54 - 0.46*Math.cos(2*Math.PI*(double)i/((double)n-1));
+			}
+		}
+		else
+		{
+			throw new IllegalArgumentException("Unknown window type: " + type);
 		}
 	}
-
+	
 	public void applyWindow(double[] buffer)
 	{
 		for (int i = 0; i < n; i ++)
@@ -47,5 +81,4 @@ public class Window
 			buffer[i] *= window[i];
 		}
 	}
-
 }
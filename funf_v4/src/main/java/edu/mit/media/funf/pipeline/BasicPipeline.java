@@ -19,7 +19,10 @@
 package edu.mit.media.funf.pipeline;
 
 import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -30,6 +33,7 @@ import android.content.Context;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -47,13 +51,20 @@ import edu.mit.media.funf.config.RuntimeTypeAdapterFactory;
 import edu.mit.media.funf.json.IJsonObject;
 import edu.mit.media.funf.probe.Probe.DataListener;
 import edu.mit.media.funf.probe.builtin.ProbeKeys;
+import edu.mit.media.funf.storage.AppendLog;
+import edu.mit.media.funf.storage.AppendLogReader;
 import edu.mit.media.funf.storage.DefaultArchive;
 import edu.mit.media.funf.storage.FileArchive;
 import edu.mit.media.funf.storage.NameValueDatabaseHelper;
 import edu.mit.media.funf.storage.RemoteFileArchive;
 import edu.mit.media.funf.storage.UploadService;
+import edu.mit.media.funf.time.TimeUtil;
 import edu.mit.media.funf.util.LogUtil;
+import edu.mit.media.funf.util.Metrics;
+import edu.mit.media.funf.util.SerialHandler;
 import edu.mit.media.funf.util.StringUtil;
+import edu.mit.media.funf.util.Tracing;
+import edu.mit.media.funf.util.UuidUtil;
 
 public class BasicPipeline implements Pipeline, DataListener {
 
@@ -62,8 +73,25 @@ public class BasicPipeline implements Pipeline, DataListener {
   ACTION_UPLOAD = "upload",
   ACTION_UPDATE = "update";
   
-  protected final int ARCHIVE = 0, UPLOAD = 1, UPDATE = 2, DATA = 3;
+  public static final String 
+  STORAGE_SQLITE = "sqlite",
+  STORAGE_LOG = "log";
+  
+  private static final String 
+  ACTIVE_SEGMENT_NAME = "active.log",
+  SEALED_SEGMENT_SUFFIX = ".sealed.log",
+  SEALED_DATABASE_DIR_SUFFIX = "_sealed";
+  
+  protected final int ARCHIVE = 0, UPLOAD = 1, UPDATE = 2, DATA = 3, FLUSH = 4;
   
+  private static final int MAX_RECORDS_PER_DRAIN = 256;
+  private static final long FLUSH_RETRY_MILLIS = 5000;
+  private static final int FINAL_FLUSH_ATTEMPTS = 5;
+  private static final long FINAL_FLUSH_RETRY_MILLIS = 1000;
+  
+  private static final String INSERT_DATA_SQL = String.format("INSERT INTO %s (%s, %s, %s) VALUES (?, ?, ?)", 
+      NameValueDatabaseHelper.DATA_TABLE.name, 
+      NameValueDatabaseHelper.COLUMN_NAME, NameValueDatabaseHelper.COLUMN_VALUE, NameValueDatabaseHelper.COLUMN_TIMESTAMP);
 
   @Configurable
   protected String name = "default";
@@ -86,17 +114,111 @@ public class BasicPipeline implements Pipeline, DataListener {
   @Configurable
   protected Map<String, Schedule> schedules = new HashMap<String, Schedule>(); 
   
+  /**
+   * Number of data records written to the database in a single transaction.
+   * A value of 1 writes every record as soon as it arrives, except with "log" storage, 
+   * which then commits all the records it takes from the queue at once.
+   */
+  @Configurable
+  protected int writeBatchSize = 1;
+  
+  /**
+   * Maximum number of seconds a record may wait in a partial batch before it is written.
+   * A value of 0 writes a partial batch as soon as the pipeline's queue of incoming data is drained.
+   */
+  @Configurable
+  protected double writeBatchInterval = 0;
+  
+  /**
+   * Storage engine for incoming data.  "sqlite" inserts every record into the pipeline database.
+   * "log" appends records to an append-only log segment, which is sealed and converted to 
+   * the same database format when archived.  The log always uses group commit: unless a larger 
+   * writeBatchSize is set, records are synced once for each run of records drained from the queue, 
+   * or after writeBatchInterval.
+   */
+  @Configurable
+  protected String storage = STORAGE_SQLITE;
+  
+  /**
+   * Maximum number of incoming records waiting to be written.  0 means no limit.
+   */
+  @Configurable
+  protected int maxQueuedData = 10000;
+  
+  /**
+   * What to do with incoming records when the queue is full.  "drop_oldest" drops the oldest queued record.
+   * "downsample" drops every other queued record of the probe with the most queued records.
+   * "block" makes the sender wait, for at most overloadBlockTimeout seconds, before dropping the oldest record.
+   * Only threads the library does not share are parked.  Records sent from a probe's handler run on the 
+   * shared threads, which drop the oldest record right away instead of holding up every handler on the thread.
+   */
+  @Configurable
+  protected String overloadPolicy = DataQueue.OVERLOAD_DROP_OLDEST;
+  
+  @Configurable
+  protected double overloadBlockTimeout = 1.0;
+  
+  /**
+   * Traces every Nth record of each probe from emit to storage commit, or 0 for no tracing.
+   * Tracing is process wide and stays on while this pipeline exists.  Latencies are reported by 
+   * FunfMetricsProbe and {@link FunfManager#getLatencies()}.
+   */
+  @Configurable
+  protected int traceSampleInterval = 0;
+  
+  /**
+   * Seconds within which non-strict scheduled actions are run early, sharing the wakeup of an 
+   * action that is due, or a negative value to keep FunfManager's window (60 seconds by default).
+   * The window is shared by all pipelines, the last pipeline created that sets it wins.
+   */
+  @Configurable
+  protected double wakeupCoalescingWindow = -1;
+  
   private UploadService uploader;
   
   private boolean enabled;
   private FunfManager manager;
   private SQLiteOpenHelper databaseHelper = null;
-  private Looper looper;
-  private Handler handler;
+  private SQLiteStatement insertStatement = null;
+  private List<JsonObject> pendingData = new ArrayList<JsonObject>();
+  private List<Tracing.Trace> pendingTraces = new ArrayList<Tracing.Trace>(); // Parallel to pendingData, null if untraced
+  private boolean flushFailed = false;
+  private AppendLog dataLog = null;
+  private DataQueue dataQueue = null;
+  private int reportedDroppedTotal = 0;
+  private Metrics.Gauge queueDepthMetric, droppedMetric;
+  private Metrics.Counter recordsMetric;
+  private Metrics.Histogram writeMetric, rotateMetric, archiveMetric;
+  private SerialHandler handler;
+  private Handler archiveHandler;
+  
+  private static Looper archiveLooper;
+  
+  // Held while a database is moved into the sealed directory, and while the archive thread lists it, 
+  // so archiving never sees, or deletes, a directory that is still being filled.  Shared by every 
+  // pipeline, since a reloaded pipeline seals into the same directory its predecessor archives from.
+  private static final Object SEALED_DATABASE_LOCK = new Object();
+  
+  /**
+   * @return the Looper that archives and uploads for every pipeline, one file at a time, 
+   * since archiving is bound by the same storage whichever pipeline it is for
+   */
+  private static synchronized Looper getArchiveLooper() {
+    if (archiveLooper == null) {
+      HandlerThread thread = new HandlerThread("funf-archive");
+      thread.start();
+      archiveLooper = thread.getLooper();
+    }
+    return archiveLooper;
+  }
   private Handler.Callback callback = new Handler.Callback() {
     
     @Override
     public boolean handleMessage(Message msg) {
+      if (msg.what == DATA) {
+        drainQueuedData();
+        return false;
+      }
       onBeforeRun(msg.what, (JsonObject)msg.obj);
       switch (msg.what) {
         case ARCHIVE:
@@ -106,7 +228,13 @@ public class BasicPipeline implements Pipeline, DataListener {
           break;
         case UPLOAD:
           if (archive != null && upload != null && uploader != null) {
-            uploader.run(archive, upload);
+            // Queued behind any archiving in progress, so only complete archive files are uploaded
+            archiveHandler.post(new Runnable() {
+              @Override
+              public void run() {
+                uploader.run(archive, upload);
+              }
+            });
           }
           break;
         case UPDATE:
@@ -114,10 +242,8 @@ public class BasicPipeline implements Pipeline, DataListener {
             update.run(name, manager);
           }
           break;
-        case DATA:
-          String name = ((JsonObject)msg.obj).get("name").getAsString();
-          IJsonObject data = (IJsonObject)((JsonObject)msg.obj).get("value");
-          writeData(name, data);
+        case FLUSH:
+          flushData();
           break;
         default:
           break;
@@ -127,36 +253,428 @@ public class BasicPipeline implements Pipeline, DataListener {
     }
   };
   
+  /**
+   * Writes records from the ingestion queue, yielding the handler after a bounded number of them.
+   */
+  private void drainQueuedData() {
+    if (drainQueuedData(MAX_RECORDS_PER_DRAIN)) {
+      // Queue is not empty yet, and the consumer is still marked as scheduled
+      handler.sendEmptyMessage(DATA);
+    }
+  }
+  
+  /**
+   * @return true if records remain in the queue
+   */
+  private boolean drainQueuedData(int maxRecords) {
+    queueDepthMetric.set(dataQueue.size());
+    for (int i = 0; i < maxRecords; i++) {
+      DataQueue.Entry entry = dataQueue.poll();
+      if (entry == null) {
+        reportDroppedData();
+        return false;
+      }
+      JsonObject record = entry.getRecord();
+      Tracing.Trace trace = entry.getTrace();
+      if (trace != null) {
+        trace.markDequeued();
+      }
+      onBeforeRun(DATA, record);
+      handleData(record, trace);
+      onAfterRun(DATA, record);
+    }
+    return true;
+  }
+  
+  private void handleData(JsonObject record, Tracing.Trace trace) {
+    if (!hasRequiredValues(record.get("name"), record.get("value"))) {
+      Log.e(LogUtil.TAG, "Unable to save data.  Not all required values specified. " + record);
+      return;
+    }
+    if (isBatchingWrites() || !pendingData.isEmpty()) {
+      // Also keeps records behind a failed write in order until it is retried
+      pendingData.add(record);
+      pendingTraces.add(trace);
+      if (pendingData.size() >= getWriteBatchSize() && !flushFailed) {
+        flushData();
+      } else if (!handler.hasMessages(FLUSH)) {
+        handler.sendEmptyMessageDelayed(FLUSH, TimeUtil.secondsToMillis(writeBatchInterval));
+      }
+    } else {
+      String name = record.get("name").getAsString();
+      IJsonObject data = (IJsonObject)record.get("value");
+      long start = System.nanoTime();
+      try {
+        writeData(name, data);
+      } catch (SQLException e) {
+        Log.e(LogUtil.TAG, "Unable to write data, retrying.", e);
+        pendingData.add(record);
+        pendingTraces.add(trace);
+        retryFlush();
+        return;
+      }
+      writeMetric.recordSince(start);
+      recordsMetric.increment();
+      if (trace != null) {
+        trace.markCommitted();
+      }
+    }
+  }
+  
+  private static boolean hasRequiredValues(JsonElement name, JsonElement data) {
+    return name != null && name.isJsonPrimitive() 
+        && data instanceof IJsonObject && getTimestamp((IJsonObject)data) != 0;
+  }
+  
+  /**
+   * @return the timestamp of the data, or 0 if it has none
+   */
+  private static double getTimestamp(IJsonObject data) {
+    JsonElement timestamp = data.get(ProbeKeys.BaseProbeKeys.TIMESTAMP);
+    if (timestamp == null || !timestamp.isJsonPrimitive()) {
+      return 0;
+    }
+    try {
+      return timestamp.getAsDouble();
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+  
+  private void reportDroppedData() {
+    int droppedTotal = dataQueue.getDroppedTotal();
+    droppedMetric.set(droppedTotal);
+    if (droppedTotal != reportedDroppedTotal) {
+      Log.w(LogUtil.TAG, "Pipeline " + name + " dropped " + (droppedTotal - reportedDroppedTotal) 
+          + " records under overload, totals by probe: " + dataQueue.getDroppedCounts());
+      reportedDroppedTotal = droppedTotal;
+    }
+  }
+  
+  /**
+   * @return the number of records dropped for each probe because the ingestion queue was full
+   */
+  public Map<String,Integer> getDroppedDataCounts() {
+    return dataQueue == null ? new HashMap<String,Integer>() : dataQueue.getDroppedCounts();
+  }
+  
   protected void reloadDbHelper(Context ctx) {
+    closeInsertStatement();
     this.databaseHelper = new NameValueDatabaseHelper(ctx, StringUtil.simpleFilesafe(name), version);
   }
   
+  /**
+   * Swaps in a fresh database or log segment, and hands the sealed one to the archive thread.
+   * Ingestion only waits for the swap, not for the archive to copy, compress and encrypt the file.
+   */
   protected void runArchive() {
+    long start = System.nanoTime();
+    flushData(); // Make sure all queued data is in the database before it is archived
+    if (isLogStorage()) {
+      sealDataLog();
+    } else {
+      sealDatabase();
+    }
+    rotateMetric.recordSince(start);
+    archiveHandler.post(archiveSealed);
+  }
+  
+  private final Runnable archiveSealed = new Runnable() {
+    @Override
+    public void run() {
+      long start = System.nanoTime();
+      if (isLogStorage()) {
+        archiveLogSegments();
+      } else {
+        archiveSealedDatabases();
+      }
+      archiveMetric.recordSince(start);
+    }
+  };
+  
+  /**
+   * Moves the live database into its own directory under the sealed database directory, 
+   * keeping its file name for the archive, and opens a new database in its place.
+   */
+  private void sealDatabase() {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     // TODO: add check to make sure this is not empty
     File dbFile = new File(db.getPath());
+    closeInsertStatement();
     db.close();
-    if (archive.add(dbFile)) {
-      dbFile.delete();
+    boolean sealed;
+    synchronized (SEALED_DATABASE_LOCK) {
+      File sealedRoot = getSealedDatabaseDir();
+      long sealedId = System.currentTimeMillis();
+      while (new File(sealedRoot, String.valueOf(sealedId)).exists()) {
+        sealedId++;
+      }
+      File sealedDir = new File(sealedRoot, String.valueOf(sealedId));
+      sealed = sealedDir.mkdirs() && dbFile.renameTo(new File(sealedDir, dbFile.getName()));
+      if (!sealed) {
+        sealedDir.delete();
+      }
+    }
+    if (!sealed) {
+      // Archive in place, blocking ingestion, rather than lose the data
+      Log.e(LogUtil.TAG, "Unable to seal database " + dbFile.getAbsolutePath() + ", archiving in place.");
+      if (archive.add(dbFile)) {
+        dbFile.delete();
+      }
     }
     reloadDbHelper(manager);
     databaseHelper.getWritableDatabase(); // Build new database
   }
   
+  /**
+   * Archives sealed databases, oldest first.  Databases that fail to archive are kept, 
+   * and retried on the next archive.
+   */
+  private void archiveSealedDatabases() {
+    File[] sealedDirs;
+    synchronized (SEALED_DATABASE_LOCK) {
+      sealedDirs = getSealedDatabaseDir().listFiles();
+    }
+    if (sealedDirs == null) {
+      return;
+    }
+    Arrays.sort(sealedDirs);
+    // Directories listed under the lock are complete, and sealing never adds to an existing one
+    for (File sealedDir : sealedDirs) {
+      File[] dbFiles = sealedDir.listFiles();
+      if (dbFiles != null) {
+        for (File dbFile : dbFiles) {
+          if (archive.add(dbFile)) {
+            dbFile.delete();
+          }
+        }
+      }
+      sealedDir.delete(); // Only succeeds once everything in it was archived
+    }
+  }
+  
+  private void sealDataLog() {
+    if (dataLog != null) {
+      if (!dataLog.seal(new File(getLogDir(), System.currentTimeMillis() + SEALED_SEGMENT_SUFFIX))) {
+        Log.e(LogUtil.TAG, "Unable to seal log segment " + dataLog.getFile().getAbsolutePath());
+      }
+      dataLog = null;
+    }
+  }
+  
+  /**
+   * Archives every sealed log segment as a database file.
+   * Segments that fail to convert or archive are kept, and retried on the next archive.
+   */
+  private void archiveLogSegments() {
+    File logDir = getLogDir();
+    File[] segments = logDir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.getName().endsWith(SEALED_SEGMENT_SUFFIX);
+      }
+    });
+    if (segments != null) {
+      Arrays.sort(segments);
+      File dbFile = new File(logDir, StringUtil.simpleFilesafe(name));
+      for (File segment : segments) {
+        dbFile.delete(); // Remove any partial conversion
+        if (AppendLogReader.convertToDatabase(segment, dbFile) && archive.add(dbFile)) {
+          segment.delete();
+        }
+        dbFile.delete();
+      }
+    }
+  }
+  
+  private File getSealedDatabaseDir() {
+    return manager.getDir("funf_" + StringUtil.simpleFilesafe(name) + SEALED_DATABASE_DIR_SUFFIX, Context.MODE_PRIVATE);
+  }
+  
+  protected boolean isLogStorage() {
+    return STORAGE_LOG.equals(storage);
+  }
+  
+  private File getLogDir() {
+    return manager.getDir("funf_" + StringUtil.simpleFilesafe(name) + "_log", Context.MODE_PRIVATE);
+  }
+  
+  private AppendLog getDataLog() throws IOException {
+    if (dataLog == null) {
+      dataLog = new AppendLog(new File(getLogDir(), ACTIVE_SEGMENT_NAME), 
+          StringUtil.simpleFilesafe(name), version, UuidUtil.getInstallationId(manager));
+    }
+    return dataLog;
+  }
+  
+  private void closeDataLog() {
+    if (dataLog != null) {
+      dataLog.close();
+      dataLog = null;
+    }
+  }
+  
+  /**
+   * Writes a single record to the database, or to the log segment with its own commit.
+   * @throws SQLException if the record is missing required values or could not be written
+   */
   protected void writeData(String name, IJsonObject data) {
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    final double timestamp = data.get(ProbeKeys.BaseProbeKeys.TIMESTAMP).getAsDouble();
-    final String value = data.toString();
-    if (timestamp == 0L || name == null || value == null) {
-        Log.e(LogUtil.TAG, "Unable to save data.  Not all required values specified. " + timestamp + " " + name + " - " + value);
+    final double timestamp = data == null ? 0 : getTimestamp(data);
+    if (timestamp == 0L || name == null) {
+        Log.e(LogUtil.TAG, "Unable to save data.  Not all required values specified. " + name + " - " + data);
         throw new SQLException("Not all required fields specified.");
     }
+    final String value = data.toString();
+    if (isLogStorage()) {
+      try {
+        getDataLog().append(name, timestamp, value);
+        getDataLog().commit();
+      } catch (IOException e) {
+        throw new SQLException("Unable to write data to log segment: " + e.getMessage());
+      }
+      return;
+    }
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
     ContentValues cv = new ContentValues();
     cv.put(NameValueDatabaseHelper.COLUMN_NAME, name);
     cv.put(NameValueDatabaseHelper.COLUMN_VALUE, value);
     cv.put(NameValueDatabaseHelper.COLUMN_TIMESTAMP, timestamp);
     db.insertOrThrow(NameValueDatabaseHelper.DATA_TABLE.name, "", cv);
   }
+  
+  /**
+   * @return the number of records to write together, at least as many as are drained at once for log storage
+   */
+  protected int getWriteBatchSize() {
+    return isLogStorage() && writeBatchSize <= 1 ? MAX_RECORDS_PER_DRAIN : writeBatchSize;
+  }
+  
+  protected boolean isBatchingWrites() {
+    return getWriteBatchSize() > 1;
+  }
+  
+  /**
+   * Writes all batched data records to the database in a single transaction, 
+   * reusing one compiled insert statement for every row, or to the log segment in a single commit.
+   * If the write fails the batch is kept, and retried after a delay.  Records are checked for 
+   * required values as they arrive, so one bad record does not fail the rest of its batch.
+   */
+  protected void flushData() {
+    handler.removeMessages(FLUSH);
+    if (pendingData.isEmpty()) {
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      if (isLogStorage()) {
+        flushDataToLog();
+      } else {
+        flushDataToDatabase();
+      }
+    } catch (IOException e) {
+      Log.e(LogUtil.TAG, "Unable to write " + pendingData.size() + " records to log segment, retrying.", e);
+      retryFlush();
+      return;
+    } catch (RuntimeException e) {
+      // SQLiteException, or a failure to open the database
+      Log.e(LogUtil.TAG, "Unable to write " + pendingData.size() + " records to database, retrying.", e);
+      retryFlush();
+      return;
+    }
+    writeMetric.recordSince(start);
+    recordsMetric.add(pendingData.size());
+    pendingData.clear();
+    flushFailed = false;
+    commitPendingTraces();
+  }
+  
+  private void flushDataToLog() throws IOException {
+    AppendLog log = getDataLog();
+    for (JsonObject record : pendingData) {
+      String name = record.get("name").getAsString();
+      IJsonObject data = (IJsonObject)record.get("value");
+      log.append(name, getTimestamp(data), data.toString());
+    }
+    // A failed commit discards everything appended since the last commit, so the batch can be appended again
+    log.commit();
+  }
+  
+  private void flushDataToDatabase() {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    if (insertStatement == null) {
+      insertStatement = db.compileStatement(INSERT_DATA_SQL);
+    }
+    db.beginTransaction();
+    try {
+      for (JsonObject record : pendingData) {
+        IJsonObject data = (IJsonObject)record.get("value");
+        insertStatement.bindString(1, record.get("name").getAsString());
+        insertStatement.bindString(2, data.toString());
+        insertStatement.bindDouble(3, getTimestamp(data));
+        insertStatement.executeInsert();
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+  
+  /**
+   * Keeps the pending batch for a later flush, dropping the oldest records past the queue limit 
+   * so a storage failure cannot grow it without bound.
+   */
+  private void retryFlush() {
+    flushFailed = true;
+    if (maxQueuedData > 0 && pendingData.size() > maxQueuedData) {
+      int dropped = pendingData.size() - maxQueuedData;
+      Log.e(LogUtil.TAG, "Pipeline " + name + " dropped " + dropped + " unwritten records.");
+      pendingData.subList(0, dropped).clear();
+      pendingTraces.subList(0, dropped).clear();
+    }
+    handler.removeMessages(FLUSH);
+    handler.sendEmptyMessageDelayed(FLUSH, FLUSH_RETRY_MILLIS);
+  }
+  
+  /**
+   * Flushes the pending batch before the handler quits, when no delayed retry can run.  
+   * Retries a bounded number of times, then drops and reports whatever could not be written.
+   */
+  private void flushRemainingData() {
+    for (int attempt = 1; attempt <= FINAL_FLUSH_ATTEMPTS && !pendingData.isEmpty(); attempt++) {
+      if (attempt > 1) {
+        try {
+          Thread.sleep(FINAL_FLUSH_RETRY_MILLIS); // Only holds up this pipeline's own thread
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      flushData();
+    }
+    if (!pendingData.isEmpty()) {
+      Log.e(LogUtil.TAG, "Pipeline " + name + " dropped " + pendingData.size() 
+          + " unwritten records, the final write failed " + FINAL_FLUSH_ATTEMPTS + " times.");
+      pendingData.clear();
+      pendingTraces.clear();
+    }
+    handler.removeMessages(FLUSH);
+  }
+  
+  private void commitPendingTraces() {
+    for (Tracing.Trace trace : pendingTraces) {
+      if (trace != null) {
+        trace.markCommitted();
+      }
+    }
+    pendingTraces.clear();
+  }
+  
+  private void closeInsertStatement() {
+    if (insertStatement != null) {
+      insertStatement.close();
+      insertStatement = null;
+    }
+  }
 
 
   @Override
@@ -170,10 +688,23 @@ public class BasicPipeline implements Pipeline, DataListener {
     }
     this.manager = manager;
     reloadDbHelper(manager);
-    HandlerThread thread = new HandlerThread(getClass().getName());
-    thread.start();
-    this.looper = thread.getLooper();
-    this.handler = new Handler(looper, callback);
+    // A thread of its own, since database writes and config updates block
+    this.handler = new SerialHandler("funf-pipeline-" + name, callback);
+    this.archiveHandler = new Handler(getArchiveLooper());
+    this.dataQueue = new DataQueue(maxQueuedData, overloadPolicy, TimeUtil.secondsToMillis(overloadBlockTimeout));
+    String metricPrefix = "pipeline." + name + ".";
+    this.queueDepthMetric = Metrics.gauge(metricPrefix + "queueDepth");
+    this.droppedMetric = Metrics.gauge(metricPrefix + "dropped");
+    this.recordsMetric = Metrics.counter(metricPrefix + "records");
+    this.writeMetric = Metrics.histogram(metricPrefix + "write");
+    this.rotateMetric = Metrics.histogram(metricPrefix + "rotate");
+    this.archiveMetric = Metrics.histogram(metricPrefix + "archive");
+    if (traceSampleInterval > 0) {
+      Tracing.setSampleInterval(traceSampleInterval);
+    }
+    if (wakeupCoalescingWindow >= 0) {
+      manager.setWakeupCoalescingWindowMillis(TimeUtil.secondsToMillis(wakeupCoalescingWindow));
+    }
     enabled = true;
     for (JsonElement dataRequest : data) {
       manager.requestData(this, dataRequest);
@@ -194,19 +725,31 @@ public class BasicPipeline implements Pipeline, DataListener {
     if (uploader != null) {
       uploader.stop();
     }
-    looper.quit();
+    if (traceSampleInterval > 0 && Tracing.getSampleInterval() == traceSampleInterval) {
+      Tracing.setSampleInterval(0);
+    }
+    // Write any remaining batched data before releasing the handler
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        drainQueuedData(Integer.MAX_VALUE);
+        flushRemainingData();
+        closeDataLog();
+        handler.quit(); // Archiving already handed off still finishes on the shared archive thread
+      }
+    });
     enabled = false;
   }
 
   @Override
   public void onRun(String action, JsonElement config) {
-    // Run on handler thread
+    // Run on handler thread, ahead of any queued data
     if (ACTION_ARCHIVE.equals(action)) {
-      handler.obtainMessage(ARCHIVE, config).sendToTarget();
+      handler.sendPriorityMessage(handler.obtainMessage(ARCHIVE, config));
     } else if (ACTION_UPLOAD.equals(action)) {
-      handler.obtainMessage(UPLOAD, config).sendToTarget();
+      handler.sendPriorityMessage(handler.obtainMessage(UPLOAD, config));
     } else if (ACTION_UPDATE.equals(action)) {
-      handler.obtainMessage(UPDATE, config).sendToTarget();
+      handler.sendPriorityMessage(handler.obtainMessage(UPDATE, config));
     } 
   }
   
@@ -331,16 +874,23 @@ public class BasicPipeline implements Pipeline, DataListener {
 
 
   public void setDatabaseHelper(SQLiteOpenHelper databaseHelper) {
+    closeInsertStatement();
     this.databaseHelper = databaseHelper;
   }
 
 
   @Override
   public void onDataReceived(IJsonObject probeConfig, IJsonObject data) {
+    JsonElement type = probeConfig.get(RuntimeTypeAdapterFactory.TYPE);
     JsonObject record = new JsonObject();
-    record.add("name", probeConfig.get(RuntimeTypeAdapterFactory.TYPE));
+    record.add("name", type);
     record.add("value", data);
-    handler.obtainMessage(DATA, record).sendToTarget();
+    String probeName = type == null || type.isJsonNull() ? "" : type.getAsString();
+    // Never park a shared thread, it may be running other probes, or this pipeline's own thread, which is the consumer
+    boolean mayBlock = !SerialHandler.isPoolThread() && !handler.isCurrentThread();
+    if (dataQueue.offer(probeName, record, Tracing.current(), mayBlock)) {
+      handler.sendEmptyMessage(DATA);
+    }
   }
 
   @Override
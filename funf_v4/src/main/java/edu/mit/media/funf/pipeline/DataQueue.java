@@ -0,0 +1,227 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.pipeline;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import com.google.gson.JsonObject;
+
+import edu.mit.media.funf.util.Tracing;
+
+/**
+ * Bounded queue of data records waiting to be written by a pipeline.
+ * 
+ * When the queue is full, the overload policy decides what happens to the incoming record:
+ * <ul>
+ * <li>{@link #OVERLOAD_BLOCK} waits for the consumer to make room, for at most the block timeout, 
+ * then falls back to dropping the oldest record.</li>
+ * <li>{@link #OVERLOAD_DROP_OLDEST} drops the oldest queued record.</li>
+ * <li>{@link #OVERLOAD_DOWNSAMPLE} drops every other queued record of the probe with the most 
+ * records in the queue, so a bursting probe loses resolution while other probes keep theirs.</li>
+ * </ul>
+ * Dropped records are counted per probe.
+ * 
+ * The queue also tracks whether its consumer has been scheduled, so producers only need to 
+ * notify the consumer when {@link #offer(String, JsonObject, Tracing.Trace, boolean)} returns true.
+ */
+public class DataQueue {
+
+	public static final String 
+		OVERLOAD_BLOCK = "block",
+		OVERLOAD_DROP_OLDEST = "drop_oldest",
+		OVERLOAD_DOWNSAMPLE = "downsample";
+	
+	public static final class Entry {
+		private final String name;
+		private final JsonObject record;
+		private final Tracing.Trace trace;
+		
+		private Entry(String name, JsonObject record, Tracing.Trace trace) {
+			this.name = name;
+			this.record = record;
+			this.trace = trace;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public JsonObject getRecord() {
+			return record;
+		}
+		
+		/**
+		 * @return the latency trace the record was queued with, or null if it is not traced
+		 */
+		public Tracing.Trace getTrace() {
+			return trace;
+		}
+	}
+	
+	private final int capacity;
+	private final String policy;
+	private final long blockTimeoutMillis;
+	private final LinkedList<Entry> entries = new LinkedList<Entry>();
+	private final Map<String,Integer> queuedCounts = new HashMap<String,Integer>();
+	private final Map<String,Integer> droppedCounts = new HashMap<String,Integer>();
+	private int droppedTotal = 0;
+	private boolean consumerScheduled = false;
+	
+	/**
+	 * @param capacity maximum number of queued records, or 0 for no limit
+	 * @param policy one of the OVERLOAD constants
+	 * @param blockTimeoutMillis longest time a producer waits under the block policy
+	 */
+	public DataQueue(int capacity, String policy, long blockTimeoutMillis) {
+		this.capacity = capacity;
+		this.policy = policy == null ? OVERLOAD_DROP_OLDEST : policy;
+		this.blockTimeoutMillis = blockTimeoutMillis;
+	}
+	
+	/**
+	 * Adds a record, applying the overload policy if the queue is full.
+	 * @param name the name of the probe the record came from
+	 * @param record
+	 * @param trace latency trace of the record, or null
+	 * @param mayBlock false if the caller must not wait, for example when it is the consumer or shares a thread with it
+	 * @return true if the consumer needs to be scheduled to drain the queue
+	 */
+	public synchronized boolean offer(String name, JsonObject record, Tracing.Trace trace, boolean mayBlock) {
+		if (isFull() && OVERLOAD_BLOCK.equals(policy) && mayBlock) {
+			long deadline = System.currentTimeMillis() + blockTimeoutMillis;
+			long remaining = blockTimeoutMillis;
+			while (isFull() && remaining > 0) {
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				remaining = deadline - System.currentTimeMillis();
+			}
+		}
+		if (isFull()) {
+			if (OVERLOAD_DOWNSAMPLE.equals(policy)) {
+				downsampleBusiestProbe();
+			}
+			if (isFull()) {
+				Entry oldest = entries.removeFirst();
+				onRemoved(oldest.name);
+				onDropped(oldest.name, 1);
+			}
+		}
+		entries.addLast(new Entry(name, record, trace));
+		Integer queued = queuedCounts.get(name);
+		queuedCounts.put(name, queued == null ? 1 : queued + 1);
+		if (consumerScheduled) {
+			return false;
+		}
+		consumerScheduled = true;
+		return true;
+	}
+	
+	/**
+	 * Removes the oldest record.  When the queue is empty, returns null and marks the consumer 
+	 * as no longer scheduled, so the next offer asks for it again.
+	 * @return
+	 */
+	public synchronized Entry poll() {
+		if (entries.isEmpty()) {
+			consumerScheduled = false;
+			return null;
+		}
+		Entry entry = entries.removeFirst();
+		onRemoved(entry.name);
+		notifyAll(); // Wake any blocked producers
+		return entry;
+	}
+	
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * @return the total number of records dropped since the queue was created
+	 */
+	public synchronized int getDroppedTotal() {
+		return droppedTotal;
+	}
+	
+	/**
+	 * @return a copy of the number of records dropped for each probe
+	 */
+	public synchronized Map<String,Integer> getDroppedCounts() {
+		return new HashMap<String,Integer>(droppedCounts);
+	}
+	
+	private boolean isFull() {
+		return capacity > 0 && entries.size() >= capacity;
+	}
+	
+	private void downsampleBusiestProbe() {
+		String busiest = null;
+		int busiestCount = 1;
+		for (Map.Entry<String,Integer> queued : queuedCounts.entrySet()) {
+			if (queued.getValue() > busiestCount) {
+				busiest = queued.getKey();
+				busiestCount = queued.getValue();
+			}
+		}
+		if (busiest == null) {
+			return; // No probe has more than one record, nothing to downsample
+		}
+		int dropped = 0;
+		boolean keep = true;
+		for (Iterator<Entry> i = entries.iterator(); i.hasNext();) {
+			Entry entry = i.next();
+			if (busiest.equals(entry.name)) {
+				if (!keep) {
+					i.remove();
+					dropped++;
+				}
+				keep = !keep;
+			}
+		}
+		queuedCounts.put(busiest, busiestCount - dropped);
+		onDropped(busiest, dropped);
+	}
+	
+	private void onRemoved(String name) {
+		Integer queued = queuedCounts.get(name);
+		if (queued == null || queued <= 1) {
+			queuedCounts.remove(name);
+		} else {
+			queuedCounts.put(name, queued - 1);
+		}
+	}
+	
+	private void onDropped(String name, int count) {
+		Integer dropped = droppedCounts.get(name);
+		droppedCounts.put(name, dropped == null ? count : dropped + count);
+		droppedTotal += count;
+	}
+}
@@ -56,6 +56,7 @@ public class PipelineFactory implements RuntimeTypeAdapterFactory {
 	public static final String SCHEDULES_FIELD_NAME = "schedules";
 	public static final TypeToken<Map<String,Schedule>> SCHEDULES_FIELD_TYPE_TOKEN = new TypeToken<Map<String,Schedule>>(){};
 	public static final String SCHEDULE = "@schedule";
+	public static final String SAMPLING = "@sampling";
 	
 	private RuntimeTypeAdapterFactory delegate;
 	
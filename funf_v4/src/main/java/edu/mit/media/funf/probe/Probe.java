@@ -30,17 +30,15 @@ import java.lang.annotation.Documented;
 import java.lang.annotation.Inherited;
 import java.lang.annotation.Retention;
 import java.lang.annotation.Target;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.Context;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
 import android.os.Message;
-import android.os.PowerManager;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -59,6 +57,9 @@ import edu.mit.media.funf.security.HashUtil;
 import edu.mit.media.funf.security.HashUtil.HashingType;
 import edu.mit.media.funf.time.TimeUtil;
 import edu.mit.media.funf.util.LockUtil;
+import edu.mit.media.funf.util.Metrics;
+import edu.mit.media.funf.util.SerialHandler;
+import edu.mit.media.funf.util.Tracing;
 
 public interface Probe {
 
@@ -281,8 +282,8 @@ public interface Probe {
 			protected void start(Base probe) {
 				synchronized (probe) {
 					if (probe.isWakeLockedWhileRunning()) {
-						JsonElement el = JsonUtils.immutable(probe.getGson().toJsonTree(probe));
-						probe.lock = LockUtil.getWakeLock(probe.getContext(), el.toString());
+						LockUtil.acquire(probe.getContext(), probe.getWakeLockComponent());
+						probe.wakeLocked = true;
 					}
 					probe.state = RUNNING;
 					probe.onStart();
@@ -301,11 +302,9 @@ public interface Probe {
 					probe.state = DISABLED;
 					probe.onDisable();
 					probe.notifyStateChange(this);
-					probe.passiveDataListeners.clear();
-					probe.dataListeners.clear();
-					// Shutdown handler thread
-					probe.looper.quit();
-					probe.looper = null;
+					probe.clearDataListeners();
+					// Drop any remaining messages, the shared threads keep running
+					probe.handler.quit();
 					probe.handler = null;
 				}
 			}
@@ -329,9 +328,9 @@ public interface Probe {
 					probe.onStop();
 					probe.notifyStateChange(this);
 					probe.unregisterAllListeners();
-					if (probe.lock != null && probe.lock.isHeld()) {
-						probe.lock.release();
-						probe.lock = null;
+					if (probe.wakeLocked) {
+						LockUtil.release(probe.getWakeLockComponent());
+						probe.wakeLocked = false;
 					}
 				}
 			}
@@ -417,31 +416,67 @@ public interface Probe {
 		/*****************************************
 		 * Probe Data Listeners
 		 *****************************************/
-		private Set<DataListener> dataListeners = Collections.synchronizedSet(new HashSet<DataListener>());
-		private Set<DataListener> passiveDataListeners = Collections.synchronizedSet(new HashSet<DataListener>());
+		// Copy on write, so the data path iterates without locking.  Changes are made while holding listenerLock.
+		private final Set<DataListener> dataListeners = new CopyOnWriteArraySet<DataListener>();
+		private final Set<DataListener> passiveDataListeners = new CopyOnWriteArraySet<DataListener>();
+		private final Object listenerLock = new Object();
+		private volatile DataListener[] allDataListeners = new DataListener[0];
 
 		/**
-		 * Returns the set of data listeners. Make sure to synchronize on this
-		 * object, if you plan to modify it or iterate over it.
+		 * Returns the set of data listeners. The set is copy on write, so iterating over it
+		 * does not require synchronization.
 		 */
 		protected Set<DataListener> getDataListeners() {
 			return dataListeners;
 		}
 
 		/**
-		 * Returns the set of passive data listeners. Make sure to synchronize
-		 * on this object, if you plan to modify it or iterate over it.
+		 * Returns the set of passive data listeners. The set is copy on write, so iterating 
+		 * over it does not require synchronization.
 		 */
 		protected Set<DataListener> getPassiveDataListeners() {
-			return dataListeners;
+			return passiveDataListeners;
+		}
+		
+		/**
+		 * Returns a snapshot of every data listener, active and passive, with each listener listed once.
+		 * The array is replaced rather than modified when listeners change, and must not be modified.
+		 */
+		protected DataListener[] getAllDataListeners() {
+			return allDataListeners;
+		}
+		
+		private void updateListeners(Set<DataListener> listenerSet, DataListener[] listeners, boolean add) {
+			synchronized (listenerLock) {
+				for (DataListener listener : listeners) {
+					if (add) {
+						listenerSet.add(listener);
+					} else {
+						listenerSet.remove(listener);
+					}
+				}
+				updateAllDataListeners();
+			}
+		}
+		
+		private void clearDataListeners() {
+			synchronized (listenerLock) {
+				dataListeners.clear();
+				passiveDataListeners.clear();
+				updateAllDataListeners();
+			}
+		}
+		
+		private void updateAllDataListeners() {
+			Set<DataListener> all = new LinkedHashSet<DataListener>(dataListeners);
+			all.addAll(passiveDataListeners);
+			allDataListeners = all.toArray(new DataListener[all.size()]);
 		}
 
 		@Override
 		public void registerListener(DataListener... listeners) {
 			if (listeners != null) {
-				for (DataListener listener : listeners) {
-					dataListeners.add(listener);
-				}
+				updateListeners(dataListeners, listeners, true);
 				start();
 			}
 		}
@@ -457,9 +492,10 @@ public interface Probe {
 		public void unregisterListener(DataListener... listeners) {
 			if (listeners != null) {
 				JsonElement checkpoint = getCheckpointIfContinuable();
+				updateListeners(dataListeners, listeners, false);
+				IJsonObject config = getConfig();
 				for (DataListener listener : listeners) {
-					dataListeners.remove(listener);
-					listener.onDataCompleted(getConfig(), checkpoint);
+					listener.onDataCompleted(config, checkpoint);
 				}
 				// If no one is listening, stop using device resources
 				if (dataListeners.isEmpty()) {
@@ -472,19 +508,12 @@ public interface Probe {
 		}
 
 		protected void unregisterAllListeners() {
-			DataListener[] listeners = null;
-			synchronized (dataListeners) {
-				listeners = new DataListener[dataListeners.size()];
-				dataListeners.toArray(listeners);
-			}
-			unregisterListener(listeners);
+			unregisterListener(dataListeners.toArray(new DataListener[0]));
 		}
 
 		public void registerPassiveListener(DataListener... listeners) {
 			if (listeners != null) {
-				for (DataListener listener : listeners) {
-					dataListeners.add(listener);
-				}
+				updateListeners(passiveDataListeners, listeners, true);
 				enable();
 			}
 		}
@@ -492,9 +521,10 @@ public interface Probe {
 		public void unregisterPassiveListener(DataListener... listeners) {
 			if (listeners != null) {
 				JsonElement checkpoint = getCheckpointIfContinuable();
+				updateListeners(passiveDataListeners, listeners, false);
+				IJsonObject config = getConfig();
 				for (DataListener listener : listeners) {
-					dataListeners.remove(listener);
-					listener.onDataCompleted(getConfig(), checkpoint);
+					listener.onDataCompleted(config, checkpoint);
 				}
 				// If no one is listening, stop using device resources
 				if (dataListeners.isEmpty() && passiveDataListeners.isEmpty()) {
@@ -504,91 +534,138 @@ public interface Probe {
 		}
 
 		protected void unregisterAllPassiveListeners() {
-			synchronized (passiveDataListeners) {
-				DataListener[] listeners = new DataListener[passiveDataListeners.size()];
-				passiveDataListeners.toArray(listeners);
-				unregisterPassiveListener(listeners);
-			}
+			unregisterPassiveListener(passiveDataListeners.toArray(new DataListener[0]));
 		}
 
 		protected void notifyStateChange(State previousState) {
-			synchronized (stateListeners) {
-				for (StateListener listener : stateListeners) {
-					listener.onStateChanged(this, previousState);
-				}
+			for (StateListener listener : stateListeners) {
+				listener.onStateChanged(this, previousState);
 			}
 		}
 
+		/**
+		 * Sends data to all registered listeners.  The data object must not be modified after it is sent.
+		 * @param data
+		 */
 		protected void sendData(final JsonObject data) {
-			if (data == null || looper == null) {
+			SerialHandler handler = this.handler;
+			if (data == null || handler == null) {
 				return;
-			} else if (Thread.currentThread() != looper.getThread()) {
-				// Ensure the data send runs on the probe's thread
-				if (handler != null) {
-					Message dataMessage = handler.obtainMessage(SEND_DATA_MESSAGE, data);
-					handler.sendMessage(dataMessage);
-				}
+			} else if (!handler.isCurrentThread()) {
+				// Ensure the data send runs on the probe's queue, with a copy since the caller keeps running
+				Tracing.Trace trace = startTrace(System.nanoTime());
+				JsonObject dataCopy = JsonUtils.deepCopy(data);
+				Message dataMessage = trace == null 
+						? handler.obtainMessage(SEND_DATA_MESSAGE, dataCopy)
+						: handler.obtainMessage(SEND_TRACED_DATA_MESSAGE, new Object[] {dataCopy, trace});
+				handler.sendMessage(dataMessage);
 			} else {
 				if (!data.has(TIMESTAMP)) {
 					data.addProperty(TIMESTAMP, TimeUtil.getTimestamp());
 				}
-				IJsonObject immutableData = new IJsonObject(data);
-				synchronized (dataListeners) {
-					for (DataListener listener : dataListeners) {
-						listener.onDataReceived(getConfig(), immutableData);
-					}
+				Tracing.Trace trace = Tracing.current();
+				boolean startedTrace = false;
+				if (trace == null) {
+					trace = startTrace(System.nanoTime());
+					startedTrace = trace != null;
+					Tracing.setCurrent(trace);
 				}
-				synchronized (passiveDataListeners) {
-					for (DataListener listener : passiveDataListeners) {
-						if (!dataListeners.contains(listener)) { // Don't send
-																	// data
-																	// twice to
-																	// passive
-																	// listeners
-							listener.onDataReceived(getConfig(), immutableData);
+				if (trace != null) {
+					trace.markDispatched();
+				}
+				try {
+					// Probes hand off ownership of data, so a view avoids copying it for every listener
+					countSample();
+					IJsonObject immutableData = IJsonObject.view(data);
+					IJsonObject config = getConfig();
+					// Active and passive listeners together, each listed once so none receives the data twice
+					for (DataListener listener : allDataListeners) {
+						if (isJsonDataListener(listener)) {
+							listener.onDataReceived(config, immutableData);
 						}
 					}
+				} finally {
+					if (startedTrace) {
+						Tracing.setCurrent(null);
+					}
 				}
 			}
 		}
+		
+		private final AtomicLong traceSequence = new AtomicLong();
+		
+		/**
+		 * Starts a latency trace for a sample, if tracing is on and selects this sample.
+		 * @param emitNanos System.nanoTime() when the sample was emitted
+		 * @return the trace, or null if the sample is not traced
+		 */
+		protected final Tracing.Trace startTrace(long emitNanos) {
+			if (!Tracing.isEnabled()) {
+				return null;
+			}
+			return Tracing.start(getClass().getSimpleName(), traceSequence.getAndIncrement(), emitNanos);
+		}
+
+		private volatile Metrics.Counter sampleMetric;
+		
+		/**
+		 * Counts a sample delivered by this probe in the "probe.[class name].samples" metric.
+		 * Called by sendData, so subclasses only need it for samples delivered without sendData.
+		 */
+		protected final void countSample() {
+			Metrics.Counter metric = sampleMetric;
+			if (metric == null) {
+				metric = Metrics.counter("probe." + getClass().getSimpleName() + ".samples");
+				sampleMetric = metric;
+			}
+			metric.increment();
+		}
+
+		/**
+		 * Return false for listeners that receive this probe's data through another channel,
+		 * and should not be sent the JSON data passed to sendData.
+		 * @param listener
+		 * @return
+		 */
+		protected boolean isJsonDataListener(DataListener listener) {
+			return true;
+		}
 
 		/*****************************************
 		 * Probe State Machine
 		 *****************************************/
 
 		private State state;
-		private PowerManager.WakeLock lock;
+		private boolean wakeLocked;
+		private String wakeLockComponent;
 
 		@Override
 		public State getState() {
 			return state;
 		}
 
-		private void ensureLooperThreadExists() {
-			if (looper == null) {
+		private void ensureHandlerExists() {
+			if (handler == null) {
 				synchronized (this) {
-					if (looper == null) {
-						HandlerThread thread = new HandlerThread("Probe[" + getClass().getName() + "]");
-						thread.start();
-						looper = thread.getLooper();
-						handler = new Handler(looper, new ProbeHandlerCallback());
+					if (handler == null) {
+						handler = new SerialHandler(new ProbeHandlerCallback());
 					}
 				}
 			}
 		}
 
 		protected final void enable() {
-			ensureLooperThreadExists();
+			ensureHandlerExists();
 			handler.sendMessage(handler.obtainMessage(ENABLE_MESSAGE));
 		}
 
 		protected final void start() {
-			ensureLooperThreadExists();
+			ensureHandlerExists();
 			handler.sendMessage(handler.obtainMessage(START_MESSAGE));
 		}
 
 		protected final void stop() {
-			ensureLooperThreadExists();
+			ensureHandlerExists();
 			handler.sendMessage(handler.obtainMessage(STOP_MESSAGE));
 		}
 
@@ -645,11 +722,12 @@ public interface Probe {
 
 		}
 
-		private volatile Looper looper;
-		private volatile Handler handler;
+		private volatile SerialHandler handler;
 
 		/**
-		 * Access to the probe thread's handler.
+		 * Access to the probe's handler.  Messages and runnables sent to it run one at a time,
+		 * on a Looper thread shared with the other probes.  System callbacks that need a Looper 
+		 * can be registered with getHandler().getLooper().
 		 * 
 		 * @return
 		 */
@@ -667,7 +745,7 @@ public interface Probe {
 		}
 
 		protected static final int ENABLE_MESSAGE = 1, START_MESSAGE = 2, STOP_MESSAGE = 3, DISABLE_MESSAGE = 4,
-				SEND_DATA_MESSAGE = 5, SEND_DATA_COMPLETE_MESSAGE = 6;
+				SEND_DATA_MESSAGE = 5, SEND_DATA_COMPLETE_MESSAGE = 6, SEND_TRACED_DATA_MESSAGE = 7;
 
 		private class ProbeHandlerCallback implements Handler.Callback {
 
@@ -696,6 +774,15 @@ public interface Probe {
 						sendData((JsonObject) msg.obj);
 					}
 					break;
+				case SEND_TRACED_DATA_MESSAGE:
+					Object[] tracedData = (Object[]) msg.obj;
+					Tracing.setCurrent((Tracing.Trace) tracedData[1]);
+					try {
+						sendData((JsonObject) tracedData[0]);
+					} finally {
+						Tracing.setCurrent(null);
+					}
+					break;
 				default:
 					return Base.this.handleMessage(msg);
 				}
@@ -708,11 +795,11 @@ public interface Probe {
 		 * Probe State Listeners
 		 *****************************************/
 
-		private Set<StateListener> stateListeners = Collections.synchronizedSet(new HashSet<StateListener>());
+		private final Set<StateListener> stateListeners = new CopyOnWriteArraySet<StateListener>();
 
 		/**
-		 * Returns the set of status listeners. Make sure to synchronize on this
-		 * object, if you plan to modify it or iterate over it.
+		 * Returns the set of status listeners. The set is copy on write, so iterating over it
+		 * does not require synchronization.
 		 */
 		protected Set<StateListener> getStateListeners() {
 			return stateListeners;
@@ -778,5 +865,17 @@ public interface Probe {
 		protected boolean isWakeLockedWhileRunning() {
 			return true;
 		}
+		
+		/**
+		 * The probe's complete config, so probes of the same class with different configs hold and 
+		 * account for the wake lock separately.  Built once from the cached config.
+		 * @return the name this probe's hold on the shared wake lock is counted and accounted under
+		 */
+		private String getWakeLockComponent() {
+			if (wakeLockComponent == null) {
+				wakeLockComponent = getConfig().toString();
+			}
+			return wakeLockComponent;
+		}
 	}
 }
@@ -0,0 +1,154 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.probe;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.mit.media.funf.json.IJsonObject;
+
+/**
+ * Gives each complete probe config a short id, so that alarms and requests can refer to a probe 
+ * without carrying or parsing its full JSON config.
+ * 
+ * Ids are derived from a 64 bit fingerprint of the config's canonical string, so the same config
+ * gets the same id across restarts.  In the unlikely case of a fingerprint collision, the 
+ * later config gets the next free fingerprint.
+ * 
+ * Thread safe.
+ */
+public class ProbeRegistry {
+
+	public static final class Entry {
+		private final String id;
+		private final long fingerprint;
+		private final IJsonObject config;
+		private final Probe probe;
+		
+		private Entry(String id, long fingerprint, IJsonObject config, Probe probe) {
+			this.id = id;
+			this.fingerprint = fingerprint;
+			this.config = config;
+			this.probe = probe;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public long getFingerprint() {
+			return fingerprint;
+		}
+
+		/**
+		 * @return the complete probe config this id refers to
+		 */
+		public IJsonObject getConfig() {
+			return config;
+		}
+
+		/**
+		 * @return the probe instance created from the config
+		 */
+		public Probe getProbe() {
+			return probe;
+		}
+		
+		@Override
+		public String toString() {
+			return id;
+		}
+	}
+	
+	private final Map<String,Entry> byId = new HashMap<String,Entry>();
+	private final Map<IJsonObject,Entry> byConfig = new HashMap<IJsonObject,Entry>();
+	private final Map<Probe,Entry> byProbe = new IdentityHashMap<Probe,Entry>();
+	
+	/**
+	 * Returns the entry for this config, registering it if it is new.
+	 * @param completeConfig the complete and immutable config of the probe
+	 * @param probe the probe instance built from the config
+	 * @return
+	 */
+	public synchronized Entry register(IJsonObject completeConfig, Probe probe) {
+		Entry entry = byConfig.get(completeConfig);
+		if (entry == null) {
+			long fingerprint = fingerprint(completeConfig.toString());
+			while (byId.containsKey(toId(fingerprint))) {
+				fingerprint++;
+			}
+			entry = new Entry(toId(fingerprint), fingerprint, completeConfig, probe);
+			byId.put(entry.id, entry);
+			byConfig.put(completeConfig, entry);
+			byProbe.put(probe, entry);
+		}
+		return entry;
+	}
+	
+	public synchronized Entry get(String id) {
+		return byId.get(id);
+	}
+	
+	public synchronized Entry get(IJsonObject completeConfig) {
+		return byConfig.get(completeConfig);
+	}
+	
+	public synchronized Entry get(Probe probe) {
+		return byProbe.get(probe);
+	}
+	
+	public synchronized List<Entry> getAll() {
+		return new ArrayList<Entry>(byId.values());
+	}
+	
+	public synchronized void clear() {
+		byId.clear();
+		byConfig.clear();
+		byProbe.clear();
+	}
+	
+	private static String toId(long fingerprint) {
+		return Long.toHexString(fingerprint);
+	}
+	
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L, FNV_PRIME = 0x100000001b3L;
+	
+	/**
+	 * 64 bit FNV-1a hash of the string's characters.
+	 */
+	static long fingerprint(String value) {
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			hash ^= (c & 0xff);
+			hash *= FNV_PRIME;
+			hash ^= (c >>> 8);
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+}
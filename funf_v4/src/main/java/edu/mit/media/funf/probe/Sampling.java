@@ -0,0 +1,274 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.probe;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import edu.mit.media.funf.config.Configurable;
+import edu.mit.media.funf.json.IJsonObject;
+import edu.mit.media.funf.probe.Probe.DataListener;
+import edu.mit.media.funf.probe.builtin.ProbeKeys.SensorKeys;
+import edu.mit.media.funf.probe.builtin.SensorProbe;
+import edu.mit.media.funf.probe.builtin.SensorProbe.SampleBuffer;
+import edu.mit.media.funf.probe.builtin.SensorProbe.SensorDataListener;
+import edu.mit.media.funf.time.TimeUtil;
+
+/**
+ * Per request reduction of a probe's data stream, configured with the "@sampling" member of a data request.
+ * 
+ * <ul>
+ * <li>maxRate: deliver at most this many samples per second</li>
+ * <li>every: deliver every Nth sample</li>
+ * <li>bucket: deliver one sample per bucket of this many seconds, with the members named in average 
+ * averaged over the samples that had them, and the latest of any other members</li>
+ * <li>average: members to average in a bucket, by default the sensor values of sensor probes.  
+ * Other numeric members, like ids, types or counters, are not averaged unless listed.</li>
+ * </ul>
+ * 
+ * Samples are timed by their timestamp, in seconds.  A JSON sample without one is timed at its 
+ * arrival on the same wall clock, which is how Probe.Base timestamps the data it sends.
+ * 
+ * Several requests for the same probe share one probe instance, and so one sensor registration, 
+ * while each receives its own rate.  For sensor probes the filter reads samples straight from 
+ * the sample buffer, so no JSON is built for samples that are discarded.
+ */
+public class Sampling {
+
+	@Configurable
+	private double maxRate = 0;
+	
+	@Configurable
+	private int every = 1;
+	
+	@Configurable
+	private double bucket = 0;
+	
+	@Configurable
+	private List<String> average = null;
+	
+	public Sampling() {
+	}
+	
+	public Sampling(double maxRate, int every, double bucket) {
+		this(maxRate, every, bucket, null);
+	}
+	
+	public Sampling(double maxRate, int every, double bucket, List<String> average) {
+		this.maxRate = maxRate;
+		this.every = every;
+		this.bucket = bucket;
+		this.average = average;
+	}
+	
+	public boolean isPassThrough() {
+		return maxRate <= 0 && every <= 1 && bucket <= 0;
+	}
+	
+	/**
+	 * @return a listener to register with the probe, which delivers the reduced stream to listener
+	 */
+	public DataListener wrap(Probe probe, DataListener listener) {
+		return isPassThrough() ? listener : new SampledDataListener(this, probe, listener);
+	}
+	
+	private static class SampledDataListener implements SensorDataListener {
+		
+		private static final long NANOS_PER_SECOND = 1000000000L;
+		private static final long NANOS_PER_MILLI = 1000000L;
+		
+		private final DataListener listener;
+		private final SensorProbe sensorProbe;
+		private final long minIntervalNanos, bucketNanos;
+		private final int every;
+		private final Set<String> averagedMembers;
+		
+		// Only accessed from the probe's queue
+		private long count = 0;
+		private long lastDeliveredNanos = Long.MIN_VALUE;
+		private long bucketStartNanos = Long.MIN_VALUE;
+		private int bucketSamples = 0;
+		private double[] sensorSums;
+		private int bucketAccuracy;
+		private final Map<String,MemberSummary> jsonMembers = new HashMap<String,MemberSummary>();
+		private IJsonObject bucketConfig;
+		
+		private SampledDataListener(Sampling sampling, Probe probe, DataListener listener) {
+			this.listener = listener;
+			this.sensorProbe = probe instanceof SensorProbe ? (SensorProbe)probe : null;
+			this.minIntervalNanos = sampling.maxRate > 0 ? (long)(NANOS_PER_SECOND / sampling.maxRate) : 0;
+			this.bucketNanos = (long)(sampling.bucket * NANOS_PER_SECOND);
+			this.every = Math.max(1, sampling.every);
+			this.averagedMembers = new HashSet<String>();
+			if (sampling.average != null) {
+				averagedMembers.addAll(sampling.average);
+			} else if (sensorProbe != null) {
+				averagedMembers.addAll(Arrays.asList(sensorProbe.getValueNames()));
+			}
+		}
+		
+		/**
+		 * Applies every-Nth and rate limiting.
+		 * @return true if the sample at this time should be kept
+		 */
+		private boolean accept(long timeNanos) {
+			if (count++ % every != 0) {
+				return false;
+			}
+			if (minIntervalNanos > 0) {
+				if (lastDeliveredNanos != Long.MIN_VALUE && timeNanos - lastDeliveredNanos < minIntervalNanos) {
+					return false;
+				}
+				lastDeliveredNanos = timeNanos;
+			}
+			return true;
+		}
+		
+		/**
+		 * Ends the current bucket if timeNanos falls outside of it.
+		 */
+		private void advanceBucket(IJsonObject probeConfig, long timeNanos) {
+			if (bucketStartNanos != Long.MIN_VALUE && timeNanos - bucketStartNanos >= bucketNanos) {
+				flushBucket();
+			}
+			if (bucketSamples == 0) {
+				bucketStartNanos = timeNanos - (timeNanos % bucketNanos);
+				bucketConfig = probeConfig;
+			}
+		}
+		
+		@Override
+		public void onSensorDataReceived(IJsonObject probeConfig, SampleBuffer samples, int index) {
+			long timeNanos = samples.getTimestampNanos(index);
+			if (bucketNanos > 0) {
+				advanceBucket(probeConfig, timeNanos);
+				int valueCount = samples.getValueCount(index);
+				if (sensorSums == null || sensorSums.length < valueCount) {
+					sensorSums = new double[valueCount];
+				}
+				for (int i = 0; i < valueCount; i++) {
+					sensorSums[i] += samples.getValue(index, i);
+				}
+				bucketAccuracy = bucketSamples == 0 ? samples.getAccuracy(index) : Math.min(bucketAccuracy, samples.getAccuracy(index));
+				bucketSamples++;
+			} else if (accept(timeNanos)) {
+				if (listener instanceof SensorDataListener) {
+					((SensorDataListener)listener).onSensorDataReceived(probeConfig, samples, index);
+				} else {
+					listener.onDataReceived(probeConfig, IJsonObject.view(sensorProbe.getSampleAsJson(samples, index)));
+				}
+			}
+		}
+		
+		@Override
+		public void onDataReceived(IJsonObject probeConfig, IJsonObject data) {
+			JsonElement timestamp = data.get(SensorKeys.TIMESTAMP);
+			long timeNanos = timestamp != null && timestamp.isJsonPrimitive() 
+					? (long)(timestamp.getAsDouble() * NANOS_PER_SECOND) : System.currentTimeMillis() * NANOS_PER_MILLI;
+			if (bucketNanos > 0) {
+				advanceBucket(probeConfig, timeNanos);
+				for (Map.Entry<String, JsonElement> member : data.entrySet()) {
+					MemberSummary summary = jsonMembers.get(member.getKey());
+					if (summary == null) {
+						summary = new MemberSummary();
+						jsonMembers.put(member.getKey(), summary);
+					}
+					summary.add(member.getValue(), averagedMembers.contains(member.getKey()));
+				}
+				bucketSamples++;
+			} else if (accept(timeNanos)) {
+				listener.onDataReceived(probeConfig, data);
+			}
+		}
+		
+		/**
+		 * Delivers the average of the samples in the current bucket, timestamped with the start of the bucket.
+		 */
+		private void flushBucket() {
+			if (bucketSamples == 0) {
+				return;
+			}
+			JsonObject average = new JsonObject();
+			if (!jsonMembers.isEmpty()) {
+				for (Map.Entry<String, MemberSummary> member : jsonMembers.entrySet()) {
+					average.add(member.getKey(), member.getValue().getValue());
+				}
+				average.addProperty(SensorKeys.TIMESTAMP, (double)bucketStartNanos / NANOS_PER_SECOND);
+			} else if (sensorProbe != null) {
+				String[] valueNames = sensorProbe.getValueNames();
+				average.addProperty(SensorKeys.TIMESTAMP, TimeUtil.uptimeNanosToTimestamp(bucketStartNanos));
+				average.addProperty(SensorKeys.ACCURACY, bucketAccuracy);
+				for (int i = 0; i < valueNames.length && i < sensorSums.length; i++) {
+					average.addProperty(valueNames[i], sensorSums[i] / bucketSamples);
+				}
+			}
+			listener.onDataReceived(bucketConfig, IJsonObject.view(average));
+			bucketSamples = 0;
+			jsonMembers.clear();
+			if (sensorSums != null) {
+				Arrays.fill(sensorSums, 0);
+			}
+		}
+
+		@Override
+		public void onDataCompleted(IJsonObject probeConfig, JsonElement checkpoint) {
+			flushBucket();
+			listener.onDataCompleted(probeConfig, checkpoint);
+		}
+	}
+	
+	/**
+	 * One member of the JSON samples in a bucket.  Samples may leave members out, 
+	 * so an averaged member is averaged over the samples that had it.
+	 */
+	private static class MemberSummary {
+		private double sum = 0;
+		private int count = 0;
+		private JsonElement last;
+		
+		private void add(JsonElement value, boolean averaged) {
+			if (averaged && value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber()) {
+				sum += value.getAsDouble();
+				count++;
+			} else {
+				last = value;
+			}
+		}
+		
+		/**
+		 * @return the average of the numeric values, or the latest value if there were none
+		 */
+		private JsonElement getValue() {
+			return count > 0 ? new JsonPrimitive(sum / count) : last;
+		}
+	}
+}
@@ -27,9 +27,10 @@ import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.Arrays;
 
-import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 
 import edu.mit.media.funf.Schedule;
 import edu.mit.media.funf.config.Configurable;
@@ -41,6 +42,8 @@ import edu.mit.media.funf.probe.Probe.ContinuousProbe;
 import edu.mit.media.funf.probe.Probe.RequiredFeatures;
 import edu.mit.media.funf.probe.Probe.RequiredProbes;
 import edu.mit.media.funf.probe.builtin.ProbeKeys.AccelerometerFeaturesKeys;
+import edu.mit.media.funf.probe.builtin.SensorProbe.SampleBuffer;
+import edu.mit.media.funf.probe.builtin.SensorProbe.SensorDataListener;
 import edu.mit.media.funf.time.TimeUtil;
 
 /**
@@ -65,32 +68,157 @@ public class AccelerometerFeaturesProbe extends Base implements ContinuousProbe,
 	// Assumed maximum accelerometer sampling rate
 	private static final double SENSOR_MAX_RATE = 100.0;	
 
+	private static final int AXES = 3;
+	private static final String[] AXIS_NAMES = {X, Y, Z};
 	
 	private AccelerometerListener listener;
 	private double prevSecs;
 	private double prevFrameSecs;
 	private double frameTimer = 0;
-	private double[][] frameBuffer = null;
-	private double[] fftBufferR = null;
-	private double[] fftBufferI = null;
-	private int frameSamples = 0;
+	private FeatureFrame frame = null;
 	private int frameBufferSize = 0;
 	
-	private FFT featureFFT = null;
-    private Window featureWin = null;
-    private static int[] freqBandIdx = null;
+	/**
+	 * Features of one frame of samples for each axis, updated as every sample arrives.
+	 * 
+	 * Each axis keeps its samples in its own primitive array, along with a running mean and 
+	 * sum of squared deviations (Welford's method), minimum and maximum.  Closing a frame makes one 
+	 * pass per axis, which fills the FFT buffer and sums the absolute deviations, before the FFT.
+	 * Results are written to arrays that are reused for every frame.
+	 */
+	static final class FeatureFrame {
+		private final int axes, capacity;
+		private final double[][] samples; // [axis][sample]
+		private final double[] runningMean, runningM2, min, max;
+		private int count = 0;
+		
+		private final FFT fft;
+		private final Window window;
+		private final double[] fftBufferR, fftBufferI;
+		private final int[] bandIdx;
+		
+		final double[] mean, absoluteCentralMoment, standardDeviation, maxDeviation;
+		final double[][] psdAcrossFrequencyBands; // [axis][band]
+		
+		FeatureFrame(int axes, int capacity, int fftSize, int[] bandIdx) {
+			this.axes = axes;
+			this.capacity = capacity;
+			this.samples = new double[axes][capacity];
+			this.runningMean = new double[axes];
+			this.runningM2 = new double[axes];
+			this.min = new double[axes];
+			this.max = new double[axes];
+			this.fft = new FFT(fftSize);
+			this.window = new Window(capacity);
+			this.fftBufferR = new double[fftSize];
+			this.fftBufferI = new double[fftSize];
+			this.bandIdx = bandIdx;
+			this.mean = new double[axes];
+			this.absoluteCentralMoment = new double[axes];
+			this.standardDeviation = new double[axes];
+			this.maxDeviation = new double[axes];
+			this.psdAcrossFrequencyBands = new double[axes][bandIdx.length - 1];
+		}
+		
+		void add(int axis, double value) {
+			samples[axis][count] = value;
+			int n = count + 1;
+			double delta = value - runningMean[axis];
+			runningMean[axis] += delta / n;
+			runningM2[axis] += delta * (value - runningMean[axis]);
+			if (count == 0 || value < min[axis]) {
+				min[axis] = value;
+			}
+			if (count == 0 || value > max[axis]) {
+				max[axis] = value;
+			}
+		}
+		
+		/**
+		 * Call after adding a value for every axis.
+		 */
+		void commitSample() {
+			count++;
+		}
+		
+		int getCount() {
+			return count;
+		}
+		
+		int getCapacity() {
+			return capacity;
+		}
+		
+		/**
+		 * Computes the features of the samples added since the last reset.
+		 */
+		void close() {
+			int windowed = Math.min(Math.min(count, window.n), fftBufferR.length);
+			for (int i = 0; i < axes; i++) {
+				double axisMean = runningMean[i];
+				double[] axisSamples = samples[i];
+				double absDeviations = 0;
+				for (int j = 0; j < count; j++) {
+					double deviation = axisSamples[j] - axisMean;
+					absDeviations += Math.abs(deviation);
+					if (j < windowed) {
+						// Hamming windowed, zero padded below
+						fftBufferR[j] = deviation * window.window[j];
+					}
+				}
+				Arrays.fill(fftBufferR, windowed, fftBufferR.length, 0);
+				mean[i] = axisMean;
+				absoluteCentralMoment[i] = absDeviations / count;
+				standardDeviation[i] = Math.sqrt(runningM2[i] / count);
+				maxDeviation[i] = Math.max(max[i] - axisMean, axisMean - min[i]);
+				
+				// In-place FFT of real input
+				fft.realFft(fftBufferR, fftBufferI);
+				
+				// Get PSD across frequency band ranges
+				double[] psd = psdAcrossFrequencyBands[i];
+				for (int b = 0; b < psd.length; b++) {
+					int j = bandIdx[b];
+					int k = bandIdx[b+1];
+					double accum = 0;
+					for (int h = j; h < k; h++) {
+						accum += fftBufferR[h]*fftBufferR[h] + fftBufferI[h]*fftBufferI[h];
+					}
+					psd[b] = accum/((double)(k - j));
+				}
+			}
+		}
+		
+		void reset() {
+			count = 0;
+			Arrays.fill(runningMean, 0);
+			Arrays.fill(runningM2, 0);
+		}
+	}
 	
-    private class AccelerometerListener implements DataListener {
-
-    	private Gson gson = getGson();
-    	
+	private class AccelerometerListener implements SensorDataListener {
+		
+		@Override
+		public void onSensorDataReceived(IJsonObject probeConfig, SampleBuffer samples, int index) {
+			// Uptime seconds are enough for frame timing, only the frame timestamp is converted to real time
+			long uptimeNanos = samples.getTimestampNanos(index);
+			onSample(uptimeNanos / 1e9, uptimeNanos, samples.getValue(index, 0), samples.getValue(index, 1), samples.getValue(index, 2));
+		}
+		
 		@Override
 		public void onDataReceived(IJsonObject completeProbeUri, IJsonObject acclerometerData) {
 			double currentSecs = acclerometerData.get(AccelerometerSensorProbe.TIMESTAMP).getAsDouble();
 			double x = acclerometerData.get(AccelerometerSensorProbe.X).getAsDouble();
 			double y = acclerometerData.get(AccelerometerSensorProbe.Y).getAsDouble();
 			double z = acclerometerData.get(AccelerometerSensorProbe.Z).getAsDouble();
-			
+			onSample(currentSecs, -1L, x, y, z);
+		}
+		
+		/**
+		 * @param currentSecs sample time in seconds
+		 * @param uptimeNanos sample time in uptime nanos if currentSecs is uptime, or -1 if currentSecs is a timestamp
+		 */
+		private void onSample(double currentSecs, long uptimeNanos, double x, double y, double z) {
 			if (prevSecs == 0)
 			{
 				prevSecs = currentSecs;
@@ -98,109 +226,56 @@ public class AccelerometerFeaturesProbe extends Base implements ContinuousProbe,
         	double diffSecs = currentSecs - prevSecs;
         	prevSecs = currentSecs;
 
-        	frameBuffer[frameSamples][0] = x;
-        	frameBuffer[frameSamples][1] = y;
-        	frameBuffer[frameSamples][2] = z;
-        	frameSamples ++;
+        	frame.add(0, x);
+        	frame.add(1, y);
+        	frame.add(2, z);
+        	frame.commitSample();
         	frameTimer += diffSecs;
         	
+        	int frameSamples = frame.getCount();
         	if ((frameTimer >= frameDuration) || (frameSamples == (frameBufferSize - 1))) {
 			
         		JsonObject data = new JsonObject();
-        		double fN = (double)frameSamples;
         		if (prevFrameSecs == 0) {
                 	prevFrameSecs = currentSecs;
                 }
         		
         		double diffFrameSecs = currentSecs - prevFrameSecs;
                 prevFrameSecs = currentSecs;
-                data.addProperty(TIMESTAMP, currentSecs);
+                double timestamp = uptimeNanos < 0 ? currentSecs : TimeUtil.uptimeNanosToTimestamp(uptimeNanos).doubleValue();
+                data.addProperty(TIMESTAMP, timestamp);
                 data.addProperty(DIFF_FRAME_SECS, new BigDecimal(diffFrameSecs).setScale(TimeUtil.MICRO, RoundingMode.HALF_EVEN));
                 data.addProperty(NUM_FRAME_SAMPLES, frameSamples);
                 
-                data.add(X, getFeatures(0, fN));
-                data.add(Y, getFeatures(1, fN));
-                data.add(Z, getFeatures(2, fN));
+                frame.close();
+                for (int i = 0; i < AXES; i++) {
+                	data.add(AXIS_NAMES[i], getFeatures(i));
+                }
                 
                 sendData(data);
                 
-                // Reset frame buffer counters
-        		frameSamples = 0;
+                // Reset frame counters
+        		frame.reset();
         		frameTimer = 0;
-
-        		// Ensure buffer is zero-padded
-        		for (double[] row: frameBuffer) {
-        			Arrays.fill(row, 0);
-        		}
         	}
 		}
 		
-		private JsonObject getFeatures(int i, double fN) {
+		private JsonObject getFeatures(int i) {
 			JsonObject data = new JsonObject();
-			// Mean
-			double mean = 0;
-			for (int j = 0; j < frameSamples; j ++)
-				mean += frameBuffer[j][i];
-			mean /= fN;
-			data.addProperty(MEAN, mean);
-    		
-			double accum;
-
-			// Absolute central moment
-			accum = 0;
-			for (int j = 0; j < frameSamples; j ++)
-				accum += Math.abs(frameBuffer[j][i] - mean);
-			data.addProperty(ABSOLUTE_CENTRAL_MOMENT, accum/fN);
-			
-			// Standard deviation
-			accum = 0;
-			for (int j = 0; j < frameSamples; j ++)
-				accum += (frameBuffer[j][i] - mean)*(frameBuffer[j][i] - mean);
-			data.addProperty(STANDARD_DEVIATION, Math.sqrt(accum/fN));
-
-			// Max deviation
-			accum = 0;
-			for (int j = 0; j < frameSamples; j ++)
-				accum = Math.max(Math.abs(frameBuffer[j][i] - mean),accum);
-			data.addProperty(MAX_DEVIATION, accum);
-			
-            // Frequency analysis with zero-padding
-        	Arrays.fill(fftBufferR, 0);
-        	Arrays.fill(fftBufferI, 0);
-        	
-        	// Drop accel. values into FFT buffer
-        	for (int j = 0; j < frameSamples; j++)
-        	{
-        		fftBufferR[j] = frameBuffer[j][i] - mean;
-        	}
-
-        	// In-place windowing
-        	featureWin.applyWindow(fftBufferR);
-        	
-        	// In-place FFT
-        	featureFFT.fft(fftBufferR, fftBufferI);
-
-        	// Get PSD across frequency band ranges
-        	double[] psdAcrossFrequencyBands = new double[freqBandEdges.length - 1];
-        	for (int b = 0; b < (freqBandEdges.length - 1); b ++)
-        	{
-        		int j = freqBandIdx[b];
-        		int k = freqBandIdx[b+1];
-        		accum = 0;
-        		for (int h = j; h < k; h ++)
-        		{
-        			accum += fftBufferR[h]*fftBufferR[h] + fftBufferI[h]*fftBufferI[h];
-        		}
-        		psdAcrossFrequencyBands[b] = accum/((double)(k - j));
-        	}
-        	data.add(PSD_ACROSS_FREQUENCY_BANDS, gson.toJsonTree(psdAcrossFrequencyBands));
+			data.addProperty(MEAN, frame.mean[i]);
+			data.addProperty(ABSOLUTE_CENTRAL_MOMENT, frame.absoluteCentralMoment[i]);
+			data.addProperty(STANDARD_DEVIATION, frame.standardDeviation[i]);
+			data.addProperty(MAX_DEVIATION, frame.maxDeviation[i]);
+			JsonArray psd = new JsonArray();
+			for (double bandPower : frame.psdAcrossFrequencyBands[i]) {
+				psd.add(new JsonPrimitive(bandPower));
+			}
+        	data.add(PSD_ACROSS_FREQUENCY_BANDS, psd);
         	return data;
 		}
 
 		@Override
 		public void onDataCompleted(IJsonObject completeProbeUri, JsonElement checkpoint) {
-			// TODO Auto-generated method stub
-			
 		}
     	
     }
@@ -209,25 +284,18 @@ public class AccelerometerFeaturesProbe extends Base implements ContinuousProbe,
 	protected void onEnable() {
 		super.onEnable();
 		frameBufferSize = (int)Math.ceil(SENSOR_MAX_RATE/frameDuration);
-        frameBuffer = new double[frameBufferSize][3];
         //writeLogTextLine("Accelerometer maximum frame size (samples): " + frameBufferSize);
         //writeLogTextLine("Accelerometer maximum frame duation (secs): " + SENSOR_FRAME_DURATION);
         
         //allocateFrameFeatureBuffer(STREAM_FEATURES);
 
-        featureFFT = new FFT(fftSize);
-	    featureWin = new Window(frameBufferSize);
-
-        fftBufferR = new double[fftSize];
-    	fftBufferI = new double[fftSize];
-
-    	freqBandIdx = new int[freqBandEdges.length];
+    	int[] freqBandIdx = new int[freqBandEdges.length];
 	    for (int i = 0; i < freqBandEdges.length; i ++) {
 	    	freqBandIdx[i] = Math.round((float)freqBandEdges[i]*((float)fftSize/(float)SENSOR_MAX_RATE));
 	    }
+	    frame = new FeatureFrame(AXES, frameBufferSize, fftSize, freqBandIdx);
 	    listener = new AccelerometerListener();
 	    getGson().fromJson("{}", AccelerometerSensorProbe.class).registerPassiveListener(listener);
-		// TODO: Register listener for accelerometer probe
 	}
 
 	@Override
@@ -246,18 +314,15 @@ public class AccelerometerFeaturesProbe extends Base implements ContinuousProbe,
 
 	@Override
 	protected void onDisable() {
-		// TODO Auto-generated method stub
 		super.onDisable();
+		getGson().fromJson("{}", AccelerometerSensorProbe.class).unregisterPassiveListener(listener);
 	}
 	
 	private void reset() {
 		prevSecs = 0;
 		prevFrameSecs = 0;
 	    frameTimer = 0;
-	    frameSamples = 0;
-	    // Ensure frame buffer is cleared
-	 	for (double[] row: frameBuffer)
-	 			Arrays.fill(row, 0);
+	    frame.reset();
 	}
 	
 }
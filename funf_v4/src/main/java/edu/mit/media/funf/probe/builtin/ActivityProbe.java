@@ -36,6 +36,8 @@ import edu.mit.media.funf.probe.Probe.PassiveProbe;
 import edu.mit.media.funf.probe.Probe.RequiredFeatures;
 import edu.mit.media.funf.probe.Probe.RequiredProbes;
 import edu.mit.media.funf.probe.builtin.ProbeKeys.ActivityKeys;
+import edu.mit.media.funf.probe.builtin.SensorProbe.SampleBuffer;
+import edu.mit.media.funf.probe.builtin.SensorProbe.SensorDataListener;
 
 @Schedule.DefaultSchedule(interval=120, duration=15)
 @RequiredFeatures("android.hardware.sensor.accelerometer")
@@ -77,7 +79,7 @@ public class ActivityProbe extends Base implements ContinuousProbe, PassiveProbe
 	}
 
 	
-	private class ActivityCounter implements DataListener {
+	private class ActivityCounter implements SensorDataListener {
 		private double intervalStartTime;
 		private float varianceSum;
 		private float avg;
@@ -120,9 +122,23 @@ public class ActivityProbe extends Base implements ContinuousProbe, PassiveProbe
 		}
 		
 
+		@Override
+		public void onSensorDataReceived(IJsonObject completeProbeUri, SampleBuffer samples, int index) {
+			// Only differences between timestamps are used, so uptime seconds are sufficient
+			double timestamp = samples.getTimestampNanos(index) / 1e9;
+			onSample(timestamp, samples.getValue(index, 0), samples.getValue(index, 1), samples.getValue(index, 2));
+		}
+
 		@Override
 		public void onDataReceived(IJsonObject completeProbeUri, IJsonObject data) {
 			double timestamp = data.get(TIMESTAMP).getAsDouble();
+			float x = data.get(AccelerometerSensorProbe.X).getAsFloat();
+			float y = data.get(AccelerometerSensorProbe.Y).getAsFloat();
+			float z = data.get(AccelerometerSensorProbe.Z).getAsFloat();
+			onSample(timestamp, x, y, z);
+		}
+		
+		private void onSample(double timestamp, float x, float y, float z) {
 			//Log.d(LogUtil.TAG, "IntervalStartTime: " + intervalStartTime);
 			//Log.d(LogUtil.TAG, "RECEIVED:" + timestamp);
 			if (intervalStartTime == 0.0 || (timestamp >= intervalStartTime + 2 * interval)) {
@@ -134,9 +150,6 @@ public class ActivityProbe extends Base implements ContinuousProbe, PassiveProbe
 				intervalReset();
 				intervalStartTime = timestamp;
 			}
-			float x = data.get(AccelerometerSensorProbe.X).getAsFloat();
-			float y = data.get(AccelerometerSensorProbe.Y).getAsFloat();
-			float z = data.get(AccelerometerSensorProbe.Z).getAsFloat();
 			update(x, y, z);
 		}
 
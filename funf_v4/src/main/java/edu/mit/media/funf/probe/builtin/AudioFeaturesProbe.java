@@ -28,20 +28,40 @@ import java.util.Arrays;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaRecorder;
+import android.os.Process;
 
-import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 
-import edu.mit.media.funf.math.FFT;
+import edu.mit.media.funf.config.Configurable;
 import edu.mit.media.funf.math.MFCC;
+import edu.mit.media.funf.math.STFT;
 import edu.mit.media.funf.math.Window;
 import edu.mit.media.funf.probe.Probe.Base;
 import edu.mit.media.funf.probe.Probe.ContinuousProbe;
 import edu.mit.media.funf.probe.Probe.RequiredFeatures;
 import edu.mit.media.funf.probe.Probe.RequiredPermissions;
 import edu.mit.media.funf.probe.builtin.ProbeKeys.AudioFeaturesKeys;
+import edu.mit.media.funf.util.Metrics;
+import edu.mit.media.funf.util.SampleRing;
 
 /**
+ * Features of short-time Fourier transform frames of the microphone signal.
+ * 
+ * Frames of frameDuration seconds start every frameHop seconds, so frames overlap when the hop 
+ * is shorter than the frame.  Each record aggregates framesPerRecord frames: the mean of the 
+ * MFCCs and band powers and, with more than one frame per record, the variance of the MFCCs 
+ * and the number of frames.  Norms are over the samples recorded since the previous record.  
+ * The defaults, one second frames with no overlap and one frame per record, match the features 
+ * of earlier versions.
+ * 
+ * The recording thread only reads short blocks from the microphone into a preallocated {@link SampleRing}, 
+ * and a processing thread computes the features, so slow processing never stalls the AudioRecord.  
+ * If processing falls more than captureBufferDuration seconds behind, blocks are dropped instead. 
+ * Dropped samples are counted in the "probe.AudioFeaturesProbe.overruns" and 
+ * "probe.AudioFeaturesProbe.droppedSamples" metrics and in the next record, and no frame spans the gap.
+ * 
  * @author Max Little and Alan Gardner
  *
  */
@@ -56,68 +76,262 @@ public class AudioFeaturesProbe extends Base implements ContinuousProbe, AudioFe
 	private static int RECORDER_SOURCE = MediaRecorder.AudioSource.VOICE_RECOGNITION;
 	private static int RECORDER_CHANNELS = AudioFormat.CHANNEL_IN_MONO;
 	private static int RECORDER_AUDIO_ENCODING = AudioFormat.ENCODING_PCM_16BIT;
-	private static int RECORDER_SAMPLERATE = 8000;
 	
-	private static int FFT_SIZE = 8192;
 	private static int MFCCS_VALUE = 12;
 	private static int MEL_BANDS = 20;
 	private static double[] FREQ_BANDEDGES = {50,250,500,1000,2000};
 	
+	// Seconds of audio in each read from the AudioRecord
+	private static double CAPTURE_BLOCK_DURATION = 0.1;
+	private static long PROCESSING_WAIT_MILLIS = 1000;
+	private static long RECORDING_STOP_MILLIS = 1000;
+	
+	@Configurable
+	private int sampleRate = 8000;
+	
+	/**
+	 * Seconds of audio in each frame.  Frames are zero padded to a power of two for the FFT.
+	 */
+	@Configurable
+	private double frameDuration = 1.0;
+	
+	/**
+	 * Seconds between the starts of consecutive frames.
+	 */
+	@Configurable
+	private double frameHop = 1.0;
+	
+	/**
+	 * Window applied to each frame, "hamming", "hann" or "rectangular".
+	 */
+	@Configurable
+	private String window = Window.HAMMING;
+	
+	@Configurable
+	private int framesPerRecord = 1;
+	
+	/**
+	 * Seconds of audio that can wait for processing before recorded samples are dropped.
+	 */
+	@Configurable
+	private double captureBufferDuration = 2.0;
+	
 	private Thread recordingThread = null;
+	private Thread processingThread = null;
 	private int bufferSize = 0;
-	private int bufferSamples = 0;
-	private static int[] freqBandIdx = null;
+	private int blockSamples = 0;
+	private SampleRing captureRing = null;
+	private Metrics.Counter overrunMetric, droppedMetric;
+	private int[] freqBandIdx = null;
 	
-    private FFT featureFFT = null;
+    private STFT featureSTFT = null;
     private MFCC featureMFCC = null;
-    private Window featureWin = null;
+    private FrameAggregator aggregator = null;
     
     private AudioRecord audioRecorder = null;
 	
     public double prevSecs = 0;
 	public double[] featureBuffer = null;
 	
+	/**
+	 * Aggregates the features of frames, and the norms of samples, into records.  
+	 * All buffers are allocated up front, so only building the record allocates.
+	 * 
+	 * Each start creates its own aggregator with the settings of that run, since the processing 
+	 * thread of a stopped run may still be finishing its blocks while the next run starts.
+	 */
+	private class FrameAggregator implements STFT.FrameListener {
+		
+		private final MFCC mfcc;
+		private final int[] bandIdx;
+		private final int framesPerRecord;
+		private double prevSecs;
+		
+		private final double[] frameCepstrum = new double[MFCCS_VALUE];
+		private final double[] cepstrumMean = new double[MFCCS_VALUE];
+		private final double[] cepstrumM2 = new double[MFCCS_VALUE];
+		private final double[] psdSum = new double[FREQ_BANDEDGES.length - 1];
+		private int frames = 0;
+		
+		private long normSamples = 0;
+		private double absSum = 0, squareSum = 0, absMax = 0;
+		private long droppedSamples = 0;
+		
+		FrameAggregator(MFCC mfcc, int[] bandIdx, int framesPerRecord, double startSecs) {
+			this.mfcc = mfcc;
+			this.bandIdx = bandIdx;
+			this.framesPerRecord = framesPerRecord;
+			this.prevSecs = startSecs;
+		}
+		
+		void addDropped(int count) {
+			droppedSamples += count;
+		}
+		
+		void addSamples(short[] samples, int count) {
+			for (int i = 0; i < count; i ++)
+			{
+				double sample = samples[i];
+				double abs = Math.abs(sample);
+				absSum += abs;
+				squareSum += sample*sample;
+				absMax = Math.max(abs, absMax);
+			}
+			normSamples += count;
+		}
+		
+		@Override
+		public void onFrame(double[] re, double[] im) {
+			// Get PSD across frequency band ranges
+			for (int b = 0; b < psdSum.length; b ++)
+			{
+				int j = bandIdx[b];
+				int k = bandIdx[b+1];
+				double accum = 0;
+				for (int h = j; h < k; h ++)
+				{
+					accum += re[h]*re[h] + im[h]*im[h];
+				}
+				psdSum[b] += accum/((double)(k - j));
+			}
+			
+			// Get MFCCs, with running mean and variance (Welford)
+			mfcc.cepstrum(re, im, frameCepstrum);
+			frames++;
+			for (int i = 0; i < MFCCS_VALUE; i ++)
+			{
+				double delta = frameCepstrum[i] - cepstrumMean[i];
+				cepstrumMean[i] += delta/frames;
+				cepstrumM2[i] += delta*(frameCepstrum[i] - cepstrumMean[i]);
+			}
+			
+			if (frames >= framesPerRecord)
+			{
+				sendData(getRecord());
+				reset();
+			}
+		}
+		
+		private JsonObject getRecord() {
+			JsonObject data = new JsonObject();
+			double currentSecs = (double)(System.currentTimeMillis())/1000.0d;
+			double diffSecs = currentSecs - prevSecs;
+			prevSecs = currentSecs;
+			data.addProperty(DIFF_SECS, diffSecs);
+			
+			double fN = (double)normSamples;
+			data.addProperty(L1_NORM, absSum/fN);
+			data.addProperty(L2_NORM, Math.sqrt(squareSum/fN));
+			data.addProperty(LINF_NORM, Math.sqrt(absMax));
+			
+			JsonArray psd = new JsonArray();
+			for (double bandPower : psdSum)
+			{
+				psd.add(new JsonPrimitive(bandPower/frames));
+			}
+			data.add(PSD_ACROSS_FREQUENCY_BANDS, psd);
+			
+			JsonArray mfccs = new JsonArray();
+			for (int i = 0; i < MFCCS_VALUE; i ++)
+			{
+				mfccs.add(new JsonPrimitive(cepstrumMean[i]));
+			}
+			data.add(MFCCS, mfccs);
+			if (framesPerRecord > 1)
+			{
+				JsonArray mfccVariances = new JsonArray();
+				for (int i = 0; i < MFCCS_VALUE; i ++)
+				{
+					mfccVariances.add(new JsonPrimitive(cepstrumM2[i]/frames));
+				}
+				data.add(MFCC_VARIANCES, mfccVariances);
+				data.addProperty(NUM_FRAMES, frames);
+			}
+			if (droppedSamples > 0)
+			{
+				data.addProperty(DROPPED_SAMPLES, droppedSamples);
+			}
+			return data;
+		}
+		
+		void reset() {
+			frames = 0;
+			Arrays.fill(cepstrumMean, 0);
+			Arrays.fill(cepstrumM2, 0);
+			Arrays.fill(psdSum, 0);
+			normSamples = 0;
+			absSum = 0;
+			squareSum = 0;
+			absMax = 0;
+			droppedSamples = 0;
+		}
+	}
+	
 	@Override
 	protected void onStart() {
 		super.onStart();
 		
 
     	bufferSize = AudioRecord.getMinBufferSize(
-        		RECORDER_SAMPLERATE,
+        		sampleRate,
         		RECORDER_CHANNELS,
         		RECORDER_AUDIO_ENCODING);
 
-	    bufferSize = Math.max(bufferSize, RECORDER_SAMPLERATE*2);
-	    bufferSamples = bufferSize/2;
+	    bufferSize = Math.max(bufferSize, sampleRate*2);
+	    
+	    // Read in short blocks, so most of the AudioRecord buffer is free when each read returns
+	    blockSamples = Math.max(1, Math.min(bufferSize/2, (int)Math.round(CAPTURE_BLOCK_DURATION*sampleRate)));
+	    int ringBlocks = Math.max(2, (int)Math.ceil(captureBufferDuration*sampleRate/blockSamples));
+	    captureRing = new SampleRing(ringBlocks, blockSamples);
+	    String metricPrefix = "probe." + getClass().getSimpleName() + ".";
+	    overrunMetric = Metrics.counter(metricPrefix + "overruns");
+	    droppedMetric = Metrics.counter(metricPrefix + "droppedSamples");
 	    
 	    
 	    //allocateFrameFeatureBuffer(STREAM_FEATURES);
 	    
-	    featureFFT = new FFT(FFT_SIZE);
-	    featureWin = new Window(bufferSamples);
-	    featureMFCC = new MFCC(FFT_SIZE, MFCCS_VALUE, MEL_BANDS, RECORDER_SAMPLERATE);
+	    int frameSamples = Math.max(2, (int)Math.round(frameDuration*sampleRate));
+	    int hopSamples = Math.max(1, (int)Math.round(frameHop*sampleRate));
+	    featureSTFT = new STFT(frameSamples, hopSamples, window);
+	    int fftSize = featureSTFT.getFftSize();
+	    featureMFCC = new MFCC(fftSize, MFCCS_VALUE, MEL_BANDS, sampleRate);
 	    
 	    freqBandIdx = new int[FREQ_BANDEDGES.length];
 	    for (int i = 0; i < FREQ_BANDEDGES.length; i ++)
 	    {
-	    	freqBandIdx[i] = Math.round((float)FREQ_BANDEDGES[i]*((float)FFT_SIZE/(float)RECORDER_SAMPLERATE));
+	    	freqBandIdx[i] = Math.round((float)FREQ_BANDEDGES[i]*((float)fftSize/(float)sampleRate));
 	    	//writeLogTextLine("Frequency band edge " + i + ": " + Integer.toString(freqBandIdx[i]));
 	    }
 	    
 	    audioRecorder = new AudioRecord(
 	    		RECORDER_SOURCE,
-				RECORDER_SAMPLERATE,
+				sampleRate,
 				RECORDER_CHANNELS,
 				RECORDER_AUDIO_ENCODING,
 				bufferSize);
 	    prevSecs = (double)System.currentTimeMillis()/1000.0d;
+	    aggregator = new FrameAggregator(featureMFCC, freqBandIdx, framesPerRecord, prevSecs);
 	    audioRecorder.startRecording();
+	    final AudioRecord recorder = audioRecorder;
+	    final SampleRing ring = captureRing;
+	    final STFT stft = featureSTFT;
+	    final FrameAggregator frameAggregator = aggregator;
+	    processingThread = new Thread(new Runnable()
+	    {
+	        @Override
+	        public void run()
+	        {
+	            processAudioStream(ring, stft, frameAggregator);
+	        }
+	    }, "AudioFeatures Thread");
+	    processingThread.start();
 	    recordingThread = new Thread(new Runnable()
 	    {
 	        @Override
 	        public void run()
 	        {
-	            handleAudioStream();
+	            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+	            handleAudioStream(recorder, ring);
 	        }
 	    }, "AudioRecorder Thread");
 	    recordingThread.start();
@@ -127,109 +341,81 @@ public class AudioFeaturesProbe extends Base implements ContinuousProbe, AudioFe
 	protected void onStop() {
 		super.onStop();
 		audioRecorder.stop();
+		// Let the pending read return before releasing the recorder
+		try {
+			recordingThread.join(RECORDING_STOP_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
         audioRecorder.release();
         audioRecorder = null;
         recordingThread = null;
+        // Finishes the blocks already recorded, then exits
+        processingThread = null;
 	}
 
 	
-	private void handleAudioStream()
+	/**
+	 * Runs on the recording thread, and only moves samples from the AudioRecord into the ring.
+	 */
+	private void handleAudioStream(AudioRecord recorder, SampleRing ring)
 	{
-        short data16bit[] = new short[bufferSamples];
-    	byte data8bit[] = new byte[bufferSize];
-    	double fftBufferR[] = new double[FFT_SIZE];
-    	double fftBufferI[] = new double[FFT_SIZE];
-    	double featureCepstrum[] = new double[MFCCS_VALUE];
-    	
-	    int readAudioSamples = 0;
-	    while (State.RUNNING.equals(getState()))
-	    {
-	    	readAudioSamples = audioRecorder.read(data16bit, 0, bufferSamples);
-	    	double currentSecs = (double)(System.currentTimeMillis())/1000.0d;
-	    	double diffSecs = currentSecs - prevSecs;
-	    	prevSecs = currentSecs;
-	    	
-	    	JsonObject data = new JsonObject();
-	    	if (readAudioSamples > 0)
-	    	{
-	    		double fN = (double)readAudioSamples;
-
-	    		data.addProperty(DIFF_SECS, diffSecs);
-
-	    		// Convert shorts to 8-bit bytes for raw audio output
-	    		for (int i = 0; i < bufferSamples; i ++)
-	    		{
-	    			data8bit[i*2] = (byte)data16bit[i];
-	    			data8bit[i*2+1] = (byte)(data16bit[i] >> 8);
-	    		}
-	    		//		        	writeLogTextLine("Read " + readAudioSamples + " samples");
-
-	    		// L1-norm
-	    		double accum = 0;
-	    		for (int i = 0; i < readAudioSamples; i ++)
-	    		{
-	    			accum += Math.abs((double)data16bit[i]);
-	    		}
-	    		data.addProperty(L1_NORM, accum/fN);
-
-	    		// L2-norm
-	    		accum = 0;
-	    		for (int i = 0; i < readAudioSamples; i ++)
-	    		{
-	    			accum += (double)data16bit[i]*(double)data16bit[i];
-	    		}
-	    		data.addProperty(L2_NORM, Math.sqrt(accum/fN));
-
-	    		// Linf-norm
-	    		accum = 0;
-	    		for (int i = 0; i < readAudioSamples; i ++)
-	    		{
-	    			accum = Math.max(Math.abs((double)data16bit[i]),accum);
-	    		}
-	    		data.addProperty(LINF_NORM, Math.sqrt(accum));
-
-	    		// Frequency analysis
-	    		Arrays.fill(fftBufferR, 0);
-	    		Arrays.fill(fftBufferI, 0);
-
-	    		// Convert audio buffer to doubles
-	    		for (int i = 0; i < readAudioSamples; i++)
-	    		{
-	    			fftBufferR[i] = data16bit[i];
-	    		}
-
-	    		// In-place windowing
-	    		featureWin.applyWindow(fftBufferR);
-
-	    		// In-place FFT
-	    		featureFFT.fft(fftBufferR, fftBufferI);
-
-	    		// Get PSD across frequency band ranges
-	    		double[] psdAcrossFrequencyBands = new double[FREQ_BANDEDGES.length - 1];
-	    		for (int b = 0; b < (FREQ_BANDEDGES.length - 1); b ++)
-	    		{
-	    			int j = freqBandIdx[b];
-	    			int k = freqBandIdx[b+1];
-	    			accum = 0;
-	    			for (int h = j; h < k; h ++)
-	    			{
-	    				accum += fftBufferR[h]*fftBufferR[h] + fftBufferI[h]*fftBufferI[h];
-	    			}
-	    			psdAcrossFrequencyBands[b] = accum/((double)(k - j));
-	    		}
-	    		Gson gson = getGson();
-	    		data.add(PSD_ACROSS_FREQUENCY_BANDS, gson.toJsonTree(psdAcrossFrequencyBands));
-
-	    		// Get MFCCs
-	    		featureCepstrum = featureMFCC.cepstrum(fftBufferR, fftBufferI);
-	    		data.add(MFCCS, gson.toJsonTree(featureCepstrum));
-
-	    		// Write out features
-	    		sendData(data);
-	    		
-	    	}
-	    }
-
+		short[] overflow = new short[ring.getBlockSize()];
+		try
+		{
+			while (State.RUNNING.equals(getState()))
+			{
+				short[] block = ring.claim();
+				if (block == null)
+				{
+					// Processing is behind, keep the AudioRecord drained and drop this block
+					int readAudioSamples = recorder.read(overflow, 0, overflow.length);
+					if (readAudioSamples > 0)
+					{
+						ring.drop(readAudioSamples);
+						overrunMetric.increment();
+						droppedMetric.add(readAudioSamples);
+					}
+				}
+				else
+				{
+					int readAudioSamples = recorder.read(block, 0, block.length);
+					if (readAudioSamples > 0)
+					{
+						ring.publish(readAudioSamples);
+					}
+				}
+			}
+		}
+		finally
+		{
+			ring.close();
+		}
+	}
+	
+	/**
+	 * Runs on the processing thread, computing features of each block until the ring is closed and drained.
+	 */
+	private void processAudioStream(SampleRing ring, STFT stft, FrameAggregator frameAggregator)
+	{
+		while (!ring.isDrained())
+		{
+			short[] block = ring.take(PROCESSING_WAIT_MILLIS);
+			if (block != null)
+			{
+				int dropped = ring.getDroppedBefore();
+				if (dropped > 0)
+				{
+					// Start the next frame after the gap
+					frameAggregator.addDropped(dropped);
+					stft.reset();
+				}
+				int count = ring.getCount();
+				frameAggregator.addSamples(block, count);
+				stft.write(block, 0, count, frameAggregator);
+				ring.release();
+			}
+		}
 	}
 	
 }
@@ -0,0 +1,83 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.probe.builtin;
+
+import java.util.Map;
+
+import com.google.gson.JsonObject;
+
+import edu.mit.media.funf.Schedule;
+import edu.mit.media.funf.probe.builtin.ProbeKeys.FunfMetricsKeys;
+import edu.mit.media.funf.util.LockUtil;
+import edu.mit.media.funf.util.Metrics;
+import edu.mit.media.funf.util.Tracing;
+
+/**
+ * Reports funf's own operational metrics, such as samples per probe, pipeline queue depth, 
+ * write and archive latency, upload volume, and how long each component held the wake lock, 
+ * so they are stored and uploaded with the data.
+ * 
+ * Counters are cumulative since the process started.  Rates are per second, since this probe last ran.
+ * 
+ * When a pipeline sets traceSampleInterval, the latency percentiles of the traced samples 
+ * are also reported, per probe and stage.
+ */
+@Schedule.DefaultSchedule(interval=300)
+public class FunfMetricsProbe extends ImpulseProbe implements FunfMetricsKeys {
+
+	private Map<String,Long> previousCounts;
+	private long previousNanos;
+	
+	@Override
+	protected void onStart() {
+		super.onStart();
+		sendData(getData());
+		stop();
+	}
+	
+	private JsonObject getData() {
+		long now = System.nanoTime();
+		Map<String,Long> counts = Metrics.getCounts();
+		JsonObject data = new JsonObject();
+		data.add(METRICS, Metrics.snapshot());
+		data.add(WAKE_LOCKS, LockUtil.getWakeLockAccounting());
+		if (Tracing.isEnabled()) {
+			data.add(LATENCIES, Tracing.getLatencies());
+		}
+		if (previousCounts != null && now > previousNanos) {
+			double elapsedSeconds = (now - previousNanos) / 1e9;
+			JsonObject rates = new JsonObject();
+			for (Map.Entry<String,Long> count : counts.entrySet()) {
+				Long previous = previousCounts.get(count.getKey());
+				long delta = count.getValue() - (previous == null ? 0 : previous);
+				rates.addProperty(count.getKey(), delta / elapsedSeconds);
+			}
+			data.add(RATES, rates);
+			data.addProperty(INTERVAL, elapsedSeconds);
+		}
+		previousCounts = counts;
+		previousNanos = now;
+		return data;
+	}
+}
@@ -79,7 +79,7 @@ public class LocationProbe extends Base implements ContinuousProbe, PassiveProbe
 		mLocationManager = (LocationManager) getContext().getSystemService(Context.LOCATION_SERVICE);
 		String passiveProvider = getPassiveProvider();
 		if (passiveProvider != null) {
-			mLocationManager.requestLocationUpdates(getPassiveProvider(), 0, 0, passiveListener);
+			mLocationManager.requestLocationUpdates(getPassiveProvider(), 0, 0, passiveListener, getHandler().getLooper());
 		}
 	}
 
@@ -87,10 +87,10 @@ public class LocationProbe extends Base implements ContinuousProbe, PassiveProbe
 	protected void onStart() {
 		super.onStart();
 		if (useGps) {
-			mLocationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, listener);
+			mLocationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, listener, getHandler().getLooper());
 		}
 		if (useNetwork) {
-			mLocationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 0, 0, listener);
+			mLocationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 0, 0, listener, getHandler().getLooper());
 		}
 		if (useCache) {
 			listener.onLocationChanged(mLocationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER));
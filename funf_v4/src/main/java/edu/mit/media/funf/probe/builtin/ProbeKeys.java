@@ -112,7 +112,10 @@ public class ProbeKeys {
 		L2_NORM = "l2Norm",
 		LINF_NORM = "linfNorm",
 		PSD_ACROSS_FREQUENCY_BANDS = "psdAcrossFrequencyBands",
-		MFCCS = "mfccs";
+		MFCCS = "mfccs",
+		MFCC_VARIANCES = "mfccVariances",
+		NUM_FRAMES = "numFrames",
+		DROPPED_SAMPLES = "droppedSamples";
 	}
 	
 	public static interface AudioFilesKeys extends BaseProbeKeys, android.provider.MediaStore.Audio.AudioColumns {
@@ -192,6 +195,15 @@ public class ProbeKeys {
 		DEVICE_ID = "deviceId";	
 	}
 	
+	public static interface FunfMetricsKeys extends BaseProbeKeys {
+		public static final String 
+		METRICS = "metrics",
+		RATES = "rates",
+		INTERVAL = "interval",
+		LATENCIES = "latencies",
+		WAKE_LOCKS = "wakeLocks";
+	}
+	
 	public static interface ImagesKeys extends BaseProbeKeys, android.provider.MediaStore.Images.ImageColumns {
 		public static final String 
 		IMAGES = "images";	
@@ -24,11 +24,16 @@
 package edu.mit.media.funf.probe.builtin;
 
 
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 import android.content.Context;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.Message;
 import android.util.Log;
 
 import com.google.gson.JsonElement;
@@ -36,11 +41,13 @@ import com.google.gson.JsonObject;
 
 import edu.mit.media.funf.Schedule;
 import edu.mit.media.funf.config.Configurable;
+import edu.mit.media.funf.json.IJsonObject;
 import edu.mit.media.funf.probe.Probe.Base;
 import edu.mit.media.funf.probe.Probe.ContinuousProbe;
 import edu.mit.media.funf.probe.builtin.ProbeKeys.SensorKeys;
 import edu.mit.media.funf.time.TimeUtil;
 import edu.mit.media.funf.util.LogUtil;
+import edu.mit.media.funf.util.Tracing;
 
 @Schedule.DefaultSchedule(interval=SensorProbe.DEFAULT_PERIOD, duration=SensorProbe.DEFAULT_DURATION)
 public abstract class SensorProbe extends Base implements ContinuousProbe, SensorKeys {
@@ -51,35 +58,181 @@ public abstract class SensorProbe extends Base implements ContinuousProbe, Senso
 	@Configurable
 	private String sensorDelay = SENSOR_DELAY_FASTEST;
 	
+	/**
+	 * Number of sensor events that can be held between the sensor thread and the probe thread,
+	 * before the oldest unprocessed events are overwritten.
+	 */
+	@Configurable
+	private int sampleBufferSize = 256;
+	
 	public static final String 
 		SENSOR_DELAY_FASTEST = "FASTEST",
 		SENSOR_DELAY_GAME = "GAME",
 		SENSOR_DELAY_UI = "UI",
 		SENSOR_DELAY_NORMAL = "NORMAL";
 	
+	private static final int SENSOR_SAMPLE_MESSAGE = 100;
+	
 	private SensorManager sensorManager;
 	private Sensor sensor;
 	private SensorEventListener sensorListener;
+	private SampleBuffer sampleBuffer;
+	private SampleBuffer dispatchBuffer; // Copy of the sample being sent to listeners
+	private long droppedSamples;
+	
+	/**
+	 * Data listener that can receive sensor samples directly from the probe's sample buffer,
+	 * without a JsonObject being built for every sensor event.  JSON data is only built for
+	 * the listeners registered with this probe that do not implement this interface.
+	 */
+	public interface SensorDataListener extends DataListener {
+		
+		/**
+		 * Called on the probe thread for every sensor event.  The sample at index is only valid 
+		 * for the duration of this call, as the slot will be reused for the next sensor event.
+		 * 
+		 * @param probeConfig
+		 * @param samples
+		 * @param index
+		 */
+		public void onSensorDataReceived(IJsonObject probeConfig, SampleBuffer samples, int index);
+	}
+	
+	/**
+	 * Preallocated ring buffer of sensor samples.  Each slot holds the uptime timestamp
+	 * in nanoseconds (as in SensorEvent.timestamp), the accuracy and the sensor values.
+	 * 
+	 * Samples are written by the sensor thread, which can overwrite a slot at any time once the 
+	 * buffer wraps around.  The sequence number of each slot works as a seqlock: it is set to 
+	 * WRITING while the slot is written.  Other threads should only read a slot through 
+	 * {@link #copy(int, int, SampleBuffer, int)}, which fails if the slot changed during the copy.
+	 * 
+	 * The slot contents are kept in atomic arrays, values as raw float bits, so that every access
+	 * is volatile.  With plain arrays the payload reads could be reordered after the sequence 
+	 * re-check (and the payload writes before the WRITING mark), letting a torn sample through.
+	 */
+	public static class SampleBuffer {
+		
+		/**
+		 * Sequence number of a slot that is being written, or has not been written yet.
+		 */
+		public static final long WRITING = -1L;
+		
+		private final int capacity, maxValues;
+		private final AtomicLongArray sequences;
+		private final AtomicLongArray timestamps;
+		private final AtomicIntegerArray accuracies;
+		private final AtomicIntegerArray valueCounts;
+		private final AtomicIntegerArray values;
+		private long nextSequence = 0;
+		
+		public SampleBuffer(int capacity, int maxValues) {
+			this.capacity = capacity;
+			this.maxValues = maxValues;
+			this.sequences = new AtomicLongArray(capacity);
+			this.timestamps = new AtomicLongArray(capacity);
+			this.accuracies = new AtomicIntegerArray(capacity);
+			this.valueCounts = new AtomicIntegerArray(capacity);
+			this.values = new AtomicIntegerArray(capacity * maxValues);
+			for (int i = 0; i < capacity; i++) {
+				sequences.set(i, WRITING); // Otherwise empty slots would pass as sample 0
+			}
+		}
+		
+		/**
+		 * Copies the sample into the next slot, overwriting the oldest sample if the buffer is full.
+		 * @return the index of the slot the sample was written to
+		 */
+		public int put(long timestampNanos, int accuracy, float[] sampleValues) {
+			int index = (int)(nextSequence % capacity);
+			int count = Math.min(sampleValues.length, maxValues);
+			sequences.set(index, WRITING);
+			timestamps.set(index, timestampNanos);
+			accuracies.set(index, accuracy);
+			valueCounts.set(index, count);
+			int offset = index * maxValues;
+			for (int i = 0; i < count; i++) {
+				values.set(offset + i, Float.floatToRawIntBits(sampleValues[i]));
+			}
+			sequences.set(index, nextSequence++);
+			return index;
+		}
+		
+		/**
+		 * Copies the sample at index into a slot of another buffer, if it is still the sample with the 
+		 * given sequence number once the copy is done.
+		 * @param index slot to copy from
+		 * @param sequence the low 32 bits of the sequence number of the expected sample
+		 * @param target buffer to copy into, with room for as many values as this one
+		 * @param targetIndex slot to copy into
+		 * @return false if the slot was overwritten, or is being written, in which case the target slot holds no valid sample
+		 */
+		public boolean copy(int index, int sequence, SampleBuffer target, int targetIndex) {
+			long before = sequences.get(index);
+			if (before == WRITING || (int)before != sequence) {
+				return false;
+			}
+			int count = valueCounts.get(index);
+			target.timestamps.set(targetIndex, timestamps.get(index));
+			target.accuracies.set(targetIndex, accuracies.get(index));
+			target.valueCounts.set(targetIndex, count);
+			int offset = index * maxValues, targetOffset = targetIndex * target.maxValues;
+			for (int i = 0; i < count; i++) {
+				target.values.set(targetOffset + i, values.get(offset + i));
+			}
+			if (sequences.get(index) != before) {
+				target.sequences.set(targetIndex, WRITING);
+				return false;
+			}
+			target.sequences.set(targetIndex, before);
+			return true;
+		}
+		
+		/**
+		 * @return the sequence number of the sample currently held at index, or WRITING
+		 */
+		public long getSequence(int index) {
+			return sequences.get(index);
+		}
+		
+		public long getTimestampNanos(int index) {
+			return timestamps.get(index);
+		}
+		
+		public int getAccuracy(int index) {
+			return accuracies.get(index);
+		}
+		
+		public int getValueCount(int index) {
+			return valueCounts.get(index);
+		}
+		
+		public float getValue(int index, int valueIndex) {
+			return Float.intBitsToFloat(values.get(index * maxValues + valueIndex));
+		}
+		
+		public int getCapacity() {
+			return capacity;
+		}
+	}
 	
 	@Override
 	protected void onEnable() {
 		super.onEnable();
 		sensorManager = (SensorManager) getContext().getSystemService(Context.SENSOR_SERVICE);
 		sensor = sensorManager.getDefaultSensor(getSensorType());
-		final String[] valueNames = getValueNames();
+		sampleBuffer = new SampleBuffer(Math.max(1, sampleBufferSize), getValueNames().length);
+		dispatchBuffer = new SampleBuffer(1, getValueNames().length);
 		sensorListener = new SensorEventListener() {
 			
 			@Override
 			public void onSensorChanged(SensorEvent event) {
-				JsonObject data = new JsonObject();
-				data.addProperty(TIMESTAMP, TimeUtil.uptimeNanosToTimestamp(event.timestamp));
-				data.addProperty(ACCURACY, event.accuracy);
-				int valuesLength = Math.min(event.values.length, valueNames.length);
-				for (int i = 0; i < valuesLength; i++) {
-					String valueName = valueNames[i];
-					data.addProperty(valueName, event.values[i]);
+				Handler handler = getHandler();
+				if (handler != null) {
+					int index = sampleBuffer.put(event.timestamp, event.accuracy, event.values);
+					// Message objects are pooled, so handing off the slot does not allocate
+					handler.sendMessage(handler.obtainMessage(SENSOR_SAMPLE_MESSAGE, index, (int)sampleBuffer.getSequence(index)));
 				}
-				sendData(data);
 			}
 			
 			@Override
@@ -99,6 +252,78 @@ public abstract class SensorProbe extends Base implements ContinuousProbe, Senso
 		getSensorManager().unregisterListener(sensorListener);
 	}
 	
+	@Override
+	protected boolean handleMessage(Message msg) {
+		if (msg.what == SENSOR_SAMPLE_MESSAGE) {
+			dispatchSample(msg.arg1, msg.arg2);
+			return true;
+		}
+		return super.handleMessage(msg);
+	}
+	
+	@Override
+	protected boolean isJsonDataListener(DataListener listener) {
+		return !(listener instanceof SensorDataListener);
+	}
+	
+	private void dispatchSample(int index, int sequence) {
+		// Listeners read a private copy, which the sensor thread cannot overwrite while they run
+		SampleBuffer samples = dispatchBuffer;
+		if (!sampleBuffer.copy(index, sequence, samples, 0)) {
+			// Slot was overwritten before the probe thread could process it
+			droppedSamples++;
+			return;
+		}
+		// SensorEvent timestamps are in the same uptime nanos as System.nanoTime()
+		Tracing.Trace trace = startTrace(samples.getTimestampNanos(0));
+		if (trace != null) {
+			Tracing.setCurrent(trace);
+			trace.markDispatched();
+		}
+		try {
+			boolean jsonRequested = false;
+			IJsonObject config = getConfig();
+			for (DataListener listener : getAllDataListeners()) {
+				if (listener instanceof SensorDataListener) {
+					((SensorDataListener)listener).onSensorDataReceived(config, samples, 0);
+				} else {
+					jsonRequested = true;
+				}
+			}
+			if (jsonRequested) {
+				sendData(getSampleAsJson(samples, 0));
+			} else {
+				countSample();
+			}
+		} finally {
+			if (trace != null) {
+				Tracing.setCurrent(null);
+			}
+		}
+	}
+	
+	/**
+	 * Builds the JSON representation of a sample passed to a SensorDataListener, for listeners that do not use the sample buffer.
+	 */
+	public JsonObject getSampleAsJson(SampleBuffer samples, int index) {
+		String[] valueNames = getValueNames();
+		JsonObject data = new JsonObject();
+		data.addProperty(TIMESTAMP, TimeUtil.uptimeNanosToTimestamp(samples.getTimestampNanos(index)));
+		data.addProperty(ACCURACY, samples.getAccuracy(index));
+		int valuesLength = Math.min(samples.getValueCount(index), valueNames.length);
+		for (int i = 0; i < valuesLength; i++) {
+			data.addProperty(valueNames[i], samples.getValue(index, i));
+		}
+		return data;
+	}
+	
+	/**
+	 * @return the number of sensor events that were overwritten before they could be sent to listeners
+	 */
+	public long getDroppedSampleCount() {
+		return droppedSamples;
+	}
+	
 	protected SensorManager getSensorManager() {
 		if (sensorManager == null) {
 			sensorManager = (SensorManager) getContext().getSystemService(Context.SENSOR_SERVICE);
@@ -0,0 +1,228 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+import edu.mit.media.funf.time.TimeUtil;
+import edu.mit.media.funf.util.LogUtil;
+
+/**
+ * Append-only log of name, timestamp, value records.  This is a cheaper alternative to 
+ * inserting every record into a SQLite database for high rate probes.  Appended records are 
+ * buffered in memory, and written to the file channel with a single write and sync on commit.
+ * 
+ * A segment starts with a header holding the same file information as the file_info table of
+ * {@link NameValueDatabaseHelper}, followed by length prefixed records of
+ * [int payload length][int CRC32 of payload][payload].  The payload is
+ * [int name length][UTF-8 name][double timestamp][int value length][UTF-8 value].
+ * Use {@link AppendLogReader} to read a segment back, or convert it to a SQLite database.
+ * 
+ * This class is not thread safe.
+ */
+public class AppendLog {
+
+	static final int MAGIC = 0x46554e46; // FUNF
+	static final int FORMAT_VERSION = 1;
+	static final int RECORD_HEADER_LENGTH = 8;
+	static final String CHARSET = "UTF-8";
+	
+	private final File file;
+	private final CRC32 crc = new CRC32();
+	private FileChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+	private long committedLength = 0; // End of the last successful commit
+	private boolean truncatePending = false;
+	
+	/**
+	 * Opens the log segment, creating it if it does not exist.  An existing segment is 
+	 * appended to, after any partially written record at the end is truncated.
+	 * 
+	 * @param file
+	 * @param databaseName
+	 * @param databaseVersion
+	 * @param installationId
+	 * @throws IOException
+	 */
+	public AppendLog(File file, String databaseName, int databaseVersion, String installationId) throws IOException {
+		this.file = file;
+		file.getParentFile().mkdirs();
+		long validLength = 0;
+		if (file.exists() && file.length() > 0) {
+			AppendLogReader reader = null;
+			try {
+				reader = new AppendLogReader(file);
+				while (reader.next()) {
+					// Skip to the end of the last complete record
+				}
+				validLength = reader.getValidLength();
+			} catch (IOException e) {
+				Log.w(LogUtil.TAG, "Unreadable log segment, starting a new one: " + file.getAbsolutePath());
+			} finally {
+				if (reader != null) {
+					reader.close();
+				}
+			}
+		}
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		if (validLength > 0) {
+			channel.truncate(validLength);
+			committedLength = validLength;
+		} else {
+			channel.truncate(0);
+			writeHeader(databaseName, databaseVersion, installationId);
+		}
+	}
+	
+	private void writeHeader(String databaseName, int databaseVersion, String installationId) throws IOException {
+		buffer.putInt(MAGIC);
+		buffer.putInt(FORMAT_VERSION);
+		putString(databaseName);
+		buffer.putInt(databaseVersion);
+		putString(installationId);
+		putString(UUID.randomUUID().toString());
+		buffer.putDouble(TimeUtil.getTimestamp().doubleValue());
+		commit();
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Buffers a record to be written on the next commit.
+	 * @param name
+	 * @param timestamp
+	 * @param value
+	 * @throws IOException
+	 */
+	public void append(String name, double timestamp, String value) throws IOException {
+		byte[] nameBytes = name.getBytes(CHARSET);
+		byte[] valueBytes = value.getBytes(CHARSET);
+		int payloadLength = 4 + nameBytes.length + 8 + 4 + valueBytes.length;
+		ensureCapacity(RECORD_HEADER_LENGTH + payloadLength);
+		int recordStart = buffer.position();
+		int payloadStart = recordStart + RECORD_HEADER_LENGTH;
+		buffer.position(payloadStart);
+		buffer.putInt(nameBytes.length);
+		buffer.put(nameBytes);
+		buffer.putDouble(timestamp);
+		buffer.putInt(valueBytes.length);
+		buffer.put(valueBytes);
+		crc.reset();
+		crc.update(buffer.array(), payloadStart, payloadLength);
+		buffer.putInt(recordStart, payloadLength);
+		buffer.putInt(recordStart + 4, (int)crc.getValue());
+	}
+	
+	/**
+	 * Writes all buffered records to the file, and syncs them to disk, as a single group.
+	 * If the commit fails, the buffered records are discarded, and the segment is cut back to 
+	 * the end of the last successful commit, so the caller can append the records again.
+	 * @throws IOException
+	 */
+	public void commit() throws IOException {
+		if (buffer.position() == 0) {
+			return;
+		}
+		buffer.flip();
+		try {
+			if (truncatePending) {
+				channel.truncate(committedLength);
+				truncatePending = false;
+			}
+			long position = committedLength;
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+			channel.force(false);
+			committedLength = position;
+		} catch (IOException e) {
+			// Drop any partial write, before or during the next commit
+			truncatePending = true;
+			try {
+				channel.truncate(committedLength);
+				truncatePending = false;
+			} catch (IOException truncateException) {
+				Log.w(LogUtil.TAG, "Unable to truncate log segment after failed commit.", truncateException);
+			}
+			throw e;
+		} finally {
+			buffer.clear();
+		}
+	}
+	
+	/**
+	 * Commits any buffered records and closes the segment.  The segment is then renamed to sealedFile, 
+	 * so that it can be archived, and this log should no longer be used.
+	 * @param sealedFile
+	 * @return true if the segment was successfully sealed
+	 */
+	public boolean seal(File sealedFile) {
+		try {
+			commit();
+		} catch (IOException e) {
+			Log.e(LogUtil.TAG, "Unable to commit log segment before sealing.", e);
+			return false;
+		} finally {
+			close();
+		}
+		return file.renameTo(sealedFile);
+	}
+	
+	public void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				Log.e(LogUtil.TAG, "Error closing log segment", e);
+			}
+			channel = null;
+		}
+	}
+	
+	private void putString(String string) throws UnsupportedEncodingException {
+		byte[] bytes = (string == null ? "" : string).getBytes(CHARSET);
+		ensureCapacity(4 + bytes.length);
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+	
+	private void ensureCapacity(int length) {
+		if (buffer.remaining() < length) {
+			ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+			buffer.flip();
+			newBuffer.put(buffer);
+			buffer = newBuffer;
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import edu.mit.media.funf.util.IOUtil;
+import edu.mit.media.funf.util.LogUtil;
+
+/**
+ * Reads the records of an {@link AppendLog} segment in the order they were written.
+ * Reading stops at the first partially written or corrupt record.
+ */
+public class AppendLogReader {
+
+	private static final int MIN_PAYLOAD_LENGTH = 4 + 8 + 4, MAX_PAYLOAD_LENGTH = 64 * 1024 * 1024;
+
+	private final DataInputStream in;
+	private final CRC32 crc = new CRC32();
+	private final String databaseName, installationId, uuid;
+	private final int databaseVersion;
+	private final double created;
+	private final long fileLength;
+	private long validLength;
+	private byte[] payload = new byte[4096];
+	
+	private String name, value;
+	private double timestamp;
+	
+	public AppendLogReader(File file) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		fileLength = file.length();
+		validLength = 0;
+		try {
+			if (in.readInt() != AppendLog.MAGIC) {
+				throw new IOException("Not a log segment: " + file.getAbsolutePath());
+			}
+			int formatVersion = in.readInt();
+			if (formatVersion != AppendLog.FORMAT_VERSION) {
+				throw new IOException("Unsupported log segment version " + formatVersion);
+			}
+			validLength = 4 + 4;
+			databaseName = readString();
+			databaseVersion = in.readInt();
+			validLength += 4;
+			installationId = readString();
+			uuid = readString();
+			created = in.readDouble();
+			validLength += 8;
+		} catch (IOException e) {
+			IOUtil.close(in);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Advances to the next record.
+	 * @return false if there are no more complete records in the segment
+	 */
+	public boolean next() {
+		try {
+			int payloadLength = in.readInt();
+			int checksum = in.readInt();
+			if (payloadLength < MIN_PAYLOAD_LENGTH || payloadLength > MAX_PAYLOAD_LENGTH
+					|| payloadLength > fileLength - validLength - AppendLog.RECORD_HEADER_LENGTH) {
+				return false; // Corrupt length, or partially written record
+			}
+			if (payload.length < payloadLength) {
+				payload = new byte[Math.max(payload.length * 2, payloadLength)];
+			}
+			in.readFully(payload, 0, payloadLength);
+			crc.reset();
+			crc.update(payload, 0, payloadLength);
+			if ((int)crc.getValue() != checksum) {
+				Log.w(LogUtil.TAG, "Corrupt record in log segment, ignoring the rest of the segment.");
+				return false;
+			}
+			int offset = 0;
+			int nameLength = getInt(offset);
+			offset += 4;
+			name = new String(payload, offset, nameLength, AppendLog.CHARSET);
+			offset += nameLength;
+			timestamp = Double.longBitsToDouble(((long)getInt(offset) << 32) | (getInt(offset + 4) & 0xffffffffL));
+			offset += 8;
+			int valueLength = getInt(offset);
+			offset += 4;
+			value = new String(payload, offset, valueLength, AppendLog.CHARSET);
+			validLength += AppendLog.RECORD_HEADER_LENGTH + payloadLength;
+			return true;
+		} catch (EOFException e) {
+			return false; // End of segment, or partially written record
+		} catch (IOException e) {
+			Log.e(LogUtil.TAG, "Error reading log segment", e);
+			return false;
+		} catch (IndexOutOfBoundsException e) {
+			Log.w(LogUtil.TAG, "Malformed record in log segment, ignoring the rest of the segment.");
+			return false;
+		}
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public double getTimestamp() {
+		return timestamp;
+	}
+	
+	public String getValue() {
+		return value;
+	}
+	
+	public String getDatabaseName() {
+		return databaseName;
+	}
+	
+	public int getDatabaseVersion() {
+		return databaseVersion;
+	}
+	
+	public String getInstallationId() {
+		return installationId;
+	}
+	
+	public String getUuid() {
+		return uuid;
+	}
+	
+	public double getCreated() {
+		return created;
+	}
+	
+	/**
+	 * @return the number of bytes of the segment, up to the end of the last record read
+	 */
+	public long getValidLength() {
+		return validLength;
+	}
+	
+	public void close() {
+		IOUtil.close(in);
+	}
+	
+	/**
+	 * Writes the file information and all remaining records into the database, using the 
+	 * same tables as {@link NameValueDatabaseHelper}.  Records are inserted in a single transaction.
+	 * @param db
+	 */
+	public void copyTo(SQLiteDatabase db) {
+		db.execSQL(NameValueDatabaseHelper.DATA_TABLE.getCreateTableSQL());
+		db.execSQL(NameValueDatabaseHelper.FILE_INFO_TABLE.getCreateTableSQL());
+		db.setVersion(databaseVersion);
+		db.beginTransaction();
+		try {
+			SQLiteStatement fileInfo = db.compileStatement(String.format("INSERT INTO %s (%s, %s, %s, %s) VALUES (?, ?, ?, ?)", 
+					NameValueDatabaseHelper.FILE_INFO_TABLE.name,
+					NameValueDatabaseHelper.COLUMN_DATABASE_NAME, NameValueDatabaseHelper.COLUMN_INSTALLATION, 
+					NameValueDatabaseHelper.COLUMN_UUID, NameValueDatabaseHelper.COLUMN_CREATED));
+			fileInfo.bindString(1, databaseName);
+			fileInfo.bindString(2, installationId);
+			fileInfo.bindString(3, uuid);
+			fileInfo.bindDouble(4, created);
+			fileInfo.executeInsert();
+			fileInfo.close();
+			SQLiteStatement insert = db.compileStatement(String.format("INSERT INTO %s (%s, %s, %s) VALUES (?, ?, ?)", 
+					NameValueDatabaseHelper.DATA_TABLE.name,
+					NameValueDatabaseHelper.COLUMN_NAME, NameValueDatabaseHelper.COLUMN_VALUE, NameValueDatabaseHelper.COLUMN_TIMESTAMP));
+			while (next()) {
+				insert.bindString(1, name);
+				insert.bindString(2, value);
+				insert.bindDouble(3, timestamp);
+				insert.executeInsert();
+			}
+			insert.close();
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+	
+	/**
+	 * Converts a log segment into a SQLite database file, in the format written by {@link NameValueDatabaseHelper}.
+	 * @param segmentFile
+	 * @param databaseFile must not exist yet
+	 * @return true if the database was successfully written
+	 */
+	public static boolean convertToDatabase(File segmentFile, File databaseFile) {
+		AppendLogReader reader = null;
+		SQLiteDatabase db = null;
+		try {
+			reader = new AppendLogReader(segmentFile);
+			db = SQLiteDatabase.openOrCreateDatabase(databaseFile, null);
+			reader.copyTo(db);
+			return true;
+		} catch (IOException e) {
+			Log.e(LogUtil.TAG, "Unable to read log segment " + segmentFile.getAbsolutePath(), e);
+		} catch (RuntimeException e) {
+			Log.e(LogUtil.TAG, "Unable to convert log segment " + segmentFile.getAbsolutePath(), e);
+		} finally {
+			if (reader != null) {
+				reader.close();
+			}
+			if (db != null) {
+				db.close();
+			}
+		}
+		databaseFile.delete();
+		return false;
+	}
+	
+	/**
+	 * Reads a length prefixed header string, rejecting lengths that run past the end of the segment.
+	 */
+	private String readString() throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > fileLength - validLength - 4) {
+			throw new IOException("Corrupt log segment header");
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		validLength += 4 + length;
+		return new String(bytes, AppendLog.CHARSET);
+	}
+	
+	private int getInt(int offset) {
+		return ((payload[offset] & 0xff) << 24) | ((payload[offset + 1] & 0xff) << 16) 
+				| ((payload[offset + 2] & 0xff) << 8) | (payload[offset + 3] & 0xff);
+	}
+}
@@ -28,6 +28,7 @@ import java.io.File;
 /**
  * Delegates all actions to archive.  Adds an item to the backup archive before removing from the archive.
  * It is up to the backup archive to determine when those items will remove themselves.
+ * The backup archive may move the item instead of copying it, which also removes it from the archive.
  *
  */
 public class BackedUpArchive implements FileArchive {
@@ -56,8 +57,8 @@ public class BackedUpArchive implements FileArchive {
 
 	@Override
 	public boolean remove(File item) {
-		if (archive.contains(item)) {
-			backupArchive.add(item);
+		if (archive.contains(item) && backupArchive.add(item) && !item.exists()) {
+			return true; // Moved into the backup, so it is already gone from the archive
 		}
 		return archive.remove(item);
 	}
@@ -0,0 +1,911 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Columnar encoding of archived probe data.
+ * 
+ * Rows are grouped by probe name, and each field of the probe data is stored as its own column,
+ * so field names are written once per group instead of once per row.  Row timestamps are 
+ * delta-of-delta encoded, integer columns are delta encoded, floating point columns use 
+ * XOR compression of consecutive values, and all other values are dictionary encoded JSON.
+ * 
+ * Values round trip exactly: each number in a floating point column records which of a few 
+ * formats reproduces its original text (as a long, double, float or fixed scale decimal), and a 
+ * column with any number none of them reproduces is stored as JSON text instead.  Keys come 
+ * back in alphabetical order, which is how {@link edu.mit.media.funf.json.IJsonObject} writes them, 
+ * so data values written by the pipeline are read back as identical strings.
+ * 
+ * Rows of the same probe keep their order, but groups are written in the order they are flushed.
+ */
+public class ColumnarArchive {
+
+	public static final int MAGIC = 0x464e4643; // "FNFC"
+	public static final int FORMAT_VERSION = 2;
+	
+	/**
+	 * Maximum number of rows buffered for one group before it is written.
+	 */
+	public static final int MAX_GROUP_ROWS = 16 * 1024;
+	
+	static final byte 
+	KIND_JSON = 0,
+	KIND_LONG = 1,
+	KIND_FLOAT = 2,
+	KIND_DOUBLE = 3,
+	KIND_TIMESTAMP = 4; // Same value as the row timestamp
+	
+	static final byte 
+	TIMESTAMP_MICROS = 0,
+	TIMESTAMP_DOUBLE = 1;
+	
+	// Text forms of numbers in floating point columns
+	static final byte 
+	NUMBER_NONE = -1,
+	NUMBER_LONG = 0, // Long.toString of an integral value
+	NUMBER_DOUBLE = 1, // Double.toString
+	NUMBER_FLOAT = 2, // Float.toString
+	NUMBER_DECIMAL = 3; // BigDecimal.toString with a fixed scale, such as TimeUtil timestamps
+	
+	private static final double MAX_EXACT_LONG = 9007199254740992.0; // 2^53
+	private static final int MAX_DECIMAL_SCALE = 18;
+	
+	private static final byte GROUP_MARKER = 1, END_MARKER = 0;
+	private static final double MAX_MICROS_TIMESTAMP = 9e9; // Larger values may not round trip through a long of microseconds
+	private static final String CHARSET = "UTF-8";
+	
+	private ColumnarArchive() {
+	}
+	
+	/**
+	 * Writes rows in columnar format.  Consecutive rows with the same name are grouped together,
+	 * so rows should be added ordered by name for the best compression.
+	 */
+	public static class Writer implements Closeable {
+		
+		private final DataOutputStream out;
+		private final JsonParser parser = new JsonParser();
+		private String groupName;
+		private int rowCount;
+		private double[] timestamps = new double[256];
+		private final Map<String,Column> columns = new TreeMap<String,Column>(); // Sorted, like IJsonObject
+		
+		public Writer(OutputStream out, String databaseName, String installationId, String uuid, double created) throws IOException {
+			this.out = new DataOutputStream(out);
+			this.out.writeInt(MAGIC);
+			this.out.writeInt(FORMAT_VERSION);
+			writeString(this.out, databaseName);
+			writeString(this.out, installationId);
+			writeString(this.out, uuid);
+			this.out.writeDouble(created);
+		}
+		
+		public void add(String name, double timestamp, String value) throws IOException {
+			JsonElement element = parser.parse(value);
+			if (!element.isJsonObject()) {
+				throw new IOException("Data value is not a JSON object: " + name);
+			}
+			if (groupName != null && (!groupName.equals(name) || rowCount == MAX_GROUP_ROWS)) {
+				writeGroup();
+			}
+			groupName = name;
+			if (rowCount == timestamps.length) {
+				double[] grown = new double[rowCount * 2];
+				System.arraycopy(timestamps, 0, grown, 0, rowCount);
+				timestamps = grown;
+			}
+			timestamps[rowCount] = timestamp;
+			for (Map.Entry<String,JsonElement> entry : element.getAsJsonObject().entrySet()) {
+				Column column = columns.get(entry.getKey());
+				if (column == null) {
+					column = new Column(entry.getKey());
+					columns.put(entry.getKey(), column);
+				}
+				column.set(rowCount, entry.getValue(), timestamp);
+			}
+			rowCount++;
+		}
+		
+		private void writeGroup() throws IOException {
+			out.writeByte(GROUP_MARKER);
+			writeString(out, groupName);
+			writeVarint(out, rowCount);
+			
+			ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			writeTimestamps(payload);
+			writeVarint(out, payload.size());
+			payload.writeTo(out);
+			
+			writeVarint(out, columns.size());
+			for (Column column : columns.values()) {
+				writeString(out, column.key);
+				byte kind = column.getKind();
+				out.writeByte(kind);
+				int present = column.writePresence(out, rowCount);
+				payload.reset();
+				column.writeValues(payload, kind, rowCount, present);
+				writeVarint(out, payload.size());
+				payload.writeTo(out);
+			}
+			groupName = null;
+			rowCount = 0;
+			columns.clear();
+		}
+		
+		private void writeTimestamps(ByteArrayOutputStream payload) throws IOException {
+			boolean micros = true;
+			for (int i = 0; i < rowCount && micros; i++) {
+				double timestamp = timestamps[i];
+				micros = Math.abs(timestamp) < MAX_MICROS_TIMESTAMP && Math.round(timestamp * 1e6) / 1e6 == timestamp;
+			}
+			if (micros) {
+				payload.write(TIMESTAMP_MICROS);
+				long previous = 0, previousDelta = 0;
+				for (int i = 0; i < rowCount; i++) {
+					long value = Math.round(timestamps[i] * 1e6);
+					long delta = value - previous;
+					writeVarint(payload, zigzag(delta - previousDelta));
+					previous = value;
+					previousDelta = delta;
+				}
+			} else {
+				payload.write(TIMESTAMP_DOUBLE);
+				BitOutput bits = new BitOutput(payload);
+				XorCodec codec = new XorCodec(64);
+				for (int i = 0; i < rowCount; i++) {
+					codec.encode(bits, Double.doubleToLongBits(timestamps[i]));
+				}
+				bits.flush();
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (groupName != null) {
+				writeGroup();
+			}
+			out.writeByte(END_MARKER);
+			out.close();
+		}
+	}
+	
+	/**
+	 * Values of one field for the rows of the current group.
+	 */
+	private static class Column {
+		private final String key;
+		private boolean[] present = new boolean[0];
+		private long[] longs = new long[0];
+		private double[] doubles = new double[0];
+		private byte[] numberForms = new byte[0];
+		private int[] scales = new int[0];
+		private String[] texts;
+		private boolean allLong = true, allFloat = true, allTimestamp = true, allFormed = true;
+		
+		private Column(String key) {
+			this.key = key;
+		}
+		
+		private void set(int row, JsonElement value, double rowTimestamp) {
+			if (row >= present.length) {
+				int capacity = Math.max(row + 1, present.length * 2);
+				boolean[] grownPresent = new boolean[capacity];
+				System.arraycopy(present, 0, grownPresent, 0, present.length);
+				if (texts == null) {
+					long[] grownLongs = new long[capacity];
+					double[] grownDoubles = new double[capacity];
+					byte[] grownForms = new byte[capacity];
+					int[] grownScales = new int[capacity];
+					System.arraycopy(longs, 0, grownLongs, 0, present.length);
+					System.arraycopy(doubles, 0, grownDoubles, 0, present.length);
+					System.arraycopy(numberForms, 0, grownForms, 0, present.length);
+					System.arraycopy(scales, 0, grownScales, 0, present.length);
+					longs = grownLongs;
+					doubles = grownDoubles;
+					numberForms = grownForms;
+					scales = grownScales;
+				} else {
+					String[] grownTexts = new String[capacity];
+					System.arraycopy(texts, 0, grownTexts, 0, present.length);
+					texts = grownTexts;
+				}
+				present = grownPresent;
+			}
+			present[row] = true;
+			if (texts == null && value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber()) {
+				String text = value.getAsString();
+				double number = Double.parseDouble(text);
+				boolean wasLong = allLong;
+				if (allLong) {
+					try {
+						long longValue = Long.parseLong(text);
+						if (Long.toString(longValue).equals(text)) {
+							longs[row] = longValue;
+						} else {
+							allLong = false; // Such as "-0" or "007"
+						}
+					} catch (NumberFormatException e) {
+						allLong = false; // Fraction, exponent, or too large for a long
+					}
+				}
+				byte form = NUMBER_NONE;
+				int scale = 0;
+				for (byte candidate = NUMBER_LONG; candidate <= NUMBER_DECIMAL && form == NUMBER_NONE; candidate++) {
+					scale = candidate == NUMBER_DECIMAL ? getDecimalScale(text) : 0;
+					if (scale >= 0 && text.equals(formatNumber(candidate, scale, number))) {
+						form = candidate;
+					}
+				}
+				numberForms[row] = form;
+				scales[row] = scale;
+				allFormed &= form != NUMBER_NONE;
+				if (allLong || allFormed) {
+					doubles[row] = number;
+					allFloat &= Double.parseDouble(Float.toString((float)number)) == number;
+					allTimestamp &= number == rowTimestamp;
+					return;
+				}
+				toJson(row, wasLong);
+			} else if (texts == null) {
+				toJson(row, allLong);
+			}
+			texts[row] = value.toString();
+		}
+		
+		/**
+		 * Switches this column to JSON values, converting the numbers already stored to their original text.
+		 * @param rows number of rows already set
+		 * @param fromLongs true if every row so far was stored as a long, otherwise each has a number form
+		 */
+		private void toJson(int rows, boolean fromLongs) {
+			texts = new String[present.length];
+			for (int i = 0; i < rows; i++) {
+				if (present[i]) {
+					texts[i] = fromLongs ? Long.toString(longs[i]) : formatNumber(numberForms[i], scales[i], doubles[i]);
+				}
+			}
+			longs = null;
+			doubles = null;
+			numberForms = null;
+			scales = null;
+		}
+		
+		private byte getKind() {
+			if (texts != null) {
+				return KIND_JSON;
+			} else if (allLong) {
+				return KIND_LONG;
+			} else if (allTimestamp) {
+				return KIND_TIMESTAMP;
+			} else if (allFloat) {
+				return KIND_FLOAT;
+			} else {
+				return KIND_DOUBLE;
+			}
+		}
+		
+		private boolean isPresent(int row) {
+			return row < present.length && present[row];
+		}
+		
+		/**
+		 * @return the number of rows with a value
+		 */
+		private int writePresence(DataOutputStream out, int rows) throws IOException {
+			int count = 0;
+			byte[] bitmap = new byte[(rows + 7) / 8];
+			for (int i = 0; i < rows; i++) {
+				if (isPresent(i)) {
+					bitmap[i / 8] |= 1 << (i % 8);
+					count++;
+				}
+			}
+			if (count == rows) {
+				out.writeByte(1);
+			} else {
+				out.writeByte(0);
+				out.write(bitmap);
+			}
+			return count;
+		}
+		
+		/**
+		 * Writes the number form of each value, once if they are all the same.
+		 */
+		private void writeNumberForms(ByteArrayOutputStream out, int rows) throws IOException {
+			int first = -1;
+			boolean uniform = true;
+			for (int i = 0; i < rows && uniform; i++) {
+				if (isPresent(i)) {
+					if (first < 0) {
+						first = i;
+					} else {
+						uniform = numberForms[i] == numberForms[first] && scales[i] == scales[first];
+					}
+				}
+			}
+			if (uniform) {
+				out.write(1);
+				out.write(first < 0 ? NUMBER_DOUBLE : numberForms[first]);
+				writeVarint(out, first < 0 ? 0 : scales[first]);
+			} else {
+				out.write(0);
+				for (int i = 0; i < rows; i++) {
+					if (isPresent(i)) {
+						out.write(numberForms[i]);
+						writeVarint(out, scales[i]);
+					}
+				}
+			}
+		}
+		
+		private void writeValues(ByteArrayOutputStream out, byte kind, int rows, int present) throws IOException {
+			switch (kind) {
+			case KIND_LONG:
+				long previous = 0;
+				for (int i = 0; i < rows; i++) {
+					if (isPresent(i)) {
+						writeVarint(out, zigzag(longs[i] - previous));
+						previous = longs[i];
+					}
+				}
+				break;
+			case KIND_FLOAT:
+			case KIND_DOUBLE:
+				writeNumberForms(out, rows);
+				BitOutput bits = new BitOutput(out);
+				XorCodec codec = new XorCodec(kind == KIND_FLOAT ? 32 : 64);
+				for (int i = 0; i < rows; i++) {
+					if (isPresent(i)) {
+						codec.encode(bits, kind == KIND_FLOAT 
+								? Float.floatToIntBits((float)doubles[i]) & 0xffffffffL 
+								: Double.doubleToLongBits(doubles[i]));
+					}
+				}
+				bits.flush();
+				break;
+			case KIND_JSON:
+				Map<String,Integer> dictionary = new HashMap<String,Integer>();
+				List<String> entries = new ArrayList<String>();
+				int[] indexes = new int[present];
+				int count = 0;
+				for (int i = 0; i < rows; i++) {
+					if (isPresent(i)) {
+						Integer index = dictionary.get(texts[i]);
+						if (index == null) {
+							index = entries.size();
+							dictionary.put(texts[i], index);
+							entries.add(texts[i]);
+						}
+						indexes[count++] = index;
+					}
+				}
+				writeVarint(out, entries.size());
+				for (String entry : entries) {
+					writeString(out, entry);
+				}
+				for (int index : indexes) {
+					writeVarint(out, index);
+				}
+				break;
+			case KIND_TIMESTAMP:
+				writeNumberForms(out, rows);
+				break;
+			}
+		}
+		
+		/**
+		 * @return the number of digits after the decimal point of a plain decimal number, or -1 if it has an exponent
+		 */
+		private static int getDecimalScale(String text) {
+			int point = -1;
+			for (int i = 0; i < text.length(); i++) {
+				char c = text.charAt(i);
+				if (c == 'e' || c == 'E') {
+					return -1;
+				} else if (c == '.') {
+					point = i;
+				}
+			}
+			int scale = point < 0 ? 0 : text.length() - point - 1;
+			return scale <= MAX_DECIMAL_SCALE ? scale : -1;
+		}
+	}
+	
+	/**
+	 * @return the text of a number in the given form, or null if the form cannot hold the value
+	 */
+	private static String formatNumber(byte form, int scale, double value) {
+		switch (form) {
+		case NUMBER_LONG:
+			return Math.abs(value) < MAX_EXACT_LONG && value == Math.rint(value) ? Long.toString((long)value) : null;
+		case NUMBER_DOUBLE:
+			return Double.toString(value);
+		case NUMBER_FLOAT:
+			return Float.toString((float)value);
+		case NUMBER_DECIMAL:
+			return Double.isNaN(value) || Double.isInfinite(value) ? null : toDecimal(scale, value).toString();
+		default:
+			return null;
+		}
+	}
+	
+	private static BigDecimal toDecimal(int scale, double value) {
+		return BigDecimal.valueOf(value).setScale(scale, RoundingMode.HALF_EVEN);
+	}
+	
+	/**
+	 * @return a JsonPrimitive that serializes to the same text as {@link #formatNumber(byte, int, double)}
+	 */
+	private static JsonPrimitive toPrimitive(byte form, int scale, double value) {
+		switch (form) {
+		case NUMBER_LONG:
+			return new JsonPrimitive((long)value);
+		case NUMBER_FLOAT:
+			return new JsonPrimitive((float)value);
+		case NUMBER_DECIMAL:
+			return new JsonPrimitive(toDecimal(scale, value));
+		default:
+			return new JsonPrimitive(value);
+		}
+	}
+	
+	/**
+	 * Reads files written by {@link Writer}, one group of rows at a time.
+	 */
+	public static class Reader implements Closeable {
+		
+		private final DataInputStream in;
+		private final JsonParser parser = new JsonParser();
+		private final String databaseName, installationId, uuid;
+		private final double created;
+		
+		private String groupName;
+		private int rowCount;
+		private double[] timestamps;
+		private final List<ColumnValues> columns = new ArrayList<ColumnValues>();
+		
+		public Reader(InputStream in) throws IOException {
+			this.in = new DataInputStream(in);
+			if (this.in.readInt() != MAGIC) {
+				throw new IOException("Not a columnar archive");
+			}
+			int formatVersion = this.in.readInt();
+			if (formatVersion != FORMAT_VERSION) {
+				throw new IOException("Unsupported columnar archive version " + formatVersion);
+			}
+			databaseName = readString(this.in);
+			installationId = readString(this.in);
+			uuid = readString(this.in);
+			created = this.in.readDouble();
+		}
+		
+		/**
+		 * Reads the next group of rows.
+		 * @return false when there are no more groups
+		 */
+		public boolean nextGroup() throws IOException {
+			columns.clear();
+			if (in.readByte() == END_MARKER) {
+				groupName = null;
+				rowCount = 0;
+				return false;
+			}
+			groupName = readString(in);
+			rowCount = readVarint(in);
+			readTimestamps(readPayload());
+			int columnCount = readVarint(in);
+			for (int c = 0; c < columnCount; c++) {
+				String key = readString(in);
+				byte kind = in.readByte();
+				boolean[] present = new boolean[rowCount];
+				if (in.readByte() == 1) {
+					Arrays.fill(present, true);
+				} else {
+					byte[] bitmap = new byte[(rowCount + 7) / 8];
+					in.readFully(bitmap);
+					for (int i = 0; i < rowCount; i++) {
+						present[i] = (bitmap[i / 8] & (1 << (i % 8))) != 0;
+					}
+				}
+				columns.add(new ColumnValues(key, kind, present, readPayload()));
+			}
+			return true;
+		}
+		
+		private byte[] readPayload() throws IOException {
+			byte[] payload = new byte[readVarint(in)];
+			in.readFully(payload);
+			return payload;
+		}
+		
+		private void readTimestamps(byte[] payload) throws IOException {
+			timestamps = new double[rowCount];
+			BitInput bits = new BitInput(payload);
+			byte encoding = (byte)bits.readBits(8);
+			if (encoding == TIMESTAMP_MICROS) {
+				long previous = 0, previousDelta = 0;
+				for (int i = 0; i < rowCount; i++) {
+					long delta = previousDelta + unzigzag(bits.readVarint());
+					previous += delta;
+					previousDelta = delta;
+					timestamps[i] = previous / 1e6;
+				}
+			} else if (encoding == TIMESTAMP_DOUBLE) {
+				XorCodec codec = new XorCodec(64);
+				for (int i = 0; i < rowCount; i++) {
+					timestamps[i] = Double.longBitsToDouble(codec.decode(bits));
+				}
+			} else {
+				throw new IOException("Unknown timestamp encoding " + encoding);
+			}
+		}
+		
+		public String getDatabaseName() {
+			return databaseName;
+		}
+		
+		public String getInstallationId() {
+			return installationId;
+		}
+		
+		public String getUuid() {
+			return uuid;
+		}
+		
+		public double getCreated() {
+			return created;
+		}
+		
+		public String getGroupName() {
+			return groupName;
+		}
+		
+		public int getRowCount() {
+			return rowCount;
+		}
+		
+		public double getTimestamp(int row) {
+			return timestamps[row];
+		}
+		
+		/**
+		 * Rebuilds the data value of a row in the current group.
+		 */
+		public JsonObject getValue(int row) {
+			JsonObject value = new JsonObject();
+			for (ColumnValues column : columns) {
+				if (column.present[row]) {
+					value.add(column.key, column.get(row, timestamps[row], parser));
+				}
+			}
+			return value;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Decoded values of one column, indexed by row.
+	 */
+	private static class ColumnValues {
+		private final String key;
+		private final byte kind;
+		private final boolean[] present;
+		private long[] longs;
+		private double[] doubles;
+		private byte[] numberForms;
+		private int[] scales;
+		private String[] texts;
+		
+		private ColumnValues(String key, byte kind, boolean[] present, byte[] payload) throws IOException {
+			this.key = key;
+			this.kind = kind;
+			this.present = present;
+			int rows = present.length;
+			BitInput bits = new BitInput(payload);
+			switch (kind) {
+			case KIND_LONG:
+				longs = new long[rows];
+				long previous = 0;
+				for (int i = 0; i < rows; i++) {
+					if (present[i]) {
+						previous += unzigzag(bits.readVarint());
+						longs[i] = previous;
+					}
+				}
+				break;
+			case KIND_FLOAT:
+			case KIND_DOUBLE:
+				readNumberForms(bits);
+				doubles = new double[rows];
+				XorCodec codec = new XorCodec(kind == KIND_FLOAT ? 32 : 64);
+				for (int i = 0; i < rows; i++) {
+					if (present[i]) {
+						long value = codec.decode(bits);
+						// Float columns only hold doubles that are the shortest decimal form of a float
+						doubles[i] = kind == KIND_FLOAT 
+								? Double.parseDouble(Float.toString(Float.intBitsToFloat((int)value))) 
+								: Double.longBitsToDouble(value);
+					}
+				}
+				break;
+			case KIND_JSON:
+				String[] entries = new String[(int)bits.readVarint()];
+				for (int i = 0; i < entries.length; i++) {
+					byte[] bytes = new byte[(int)bits.readVarint()];
+					bits.readFully(bytes);
+					entries[i] = new String(bytes, CHARSET);
+				}
+				texts = new String[rows];
+				for (int i = 0; i < rows; i++) {
+					if (present[i]) {
+						texts[i] = entries[(int)bits.readVarint()];
+					}
+				}
+				break;
+			case KIND_TIMESTAMP:
+				readNumberForms(bits);
+				break;
+			default:
+				throw new IOException("Unknown column encoding " + kind);
+			}
+		}
+		
+		private void readNumberForms(BitInput bits) throws IOException {
+			int rows = present.length;
+			numberForms = new byte[rows];
+			scales = new int[rows];
+			if (bits.readBits(8) == 1) {
+				byte form = (byte)bits.readBits(8);
+				int scale = (int)bits.readVarint();
+				Arrays.fill(numberForms, form);
+				Arrays.fill(scales, scale);
+			} else {
+				for (int i = 0; i < rows; i++) {
+					if (present[i]) {
+						numberForms[i] = (byte)bits.readBits(8);
+						scales[i] = (int)bits.readVarint();
+					}
+				}
+			}
+		}
+		
+		private JsonElement get(int row, double timestamp, JsonParser parser) {
+			switch (kind) {
+			case KIND_LONG:
+				return new JsonPrimitive(longs[row]);
+			case KIND_FLOAT:
+			case KIND_DOUBLE:
+				return toPrimitive(numberForms[row], scales[row], doubles[row]);
+			case KIND_TIMESTAMP:
+				return toPrimitive(numberForms[row], scales[row], timestamp);
+			default:
+				return parser.parse(texts[row]);
+			}
+		}
+	}
+	
+	/**
+	 * Compresses a sequence of values by storing only the bits that differ from the previous value.
+	 * Each value is either identical (one bit), fits within the previous run of meaningful bits,
+	 * or starts a new run with its own count of leading zeros and meaningful bits.
+	 */
+	private static class XorCodec {
+		private final int width;
+		private boolean first = true;
+		private long previous;
+		private int leading = -1, trailing;
+		
+		private XorCodec(int width) {
+			this.width = width;
+		}
+		
+		private void encode(BitOutput out, long value) throws IOException {
+			if (first) {
+				first = false;
+				previous = value;
+				out.writeBits(value, width);
+				return;
+			}
+			long xor = value ^ previous;
+			previous = value;
+			if (xor == 0) {
+				out.writeBits(0, 1);
+				return;
+			}
+			out.writeBits(1, 1);
+			int valueLeading = Math.min(31, Long.numberOfLeadingZeros(xor) - (64 - width));
+			int valueTrailing = Long.numberOfTrailingZeros(xor);
+			if (leading >= 0 && valueLeading >= leading && valueTrailing >= trailing) {
+				out.writeBits(0, 1);
+			} else {
+				leading = valueLeading;
+				trailing = valueTrailing;
+				out.writeBits(1, 1);
+				out.writeBits(leading, 5);
+				out.writeBits(width - leading - trailing - 1, 6);
+			}
+			out.writeBits(xor >>> trailing, width - leading - trailing);
+		}
+		
+		private long decode(BitInput in) throws IOException {
+			if (first) {
+				first = false;
+				previous = in.readBits(width);
+				return previous;
+			}
+			if (in.readBits(1) == 0) {
+				return previous;
+			}
+			if (in.readBits(1) == 1) {
+				leading = (int)in.readBits(5);
+				trailing = width - leading - ((int)in.readBits(6) + 1);
+			}
+			previous ^= in.readBits(width - leading - trailing) << trailing;
+			return previous;
+		}
+	}
+	
+	private static class BitOutput {
+		private final OutputStream out;
+		private int current, count;
+		
+		private BitOutput(OutputStream out) {
+			this.out = out;
+		}
+		
+		private void writeBits(long value, int bits) throws IOException {
+			while (bits > 0) {
+				int n = Math.min(8 - count, bits);
+				current = (current << n) | ((int)(value >>> (bits - n)) & ((1 << n) - 1));
+				count += n;
+				bits -= n;
+				if (count == 8) {
+					out.write(current);
+					current = 0;
+					count = 0;
+				}
+			}
+		}
+		
+		private void flush() throws IOException {
+			if (count > 0) {
+				out.write(current << (8 - count));
+				current = 0;
+				count = 0;
+			}
+		}
+	}
+	
+	private static class BitInput {
+		private final byte[] data;
+		private int position, current, remaining;
+		
+		private BitInput(byte[] data) {
+			this.data = data;
+		}
+		
+		private long readBits(int bits) throws IOException {
+			long result = 0;
+			while (bits > 0) {
+				if (remaining == 0) {
+					if (position == data.length) {
+						throw new IOException("Unexpected end of column");
+					}
+					current = data[position++] & 0xff;
+					remaining = 8;
+				}
+				int n = Math.min(remaining, bits);
+				result = (result << n) | ((current >>> (remaining - n)) & ((1 << n) - 1));
+				remaining -= n;
+				bits -= n;
+			}
+			return result;
+		}
+		
+		/**
+		 * Byte aligned reads, only valid when no partial byte is pending.
+		 */
+		private long readVarint() throws IOException {
+			long result = 0;
+			for (int shift = 0; ; shift += 7) {
+				long b = readBits(8);
+				result |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+			}
+		}
+		
+		private void readFully(byte[] bytes) throws IOException {
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = (byte)readBits(8);
+			}
+		}
+	}
+	
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+	
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	private static void writeVarint(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int)((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int)value);
+	}
+	
+	private static int readVarint(DataInputStream in) throws IOException {
+		int result = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = in.readUnsignedByte();
+			result |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+	}
+	
+	private static void writeString(OutputStream out, String value) throws IOException {
+		byte[] bytes = (value == null ? "" : value).getBytes(CHARSET);
+		writeVarint(out, bytes.length);
+		out.write(bytes);
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[readVarint(in)];
+		in.readFully(bytes);
+		return new String(bytes, CHARSET);
+	}
+}
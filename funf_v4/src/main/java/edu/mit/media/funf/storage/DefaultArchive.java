@@ -25,11 +25,13 @@ package edu.mit.media.funf.storage;
 
 import java.io.File;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.DESKeySpec;
 import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import android.content.Context;
 import android.util.Log;
@@ -54,12 +56,23 @@ import edu.mit.media.funf.util.StringUtil;
 public class DefaultArchive implements FileArchive {
 
 	private static final String DES_ENCRYPTION = "DES";
+	private static final String AES_ENCRYPTION = "AES";
+	
+	public static final String 
+	ENCRYPTION_DES = "des",
+	ENCRYPTION_AES_GCM = "aes-gcm";
+	
+	public static final String 
+	FORMAT_SQLITE = "sqlite",
+	FORMAT_COLUMNAR = "columnar";
 	
 	private final static byte[] SALT = {
         (byte)0xa6, (byte)0xab, (byte)0x09, (byte)0x93,
         (byte)0xf4, (byte)0xcc, (byte)0xee, (byte)0x10
     };
 	private final static int ITERATION_COUNT = 135; // # of times password is hashed
+	private final static int AES_ITERATION_COUNT = 10000;
+	private final static int AES_KEY_LENGTH = 128;
 	
 	@Configurable
 	protected String name = "default";
@@ -73,6 +86,20 @@ public class DefaultArchive implements FileArchive {
 	@Configurable
 	protected Boolean compress = false;
 	
+	/**
+	 * File format of archived data.  "sqlite" keeps the pipeline database as is,
+	 * "columnar" converts it to the much smaller {@link ColumnarArchive} format.
+	 */
+	@Configurable
+	protected String format = FORMAT_SQLITE;
+	
+	/**
+	 * Cipher used when a key or password is set.  "des" streams the whole file through DES.
+	 * "aes-gcm" compresses (when enabled) and encrypts independent chunks in parallel with AES-GCM.
+	 */
+	@Configurable
+	protected String encryption = ENCRYPTION_DES;
+	
     protected Context context;
 	
 	public DefaultArchive() {
@@ -93,12 +120,20 @@ public class DefaultArchive implements FileArchive {
 	
 	/**
 	 * Set the encryption key using a password.  
-	 * Does not store the password, but instead uses it to derive a DES key to encrypt files.
+	 * Does not store the password, but instead uses it to derive a DES or AES key to encrypt files.
 	 * @param encryptionPassword
 	 */
 	public void setEncryptionPassword(char[] encryptionPassword) { // Uses char[] instead of String to prevent caching
 	  if (encryptionPassword == null || encryptionPassword.length == 0) {
 	    setEncryptionKey(null);
+	  } else if (isAesEncryption()) {
+		PBEKeySpec keySpec = new PBEKeySpec(encryptionPassword, SALT, AES_ITERATION_COUNT, AES_KEY_LENGTH);
+		try {
+			SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+			saveKey(new SecretKeySpec(factory.generateSecret(keySpec).getEncoded(), AES_ENCRYPTION));
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Unable to encrypt data files.", e);
+		}
 	  } else {
 		PBEKeySpec keySpec = new PBEKeySpec(encryptionPassword, SALT, ITERATION_COUNT);
 		try {
@@ -111,9 +146,24 @@ public class DefaultArchive implements FileArchive {
 	  }
 	}
 	
+	/**
+	 * Set the encryption key.  For AES, keys that are not 16, 24 or 32 bytes long are hashed into a 16 byte key.
+	 * @param encryptionKey
+	 */
 	public void setEncryptionKey(byte[] encryptionKey) {
 	  if (encryptionKey == null || encryptionKey.length == 0) {
         saveKey(null);
+      } else if (isAesEncryption()) {
+        if (encryptionKey.length != 16 && encryptionKey.length != 24 && encryptionKey.length != 32) {
+          try {
+            byte[] hashedKey = new byte[16];
+            System.arraycopy(MessageDigest.getInstance("SHA-256").digest(encryptionKey), 0, hashedKey, 0, hashedKey.length);
+            encryptionKey = hashedKey;
+          } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Unable to build key for encryption", e);
+          }
+        }
+        saveKey(new SecretKeySpec(encryptionKey, AES_ENCRYPTION));
       } else {
 		try {
 			DESKeySpec des = new DESKeySpec(encryptionKey);
@@ -138,6 +188,10 @@ public class DefaultArchive implements FileArchive {
 	  return keyCache; 
 	}
 	
+    private boolean isAesEncryption() {
+      return ENCRYPTION_AES_GCM.equals(encryption);
+    }
+	
     private void saveKey(SecretKey secretKey) {
       keyCache = secretKey;
       // Reset delegate archive, to reinitialize key
@@ -164,10 +218,11 @@ public class DefaultArchive implements FileArchive {
 				if (delegateArchive == null) {
 					SecretKey key = getSecretKey();
 					String rootSdCardPath = getPathOnSDCard();
-					FileArchive backupArchive = FileDirectoryArchive.getRollingFileArchive(new File(rootSdCardPath + "backup"));
+					// Uploaded files are discarded once backed up, so they are moved rather than copied
+					FileArchive backupArchive = FileDirectoryArchive.getRollingFileArchive(new File(rootSdCardPath + "backup"), new FileCopier.MovingFileCopier());
 					FileArchive mainArchive = new CompositeFileArchive(
-							getTimestampedDbFileArchive(new File(rootSdCardPath + "archive"), context, key, compress),
-							getTimestampedDbFileArchive(context.getDir("funf_" + getCleanedName() + "_archive", Context.MODE_PRIVATE), context, key, compress)
+							getTimestampedDbFileArchive(new File(rootSdCardPath + "archive"), context, key, compress, format),
+							getTimestampedDbFileArchive(context.getDir("funf_" + getCleanedName() + "_archive", Context.MODE_PRIVATE), context, key, compress, format)
 							);
 					delegateArchive = new BackedUpArchive(mainArchive, backupArchive);
 				}
@@ -176,16 +231,30 @@ public class DefaultArchive implements FileArchive {
 		return delegateArchive;
 	}
 	
-	static FileDirectoryArchive getTimestampedDbFileArchive(File archiveDir, Context context, SecretKey encryptionKey, Boolean compress) {
-		String suffix = ".db";
-		if (compress) suffix += ".gz";
-		if (encryptionKey != null) suffix += ".enc";
+	static FileDirectoryArchive getTimestampedDbFileArchive(File archiveDir, Context context, SecretKey encryptionKey, Boolean compress, String format) {
+		boolean columnar = FORMAT_COLUMNAR.equals(format);
+		boolean chunked = encryptionKey != null && AES_ENCRYPTION.equals(encryptionKey.getAlgorithm());
+		String suffix = columnar ? ".fnfc" : ".db";
+		if (chunked) {
+			suffix += ".fnfe"; // Compression is recorded in each chunk
+		} else {
+			if (compress) suffix += ".gz";
+			if (encryptionKey != null) suffix += ".enc";
+		}
 		NameGenerator nameGenerator = new CompositeNameGenerator(new SystemUniqueTimestampNameGenerator(context), new RequiredSuffixNameGenerator(suffix));
 		FileCopier copier = null;
-		if (compress) {
+		if (chunked) {
+			copier = new FileCopier.ChunkedEncryptedFileCopier(encryptionKey, compress);
+			if (columnar) {
+				copier = new FileCopier.ChainedFileCopier(new FileCopier.ColumnarFileCopier(), copier);
+			}
+		} else if (columnar) {
+			copier = new FileCopier.ColumnarFileCopier(compress, encryptionKey, DES_ENCRYPTION);
+		} else if (compress) {
 			copier = (encryptionKey == null) ? new FileCopier.CompressedFileCopier() : new FileCopier.CompressedEncryptedFileCopier(encryptionKey, DES_ENCRYPTION);
 		} else {
-			copier = (encryptionKey == null) ? new FileCopier.SimpleFileCopier() : new FileCopier.EncryptedFileCopier(encryptionKey, DES_ENCRYPTION);
+			// Pipelines delete the file once it is archived, so an unchanged file is moved rather than copied
+			copier = (encryptionKey == null) ? new FileCopier.MovingFileCopier() : new FileCopier.EncryptedFileCopier(encryptionKey, DES_ENCRYPTION);
 		}
 
 		return new FileDirectoryArchive(archiveDir, nameGenerator, copier, new DirectoryCleaner.KeepAll());
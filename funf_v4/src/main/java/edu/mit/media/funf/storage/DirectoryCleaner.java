@@ -36,6 +36,17 @@ public interface DirectoryCleaner {
 
 	public void clean(File directory);
 	
+	/**
+	 * Cleaner that is told about every file added to or removed from the directory, 
+	 * so that it can track the directory contents without scanning it.
+	 */
+	public interface IndexedDirectoryCleaner extends DirectoryCleaner {
+		
+		public void onAdded(File directory, File file);
+		
+		public void onRemoved(File directory, File file);
+	}
+	
 	
 	public static class KeepAll implements DirectoryCleaner {
 		@Override
@@ -110,7 +121,7 @@ public interface DirectoryCleaner {
 				long bytesToDelete = size(directory) - maxBytesToKeep;
 				if (bytesToDelete > 0) {
 					Arrays.sort(files, new DescendingByLastModifiedComaparator());
-					for (int i=files.length; i>=0; i--) {
+					for (int i=files.length-1; i>=0; i--) {
 						if (bytesToDelete > 0) {
 							bytesToDelete -= size(files[i]);
 							files[i].delete();
@@ -162,6 +173,84 @@ public interface DirectoryCleaner {
 		
 	}
 	
+	/**
+	 * Keeps the directory under a number of bytes, a number of files, and an age, deleting the oldest files first.
+	 * Sizes and modification times are kept in a manifest that is updated as files are added and removed,
+	 * so cleaning does not list, stat or sort the directory.  A limit of 0 means no limit.
+	 */
+	public static class KeepIndexed implements IndexedDirectoryCleaner {
+		private final long maxBytesToKeep, millisToKeep;
+		private final int numToKeep;
+		private DirectoryManifest manifest;
+		
+		public KeepIndexed(long maxBytesToKeep, int numToKeep, long millisToKeep) {
+			this.maxBytesToKeep = maxBytesToKeep;
+			this.numToKeep = numToKeep;
+			this.millisToKeep = millisToKeep;
+		}
+		
+		protected long getMaxBytesToKeep(File directory) {
+			return maxBytesToKeep;
+		}
+		
+		private DirectoryManifest getManifest(File directory) {
+			if (manifest == null || !manifest.getDirectory().equals(directory)) {
+				manifest = DirectoryManifest.load(directory);
+			}
+			return manifest;
+		}
+		
+		@Override
+		public synchronized void clean(File directory) {
+			if (directory.isDirectory()) {
+				DirectoryManifest manifest = getManifest(directory);
+				long maxBytes = getMaxBytesToKeep(directory);
+				long oldestToKeep = (millisToKeep > 0) ? System.currentTimeMillis() - millisToKeep : Long.MIN_VALUE;
+				DirectoryManifest.Entry oldest;
+				while ((oldest = manifest.getOldest()) != null 
+						&& ((maxBytes > 0 && manifest.getTotalBytes() > maxBytes) 
+								|| (numToKeep > 0 && manifest.size() > numToKeep) 
+								|| oldest.modified < oldestToKeep)) {
+					new File(directory, oldest.name).delete();
+					manifest.remove(oldest.name);
+				}
+			}
+		}
+
+		@Override
+		public synchronized void onAdded(File directory, File file) {
+			getManifest(directory).add(file);
+		}
+
+		@Override
+		public synchronized void onRemoved(File directory, File file) {
+			getManifest(directory).remove(file.getName());
+		}
+	}
+	
+	/**
+	 * Indexed version of {@link KeepUnderPercentageOfDiskFree}
+	 */
+	public static class KeepIndexedUnderPercentageOfDiskFree extends KeepIndexed {
+
+		private final double percentageOfDiskFree;
+		private final long minBytesToKeep;
+		
+		public KeepIndexedUnderPercentageOfDiskFree(double percentageOfDiskFree, long minBytesToKeep) {
+			super(0, 0, 0);
+			assert percentageOfDiskFree > 0 && percentageOfDiskFree <= 1;
+			this.percentageOfDiskFree = percentageOfDiskFree;
+			this.minBytesToKeep = minBytesToKeep;
+		}
+		
+		@Override
+		protected long getMaxBytesToKeep(File directory) {
+			StatFs stat = new StatFs(directory.getAbsolutePath());
+			long bytesAvailable = (long)stat.getAvailableBlocks() * (long)stat.getBlockSize();
+			return Math.max((long)(bytesAvailable * percentageOfDiskFree), minBytesToKeep);
+		}
+	}
+	
 	/**
 	 * Applies all of the cleaning strategies to the directory
 	 */
@@ -0,0 +1,226 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import android.util.Log;
+import edu.mit.media.funf.util.IOUtil;
+import edu.mit.media.funf.util.LogUtil;
+
+/**
+ * Persistent index of the size and modification time of each file in a directory, ordered by age.
+ * Changes are appended to a journal stored next to the directory, which is compacted once
+ * it holds many more lines than there are files.
+ */
+class DirectoryManifest {
+
+	private static final char ADDED = '+', REMOVED = '-', SEPARATOR = '\t';
+	private static final int MIN_COMPACT_LINES = 64;
+	
+	static class Entry {
+		final String name;
+		final long size, modified;
+		
+		private Entry(String name, long size, long modified) {
+			this.name = name;
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+	
+	private static final Comparator<Entry> OLDEST_FIRST = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry entry0, Entry entry1) {
+			if (entry0.modified != entry1.modified) {
+				return entry0.modified < entry1.modified ? -1 : 1;
+			}
+			return entry0.name.compareTo(entry1.name);
+		}
+	};
+	
+	private final File directory, journalFile;
+	private final Map<String,Entry> entries = new HashMap<String,Entry>();
+	private final TreeSet<Entry> byAge = new TreeSet<Entry>(OLDEST_FIRST);
+	private long totalBytes;
+	private int journalLines;
+	
+	private DirectoryManifest(File directory) {
+		this.directory = directory;
+		this.journalFile = new File(directory.getParentFile(), "." + directory.getName() + ".manifest");
+	}
+	
+	/**
+	 * Loads the manifest for the directory, and reconciles it with the names currently in the directory.
+	 */
+	static DirectoryManifest load(File directory) {
+		DirectoryManifest manifest = new DirectoryManifest(directory);
+		manifest.readJournal();
+		String[] names = directory.list();
+		Set<String> existing = new HashSet<String>();
+		if (names != null) {
+			for (String name : names) {
+				existing.add(name);
+				if (!manifest.entries.containsKey(name)) {
+					File file = new File(directory, name);
+					manifest.put(name, file.length(), file.lastModified());
+				}
+			}
+		}
+		for (String name : new HashSet<String>(manifest.entries.keySet())) {
+			if (!existing.contains(name)) {
+				manifest.delete(name);
+			}
+		}
+		manifest.compact();
+		return manifest;
+	}
+	
+	File getDirectory() {
+		return directory;
+	}
+	
+	int size() {
+		return entries.size();
+	}
+	
+	long getTotalBytes() {
+		return totalBytes;
+	}
+	
+	Entry getOldest() {
+		return byAge.isEmpty() ? null : byAge.first();
+	}
+	
+	void add(File file) {
+		put(file.getName(), file.length(), file.lastModified());
+		append(ADDED + file.getName() + SEPARATOR + file.length() + SEPARATOR + file.lastModified());
+	}
+	
+	void remove(String name) {
+		if (delete(name)) {
+			append(REMOVED + name);
+		}
+	}
+	
+	private void put(String name, long size, long modified) {
+		delete(name);
+		Entry entry = new Entry(name, size, modified);
+		entries.put(name, entry);
+		byAge.add(entry);
+		totalBytes += size;
+	}
+	
+	private boolean delete(String name) {
+		Entry entry = entries.remove(name);
+		if (entry == null) {
+			return false;
+		}
+		byAge.remove(entry);
+		totalBytes -= entry.size;
+		return true;
+	}
+	
+	private void readJournal() {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(journalFile));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() > 1 && line.charAt(0) == ADDED) {
+					String[] parts = line.substring(1).split(String.valueOf(SEPARATOR));
+					if (parts.length == 3) {
+						try {
+							put(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+						} catch (NumberFormatException e) {
+							// Partially written line, file will be restored when reconciling with the directory
+						}
+					}
+				} else if (line.length() > 1 && line.charAt(0) == REMOVED) {
+					delete(line.substring(1));
+				}
+			}
+		} catch (FileNotFoundException e) {
+			// No manifest yet, built from the directory
+		} catch (IOException e) {
+			Log.w(LogUtil.TAG, "Unable to read manifest " + journalFile.getAbsolutePath(), e);
+		} finally {
+			IOUtil.close(reader);
+		}
+	}
+	
+	private void append(String line) {
+		if (journalLines > Math.max(MIN_COMPACT_LINES, 2 * entries.size())) {
+			compact();
+			return; // Compacted journal already includes this change
+		}
+		BufferedWriter writer = null;
+		try {
+			writer = new BufferedWriter(new FileWriter(journalFile, true));
+			writer.write(line);
+			writer.write('\n');
+			journalLines++;
+		} catch (IOException e) {
+			Log.w(LogUtil.TAG, "Unable to update manifest " + journalFile.getAbsolutePath(), e);
+		} finally {
+			IOUtil.close(writer);
+		}
+	}
+	
+	/**
+	 * Rewrites the journal with one line per file.
+	 */
+	private void compact() {
+		File tempFile = new File(journalFile.getPath() + ".tmp");
+		BufferedWriter writer = null;
+		try {
+			writer = new BufferedWriter(new FileWriter(tempFile));
+			for (Entry entry : byAge) {
+				writer.write(ADDED + entry.name + SEPARATOR + entry.size + SEPARATOR + entry.modified);
+				writer.write('\n');
+			}
+			writer.close();
+			writer = null;
+			if (tempFile.renameTo(journalFile)) {
+				journalLines = entries.size();
+			}
+		} catch (IOException e) {
+			Log.w(LogUtil.TAG, "Unable to write manifest " + journalFile.getAbsolutePath(), e);
+		} finally {
+			IOUtil.close(writer);
+		}
+	}
+}
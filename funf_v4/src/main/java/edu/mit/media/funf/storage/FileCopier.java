@@ -25,8 +25,12 @@ package edu.mit.media.funf.storage;
 
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -35,13 +39,29 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Constructor;
 import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherOutputStream;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
 
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 import edu.mit.media.funf.util.IOUtil;
 import edu.mit.media.funf.util.LogUtil;
@@ -99,6 +119,47 @@ public interface FileCopier {
 		}
 	}
 	
+	/**
+	 * Moves the file instead of copying it, so the source no longer exists after a successful copy.
+	 * On the same filesystem this is an atomic rename, and no data is copied.  Across filesystems 
+	 * the fallback copier streams the file, and the source is deleted once the copy succeeds.
+	 * 
+	 * Only use where the caller discards the source after it is copied.
+	 */
+	public static class MovingFileCopier implements FileCopier {
+		
+		private final FileCopier fallbackCopier;
+		
+		public MovingFileCopier() {
+			this(new SimpleFileCopier());
+		}
+		
+		public MovingFileCopier(FileCopier fallbackCopier) {
+			this.fallbackCopier = fallbackCopier;
+		}
+		
+		@Override
+		public boolean copy(File sourceFile, File destinationFile) {
+			if (!sourceFile.exists()) {
+				Log.e(LogUtil.TAG, "File does not exist " + sourceFile.getAbsolutePath());
+				return false;
+			}
+			destinationFile.getParentFile().mkdirs();
+			if (sourceFile.renameTo(destinationFile)) {
+				return true;
+			}
+			// Most likely on different filesystems
+			if (!fallbackCopier.copy(sourceFile, destinationFile)) {
+				destinationFile.delete(); // Remove any partial copy, the source is kept
+				return false;
+			}
+			if (!sourceFile.delete()) {
+				Log.w(LogUtil.TAG, "Unable to remove moved file " + sourceFile.getAbsolutePath());
+			}
+			return true;
+		}
+	}
+	
 	public static class EncryptedFileCopier implements FileCopier {
 		public static final String TAG = EncryptedFileCopier.class.getName();
 		private final SecretKey key;
@@ -276,4 +337,421 @@ public interface FileCopier {
 		}
 	}
 
+	/**
+	 * Converts a data database into the {@link ColumnarArchive} format, 
+	 * optionally compressing and encrypting the result.
+	 */
+	public static class ColumnarFileCopier implements FileCopier {
+		public static final String TAG = ColumnarFileCopier.class.getName();
+		private final boolean compress;
+		private final SecretKey key;
+		private final String transformation;
+
+		public ColumnarFileCopier() {
+			this(false, null, null);
+		}
+		
+		public ColumnarFileCopier(boolean compress, SecretKey key, String transformation) {
+			this.compress = compress;
+			this.key = key;
+			this.transformation = transformation;
+		}
+
+		private Cipher cipher; // Cache
+		protected Cipher getCipher() {
+			if (cipher == null) {
+				synchronized (this) {
+					if (cipher == null) {
+						try {
+							cipher = Cipher.getInstance(transformation);
+							cipher.init(Cipher.ENCRYPT_MODE, key);
+						} catch (Exception e) {
+							Log.e(TAG, "Error creating cipher", e);
+						}
+					}
+				}
+			}
+			return cipher;
+		}
+
+		@Override
+		public boolean copy(File sourceFile, File destinationFile) {
+			Log.i(TAG, "converting + copying " + sourceFile.getPath() + " to " + destinationFile.getPath());
+			
+			Cipher ecipher = null;
+			if (key != null) {
+				ecipher = getCipher();
+				if (ecipher == null) {
+					return false;
+				}
+			}
+
+			SQLiteDatabase db = null;
+			Cursor cursor = null;
+			OutputStream out = null;
+			ColumnarArchive.Writer writer = null;
+			try {
+				db = SQLiteDatabase.openDatabase(sourceFile.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+				String databaseName = null, installationId = null, uuid = null;
+				double created = 0;
+				cursor = db.query(NameValueDatabaseHelper.FILE_INFO_TABLE.name, 
+						new String[] {NameValueDatabaseHelper.COLUMN_DATABASE_NAME, NameValueDatabaseHelper.COLUMN_INSTALLATION, 
+						NameValueDatabaseHelper.COLUMN_UUID, NameValueDatabaseHelper.COLUMN_CREATED}, 
+						null, null, null, null, null);
+				if (cursor.moveToFirst()) {
+					databaseName = cursor.getString(0);
+					installationId = cursor.getString(1);
+					uuid = cursor.getString(2);
+					created = cursor.getDouble(3);
+				}
+				cursor.close();
+				
+				out = new FileOutputStream(destinationFile);
+				OutputStream stream = out;
+				if (ecipher != null) {
+					stream = new CipherOutputStream(stream, ecipher);
+				}
+				if (compress) {
+					stream = new GZIPOutputStream(stream);
+				}
+				writer = new ColumnarArchive.Writer(new BufferedOutputStream(stream, 64 * 1024), databaseName, installationId, uuid, created);
+				
+				// Order by name so each probe forms as few groups as possible
+				cursor = db.query(NameValueDatabaseHelper.DATA_TABLE.name, 
+						new String[] {NameValueDatabaseHelper.COLUMN_NAME, NameValueDatabaseHelper.COLUMN_TIMESTAMP, NameValueDatabaseHelper.COLUMN_VALUE}, 
+						null, null, null, null, NameValueDatabaseHelper.COLUMN_NAME + ", _id");
+				while (cursor.moveToNext()) {
+					writer.add(cursor.getString(0), cursor.getDouble(1), cursor.getString(2));
+				}
+				writer.close(); // Closes the whole stream chain
+				writer = null;
+			} catch (FileNotFoundException e) {
+				Log.e(TAG, "File not found", e);
+				return false;
+			} catch (IOException e) {
+				Log.e(TAG, "IOException", e);
+				return false;
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Unable to read database " + sourceFile.getPath(), e);
+				return false;
+			} finally {
+				IOUtil.close(writer);
+				IOUtil.close(out);
+				if (cursor != null) {
+					cursor.close();
+				}
+				if (db != null) {
+					db.close();
+				}
+			}
+
+			Log.i(TAG, "done copy");
+			return true;
+		}
+	}
+
+	/**
+	 * Splits the file into chunks that are compressed and AES-GCM encrypted in parallel.
+	 * 
+	 * The output is a header followed by one frame per chunk, so it can be decrypted one chunk at a time:
+	 * <pre>
+	 * header: int magic, byte version, int chunk size, 8 byte nonce prefix
+	 * frame:  int length, ciphertext of [byte flags][chunk data] including the GCM tag
+	 * </pre>
+	 * The nonce of each chunk is the file's random prefix followed by the chunk index,
+	 * so frames cannot be reordered, and the flags mark the last chunk, so the file cannot be truncated.
+	 */
+	public static class ChunkedEncryptedFileCopier implements FileCopier {
+		public static final String TAG = ChunkedEncryptedFileCopier.class.getName();
+		public static final int MAGIC = 0x46554e45; // "FUNE"
+		public static final byte VERSION = 1;
+		public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+		public static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+		private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+		private static final int NONCE_PREFIX_LENGTH = 8;
+		private static final int TAG_LENGTH = 128;
+		private static final byte FLAG_LAST = 1, FLAG_COMPRESSED = 2;
+		
+		private static int getThreadCount() {
+			return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+		}
+		
+		private final SecretKey key;
+		private final boolean compress;
+		private final int chunkSize;
+		private final SecureRandom random = new SecureRandom();
+
+		public ChunkedEncryptedFileCopier(SecretKey key, boolean compress) {
+			this(key, compress, DEFAULT_CHUNK_SIZE);
+		}
+		
+		public ChunkedEncryptedFileCopier(SecretKey key, boolean compress, int chunkSize) {
+			if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+				throw new IllegalArgumentException("Chunk size must be between 1 and " + MAX_CHUNK_SIZE);
+			}
+			this.key = key;
+			this.compress = compress;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		public boolean copy(File sourceFile, File destinationFile) {
+			Log.i(TAG, "chunking + encrypting + copying " + sourceFile.getPath() + " to " + destinationFile.getPath());
+			
+			DataInputStream in = null;
+			DataOutputStream out = null;
+			ExecutorService pool = Executors.newFixedThreadPool(getThreadCount()); // Only lives for this copy
+			try {
+				byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+				random.nextBytes(noncePrefix);
+				in = new DataInputStream(new FileInputStream(sourceFile));
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(destinationFile), 64 * 1024));
+				out.writeInt(MAGIC);
+				out.writeByte(VERSION);
+				out.writeInt(chunkSize);
+				out.write(noncePrefix);
+				
+				long chunkCount = Math.max(1, (sourceFile.length() + chunkSize - 1) / chunkSize);
+				int maxInFlight = getThreadCount() * 2;
+				LinkedList<Future<byte[]>> inFlight = new LinkedList<Future<byte[]>>();
+				for (int index = 0; index < chunkCount; index++) {
+					byte[] chunk = new byte[(int)Math.min(chunkSize, sourceFile.length() - (long)index * chunkSize)];
+					in.readFully(chunk);
+					inFlight.add(pool.submit(new ChunkEncryption(chunk, noncePrefix, index, index == chunkCount - 1)));
+					if (inFlight.size() >= maxInFlight) {
+						writeFrame(out, inFlight.removeFirst().get());
+					}
+				}
+				while (!inFlight.isEmpty()) {
+					writeFrame(out, inFlight.removeFirst().get());
+				}
+				out.flush();
+			} catch (FileNotFoundException e) {
+				Log.e(TAG, "File not found", e);
+				return false;
+			} catch (IOException e) {
+				Log.e(TAG, "IOException", e);
+				return false;
+			} catch (ExecutionException e) {
+				Log.e(TAG, "Error encrypting chunk", e.getCause());
+				return false;
+			} catch (InterruptedException e) {
+				Log.e(TAG, "Interrupted", e);
+				return false;
+			} finally {
+				pool.shutdownNow();
+				IOUtil.close(in);
+				IOUtil.close(out);
+			}
+			Log.i(TAG, "done copy");
+			return true;
+		}
+		
+		private static void writeFrame(DataOutputStream out, byte[] frame) throws IOException {
+			out.writeInt(frame.length);
+			out.write(frame);
+		}
+		
+		private class ChunkEncryption implements Callable<byte[]> {
+			private final byte[] chunk, noncePrefix;
+			private final int index;
+			private final boolean last;
+			
+			private ChunkEncryption(byte[] chunk, byte[] noncePrefix, int index, boolean last) {
+				this.chunk = chunk;
+				this.noncePrefix = noncePrefix;
+				this.index = index;
+				this.last = last;
+			}
+			
+			@Override
+			public byte[] call() throws GeneralSecurityException {
+				byte[] data = compress ? deflate(chunk) : chunk;
+				byte[] plaintext = new byte[data.length + 1];
+				plaintext[0] = (byte)((last ? FLAG_LAST : 0) | (compress ? FLAG_COMPRESSED : 0));
+				System.arraycopy(data, 0, plaintext, 1, data.length);
+				Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+				cipher.init(Cipher.ENCRYPT_MODE, key, getParameterSpec(getNonce(noncePrefix, index)));
+				byte[] ciphertext = cipher.doFinal(plaintext);
+				checkTagLength(ciphertext.length, plaintext.length);
+				return ciphertext;
+			}
+		}
+		
+		/**
+		 * Refuses providers that picked a tag other than 128 bits, which can happen when GCMParameterSpec 
+		 * is not available and the nonce is passed as a plain IV.
+		 */
+		private static void checkTagLength(int ciphertextLength, int plaintextLength) throws GeneralSecurityException {
+			if (ciphertextLength - plaintextLength != TAG_LENGTH / 8) {
+				throw new GeneralSecurityException("GCM tag is " + (ciphertextLength - plaintextLength) * 8 
+						+ " bits, expected " + TAG_LENGTH);
+			}
+		}
+		
+		/**
+		 * @return the largest frame a chunk can produce, allowing for deflate expanding incompressible data
+		 */
+		private static long getMaxFrameLength(int chunkSize) {
+			return (long)chunkSize + (chunkSize >> 12) + (chunkSize >> 14) + 64 + 1 + TAG_LENGTH / 8;
+		}
+		
+		private static Constructor<?> gcmParameterSpec; // Cache
+		private static boolean gcmParameterSpecLoaded = false;
+		
+		/**
+		 * GCMParameterSpec only exists from API 19, older providers take the nonce as an IV and should use 
+		 * a 128 bit tag, which {@link #checkTagLength(int, int)} verifies.
+		 */
+		private static synchronized AlgorithmParameterSpec getParameterSpec(byte[] nonce) {
+			if (!gcmParameterSpecLoaded) {
+				gcmParameterSpecLoaded = true;
+				try {
+					gcmParameterSpec = Class.forName("javax.crypto.spec.GCMParameterSpec").getConstructor(int.class, byte[].class);
+				} catch (Exception e) {
+					gcmParameterSpec = null;
+				}
+			}
+			if (gcmParameterSpec != null) {
+				try {
+					return (AlgorithmParameterSpec)gcmParameterSpec.newInstance(TAG_LENGTH, nonce);
+				} catch (Exception e) {
+					Log.e(TAG, "Unable to create GCM parameters", e);
+				}
+			}
+			return new IvParameterSpec(nonce);
+		}
+		
+		private static byte[] getNonce(byte[] noncePrefix, int index) {
+			byte[] nonce = new byte[NONCE_PREFIX_LENGTH + 4];
+			System.arraycopy(noncePrefix, 0, nonce, 0, NONCE_PREFIX_LENGTH);
+			nonce[NONCE_PREFIX_LENGTH] = (byte)(index >>> 24);
+			nonce[NONCE_PREFIX_LENGTH + 1] = (byte)(index >>> 16);
+			nonce[NONCE_PREFIX_LENGTH + 2] = (byte)(index >>> 8);
+			nonce[NONCE_PREFIX_LENGTH + 3] = (byte)index;
+			return nonce;
+		}
+		
+		private static byte[] deflate(byte[] data) {
+			Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			try {
+				deflater.setInput(data);
+				deflater.finish();
+				ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+				byte[] buffer = new byte[64 * 1024];
+				while (!deflater.finished()) {
+					out.write(buffer, 0, deflater.deflate(buffer));
+				}
+				return out.toByteArray();
+			} finally {
+				deflater.end();
+			}
+		}
+		
+		/**
+		 * Decrypts a file written by this copier, verifying every chunk.
+		 * @return false if the file is corrupt, truncated or was encrypted with a different key
+		 */
+		public static boolean decrypt(File sourceFile, File destinationFile, SecretKey key) {
+			DataInputStream in = null;
+			OutputStream out = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(sourceFile), 64 * 1024));
+				if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+					Log.e(TAG, "Not a chunked encrypted file " + sourceFile.getPath());
+					return false;
+				}
+				int chunkSize = in.readInt();
+				if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+					Log.e(TAG, "Invalid chunk size " + chunkSize + " in " + sourceFile.getPath());
+					return false;
+				}
+				long maxFrameLength = getMaxFrameLength(chunkSize);
+				byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+				in.readFully(noncePrefix);
+				out = new BufferedOutputStream(new FileOutputStream(destinationFile), 64 * 1024);
+				Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+				for (int index = 0; ; index++) {
+					int frameLength = in.readInt();
+					if (frameLength < 1 + TAG_LENGTH / 8 || frameLength > maxFrameLength) {
+						Log.e(TAG, "Invalid frame length " + frameLength + " in " + sourceFile.getPath());
+						return false;
+					}
+					byte[] frame = new byte[frameLength];
+					in.readFully(frame);
+					cipher.init(Cipher.DECRYPT_MODE, key, getParameterSpec(getNonce(noncePrefix, index)));
+					byte[] plaintext = cipher.doFinal(frame);
+					checkTagLength(frame.length, plaintext.length);
+					if ((plaintext[0] & FLAG_COMPRESSED) != 0) {
+						inflate(plaintext, out, chunkSize);
+					} else {
+						out.write(plaintext, 1, plaintext.length - 1);
+					}
+					if ((plaintext[0] & FLAG_LAST) != 0) {
+						return true;
+					}
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Error decrypting " + sourceFile.getPath(), e);
+				return false;
+			} catch (GeneralSecurityException e) {
+				Log.e(TAG, "Chunk failed verification " + sourceFile.getPath(), e);
+				return false;
+			} catch (DataFormatException e) {
+				Log.e(TAG, "Invalid compressed chunk " + sourceFile.getPath(), e);
+				return false;
+			} finally {
+				IOUtil.close(in);
+				IOUtil.close(out);
+			}
+		}
+		
+		private static void inflate(byte[] plaintext, OutputStream out, int chunkSize) throws IOException, DataFormatException {
+			Inflater inflater = new Inflater(true);
+			try {
+				// Raw deflate needs an extra byte past the end of the input
+				byte[] input = new byte[plaintext.length];
+				System.arraycopy(plaintext, 1, input, 0, plaintext.length - 1);
+				inflater.setInput(input);
+				byte[] buffer = new byte[64 * 1024];
+				long total = 0;
+				while (!inflater.finished()) {
+					int length = inflater.inflate(buffer);
+					if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						throw new DataFormatException("Truncated chunk");
+					}
+					total += length;
+					if (total > chunkSize) {
+						throw new DataFormatException("Chunk inflates past the chunk size");
+					}
+					out.write(buffer, 0, length);
+				}
+			} finally {
+				inflater.end();
+			}
+		}
+	}
+	
+	/**
+	 * Runs the second copier on the output of the first, through a temporary file next to the destination.
+	 */
+	public static class ChainedFileCopier implements FileCopier {
+		private final FileCopier first, second;
+		
+		public ChainedFileCopier(FileCopier first, FileCopier second) {
+			this.first = first;
+			this.second = second;
+		}
+		
+		@Override
+		public boolean copy(File sourceFile, File destinationFile) {
+			File intermediateFile = new File(destinationFile.getPath() + ".tmp");
+			try {
+				return first.copy(sourceFile, intermediateFile) && second.copy(intermediateFile, destinationFile);
+			} finally {
+				intermediateFile.delete();
+			}
+		}
+	}
+
 }
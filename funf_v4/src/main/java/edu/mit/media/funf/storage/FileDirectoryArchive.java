@@ -24,7 +24,6 @@
 package edu.mit.media.funf.storage;
 
 import java.io.File;
-import java.io.FilenameFilter;
 
 import edu.mit.media.funf.util.NameGenerator;
 
@@ -54,7 +53,11 @@ public class FileDirectoryArchive implements FileArchive {
 	}
 	
 	public static FileDirectoryArchive getRollingFileArchive(File archiveDir) {
-		return new FileDirectoryArchive(archiveDir, new NameGenerator.IdentityNameGenerator(), new FileCopier.SimpleFileCopier(), new DirectoryCleaner.KeepUnderPercentageOfDiskFree(0.5, 10000000));
+		return getRollingFileArchive(archiveDir, new FileCopier.SimpleFileCopier());
+	}
+	
+	public static FileDirectoryArchive getRollingFileArchive(File archiveDir, FileCopier fileCopier) {
+		return new FileDirectoryArchive(archiveDir, new NameGenerator.IdentityNameGenerator(), fileCopier, new DirectoryCleaner.KeepIndexedUnderPercentageOfDiskFree(0.5, 10000000));
 	}
 	
 	
@@ -63,6 +66,9 @@ public class FileDirectoryArchive implements FileArchive {
 		this.archiveDir.mkdirs();
 		File archiveFile = new File(archiveDir, nameGenerator.generateName(item.getName()));
 		boolean result = fileCopier.copy(item, archiveFile);
+		if (result && cleaner instanceof DirectoryCleaner.IndexedDirectoryCleaner) {
+			((DirectoryCleaner.IndexedDirectoryCleaner)cleaner).onAdded(archiveDir, archiveFile);
+		}
 		cleaner.clean(archiveDir);
 		return result;
 	}
@@ -76,21 +82,17 @@ public class FileDirectoryArchive implements FileArchive {
 
 	@Override
 	public boolean remove(File item) {
-		if(contains(item)) {
-			return item.delete();
+		if(contains(item) && item.delete()) {
+			if (cleaner instanceof DirectoryCleaner.IndexedDirectoryCleaner) {
+				((DirectoryCleaner.IndexedDirectoryCleaner)cleaner).onRemoved(archiveDir, item);
+			}
+			return true;
 		}
 		return false;
 	}
 	
 	public boolean contains(final File item) {
-		final String itemFilename = item.getName();
-		String[] files = archiveDir.list(new FilenameFilter() {
-			@Override
-			public boolean accept(File dir, String filename) {
-				return itemFilename.equals(filename);			
-			}
-		});
-		return files != null && files.length > 0;
+		return new File(archiveDir, item.getName()).exists();
 	}
 	
 
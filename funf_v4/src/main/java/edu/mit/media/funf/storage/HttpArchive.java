@@ -45,12 +45,22 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 
 import edu.mit.media.funf.FunfManager;
 import edu.mit.media.funf.Schedule.DefaultSchedule;
@@ -65,12 +75,25 @@ import edu.mit.media.funf.util.LogUtil;
 @DefaultSchedule(interval=21600) // 6h
 public class HttpArchive implements RemoteFileArchive {
 	
+	private static final int MAX_CONNECTIONS = 8, MAX_CONNECTIONS_PER_ROUTE = 4;
+	private static final int CONNECTION_TIMEOUT_MILLIS = 30000, SOCKET_TIMEOUT_MILLIS = 60000;
+	
     @Configurable
 	private String url;
     
     @Configurable
     private boolean wifiOnly = false;
     
+    /**
+     * Upload in chunks that are acknowledged by the server, so interrupted uploads resume 
+     * where they left off.  Requires a server implementing the {@link ResumableHttpUpload} protocol.
+     */
+    @Configurable
+    private boolean resumable = false;
+    
+    @Configurable
+    private int chunkSize = 256 * 1024;
+    
     private Context context;
     
 	@SuppressWarnings("unused")
@@ -121,7 +144,40 @@ public class HttpArchive implements RemoteFileArchive {
 	
 	public boolean add(File file) {
 		String currentUrl = IOUtil.formatServerUrl(url, file.getName());
-		return IOUtil.isValidUrl(currentUrl) ? uploadFile(file, currentUrl) : false;
+		if (!IOUtil.isValidUrl(currentUrl)) {
+			return false;
+		}
+		return resumable ? new ResumableHttpUpload(context, getHttpClient(), chunkSize).upload(file, currentUrl) 
+				: uploadFile(file, currentUrl);
+	}
+	
+	/**
+	 * Forgets any partial upload of the file, for files that are given up on.
+	 */
+	public void discard(File file) {
+		if (resumable) {
+			new ResumableHttpUpload(context, getHttpClient(), chunkSize).discard(file);
+		}
+	}
+	
+	private static HttpClient httpClient; // Cache
+	
+	/**
+	 * @return the client shared by all uploads, which keeps connections alive and pools them across threads
+	 */
+	public static synchronized HttpClient getHttpClient() {
+		if (httpClient == null) {
+			HttpParams params = new BasicHttpParams();
+			ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+			ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+			HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT_MILLIS);
+			HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT_MILLIS);
+			SchemeRegistry schemeRegistry = new SchemeRegistry();
+			schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+			schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+			httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemeRegistry), params);
+		}
+		return httpClient;
 	}
 	
 	/**
@@ -133,7 +189,7 @@ public class HttpArchive implements RemoteFileArchive {
 	public static boolean uploadFile(File file,String uploadurl) {
 		if (uploadurl == null) return false;
 		if (uploadurl.equals("")) return false;
-		HttpClient httpClient = new DefaultHttpClient() ;
+		HttpClient httpClient = getHttpClient();
 		HttpPost httpPost;
 		try {
 			httpPost = new HttpPost(new URI(uploadurl));
@@ -155,17 +211,27 @@ public class HttpArchive implements RemoteFileArchive {
 			return false;
 		} catch (IOException e) {
 			e.printStackTrace();
+			httpPost.abort(); // Release the connection
 			return false;
 		}
 		if (response == null) {
 			return false;
 		}
-		if (response.getStatusLine().getStatusCode() == 200) {
+		int statusCode = response.getStatusLine().getStatusCode();
+		try {
+			HttpEntity responseEntity = response.getEntity();
+			if (responseEntity != null) {
+				responseEntity.consumeContent(); // Return the connection to the pool for reuse
+			}
+		} catch (IOException e) {
+			httpPost.abort();
+		}
+		if (statusCode == 200) {
 			return true;
 		}
-		if (response.getStatusLine().getStatusCode() == 401) {
+		if (statusCode == 401) {
 			//Auth error
-			Log.i(LogUtil.TAG, "Auth Error "+response.getStatusLine().getStatusCode());
+			Log.i(LogUtil.TAG, "Auth Error "+statusCode);
 			//TODO propagate auth error up, in OAuth2 context this will require re-auth from user
 			FunfManager.funfManager.authError();
 		}
@@ -0,0 +1,242 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import edu.mit.media.funf.FunfManager;
+import edu.mit.media.funf.util.IOUtil;
+import edu.mit.media.funf.util.LogUtil;
+
+/**
+ * Uploads a file in fixed size chunks, so that an interrupted upload resumes 
+ * from the last chunk the server acknowledged instead of sending the whole file again.
+ * 
+ * The upload id is the SHA-256 of the file contents, and every chunk is sent with its own SHA-256.
+ * Parameters are appended to the upload url:
+ * <ul>
+ * <li><code>POST url?upload=ID&amp;offset=N&amp;chunk=SHA</code> with the chunk bytes as the body.
+ * The server stores the chunk if its hash matches and N is the number of bytes it already has,
+ * and responds 200 with the number of bytes it now has as plain text.
+ * Otherwise it responds 409 with the number of bytes it has, and the client resumes from there.</li>
+ * <li><code>POST url?upload=ID&amp;complete=SHA&amp;length=N</code> once all bytes are acknowledged.
+ * The server responds 200 if the assembled file matches, or 409 and discards the upload if it does not.</li>
+ * </ul>
+ * Acknowledged offsets are kept in shared preferences, so uploads also resume after a restart.
+ * An entry is removed when its upload completes or is discarded, and entries for files that were 
+ * deleted or rewritten are pruned at the start of each upload.
+ */
+public class ResumableHttpUpload {
+
+	public static final String PREFS_NAME = "edu.mit.media.funf.ResumableUploads";
+	private static final String HASH_ALGORITHM = "SHA-256";
+	private static final String PATH_SUFFIX = ".path"; // Entry for the file an upload id was computed from
+	private static final int MAX_STALLED_REQUESTS = 3;
+	private static final int SUCCESS = 200, UNAUTHORIZED = 401, CONFLICT = 409;
+	
+	private final HttpClient httpClient;
+	private final SharedPreferences state;
+	private final int chunkSize;
+	
+	public ResumableHttpUpload(Context context, HttpClient httpClient, int chunkSize) {
+		this.httpClient = httpClient;
+		this.state = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		this.chunkSize = chunkSize;
+	}
+	
+	/**
+	 * @return true once the server has verified the complete file
+	 */
+	public boolean upload(File file, String uploadUrl) {
+		String uploadId = hash(file);
+		if (uploadId == null) {
+			return false;
+		}
+		prune(file, uploadId);
+		long length = file.length();
+		long offset = state.getLong(uploadId, 0);
+		if (offset > 0) {
+			Log.i(LogUtil.TAG, "Resuming upload of " + file.getName() + " at " + offset + " of " + length);
+		}
+		RandomAccessFile in = null;
+		try {
+			in = new RandomAccessFile(file, "r");
+			MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+			int stalled = 0;
+			while (offset < length) {
+				byte[] chunk = new byte[(int)Math.min(chunkSize, length - offset)];
+				in.seek(offset);
+				in.readFully(chunk);
+				String chunkHash = toHex(digest.digest(chunk));
+				String chunkUrl = withParameters(uploadUrl, "upload=" + uploadId + "&offset=" + offset + "&chunk=" + chunkHash);
+				long acknowledged = post(chunkUrl, new ByteArrayEntity(chunk));
+				if (acknowledged < 0 || acknowledged > length) {
+					return false; // Keep acknowledged offset for the next attempt
+				}
+				stalled = (acknowledged > offset) ? 0 : stalled + 1;
+				if (stalled >= MAX_STALLED_REQUESTS) {
+					Log.e(LogUtil.TAG, "Upload of " + file.getName() + " is not progressing at " + offset);
+					return false;
+				}
+				offset = acknowledged;
+				state.edit().putLong(uploadId, offset).putString(uploadId + PATH_SUFFIX, file.getAbsolutePath()).commit();
+			}
+			String completeUrl = withParameters(uploadUrl, "upload=" + uploadId + "&complete=" + uploadId + "&length=" + length);
+			long verified = post(completeUrl, null);
+			if (verified == length) {
+				clear(uploadId);
+				return true;
+			} else if (verified != -1) {
+				Log.e(LogUtil.TAG, "Server failed to verify " + file.getName() + ", upload will restart");
+				clear(uploadId);
+			}
+			return false;
+		} catch (IOException e) {
+			Log.e(LogUtil.TAG, "Error uploading " + file.getName(), e);
+			return false;
+		} catch (NoSuchAlgorithmException e) {
+			Log.e(LogUtil.TAG, HASH_ALGORITHM + " not available", e);
+			return false;
+		} finally {
+			IOUtil.close(in);
+		}
+	}
+	
+	/**
+	 * Forgets the acknowledged offset of a file that will not be uploaded again, or should start over.
+	 */
+	public void discard(File file) {
+		String path = file.getAbsolutePath();
+		for (Map.Entry<String, ?> entry : state.getAll().entrySet()) {
+			if (entry.getKey().endsWith(PATH_SUFFIX) && path.equals(entry.getValue())) {
+				clear(entry.getKey().substring(0, entry.getKey().length() - PATH_SUFFIX.length()));
+			}
+		}
+	}
+	
+	/**
+	 * Removes entries for files that no longer exist, or whose contents changed since they were uploaded.
+	 */
+	private void prune(File file, String uploadId) {
+		String path = file.getAbsolutePath();
+		for (Map.Entry<String, ?> entry : state.getAll().entrySet()) {
+			String key = entry.getKey();
+			if (key.endsWith(PATH_SUFFIX)) {
+				String entryId = key.substring(0, key.length() - PATH_SUFFIX.length());
+				Object entryPath = entry.getValue();
+				if (!(entryPath instanceof String) || !new File((String)entryPath).exists() 
+						|| (path.equals(entryPath) && !uploadId.equals(entryId))) {
+					clear(entryId);
+				}
+			}
+		}
+	}
+	
+	private void clear(String uploadId) {
+		state.edit().remove(uploadId).remove(uploadId + PATH_SUFFIX).commit();
+	}
+	
+	/**
+	 * @return the byte count in a 200 or 409 response, -2 for a 409 response without a count,
+	 * or -1 if the request did not complete
+	 */
+	private long post(String url, HttpEntity entity) {
+		HttpPost httpPost = new HttpPost(url);
+		if (entity != null) {
+			httpPost.setEntity(entity);
+		}
+		try {
+			HttpResponse response = httpClient.execute(httpPost);
+			int statusCode = response.getStatusLine().getStatusCode();
+			String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity()).trim();
+			if (statusCode == SUCCESS || statusCode == CONFLICT) {
+				try {
+					return Long.parseLong(body);
+				} catch (NumberFormatException e) {
+					return statusCode == CONFLICT ? -2 : -1;
+				}
+			}
+			if (statusCode == UNAUTHORIZED) {
+				Log.i(LogUtil.TAG, "Auth Error " + statusCode);
+				FunfManager.funfManager.authError();
+			}
+			return -1;
+		} catch (IOException e) {
+			httpPost.abort();
+			Log.e(LogUtil.TAG, "Upload request failed: " + e.getMessage());
+			return -1;
+		}
+	}
+	
+	private static String withParameters(String url, String parameters) {
+		return url + (url.indexOf('?') < 0 ? "?" : "&") + parameters;
+	}
+	
+	private static String hash(File file) {
+		InputStream in = null;
+		try {
+			MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+			in = new FileInputStream(file);
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, read);
+			}
+			return toHex(digest.digest());
+		} catch (IOException e) {
+			Log.e(LogUtil.TAG, "Unable to read " + file.getAbsolutePath(), e);
+			return null;
+		} catch (NoSuchAlgorithmException e) {
+			Log.e(LogUtil.TAG, HASH_ALGORITHM + " not available", e);
+			return null;
+		} finally {
+			IOUtil.close(in);
+		}
+	}
+	
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
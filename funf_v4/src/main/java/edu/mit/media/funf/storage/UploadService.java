@@ -25,19 +25,27 @@ import java.io.File;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
-import android.os.PowerManager.WakeLock;
+import android.os.Message;
 import android.util.Log;
 import edu.mit.media.funf.config.Configurable;
 import edu.mit.media.funf.util.LockUtil;
 import edu.mit.media.funf.util.LogUtil;
+import edu.mit.media.funf.util.Metrics;
+import edu.mit.media.funf.util.SerialHandler;
 
+/**
+ * Uploads archived files to remote archives using a bounded pool of upload threads.
+ * Queueing and retry accounting happen on a single coordinating thread, 
+ * only the transfers themselves run concurrently.
+ */
 public class UploadService {
 
   @Configurable
@@ -46,23 +54,50 @@ public class UploadService {
   @Configurable
   private int maxFileRetries = 3;
   
+  /**
+   * Maximum number of files uploaded at the same time, across all remote archives.
+   */
+  @Configurable
+  private int maxConcurrentUploads = 3;
+  
+  /**
+   * Maximum number of files uploaded at the same time to a single remote archive.
+   */
+  @Configurable
+  private int maxConcurrentUploadsPerRemote = 2;
+  
+  private static final Metrics.Counter 
+  UPLOADED_FILES = Metrics.counter("upload.files"),
+  UPLOAD_BYTES = Metrics.counter("upload.bytes"),
+  UPLOAD_RETRIES = Metrics.counter("upload.retries"),
+  UPLOAD_FAILURES = Metrics.counter("upload.failures");
+  private static final String WAKE_LOCK_COMPONENT = "upload";
+  private static final long WAKE_LOCK_TIMEOUT_MILLIS = 60L * 60L * 1000L; // Don't keep the device awake for stalled uploads
+  private static final Metrics.Gauge PENDING_UPLOADS = Metrics.gauge("upload.pending");
+  private static final Metrics.Histogram UPLOAD_DURATION = Metrics.histogram("upload.duration");
+  
   private Context context;
   
+  // Only accessed on the upload handler thread
   private Map<String, Integer> fileFailures;
   private Map<String, Integer> remoteArchiveFailures;
+  private Map<String, Integer> activeUploads;
+  private LinkedList<Upload> pendingUploads;
+  private int totalActiveUploads;
+  private boolean wakeLocked;
+  
   private Set<File> filesToUpload;
-  private WakeLock lock;
   
-  private Handler uploadHandler;
-  private Looper looper;
+  private SerialHandler uploadHandler;
+  private ExecutorService uploadExecutor;
   private Runnable endUploads = new Runnable() {
     
     @Override
     public void run() {
-      if (lock != null && lock.isHeld()) {
-        lock.release();
+      if (wakeLocked) {
+        LockUtil.release(WAKE_LOCK_COMPONENT);
+        wakeLocked = false;
       }
-      lock = null;
     }
   };
   
@@ -79,31 +114,52 @@ public class UploadService {
   }
 
   public void start() {
-    HandlerThread thread = new HandlerThread(getClass().getName());
-    thread.start();
-    looper = thread.getLooper();
-    uploadHandler = new Handler(looper);
+    uploadHandler = new SerialHandler();
+    uploadExecutor = Executors.newFixedThreadPool(Math.max(1, maxConcurrentUploads));
     fileFailures = new HashMap<String, Integer>();
     remoteArchiveFailures = new HashMap<String, Integer>();
+    activeUploads = new HashMap<String, Integer>();
+    pendingUploads = new LinkedList<Upload>();
+    totalActiveUploads = 0;
     filesToUpload = Collections.synchronizedSet(new HashSet<File>());
   }
 
   public void stop() {
-    looper.quit();
-    endUploads.run();
+    // Stop on the handler, ahead of queued work, so it can't race a dispatch in progress
+    uploadHandler.sendPriorityMessage(Message.obtain(uploadHandler, new Runnable() {
+      @Override
+      public void run() {
+        uploadHandler.quit();
+        uploadExecutor.shutdownNow();
+        endUploads.run();
+      }
+    }));
   }
 
   public void run(final FileArchive archive, final RemoteFileArchive remoteArchive) {
     Log.i(LogUtil.TAG, "Running upload...");
-    remoteArchiveFailures = new HashMap<String, Integer>();
-    fileFailures = new HashMap<String, Integer>();
-    if (archive != null && remoteArchive != null) {
-      if (lock == null) {
-        lock = LockUtil.getWakeLock(context);
+    final boolean uploading = archive != null && remoteArchive != null;
+    uploadHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        remoteArchiveFailures.clear();
+        fileFailures.clear();
+        if (uploading && (!wakeLocked || !LockUtil.isHeld(WAKE_LOCK_COMPONENT))) { // May have timed out
+          LockUtil.acquire(context, WAKE_LOCK_COMPONENT, WAKE_LOCK_TIMEOUT_MILLIS);
+          wakeLocked = true;
+        }
       }
+    });
+    if (uploading) {
       for (final File file : archive.getAll()) {
         archive(archive, remoteArchive, file);
       }
+      uploadHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          dispatchUploads(); // Releases the lock if there was nothing to upload
+        }
+      });
     }
   }
 
@@ -114,43 +170,116 @@ public class UploadService {
       uploadHandler.post(new Runnable() {
         @Override
         public void run() {
-          runArchive(archive, remoteArchive, file);
+          pendingUploads.add(new Upload(archive, remoteArchive, file));
+          dispatchUploads();
         }
       });
-      uploadHandler.removeCallbacks(endUploads);
-      uploadHandler.post(endUploads); // Add stop self to end
+    }
+  }
+  
+  /**
+   * Starts pending uploads, in queue order, while under the total and per remote limits.
+   * Releases the wake lock once nothing is pending or running.
+   */
+  private void dispatchUploads() {
+    Iterator<Upload> pending = pendingUploads.iterator();
+    while (totalActiveUploads < maxConcurrentUploads && pending.hasNext()) {
+      final Upload upload = pending.next();
+      final String remoteId = upload.remoteArchive.getId();
+      if (getCount(remoteArchiveFailures, remoteId) >= maxRemoteRetries) {
+        Log.i(LogUtil.TAG, "Canceling upload.  Remote archive '" + remoteId
+            + "' failed " + maxRemoteRetries + " times.");
+        pending.remove();
+        filesToUpload.remove(upload.file);
+        continue;
+      }
+      int remoteActive = getCount(activeUploads, remoteId);
+      if (remoteActive < maxConcurrentUploadsPerRemote) {
+        pending.remove();
+        activeUploads.put(remoteId, remoteActive + 1);
+        totalActiveUploads++;
+        uploadExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            long start = System.nanoTime();
+            long length = upload.file.length();
+            final boolean available = upload.remoteArchive.isAvailable();
+            final boolean success = available && upload.send();
+            if (success) {
+              UPLOAD_DURATION.recordSince(start);
+              UPLOAD_BYTES.add(length);
+            }
+            uploadHandler.post(new Runnable() {
+              @Override
+              public void run() {
+                activeUploads.put(remoteId, getCount(activeUploads, remoteId) - 1);
+                totalActiveUploads--;
+                onUploadFinished(upload, available, success);
+                dispatchUploads();
+              }
+            });
+          }
+        });
+      }
+    }
+    PENDING_UPLOADS.set(pendingUploads.size());
+    if (totalActiveUploads == 0 && pendingUploads.isEmpty()) {
+      endUploads.run();
     }
   }
 
-  protected void runArchive(FileArchive archive, RemoteFileArchive remoteArchive, File file) {
-    Integer numRemoteFailures = remoteArchiveFailures.get(remoteArchive.getId());
-    numRemoteFailures = (numRemoteFailures == null) ? 0 : numRemoteFailures;
-    if (numRemoteFailures < maxRemoteRetries && remoteArchive.isAvailable()) {
-      Log.i(LogUtil.TAG, "Archiving..." + file.getName());
-      if (remoteArchive.add(file)) {
-        archive.remove(file);
-        filesToUpload.remove(file);
+  protected void onUploadFinished(Upload upload, boolean available, boolean success) {
+    File file = upload.file;
+    String remoteId = upload.remoteArchive.getId();
+    if (!available) {
+      Log.i(LogUtil.TAG, "Canceling upload.  Remote archive '" + remoteId
+          + "' is not currently available. " + getCount(remoteArchiveFailures, remoteId));
+      filesToUpload.remove(file);
+    } else if (success) {
+      upload.archive.remove(file);
+      filesToUpload.remove(file);
+      UPLOADED_FILES.increment();
+    } else {
+      int numFileFailures = getCount(fileFailures, file.getName()) + 1;
+      fileFailures.put(file.getName(), numFileFailures);
+      remoteArchiveFailures.put(remoteId, getCount(remoteArchiveFailures, remoteId) + 1);
+      if (numFileFailures < maxFileRetries) {
+        pendingUploads.add(upload); // Retry after the rest of the queue
+        UPLOAD_RETRIES.increment();
       } else {
-        Integer numFileFailures = fileFailures.get(file.getName());
-        numFileFailures = (numFileFailures == null) ? 1 : numFileFailures + 1;
-        numRemoteFailures += 1;
-        fileFailures.put(file.getName(), numFileFailures);
-        remoteArchiveFailures.put(remoteArchive.getId(), numRemoteFailures);
-        // 3 Attempts
-        if (numFileFailures < maxFileRetries) {
-          filesToUpload.remove(file); // Remove so we can queue up again
-          archive(archive, remoteArchive, file);
-        } else {
-          Log.i(LogUtil.TAG, "Failed to upload '" + file.getAbsolutePath() + "' after 3 attempts.");
-          filesToUpload.remove(file);
+        Log.i(LogUtil.TAG, "Failed to upload '" + file.getAbsolutePath() + "' after " + numFileFailures + " attempts.");
+        if (upload.remoteArchive instanceof HttpArchive) {
+          ((HttpArchive) upload.remoteArchive).discard(file); // Start over if the file is uploaded again
         }
+        filesToUpload.remove(file);
+        UPLOAD_FAILURES.increment();
       }
-    } else {
-      Log.i(LogUtil.TAG, "Canceling upload.  Remote archive '" + remoteArchive.getId()
-          + "' is not currently available. " + numRemoteFailures);
-      filesToUpload.remove(file);
     }
   }
+  
+  private static int getCount(Map<String, Integer> counts, String key) {
+    Integer count = counts.get(key);
+    return count == null ? 0 : count;
+  }
 
+  /**
+   * A file queued for upload to a remote archive.
+   */
+  protected static class Upload {
+    public final FileArchive archive;
+    public final RemoteFileArchive remoteArchive;
+    public final File file;
+    
+    private Upload(FileArchive archive, RemoteFileArchive remoteArchive, File file) {
+      this.archive = archive;
+      this.remoteArchive = remoteArchive;
+      this.file = file;
+    }
+    
+    private boolean send() {
+      Log.i(LogUtil.TAG, "Archiving..." + file.getName());
+      return remoteArchive.add(file);
+    }
+  }
 
 }
@@ -0,0 +1,203 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.time;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps all scheduled actions in one queue ordered by their next run time, 
+ * and asks for a single wakeup at the earliest one.
+ * 
+ * On wakeup, every action that is due runs, along with non-strict actions due within the coalescing window,
+ * so actions with nearby times share one wakeup instead of each waking the device.  
+ * Repeating strict actions keep their phase, while non-strict actions are rescheduled 
+ * from the time they actually ran, which keeps coalesced actions aligned from then on.
+ * 
+ * Not thread safe, all calls are expected on the same thread.
+ * 
+ * @param <K> identifies an action, scheduling a key again replaces its previous schedule
+ */
+public class WakeupScheduler<K> {
+
+	public interface Clock {
+		public long currentTimeMillis();
+	}
+	
+	/**
+	 * The single system wakeup used by the scheduler.
+	 */
+	public interface Alarm {
+		public void set(long wakeupTimeMillis);
+		public void cancel();
+	}
+	
+	public interface ActionRunner<K> {
+		public void run(K key);
+	}
+	
+	public static final Clock SYSTEM_CLOCK = new Clock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+	
+	private static class Action<K> implements Comparable<Action<K>> {
+		private final K key;
+		private final long intervalMillis;
+		private final boolean strict;
+		private long nextTimeMillis;
+		
+		private Action(K key, long nextTimeMillis, long intervalMillis, boolean strict) {
+			this.key = key;
+			this.nextTimeMillis = nextTimeMillis;
+			this.intervalMillis = intervalMillis;
+			this.strict = strict;
+		}
+
+		@Override
+		public int compareTo(Action<K> another) {
+			return nextTimeMillis < another.nextTimeMillis ? -1 : (nextTimeMillis == another.nextTimeMillis ? 0 : 1);
+		}
+	}
+	
+	private final Clock clock;
+	private final Alarm alarm;
+	private final ActionRunner<K> runner;
+	private final PriorityQueue<Action<K>> queue = new PriorityQueue<Action<K>>();
+	private final Map<K,Action<K>> actions = new HashMap<K,Action<K>>();
+	private final Map<K,Long> lastRunTimes = new HashMap<K,Long>();
+	private long coalescingWindowMillis;
+	private long alarmTimeMillis = -1;
+	private int wakeups;
+	
+	public WakeupScheduler(Clock clock, Alarm alarm, ActionRunner<K> runner, long coalescingWindowMillis) {
+		this.clock = clock;
+		this.alarm = alarm;
+		this.runner = runner;
+		this.coalescingWindowMillis = coalescingWindowMillis;
+	}
+	
+	public void setCoalescingWindowMillis(long coalescingWindowMillis) {
+		this.coalescingWindowMillis = coalescingWindowMillis;
+	}
+	
+	/**
+	 * @param nextTimeMillis first time to run the action
+	 * @param intervalMillis time between runs, 0 or less to run once
+	 * @param strict strict actions only run at their scheduled time, never early with other actions
+	 */
+	public void set(K key, long nextTimeMillis, long intervalMillis, boolean strict) {
+		remove(key);
+		Action<K> action = new Action<K>(key, nextTimeMillis, intervalMillis, strict);
+		actions.put(key, action);
+		queue.add(action);
+		updateAlarm();
+	}
+	
+	public void cancel(K key) {
+		if (remove(key)) {
+			updateAlarm();
+		}
+	}
+	
+	public boolean isScheduled(K key) {
+		return actions.containsKey(key);
+	}
+	
+	/**
+	 * @return the last time the action ran, or null if it has not run
+	 */
+	public Long getLastRunTime(K key) {
+		return lastRunTimes.get(key);
+	}
+	
+	/**
+	 * @return the number of wakeups handled so far
+	 */
+	public int getWakeupCount() {
+		return wakeups;
+	}
+	
+	/**
+	 * Runs the due actions, and sets the alarm for the next wakeup.  Call when the alarm goes off.
+	 */
+	public void onWakeup() {
+		wakeups++;
+		alarmTimeMillis = -1;
+		long now = clock.currentTimeMillis();
+		List<Action<K>> due = new ArrayList<Action<K>>();
+		List<Action<K>> notDue = new ArrayList<Action<K>>();
+		while (!queue.isEmpty() && queue.peek().nextTimeMillis <= now + coalescingWindowMillis) {
+			Action<K> action = queue.poll();
+			if (action.nextTimeMillis <= now || !action.strict) {
+				due.add(action);
+			} else {
+				notDue.add(action);
+			}
+		}
+		queue.addAll(notDue);
+		// Reschedule before running, so actions are free to change their own schedule
+		for (Action<K> action : due) {
+			lastRunTimes.put(action.key, now);
+			if (action.intervalMillis > 0) {
+				long base = action.strict ? action.nextTimeMillis : now;
+				long next = base + action.intervalMillis;
+				if (next <= now) { // Missed runs are skipped, not run in a burst
+					next += ((now - next) / action.intervalMillis + 1) * action.intervalMillis;
+				}
+				action.nextTimeMillis = next;
+				queue.add(action);
+			} else {
+				actions.remove(action.key);
+			}
+		}
+		for (Action<K> action : due) {
+			runner.run(action.key);
+		}
+		updateAlarm();
+	}
+	
+	private boolean remove(K key) {
+		Action<K> action = actions.remove(key);
+		return action != null && queue.remove(action);
+	}
+	
+	private void updateAlarm() {
+		Action<K> earliest = queue.peek();
+		if (earliest == null) {
+			if (alarmTimeMillis >= 0) {
+				alarm.cancel();
+				alarmTimeMillis = -1;
+			}
+		} else if (earliest.nextTimeMillis != alarmTimeMillis) {
+			alarmTimeMillis = earliest.nextTimeMillis;
+			alarm.set(alarmTimeMillis);
+		}
+	}
+}
@@ -23,11 +23,178 @@
  */
 package edu.mit.media.funf.util;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import android.content.Context;
 import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.gson.JsonObject;
 
+/**
+ * Wake lock helpers.
+ * 
+ * Components of funf share one partial wake lock through {@link #acquire(Context, String, long)} and 
+ * {@link #release(String)}.  Holds are reference counted by component name, and the underlying lock 
+ * is held while any component holds it.  The time each component has held the lock is accounted, 
+ * and available through {@link #getWakeLockAccounting()}.
+ */
 public class LockUtil {
+	
+	private static final String SHARED_WAKE_LOCK_TAG = "funf";
+	
+	private static final class Holder {
+		private final String component;
+		private int references;
+		private long heldSinceMillis;
+		private long heldMillis;
+		private int acquires;
+		private int timeouts;
+		private long deadlineMillis;
+		
+		private Holder(String component) {
+			this.component = component;
+		}
+		
+		private long getHeldMillis(long now) {
+			return references > 0 ? heldMillis + now - heldSinceMillis : heldMillis;
+		}
+	}
+	
+	private static final Map<String,Holder> holders = new HashMap<String,Holder>();
+	private static PowerManager.WakeLock sharedLock;
+	private static int heldComponents = 0;
+	private static SerialHandler timeoutHandler;
+	
+	/**
+	 * Acquires the shared wake lock for a component, with no timeout.
+	 * @param context
+	 * @param component name used to count references and account held time, for example the probe name
+	 */
+	public static void acquire(Context context, String component) {
+		acquire(context, component, 0L);
+	}
+	
+	/**
+	 * Acquires the shared wake lock for a component.  Each call must be matched by a call to {@link #release(String)}.
+	 * @param context
+	 * @param component name used to count references and account held time, for example the probe name
+	 * @param timeoutMillis if positive, all references of the component are released after this long
+	 */
+	public static synchronized void acquire(Context context, String component, long timeoutMillis) {
+		long now = SystemClock.elapsedRealtime();
+		Holder holder = holders.get(component);
+		if (holder == null) {
+			holder = new Holder(component);
+			holders.put(component, holder);
+		}
+		if (holder.references == 0) {
+			holder.heldSinceMillis = now;
+			holder.deadlineMillis = 0L;
+			if (heldComponents == 0) {
+				getSharedLock(context).acquire();
+			}
+			heldComponents++;
+		}
+		holder.references++;
+		holder.acquires++;
+		if (timeoutMillis > 0) {
+			long deadline = now + timeoutMillis;
+			if (deadline > holder.deadlineMillis) {
+				holder.deadlineMillis = deadline;
+				scheduleTimeout(holder, timeoutMillis);
+			}
+		}
+	}
+	
+	/**
+	 * Releases one reference held by the component.  The shared wake lock is released 
+	 * when no component holds it.
+	 * @param component
+	 */
+	public static synchronized void release(String component) {
+		Holder holder = holders.get(component);
+		if (holder == null || holder.references == 0) {
+			return; // Already released, for example by a timeout
+		}
+		holder.references--;
+		if (holder.references == 0) {
+			releaseHolder(holder);
+		}
+	}
+	
+	/**
+	 * @param component
+	 * @return true if the component currently holds the shared wake lock
+	 */
+	public static synchronized boolean isHeld(String component) {
+		Holder holder = holders.get(component);
+		return holder != null && holder.references > 0;
+	}
+	
+	/**
+	 * @return for each component that has held the shared wake lock, the number of references held now, 
+	 * the total milliseconds held, including the current hold, and the number of acquires and timeouts
+	 */
+	public static synchronized JsonObject getWakeLockAccounting() {
+		long now = SystemClock.elapsedRealtime();
+		JsonObject accounting = new JsonObject();
+		for (Holder holder : holders.values()) {
+			JsonObject entry = new JsonObject();
+			entry.addProperty("references", holder.references);
+			entry.addProperty("heldMillis", holder.getHeldMillis(now));
+			entry.addProperty("acquires", holder.acquires);
+			entry.addProperty("timeouts", holder.timeouts);
+			accounting.add(holder.component, entry);
+		}
+		return accounting;
+	}
+	
+	private static void releaseHolder(Holder holder) {
+		holder.heldMillis += SystemClock.elapsedRealtime() - holder.heldSinceMillis;
+		holder.references = 0;
+		holder.deadlineMillis = 0L;
+		heldComponents--;
+		if (heldComponents == 0 && sharedLock.isHeld()) {
+			sharedLock.release();
+		}
+	}
+	
+	private static PowerManager.WakeLock getSharedLock(Context context) {
+		if (sharedLock == null) {
+			PowerManager pm = (PowerManager) context.getApplicationContext().getSystemService(Context.POWER_SERVICE);
+			sharedLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, SHARED_WAKE_LOCK_TAG);
+			sharedLock.setReferenceCounted(false); // References are counted per component here
+		}
+		return sharedLock;
+	}
+	
+	private static void scheduleTimeout(final Holder holder, long timeoutMillis) {
+		if (timeoutHandler == null) {
+			timeoutHandler = new SerialHandler();
+		}
+		timeoutHandler.postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (LockUtil.class) {
+					if (holder.references > 0 && holder.deadlineMillis > 0 
+							&& SystemClock.elapsedRealtime() >= holder.deadlineMillis) {
+						Log.w(LogUtil.TAG, "Wake lock held by " + holder.component + " timed out, releasing " 
+								+ holder.references + " references.");
+						holder.timeouts++;
+						releaseHolder(holder);
+					}
+				}
+			}
+		}, timeoutMillis);
+	}
 
+	/**
+	 * Acquires a separate wake lock, which the caller must release.  Prefer {@link #acquire(Context, String)}, 
+	 * which shares one lock and accounts the time it is held.
+	 */
 	public static PowerManager.WakeLock getWakeLock(Context context) {
 		return LockUtil.getWakeLock(context, context.getClass().getName());
 	}
@@ -0,0 +1,228 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Process wide registry of lightweight operational metrics.
+ * 
+ * Metrics are created on first use and live for the life of the process.  Updates are lock free,
+ * so hot paths should look a metric up once and keep the reference.
+ */
+public class Metrics {
+
+	private static final ConcurrentMap<String,Metric> metrics = new ConcurrentHashMap<String,Metric>();
+	
+	public interface Metric {
+		/**
+		 * Adds the current value of this metric to the snapshot, under the given name.
+		 */
+		public void snapshot(String name, JsonObject snapshot);
+	}
+	
+	/**
+	 * A monotonically increasing count.
+	 */
+	public static class Counter implements Metric {
+		private final AtomicLong count = new AtomicLong();
+		
+		public void increment() {
+			count.incrementAndGet();
+		}
+		
+		public void add(long delta) {
+			count.addAndGet(delta);
+		}
+		
+		public long get() {
+			return count.get();
+		}
+
+		@Override
+		public void snapshot(String name, JsonObject snapshot) {
+			snapshot.addProperty(name, get());
+		}
+	}
+	
+	/**
+	 * The last value set.
+	 */
+	public static class Gauge implements Metric {
+		private volatile long value;
+		
+		public void set(long value) {
+			this.value = value;
+		}
+		
+		public long get() {
+			return value;
+		}
+
+		@Override
+		public void snapshot(String name, JsonObject snapshot) {
+			snapshot.addProperty(name, get());
+		}
+	}
+	
+	/**
+	 * Latency histogram with fixed power of two buckets in microseconds, so bucket i counts 
+	 * durations below 2^i microseconds.  Percentiles are reported as the upper bound of their bucket.
+	 */
+	public static class Histogram implements Metric {
+		private static final int BUCKETS = 40;
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sumMicros = new AtomicLong();
+		private final AtomicLong maxMicros = new AtomicLong();
+		
+		/**
+		 * @param startNanos the System.nanoTime() at which the timed operation started
+		 */
+		public void recordSince(long startNanos) {
+			record((System.nanoTime() - startNanos) / 1000);
+		}
+		
+		public void record(long micros) {
+			if (micros < 0) {
+				micros = 0;
+			}
+			int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+			buckets.incrementAndGet(bucket);
+			count.incrementAndGet();
+			sumMicros.addAndGet(micros);
+			long max = maxMicros.get();
+			while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+				max = maxMicros.get();
+			}
+		}
+		
+		public long getCount() {
+			return count.get();
+		}
+		
+		/**
+		 * @return the upper bound, in microseconds, of the bucket containing the given fraction of recorded durations
+		 */
+		public long getPercentile(double fraction) {
+			long total = 0;
+			long[] counts = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] = buckets.get(i);
+				total += counts[i];
+			}
+			long target = (long)Math.ceil(total * fraction);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= target && seen > 0) {
+					return 1L << i;
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public void snapshot(String name, JsonObject snapshot) {
+			long n = count.get();
+			JsonObject histogram = new JsonObject();
+			histogram.addProperty("count", n);
+			histogram.addProperty("meanMicros", n == 0 ? 0 : sumMicros.get() / n);
+			histogram.addProperty("p50Micros", getPercentile(0.5));
+			histogram.addProperty("p90Micros", getPercentile(0.9));
+			histogram.addProperty("p99Micros", getPercentile(0.99));
+			histogram.addProperty("maxMicros", maxMicros.get());
+			snapshot.add(name, histogram);
+		}
+	}
+	
+	public static Counter counter(String name) {
+		return get(name, Counter.class);
+	}
+	
+	public static Gauge gauge(String name) {
+		return get(name, Gauge.class);
+	}
+	
+	public static Histogram histogram(String name) {
+		return get(name, Histogram.class);
+	}
+	
+	private static <T extends Metric> T get(String name, Class<T> type) {
+		Metric metric = metrics.get(name);
+		if (metric == null) {
+			try {
+				metric = type.getDeclaredConstructor().newInstance();
+			} catch (InstantiationException e) {
+				throw new RuntimeException(e);
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			} catch (InvocationTargetException e) {
+				throw new RuntimeException(e);
+			} catch (NoSuchMethodException e) {
+				throw new RuntimeException(e);
+			}
+			Metric existing = metrics.putIfAbsent(name, metric);
+			if (existing != null) {
+				metric = existing;
+			}
+		}
+		if (!type.isInstance(metric)) {
+			throw new IllegalArgumentException("Metric " + name + " is a " + metric.getClass().getSimpleName());
+		}
+		return type.cast(metric);
+	}
+	
+	/**
+	 * @return the current count of every counter
+	 */
+	public static Map<String,Long> getCounts() {
+		Map<String,Long> counts = new TreeMap<String,Long>();
+		for (Map.Entry<String,Metric> entry : metrics.entrySet()) {
+			if (entry.getValue() instanceof Counter) {
+				counts.put(entry.getKey(), ((Counter)entry.getValue()).get());
+			}
+		}
+		return counts;
+	}
+	
+	/**
+	 * @return the current value of every metric, sorted by name
+	 */
+	public static JsonObject snapshot() {
+		JsonObject snapshot = new JsonObject();
+		for (Map.Entry<String,Metric> entry : new TreeMap<String,Metric>(metrics).entrySet()) {
+			entry.getValue().snapshot(entry.getKey(), snapshot);
+		}
+		return snapshot;
+	}
+}
@@ -0,0 +1,217 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated, lock free ring of sample blocks between one producer thread and one consumer thread.
+ * 
+ * The producer claims the next free block with {@link #claim()}, fills it, and hands it over with 
+ * {@link #publish(int)}.  The consumer takes the oldest block with {@link #take(long)}, and gives it 
+ * back with {@link #release()} once it is done with the samples.  Blocks are never copied or allocated 
+ * after construction, and neither side takes a lock, so a slow consumer can never hold up the producer.
+ * 
+ * When the consumer falls behind and every block is full, claim() returns null.  The producer should 
+ * drop the samples it has, and report them with {@link #drop(int)}.  Each overrun is counted, and the 
+ * number of samples dropped just before each block is available to the consumer through 
+ * {@link #getDroppedBefore()}, so it can tell where the stream has a gap.
+ */
+public class SampleRing {
+
+	private final short[][] blocks;
+	private final int[] counts;
+	private final int[] droppedBefore;
+	private final int mask;
+	
+	// Written only by the producer
+	private volatile long writeSequence = 0;
+	private int pendingDropped = 0;
+	
+	// Written only by the consumer
+	private volatile long readSequence = 0;
+	private volatile Thread waitingConsumer = null;
+	
+	private volatile boolean closed = false;
+	
+	// Statistics, written only by the producer
+	private volatile long overruns = 0;
+	private volatile long droppedSamples = 0;
+	private volatile int maxDepth = 0;
+	
+	/**
+	 * @param blockCount number of blocks, rounded up to a power of two
+	 * @param blockSize samples in each block
+	 */
+	public SampleRing(int blockCount, int blockSize) {
+		if (blockCount < 1 || blockSize < 1) {
+			throw new IllegalArgumentException("Block count and block size must be positive.");
+		}
+		int capacity = 1;
+		while (capacity < blockCount) {
+			capacity <<= 1;
+		}
+		this.blocks = new short[capacity][blockSize];
+		this.counts = new int[capacity];
+		this.droppedBefore = new int[capacity];
+		this.mask = capacity - 1;
+	}
+	
+	public int getCapacity() {
+		return blocks.length;
+	}
+	
+	public int getBlockSize() {
+		return blocks[0].length;
+	}
+	
+	//// Producer ////
+	
+	/**
+	 * @return the next free block to fill, or null if the consumer has not released any
+	 */
+	public short[] claim() {
+		long write = writeSequence;
+		if (write - readSequence >= blocks.length) {
+			return null;
+		}
+		return blocks[(int)write & mask];
+	}
+	
+	/**
+	 * Hands the claimed block to the consumer.
+	 * @param count number of samples in the block
+	 */
+	public void publish(int count) {
+		long write = writeSequence;
+		int slot = (int)write & mask;
+		counts[slot] = count;
+		droppedBefore[slot] = pendingDropped;
+		pendingDropped = 0;
+		writeSequence = write + 1;
+		int depth = (int)(write + 1 - readSequence);
+		if (depth > maxDepth) {
+			maxDepth = depth;
+		}
+		Thread consumer = waitingConsumer;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+	}
+	
+	/**
+	 * Records samples the producer dropped because no block was free.
+	 */
+	public void drop(int count) {
+		overruns++;
+		droppedSamples += count;
+		pendingDropped += count;
+	}
+	
+	/**
+	 * Tells the consumer that nothing more will be published.  Blocks already published can still be taken.
+	 */
+	public void close() {
+		closed = true;
+		Thread consumer = waitingConsumer;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+	}
+	
+	//// Consumer ////
+	
+	/**
+	 * Waits for the oldest published block.  
+	 * @param timeoutMillis longest time to wait for a block, or 0 to not wait
+	 * @return the block, or null if none was published in time or the ring is closed and empty
+	 */
+	public short[] take(long timeoutMillis) {
+		long read = readSequence;
+		if (writeSequence == read && timeoutMillis > 0) {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			// Set the waiter before checking again, so a publish either sees it or is seen
+			waitingConsumer = Thread.currentThread();
+			try {
+				long remaining;
+				while (writeSequence == read && !closed 
+						&& (remaining = deadline - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(this, remaining);
+				}
+			} finally {
+				waitingConsumer = null;
+			}
+		}
+		return writeSequence == read ? null : blocks[(int)read & mask];
+	}
+	
+	/**
+	 * @return number of samples in the block returned by the last {@link #take(long)}
+	 */
+	public int getCount() {
+		return counts[(int)readSequence & mask];
+	}
+	
+	/**
+	 * @return number of samples dropped between the previous block and the block returned by the last {@link #take(long)}
+	 */
+	public int getDroppedBefore() {
+		return droppedBefore[(int)readSequence & mask];
+	}
+	
+	/**
+	 * Gives the block returned by the last {@link #take(long)} back to the producer.
+	 */
+	public void release() {
+		readSequence = readSequence + 1;
+	}
+	
+	/**
+	 * @return true once the ring is closed and every published block has been released
+	 */
+	public boolean isDrained() {
+		return closed && readSequence == writeSequence;
+	}
+	
+	//// Statistics ////
+	
+	/**
+	 * @return number of times the producer found every block full
+	 */
+	public long getOverruns() {
+		return overruns;
+	}
+	
+	public long getDroppedSamples() {
+		return droppedSamples;
+	}
+	
+	/**
+	 * @return the most blocks that have been waiting for the consumer at once
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+}
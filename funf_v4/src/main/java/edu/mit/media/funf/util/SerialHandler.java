@@ -0,0 +1,168 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.util;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+
+/**
+ * A Handler that runs on a small pool of Looper threads shared by every probe and pipeline,
+ * instead of on a dedicated HandlerThread.
+ * 
+ * Each SerialHandler is assigned one of the pool Loopers when it is created, in turn.  Messages wait 
+ * in that Looper's queue until they run, so they run one at a time and in order, removeMessages(), 
+ * removeCallbacks() and hasMessages() see every pending message, and code running a message can 
+ * register system callbacks that need Looper.myLooper(), as it could on a HandlerThread.
+ * 
+ * Messages sent with {@link #sendPriorityMessage(Message)} skip ahead of every message waiting on the 
+ * Looper, so control messages are not stuck behind a backlog of data.
+ * 
+ * Handlers that share a Looper share its thread, so a handler that blocks, on database writes or 
+ * network requests for example, should be created with {@link #SerialHandler(String, Handler.Callback)} 
+ * to get a thread of its own.
+ * 
+ * Exceptions thrown while handling a message are not caught, as on a HandlerThread.
+ */
+public class SerialHandler extends Handler {
+
+	private static final int POOL_SIZE = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	
+	// Due before any message sent normally, and after priority messages already waiting
+	private static final long PRIORITY_UPTIME_MILLIS = 1;
+	
+	private static Looper[] loopers;
+	private static int nextLooper = 0;
+	
+	private static synchronized Looper getNextLooper() {
+		if (loopers == null) {
+			loopers = new Looper[POOL_SIZE];
+			for (int i = 0; i < POOL_SIZE; i++) {
+				HandlerThread thread = new PoolThread("funf-worker-" + (i + 1));
+				thread.start();
+				loopers[i] = thread.getLooper();
+			}
+		}
+		Looper looper = loopers[nextLooper];
+		nextLooper = (nextLooper + 1) % POOL_SIZE;
+		return looper;
+	}
+	
+	private static class PoolThread extends HandlerThread {
+		private PoolThread(String name) {
+			super(name);
+		}
+	}
+	
+	/**
+	 * @return true if the calling thread is one of the shared pool threads, which must not be parked 
+	 * waiting on other handlers since they also run messages for every handler assigned to them
+	 */
+	public static boolean isPoolThread() {
+		return Thread.currentThread() instanceof PoolThread;
+	}
+	
+	private volatile boolean quit = false;
+	private final HandlerThread ownThread; // Null for handlers on the shared pool
+	
+	public SerialHandler() {
+		super(getNextLooper());
+		this.ownThread = null;
+	}
+	
+	public SerialHandler(Handler.Callback callback) {
+		super(getNextLooper(), callback);
+		this.ownThread = null;
+	}
+	
+	/**
+	 * Creates a handler with a thread of its own, for work that blocks and would hold up 
+	 * every other handler on a shared thread.  The thread stops when the handler quits.
+	 * @param threadName
+	 * @param callback
+	 */
+	public SerialHandler(String threadName, Handler.Callback callback) {
+		this(startThread(threadName), callback);
+	}
+	
+	private SerialHandler(HandlerThread ownThread, Handler.Callback callback) {
+		super(ownThread.getLooper(), callback);
+		this.ownThread = ownThread;
+	}
+	
+	private static HandlerThread startThread(String name) {
+		HandlerThread thread = new HandlerThread(name);
+		thread.start();
+		return thread;
+	}
+	
+	@Override
+	public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+		if (quit) {
+			msg.recycle();
+			return false;
+		}
+		return super.sendMessageAtTime(msg, uptimeMillis);
+	}
+	
+	@Override
+	public void dispatchMessage(Message msg) {
+		if (quit) {
+			return; // Sent while quit() was running
+		}
+		super.dispatchMessage(msg);
+	}
+	
+	/**
+	 * Queues a message to run as soon as the message currently running on the Looper finishes, 
+	 * ahead of any waiting messages that were not sent this way.  Priority messages run in the order they were sent.
+	 * @param msg a message obtained from this handler
+	 * @return false if the handler has quit
+	 */
+	public boolean sendPriorityMessage(Message msg) {
+		return sendMessageAtTime(msg, PRIORITY_UPTIME_MILLIS);
+	}
+	
+	/**
+	 * @return true if the calling thread is the one that runs this handler's messages, 
+	 * so work done here cannot overlap a message
+	 */
+	public boolean isCurrentThread() {
+		return Looper.myLooper() == getLooper();
+	}
+	
+	/**
+	 * Drops every pending message, and any sent afterwards, like quitting the Looper of a HandlerThread.
+	 * The shared threads keep running for the other handlers, while a handler's own thread stops
+	 * once any message it is running finishes.
+	 */
+	public void quit() {
+		quit = true;
+		removeCallbacksAndMessages(null);
+		if (ownThread != null) {
+			ownThread.quit();
+		}
+	}
+}
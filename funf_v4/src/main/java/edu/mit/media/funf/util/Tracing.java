@@ -0,0 +1,160 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Optional end to end latency tracing of probe samples.
+ * 
+ * A sampled fraction of the data sent by each probe carries a {@link Trace}, which records 
+ * System.nanoTime() when the probe emitted the sample, when it was dispatched to listeners, 
+ * when a pipeline dequeued it, and when the pipeline committed it to storage.  Latencies from emit 
+ * to each later stage are kept per probe in fixed size {@link Metrics.Histogram}s named 
+ * "trace.[probe].dispatch", "trace.[probe].dequeue" and "trace.[probe].commit".
+ * 
+ * While a probe dispatches a traced sample, the trace is available to listeners on that thread 
+ * through {@link #current()}.
+ * 
+ * Tracing is off until {@link #setSampleInterval(int)} is called with a positive interval.
+ */
+public class Tracing {
+
+	private static volatile int sampleInterval = 0;
+	private static final ConcurrentMap<String,Stages> stagesByProbe = new ConcurrentHashMap<String,Stages>();
+	private static final ThreadLocal<Trace> current = new ThreadLocal<Trace>();
+	
+	private static final String[] STAGE_NAMES = {"dispatch", "dequeue", "commit"};
+	
+	private static final class Stages {
+		private final Metrics.Histogram dispatch, dequeue, commit;
+		
+		private Stages(String probe) {
+			String prefix = "trace." + probe + ".";
+			this.dispatch = Metrics.histogram(prefix + STAGE_NAMES[0]);
+			this.dequeue = Metrics.histogram(prefix + STAGE_NAMES[1]);
+			this.commit = Metrics.histogram(prefix + STAGE_NAMES[2]);
+		}
+	}
+	
+	/**
+	 * Timestamps of one traced sample.  Dispatch is marked once, on the probe's thread.  Each pipeline 
+	 * receiving the sample marks its own dequeue and commit.
+	 */
+	public static final class Trace {
+		private final Stages stages;
+		private final long emitNanos;
+		private boolean dispatched;
+		
+		private Trace(Stages stages, long emitNanos) {
+			this.stages = stages;
+			this.emitNanos = emitNanos;
+		}
+		
+		public void markDispatched() {
+			if (!dispatched) {
+				dispatched = true;
+				stages.dispatch.recordSince(emitNanos);
+			}
+		}
+		
+		public void markDequeued() {
+			stages.dequeue.recordSince(emitNanos);
+		}
+		
+		public void markCommitted() {
+			stages.commit.recordSince(emitNanos);
+		}
+	}
+	
+	/**
+	 * @param interval trace one in every interval samples of each probe, or 0 to turn tracing off
+	 */
+	public static void setSampleInterval(int interval) {
+		sampleInterval = Math.max(0, interval);
+	}
+	
+	public static int getSampleInterval() {
+		return sampleInterval;
+	}
+	
+	public static boolean isEnabled() {
+		return sampleInterval > 0;
+	}
+	
+	/**
+	 * Decides whether to trace the sample with the given sequence number.
+	 * @param probe name of the probe emitting the sample
+	 * @param sequence count of samples the probe has emitted
+	 * @param emitNanos System.nanoTime() when the sample was emitted
+	 * @return the trace, or null if the sample is not traced
+	 */
+	public static Trace start(String probe, long sequence, long emitNanos) {
+		int interval = sampleInterval;
+		if (interval <= 0 || sequence % interval != 0) {
+			return null;
+		}
+		Stages stages = stagesByProbe.get(probe);
+		if (stages == null) {
+			stages = new Stages(probe);
+			Stages existing = stagesByProbe.putIfAbsent(probe, stages);
+			if (existing != null) {
+				stages = existing;
+			}
+		}
+		return new Trace(stages, emitNanos);
+	}
+	
+	/**
+	 * @return the trace of the sample being dispatched on this thread, or null
+	 */
+	public static Trace current() {
+		return isEnabled() ? current.get() : null;
+	}
+	
+	public static void setCurrent(Trace trace) {
+		current.set(trace);
+	}
+	
+	/**
+	 * @return latency histograms from emit to each stage, keyed by probe and then stage
+	 */
+	public static JsonObject getLatencies() {
+		JsonObject latencies = new JsonObject();
+		for (Map.Entry<String,Stages> entry : new TreeMap<String,Stages>(stagesByProbe).entrySet()) {
+			Stages stages = entry.getValue();
+			JsonObject probeLatencies = new JsonObject();
+			stages.dispatch.snapshot(STAGE_NAMES[0], probeLatencies);
+			stages.dequeue.snapshot(STAGE_NAMES[1], probeLatencies);
+			stages.commit.snapshot(STAGE_NAMES[2], probeLatencies);
+			latencies.add(entry.getKey(), probeLatencies);
+		}
+		return latencies;
+	}
+}
@@ -0,0 +1,250 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.reflect.Method;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Time and bytes allocated per sample for the immutable JSON types, on samples shaped like 
+ * those probes send.  Each case builds a fresh sample, as sendData receives one per event, 
+ * and the cost of building it is measured separately and subtracted.
+ * 
+ * "eager" is the path every sample took before views: sendData deep copied the sample into 
+ * an IJsonObject, and the pipeline serialized the copy.  "view" is the path it takes now.
+ * 
+ * Allocations are counted with the ThreadMXBean of the HotSpot JVM the unit tests run on, 
+ * looked up by reflection like in SensorProbeAllocationTest.
+ */
+public class IJsonBenchmark {
+
+	private static final int WARMUP = 50000;
+	private static final int ITERATIONS = 100000;
+	
+	private Object threads;
+	private Method getThreadAllocatedBytes;
+	private Object sink;
+	private int hashSink;
+	
+	/**
+	 * One operation to measure, on a sample built by the benchmark.
+	 */
+	private static abstract class Case {
+		final String name;
+		
+		Case(String name) {
+			this.name = name;
+		}
+		
+		abstract JsonElement sample(int i);
+		
+		abstract Object run(JsonElement sample);
+	}
+	
+	/**
+	 * Bytes and nanoseconds per operation.
+	 */
+	private static class Result {
+		double bytes, nanos;
+	}
+	
+	@Before
+	public void setUp() throws Exception {
+		try {
+			threads = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+			Class<?> threadsClass = Class.forName("com.sun.management.ThreadMXBean");
+			assumeTrue(threadsClass.isInstance(threads) 
+					&& (Boolean)threadsClass.getMethod("isThreadAllocatedMemorySupported").invoke(threads));
+			threadsClass.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(threads, true);
+			getThreadAllocatedBytes = threadsClass.getMethod("getThreadAllocatedBytes", long.class);
+		} catch (ClassNotFoundException e) {
+			assumeTrue(false); // Not a HotSpot JVM
+		}
+	}
+	
+	@Test
+	public void sendAndSerializeObject() throws Exception {
+		Result eager = measure(new SensorSampleCase("eager copy + toString") {
+			@Override
+			Object run(JsonElement sample) {
+				return new IJsonObject((JsonObject)sample).toString();
+			}
+		});
+		Result view = measure(new SensorSampleCase("view + toString") {
+			@Override
+			Object run(JsonElement sample) {
+				return IJsonObject.view((JsonObject)sample).toString();
+			}
+		});
+		Result viewOnly = measure(new SensorSampleCase("view") {
+			@Override
+			Object run(JsonElement sample) {
+				return IJsonObject.view((JsonObject)sample);
+			}
+		});
+		Result eagerOnly = measure(new SensorSampleCase("eager copy") {
+			@Override
+			Object run(JsonElement sample) {
+				return new IJsonObject((JsonObject)sample);
+			}
+		});
+		assertTrue(view.bytes < eager.bytes);
+		assertTrue(viewOnly.bytes * 10 < eagerOnly.bytes);
+	}
+	
+	@Test
+	public void objectHashCodeIsCached() throws Exception {
+		final IJsonObject object = IJsonObject.view(sensorSample(0));
+		int hash = object.hashCode();
+		Result cached = measure(new SensorSampleCase("hashCode, cached") {
+			@Override
+			Object run(JsonElement sample) {
+				hashSink += object.hashCode(); // Not returned, to leave out boxing
+				return null;
+			}
+		});
+		assertEquals(hash, object.hashCode());
+		assertEquals(0, Math.round(cached.bytes));
+		measure(new SensorSampleCase("view + first hashCode") {
+			@Override
+			Object run(JsonElement sample) {
+				return IJsonObject.view((JsonObject)sample).hashCode();
+			}
+		});
+	}
+	
+	@Test
+	public void immutableArray() throws Exception {
+		measure(new Case("IJsonArray of 32 numbers") {
+			@Override
+			JsonElement sample(int i) {
+				JsonArray array = new JsonArray();
+				for (int j = 0; j < 32; j++) {
+					array.add(new JsonPrimitive(i * 0.5 + j));
+				}
+				return array;
+			}
+			
+			@Override
+			Object run(JsonElement sample) {
+				return new IJsonArray((JsonArray)sample);
+			}
+		});
+	}
+	
+	@Test
+	public void immutableElements() throws Exception {
+		measure(new Case("JsonUtils.immutable(number)") {
+			@Override
+			JsonElement sample(int i) {
+				return new JsonPrimitive(i * 0.5);
+			}
+			
+			@Override
+			Object run(JsonElement sample) {
+				return JsonUtils.immutable(sample);
+			}
+		});
+		measure(new Case("JsonUtils.immutable(string)") {
+			@Override
+			JsonElement sample(int i) {
+				return new JsonPrimitive("accelerometer");
+			}
+			
+			@Override
+			Object run(JsonElement sample) {
+				return JsonUtils.immutable(sample);
+			}
+		});
+		measure(new SensorSampleCase("JsonUtils.immutable(object)") {
+			@Override
+			Object run(JsonElement sample) {
+				return JsonUtils.immutable(sample);
+			}
+		});
+	}
+	
+	private static abstract class SensorSampleCase extends Case {
+		SensorSampleCase(String name) {
+			super(name);
+		}
+		
+		@Override
+		JsonElement sample(int i) {
+			return sensorSample(i);
+		}
+	}
+	
+	private static JsonObject sensorSample(int i) {
+		JsonObject sample = new JsonObject();
+		sample.addProperty("timestamp", 1400000000.0 + i * 0.02);
+		sample.addProperty("accuracy", 3);
+		sample.addProperty("x", 0.1 + i % 100);
+		sample.addProperty("y", 9.8);
+		sample.addProperty("z", -0.3);
+		return sample;
+	}
+	
+	private Result measure(Case benchmark) throws Exception {
+		run(benchmark, WARMUP, false);
+		run(benchmark, WARMUP, true);
+		Result total = run(benchmark, ITERATIONS, true);
+		Result samples = run(benchmark, ITERATIONS, false);
+		Result result = new Result();
+		result.bytes = total.bytes - samples.bytes;
+		result.nanos = total.nanos - samples.nanos;
+		System.out.println(String.format("%-32s %8.1f bytes/op %8.1f ns/op", benchmark.name, result.bytes, result.nanos));
+		return result;
+	}
+	
+	private Result run(Case benchmark, int iterations, boolean operate) throws Exception {
+		long startBytes = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			JsonElement sample = benchmark.sample(i);
+			sink = operate ? benchmark.run(sample) : sample;
+		}
+		long nanos = System.nanoTime() - start;
+		long bytes = allocatedBytes() - startBytes;
+		Result result = new Result();
+		result.bytes = (double)bytes / iterations;
+		result.nanos = (double)nanos / iterations;
+		return result;
+	}
+	
+	private long allocatedBytes() throws Exception {
+		return (Long)getThreadAllocatedBytes.invoke(threads, Thread.currentThread().getId());
+	}
+}
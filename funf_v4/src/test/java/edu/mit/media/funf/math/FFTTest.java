@@ -0,0 +1,152 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.math;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FFTTest {
+
+	private static final int MAX_SIZE = 8192;
+	
+	@Test
+	public void complexFftMatchesReference() {
+		Random random = new Random(1);
+		for (int n = 1; n <= MAX_SIZE; n *= 2) {
+			double[] re = randomSamples(random, n), im = randomSamples(random, n);
+			double[] expectedRe = re.clone(), expectedIm = im.clone();
+			new ReferenceFFT(n).fft(expectedRe, expectedIm);
+			new FFT(n).fft(re, im);
+			// Same operations in the same order
+			assertArrayEquals(expectedRe, re, 0);
+			assertArrayEquals(expectedIm, im, 0);
+		}
+	}
+	
+	@Test
+	public void realFftMatchesReference() {
+		Random random = new Random(2);
+		for (int n = 1; n <= MAX_SIZE; n *= 2) {
+			double[] re = randomSamples(random, n), im = randomSamples(random, n); // Imaginary input is ignored
+			double[] expectedRe = re.clone(), expectedIm = new double[n];
+			new ReferenceFFT(n).fft(expectedRe, expectedIm);
+			new FFT(n).realFft(re, im);
+			double tolerance = 1e-12 * norm(expectedRe, expectedIm);
+			for (int k = 0; k < n; k++) {
+				assertEquals("re[" + k + "] of " + n, expectedRe[k], re[k], tolerance);
+				assertEquals("im[" + k + "] of " + n, expectedIm[k], im[k], tolerance);
+			}
+		}
+	}
+	
+	@Test
+	public void realFftOfSinusoid() {
+		int n = 256, bin = 10;
+		double[] re = new double[n], im = new double[n];
+		for (int i = 0; i < n; i++) {
+			re[i] = Math.cos(2 * Math.PI * bin * i / n);
+		}
+		new FFT(n).realFft(re, im);
+		for (int k = 0; k < n; k++) {
+			double expected = (k == bin || k == n - bin) ? n / 2.0 : 0;
+			assertEquals(expected, re[k], 1e-9);
+			assertEquals(0, im[k], 1e-9);
+		}
+	}
+	
+	@Test
+	public void instancesAreReusable() {
+		Random random = new Random(3);
+		int n = 64;
+		FFT fft = new FFT(n);
+		FFT other = new FFT(n); // Shares tables with fft
+		for (int i = 0; i < 10; i++) {
+			double[] re = randomSamples(random, n), im = new double[n];
+			double[] expectedRe = re.clone(), expectedIm = new double[n];
+			new ReferenceFFT(n).fft(expectedRe, expectedIm);
+			(i % 2 == 0 ? fft : other).fft(re, im);
+			assertArrayEquals(expectedRe, re, 0);
+			assertArrayEquals(expectedIm, im, 0);
+		}
+	}
+	
+	@Test
+	public void concurrentInstancesMatchReference() throws InterruptedException {
+		final int n = 1024;
+		final double[] input = randomSamples(new Random(4), n);
+		final double[] expectedRe = input.clone(), expectedIm = new double[n];
+		new ReferenceFFT(n).fft(expectedRe, expectedIm);
+		final boolean[] matched = new boolean[4];
+		Thread[] threads = new Thread[matched.length];
+		for (int t = 0; t < threads.length; t++) {
+			final int index = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					boolean match = true;
+					for (int i = 0; i < 200; i++) {
+						double[] re = input.clone(), im = new double[n];
+						new FFT(n).fft(re, im);
+						match &= Arrays.equals(expectedRe, re) && Arrays.equals(expectedIm, im);
+					}
+					matched[index] = match;
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		for (boolean match : matched) {
+			assertTrue(match);
+		}
+	}
+	
+	@Test(expected=RuntimeException.class)
+	public void sizeMustBePowerOfTwo() {
+		new FFT(100);
+	}
+	
+	private static double[] randomSamples(Random random, int n) {
+		double[] samples = new double[n];
+		for (int i = 0; i < n; i++) {
+			samples[i] = random.nextGaussian();
+		}
+		return samples;
+	}
+	
+	private static double norm(double[] re, double[] im) {
+		double sum = 0;
+		for (int i = 0; i < re.length; i++) {
+			sum += re[i] * re[i] + im[i] * im[i];
+		}
+		return Math.sqrt(sum);
+	}
+}
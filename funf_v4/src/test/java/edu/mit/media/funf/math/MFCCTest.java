@@ -0,0 +1,102 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.math;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MFCCTest {
+
+	private static final int NUM_COEFFS = 12, MEL_BANDS = 20;
+	
+	@Test
+	public void cepstrumMatchesReference() {
+		// The probe's default, and rates where the filterbank covers only part of the spectrum
+		int[][] configs = {{256, 8000}, {512, 8000}, {1024, 16000}, {2048, 44100}};
+		Random random = new Random(5);
+		for (int[] config : configs) {
+			int fftSize = config[0], sampleRate = config[1];
+			MFCC mfcc = new MFCC(fftSize, NUM_COEFFS, MEL_BANDS, sampleRate);
+			ReferenceMFCC reference = new ReferenceMFCC(fftSize, NUM_COEFFS, MEL_BANDS, sampleRate);
+			double[] ceps = new double[NUM_COEFFS];
+			for (int frame = 0; frame < 20; frame++) {
+				double[] re = new double[fftSize], im = new double[fftSize];
+				spectrumOfNoisyTone(random, fftSize, sampleRate, re, im);
+				double[] expected = reference.cepstrum(re, im);
+				mfcc.cepstrum(re, im, ceps);
+				for (int i = 0; i < NUM_COEFFS; i++) {
+					assertEquals(fftSize + "@" + sampleRate + " c" + i, expected[i], ceps[i], 1e-12 * (Math.abs(expected[i]) + 1));
+				}
+				assertArrayEquals(ceps, mfcc.cepstrum(re, im), 0);
+			}
+		}
+	}
+	
+	@Test
+	public void sparseFilterbankKeepsEveryWeight() {
+		MFCC mfcc = new MFCC(512, NUM_COEFFS, MEL_BANDS, 8000);
+		ReferenceMFCC reference = new ReferenceMFCC(512, NUM_COEFFS, MEL_BANDS, 8000);
+		assertArrayEquals(reference.lifterWeights, mfcc.lifterWeights, 0);
+		for (int i = 0; i < MEL_BANDS; i++) {
+			assertArrayEquals(reference.melWeights.A[i], mfcc.melWeights.A[i], 0);
+		}
+		for (int i = 0; i < NUM_COEFFS; i++) {
+			assertArrayEquals(reference.dctMat.A[i], mfcc.dctMat.A[i], 0);
+		}
+		// Each band touches only the bins between its neighbours' centers
+		int nonZero = 0;
+		for (double[] row : mfcc.melWeights.A) {
+			for (double weight : row) {
+				if (weight != 0) {
+					nonZero++;
+				}
+			}
+		}
+		assertTrue(nonZero < MEL_BANDS * 257 / 4);
+	}
+	
+	@Test
+	public void silentBandsMatchReference() {
+		// Power in a single bin, so most bands take the log of zero
+		int fftSize = 256;
+		double[] re = new double[fftSize], im = new double[fftSize];
+		re[1] = 1;
+		double[] expected = new ReferenceMFCC(fftSize, NUM_COEFFS, MEL_BANDS, 8000).cepstrum(re, im);
+		double[] ceps = new MFCC(fftSize, NUM_COEFFS, MEL_BANDS, 8000).cepstrum(re, im);
+		assertArrayEquals(expected, ceps, 0);
+	}
+	
+	private static void spectrumOfNoisyTone(Random random, int fftSize, int sampleRate, double[] re, double[] im) {
+		double frequency = 100 + random.nextDouble() * 3000;
+		for (int i = 0; i < fftSize; i++) {
+			re[i] = Math.sin(2 * Math.PI * frequency * i / sampleRate) + 0.05 * random.nextGaussian();
+		}
+		new FFT(fftSize).realFft(re, im);
+	}
+}
@@ -0,0 +1,166 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.math;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the streaming transform against framing the whole signal up front, and transforming 
+ * each frame with the original FFT.
+ */
+public class STFTTest {
+
+	@Test
+	public void fftSizeIsNextPowerOfTwo() {
+		assertEquals(2, STFT.getFftSize(2));
+		assertEquals(4, STFT.getFftSize(3));
+		assertEquals(256, STFT.getFftSize(256));
+		assertEquals(512, STFT.getFftSize(257));
+		assertEquals(512, new STFT(400, 160, Window.HAMMING).getFftSize());
+	}
+	
+	@Test
+	public void overlappingFramesMatchReference() {
+		checkAgainstReference(400, 160, Window.HAMMING);
+		checkAgainstReference(256, 128, Window.HANN);
+	}
+	
+	@Test
+	public void adjacentFramesMatchReference() {
+		checkAgainstReference(256, 256, Window.RECTANGULAR);
+	}
+	
+	@Test
+	public void hopLongerThanFrameSkipsSamples() {
+		checkAgainstReference(100, 150, Window.HAMMING);
+	}
+	
+	@Test
+	public void resetStartsNewFrame() {
+		Random random = new Random(11);
+		short[] discarded = randomSignal(random, 300);
+		short[] signal = randomSignal(random, 2000);
+		STFT stft = new STFT(256, 100, Window.HAMMING);
+		stft.write(discarded, 0, discarded.length, new FrameCollector());
+		stft.reset();
+		FrameCollector frames = new FrameCollector();
+		stft.write(signal, 0, signal.length, frames);
+		assertFramesEqual(referenceFrames(signal, 256, 100, Window.HAMMING), frames.frames);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void unknownWindowType() {
+		new STFT(256, 128, "triangle");
+	}
+	
+	@Test
+	public void windowShapes() {
+		Window hann = new Window(5, Window.HANN);
+		assertEquals(0, hann.window[0], 1e-15);
+		assertEquals(1, hann.window[2], 1e-15);
+		assertEquals(0, hann.window[4], 1e-15);
+		Window hamming = new Window(5);
+		assertEquals(0.08, hamming.window[0], 1e-15);
+		assertEquals(1, hamming.window[2], 1e-15);
+		Window rectangular = new Window(5, Window.RECTANGULAR);
+		for (double weight : rectangular.window) {
+			assertEquals(1, weight, 0);
+		}
+	}
+	
+	private static void checkAgainstReference(int frameSize, int hopSize, String windowType) {
+		Random random = new Random(frameSize * 31 + hopSize);
+		short[] signal = randomSignal(random, 8000);
+		List<double[][]> expected = referenceFrames(signal, frameSize, hopSize, windowType);
+		
+		// Written in blocks of varying size, which split frames at arbitrary points
+		STFT stft = new STFT(frameSize, hopSize, windowType);
+		FrameCollector frames = new FrameCollector();
+		int offset = 0;
+		while (offset < signal.length) {
+			int count = Math.min(signal.length - offset, 1 + random.nextInt(2 * frameSize));
+			stft.write(signal, offset, count, frames);
+			offset += count;
+		}
+		assertFramesEqual(expected, frames.frames);
+	}
+	
+	private static List<double[][]> referenceFrames(short[] signal, int frameSize, int hopSize, String windowType) {
+		int fftSize = STFT.getFftSize(frameSize);
+		double[] window = new Window(frameSize, windowType).window;
+		ReferenceFFT fft = new ReferenceFFT(fftSize);
+		List<double[][]> frames = new ArrayList<double[][]>();
+		for (int start = 0; start + frameSize <= signal.length; start += hopSize) {
+			double[] re = new double[fftSize], im = new double[fftSize];
+			for (int j = 0; j < frameSize; j++) {
+				re[j] = signal[start + j] * window[j];
+			}
+			fft.fft(re, im);
+			frames.add(new double[][] {re, im});
+		}
+		return frames;
+	}
+	
+	private static void assertFramesEqual(List<double[][]> expected, List<double[][]> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int f = 0; f < expected.size(); f++) {
+			double[] expectedRe = expected.get(f)[0], expectedIm = expected.get(f)[1];
+			double[] re = actual.get(f)[0], im = actual.get(f)[1];
+			double scale = 0;
+			for (int k = 0; k < expectedRe.length; k++) {
+				scale = Math.max(scale, Math.abs(expectedRe[k]) + Math.abs(expectedIm[k]));
+			}
+			for (int k = 0; k < expectedRe.length; k++) {
+				assertEquals("frame " + f + " re[" + k + "]", expectedRe[k], re[k], 1e-12 * scale);
+				assertEquals("frame " + f + " im[" + k + "]", expectedIm[k], im[k], 1e-12 * scale);
+			}
+		}
+	}
+	
+	private static short[] randomSignal(Random random, int length) {
+		short[] signal = new short[length];
+		for (int i = 0; i < length; i++) {
+			signal[i] = (short)(8000 * Math.sin(i * 0.05) + 2000 * random.nextGaussian());
+		}
+		return signal;
+	}
+	
+	/**
+	 * Copies each frame, since the STFT reuses its buffers.
+	 */
+	private static class FrameCollector implements STFT.FrameListener {
+		final List<double[][]> frames = new ArrayList<double[][]>();
+		
+		@Override
+		public void onFrame(double[] re, double[] im) {
+			frames.add(new double[][] {re.clone(), im.clone()});
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Floods a queue with accelerometer-sized records from several producers, much faster than 
+ * a slow consumer drains it, and checks that the heap retained by the queue stays bounded.
+ * 
+ * Producers that stand for the shared probe threads offer with mayBlock false, as 
+ * BasicPipeline does for them, and must never be parked even under the block policy.
+ * 
+ * Heap use is read from the Runtime after collecting garbage, so the bound is loose:
+ * a full queue of 10000 of these records takes about 6 MB, the test allows 16 MB.
+ */
+public class DataQueueFloodTest {
+
+	private static final int CAPACITY = 10000;
+	private static final int PRODUCERS = 4;
+	private static final int RECORDS_PER_PRODUCER = 250000;
+	private static final long HEAP_BOUND_BYTES = 16L * 1024 * 1024;
+	private static final long BLOCK_TIMEOUT_MILLIS = 10000L; // Far longer than any offer that was not parked
+	
+	@Test
+	public void dropOldestFloodStaysBounded() throws InterruptedException {
+		flood(DataQueue.OVERLOAD_DROP_OLDEST);
+	}
+	
+	@Test
+	public void downsampleFloodStaysBounded() throws InterruptedException {
+		flood(DataQueue.OVERLOAD_DOWNSAMPLE);
+	}
+	
+	@Test
+	public void blockFloodStaysBounded() throws InterruptedException {
+		flood(DataQueue.OVERLOAD_BLOCK);
+	}
+	
+	private void flood(String policy) throws InterruptedException {
+		long heapBefore = usedHeap();
+		final DataQueue queue = new DataQueue(CAPACITY, policy, BLOCK_TIMEOUT_MILLIS);
+		final AtomicBoolean producing = new AtomicBoolean(true);
+		final AtomicLong consumed = new AtomicLong(), slowestNonblockingOffer = new AtomicLong();
+		
+		Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (producing.get()) {
+					for (int i = 0; i < 100 && queue.poll() != null; i++) {
+						consumed.incrementAndGet();
+					}
+					try {
+						Thread.sleep(1); // A consumer held up by storage
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		});
+		List<Thread> producers = new ArrayList<Thread>();
+		for (int p = 0; p < PRODUCERS; p++) {
+			final String name = "probe" + p;
+			final boolean mayBlock = p == 0; // The others stand for shared probe threads
+			producers.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < RECORDS_PER_PRODUCER; i++) {
+						long start = System.nanoTime();
+						queue.offer(name, record(i), null, mayBlock);
+						long elapsed = System.nanoTime() - start;
+						if (!mayBlock && elapsed > slowestNonblockingOffer.get()) {
+							slowestNonblockingOffer.set(elapsed);
+						}
+					}
+				}
+			}));
+		}
+		consumer.start();
+		for (Thread producer : producers) {
+			producer.start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		producing.set(false);
+		consumer.join();
+		long retained = usedHeap() - heapBefore;
+		
+		int queued = queue.size();
+		long offered = (long)PRODUCERS * RECORDS_PER_PRODUCER;
+		System.out.println(String.format("%s: %d offered, %d consumed, %d dropped, %d queued, %.1f MB retained, slowest non-blocking offer %.1f ms", 
+				policy, offered, consumed.get(), queue.getDroppedTotal(), queued, 
+				retained / (1024.0 * 1024.0), slowestNonblockingOffer.get() / 1000000.0));
+		assertTrue(queued <= CAPACITY);
+		assertEquals(offered, consumed.get() + queue.getDroppedTotal() + queued);
+		assertTrue("Retained " + retained + " bytes", retained <= HEAP_BOUND_BYTES);
+		assertTrue(slowestNonblockingOffer.get() < BLOCK_TIMEOUT_MILLIS * 1000000L / 2);
+	}
+	
+	private static JsonObject record(int i) {
+		JsonObject record = new JsonObject();
+		record.addProperty("timestamp", 1400000000.0 + i * 0.01);
+		record.addProperty("accuracy", 3);
+		record.addProperty("x", 0.1 * i);
+		record.addProperty("y", 9.8);
+		record.addProperty("z", -0.3);
+		return record;
+	}
+	
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+public class DataQueueTest {
+
+	@Test
+	public void consumerIsScheduledOncePerDrain() {
+		DataQueue queue = new DataQueue(0, DataQueue.OVERLOAD_DROP_OLDEST, 0);
+		assertTrue(queue.offer("a", record(0), null, true));
+		assertFalse(queue.offer("a", record(1), null, true));
+		assertEquals(0, queue.poll().getRecord().get("i").getAsInt());
+		assertFalse(queue.offer("a", record(2), null, true));
+		assertEquals(1, queue.poll().getRecord().get("i").getAsInt());
+		assertEquals(2, queue.poll().getRecord().get("i").getAsInt());
+		assertNull(queue.poll());
+		assertTrue(queue.offer("a", record(3), null, true));
+	}
+	
+	@Test
+	public void unboundedQueueNeverDrops() {
+		DataQueue queue = new DataQueue(0, DataQueue.OVERLOAD_DROP_OLDEST, 0);
+		for (int i = 0; i < 10000; i++) {
+			queue.offer("a", record(i), null, true);
+		}
+		assertEquals(10000, queue.size());
+		assertEquals(0, queue.getDroppedTotal());
+	}
+	
+	@Test
+	public void dropOldest() {
+		DataQueue queue = new DataQueue(3, DataQueue.OVERLOAD_DROP_OLDEST, 0);
+		for (int i = 0; i < 5; i++) {
+			queue.offer(i % 2 == 0 ? "a" : "b", record(i), null, true);
+		}
+		assertEquals(Arrays.asList(2, 3, 4), drain(queue));
+		assertEquals(2, queue.getDroppedTotal());
+		assertEquals(Integer.valueOf(1), queue.getDroppedCounts().get("a"));
+		assertEquals(Integer.valueOf(1), queue.getDroppedCounts().get("b"));
+	}
+	
+	@Test
+	public void nullPolicyDropsOldest() {
+		DataQueue queue = new DataQueue(2, null, 0);
+		for (int i = 0; i < 4; i++) {
+			queue.offer("a", record(i), null, true);
+		}
+		assertEquals(Arrays.asList(2, 3), drain(queue));
+	}
+	
+	@Test
+	public void downsampleThinsBusiestProbe() {
+		DataQueue queue = new DataQueue(6, DataQueue.OVERLOAD_DOWNSAMPLE, 0);
+		for (int i = 0; i < 5; i++) {
+			queue.offer("accel", record(i), null, true);
+		}
+		queue.offer("gps", record(100), null, true);
+		queue.offer("accel", record(5), null, true);
+		// Every other accelerometer record is dropped, gps keeps its record
+		assertEquals(Arrays.asList(0, 2, 4, 100, 5), drain(queue));
+		assertEquals(2, queue.getDroppedTotal());
+		assertEquals(Integer.valueOf(2), queue.getDroppedCounts().get("accel"));
+		assertNull(queue.getDroppedCounts().get("gps"));
+	}
+	
+	@Test
+	public void downsampleKeepsCountsAcrossPolls() {
+		DataQueue queue = new DataQueue(4, DataQueue.OVERLOAD_DOWNSAMPLE, 0);
+		queue.offer("accel", record(0), null, true);
+		queue.offer("accel", record(1), null, true);
+		queue.offer("gps", record(100), null, true);
+		queue.offer("gps", record(101), null, true);
+		queue.poll();
+		queue.poll();
+		queue.offer("wifi", record(200), null, true);
+		queue.offer("wifi", record(201), null, true);
+		// Both accelerometer records were polled, so gps and wifi tie and one of them is thinned
+		queue.offer("gps", record(102), null, true);
+		assertEquals(4, queue.size());
+		assertEquals(1, queue.getDroppedTotal());
+		assertNull(queue.getDroppedCounts().get("accel"));
+	}
+	
+	@Test
+	public void downsampleFallsBackToDropOldest() {
+		DataQueue queue = new DataQueue(3, DataQueue.OVERLOAD_DOWNSAMPLE, 0);
+		queue.offer("a", record(0), null, true);
+		queue.offer("b", record(1), null, true);
+		queue.offer("c", record(2), null, true);
+		queue.offer("d", record(3), null, true);
+		assertEquals(Arrays.asList(1, 2, 3), drain(queue));
+		assertEquals(Integer.valueOf(1), queue.getDroppedCounts().get("a"));
+	}
+	
+	@Test
+	public void blockWaitsForConsumer() throws InterruptedException {
+		final DataQueue queue = new DataQueue(1, DataQueue.OVERLOAD_BLOCK, 10000);
+		queue.offer("a", record(0), null, true);
+		final CountDownLatch offered = new CountDownLatch(1);
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				queue.offer("a", record(1), null, true);
+				offered.countDown();
+			}
+		};
+		producer.start();
+		assertFalse(offered.await(100, TimeUnit.MILLISECONDS));
+		assertEquals(0, queue.poll().getRecord().get("i").getAsInt());
+		assertTrue(offered.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList(1), drain(queue));
+		assertEquals(0, queue.getDroppedTotal());
+	}
+	
+	@Test
+	public void blockDropsOldestAfterTimeout() {
+		DataQueue queue = new DataQueue(1, DataQueue.OVERLOAD_BLOCK, 100);
+		queue.offer("a", record(0), null, true);
+		long start = System.currentTimeMillis();
+		queue.offer("a", record(1), null, true);
+		assertTrue(System.currentTimeMillis() - start >= 100);
+		assertEquals(Arrays.asList(1), drain(queue));
+		assertEquals(1, queue.getDroppedTotal());
+	}
+	
+	@Test
+	public void blockDoesNotWaitWhenCallerMayNotBlock() {
+		DataQueue queue = new DataQueue(1, DataQueue.OVERLOAD_BLOCK, 10000);
+		queue.offer("a", record(0), null, true);
+		long start = System.currentTimeMillis();
+		queue.offer("a", record(1), null, false);
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(Arrays.asList(1), drain(queue));
+		assertEquals(1, queue.getDroppedTotal());
+	}
+	
+	private static JsonObject record(int i) {
+		JsonObject record = new JsonObject();
+		record.addProperty("i", i);
+		return record;
+	}
+	
+	private static List<Integer> drain(DataQueue queue) {
+		List<Integer> values = new ArrayList<Integer>();
+		DataQueue.Entry entry;
+		while ((entry = queue.poll()) != null) {
+			values.add(entry.getRecord().get("i").getAsInt());
+		}
+		return values;
+	}
+}
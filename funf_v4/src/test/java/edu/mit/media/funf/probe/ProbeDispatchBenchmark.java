@@ -0,0 +1,160 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.probe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.ContextWrapper;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+
+import edu.mit.media.funf.FunfManager;
+import edu.mit.media.funf.json.IJsonObject;
+import edu.mit.media.funf.json.JsonUtils;
+
+/**
+ * Cost of finding the probe and its requests when a probe alarm goes off, for a dozen probes 
+ * configured like the sample pipelines.
+ * 
+ * "config" is how FunfManager dispatched alarms before the registry: the alarm carried the 
+ * probe's complete JSON config, which was parsed, made immutable, turned back into the probe 
+ * by gson, and used as the key of the request map.  "registry" is how it dispatches them now: 
+ * the alarm carries the probe's id, which is looked up in the registry and the request map.
+ * Decoding the alarm Uri is left out of both, though the config path also paid more for it.
+ */
+public class ProbeDispatchBenchmark {
+
+	private static final int ALARMS = 10000;
+	private static final String[] CONFIGS = {
+		"{\"@type\":\"edu.mit.media.funf.probe.builtin.AccelerometerSensorProbe\",\"sensorDelay\":\"GAME\"}",
+		"{\"@type\":\"edu.mit.media.funf.probe.builtin.AccelerometerFeaturesProbe\",\"frameDuration\":2.0}",
+		"{\"@type\":\"edu.mit.media.funf.probe.builtin.ActivityProbe\",\"interval\":5.0}",
+		"{\"@type\":\"edu.mit.media.funf.probe.builtin.AudioFeaturesProbe\",\"sampleRate\":16000}",
+		"{\"@type\":\"edu.mit.media.funf.probe.builtin.GravitySensorProbe\"}",
+		"{\"@type\":\"edu.mit.media.funf.probe.builtin.GyroscopeSensorProbe\",\"sensorDelay\":\"NORMAL\"}",
+		"{\"@type\":\"edu.mit.media.funf.probe.builtin.LightSensorProbe\"}",
+		"{\"@type\":\"edu.mit.media.funf.probe.builtin.MagneticFieldSensorProbe\"}",
+		"{\"@type\":\"edu.mit.media.funf.probe.builtin.PressureSensorProbe\"}",
+		"{\"@type\":\"edu.mit.media.funf.probe.builtin.ProximitySensorProbe\"}",
+		"{\"@type\":\"edu.mit.media.funf.probe.builtin.RotationVectorSensorProbe\"}",
+		"{\"@type\":\"edu.mit.media.funf.probe.builtin.TimeOffsetProbe\"}"
+	};
+	
+	private Gson gson;
+	private JsonParser parser;
+	private ProbeRegistry registry;
+	private Map<IJsonObject,List<Object>> requestsByConfig;
+	private Map<String,List<Object>> requestsById;
+	private String[] configAlarms, idAlarms;
+	private int dispatched;
+	private Probe[] probes, configProbes;
+	
+	@Before
+	public void setUp() {
+		gson = FunfManager.getGsonBuilder(new ContextWrapper(null)).create();
+		parser = new JsonParser();
+		registry = new ProbeRegistry();
+		requestsByConfig = new HashMap<IJsonObject,List<Object>>();
+		requestsById = new HashMap<String,List<Object>>();
+		probes = new Probe[CONFIGS.length];
+		configProbes = new Probe[CONFIGS.length];
+		configAlarms = new String[CONFIGS.length];
+		idAlarms = new String[CONFIGS.length];
+		for (int i = 0; i < CONFIGS.length; i++) {
+			// Registered like FunfManager.requestData, with the complete config of the probe
+			probes[i] = gson.fromJson(CONFIGS[i], Probe.class);
+			IJsonObject completeConfig = (IJsonObject)JsonUtils.immutable(gson.toJsonTree(probes[i]));
+			ProbeRegistry.Entry entry = registry.register(completeConfig, probes[i]);
+			List<Object> requests = new ArrayList<Object>();
+			requests.add(new Object());
+			requestsByConfig.put(completeConfig, requests);
+			requestsById.put(entry.getId(), requests);
+			configAlarms[i] = completeConfig.toString();
+			idAlarms[i] = entry.getId();
+			// gson caches probes by config text, so the complete config gave its own probe on the first alarm
+			configProbes[i] = gson.fromJson(completeConfig, Probe.class);
+		}
+	}
+	
+	@Test
+	public void dispatchAlarms() {
+		for (int p = 0; p < CONFIGS.length; p++) {
+			assertSame(configProbes[p], dispatchByConfig(p));
+			assertSame(probes[p], dispatchById(p));
+		}
+		// Warm up both paths, then measure each
+		timeDispatchByConfig();
+		timeDispatchById();
+		long configNanos = timeDispatchByConfig();
+		long idNanos = timeDispatchById();
+		System.out.println(String.format("%d probe alarms, %d probes: config %.2fus per dispatch, registry %.3fus per dispatch",
+				ALARMS, CONFIGS.length, configNanos / 1000.0 / ALARMS, idNanos / 1000.0 / ALARMS));
+		assertEquals(ALARMS, dispatched);
+		assertTrue(idNanos * 10 < configNanos);
+	}
+	
+	private long timeDispatchByConfig() {
+		dispatched = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < ALARMS; i++) {
+			dispatchByConfig(i % CONFIGS.length);
+		}
+		return System.nanoTime() - start;
+	}
+	
+	private long timeDispatchById() {
+		dispatched = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < ALARMS; i++) {
+			dispatchById(i % CONFIGS.length);
+		}
+		return System.nanoTime() - start;
+	}
+	
+	private Probe dispatchByConfig(int p) {
+		IJsonObject probeConfig = (IJsonObject)JsonUtils.immutable(parser.parse(configAlarms[p]));
+		Probe probe = gson.fromJson(probeConfig, Probe.class);
+		List<Object> requests = requestsByConfig.get(probeConfig);
+		dispatched += requests.size();
+		return probe;
+	}
+	
+	private Probe dispatchById(int p) {
+		ProbeRegistry.Entry entry = registry.get(idAlarms[p]);
+		List<Object> requests = requestsById.get(entry.getId());
+		dispatched += requests.size();
+		return entry.getProbe();
+	}
+}
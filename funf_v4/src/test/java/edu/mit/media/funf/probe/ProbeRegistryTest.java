@@ -0,0 +1,163 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.probe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import edu.mit.media.funf.json.IJsonObject;
+
+public class ProbeRegistryTest {
+
+	private ProbeRegistry registry;
+	
+	@Before
+	public void setUp() {
+		registry = new ProbeRegistry();
+	}
+	
+	@Test
+	public void fingerprintIsFnv1aOfCharacters() {
+		assertEquals(0xcbf29ce484222325L, ProbeRegistry.fingerprint(""));
+		// Low then high byte of each character
+		assertEquals(0x089be207b544f1e4L, ProbeRegistry.fingerprint("a"));
+	}
+	
+	@Test
+	public void sameConfigGetsSameId() {
+		ProbeRegistry.Entry entry = registry.register(config("{\"@type\":\"Accel\",\"sensorDelay\":\"FASTEST\"}"), new StubProbe());
+		ProbeRegistry.Entry again = registry.register(config("{\"@type\":\"Accel\",\"sensorDelay\":\"FASTEST\"}"), new StubProbe());
+		assertSame(entry, again);
+		
+		// Ids only depend on the config, so they survive a restart
+		ProbeRegistry restarted = new ProbeRegistry();
+		ProbeRegistry.Entry afterRestart = restarted.register(config("{\"@type\":\"Accel\",\"sensorDelay\":\"FASTEST\"}"), new StubProbe());
+		assertEquals(entry.getId(), afterRestart.getId());
+		assertEquals(Long.toHexString(entry.getFingerprint()), entry.getId());
+	}
+	
+	@Test
+	public void differentConfigsGetDifferentIds() {
+		Set<String> ids = new HashSet<String>();
+		for (int i = 0; i < 1000; i++) {
+			ids.add(registry.register(config("{\"@type\":\"Accel\",\"period\":" + i + "}"), new StubProbe()).getId());
+		}
+		assertEquals(1000, ids.size());
+		assertEquals(1000, registry.getAll().size());
+	}
+	
+	@Test
+	public void lookupsReturnRegisteredEntry() {
+		IJsonObject config = config("{\"@type\":\"Wifi\"}");
+		Probe probe = new StubProbe();
+		ProbeRegistry.Entry entry = registry.register(config, probe);
+		assertSame(entry, registry.get(entry.getId()));
+		assertSame(entry, registry.get(config("{\"@type\":\"Wifi\"}")));
+		assertSame(entry, registry.get(probe));
+		assertSame(config, entry.getConfig());
+		assertSame(probe, entry.getProbe());
+		assertNull(registry.get(new StubProbe()));
+		assertNull(registry.get("0"));
+		
+		registry.clear();
+		assertNull(registry.get(entry.getId()));
+		assertNull(registry.get(config));
+		assertNull(registry.get(probe));
+		assertEquals(0, registry.getAll().size());
+	}
+	
+	@Test
+	public void concurrentRegistrationsShareEntry() throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<ProbeRegistry.Entry> first = new AtomicReference<ProbeRegistry.Entry>();
+		final AtomicReference<ProbeRegistry.Entry> mismatch = new AtomicReference<ProbeRegistry.Entry>();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					ProbeRegistry.Entry entry = registry.register(config("{\"@type\":\"Battery\"}"), new StubProbe());
+					if (!first.compareAndSet(null, entry) && first.get() != entry) {
+						mismatch.set(entry);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertNull(mismatch.get());
+		List<ProbeRegistry.Entry> all = registry.getAll();
+		assertEquals(1, all.size());
+		assertFalse(all.get(0).getId().length() == 0);
+	}
+	
+	private static IJsonObject config(String json) {
+		return new IJsonObject((JsonObject)new JsonParser().parse(json));
+	}
+	
+	private static class StubProbe implements Probe {
+		@Override
+		public void registerListener(DataListener... listener) {
+		}
+
+		@Override
+		public void destroy() {
+		}
+
+		@Override
+		public State getState() {
+			return State.DISABLED;
+		}
+
+		@Override
+		public void addStateListener(StateListener listener) {
+		}
+
+		@Override
+		public void removeStateListener(StateListener listener) {
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.probe;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import edu.mit.media.funf.json.IJsonObject;
+import edu.mit.media.funf.probe.Probe.DataListener;
+import edu.mit.media.funf.probe.builtin.AccelerometerSensorProbe;
+import edu.mit.media.funf.probe.builtin.ProbeKeys.SensorKeys;
+import edu.mit.media.funf.probe.builtin.SensorProbe.SampleBuffer;
+import edu.mit.media.funf.probe.builtin.SensorProbe.SensorDataListener;
+
+public class SamplingTest {
+
+	private static final double START = 1400000000.0; // Timestamps are in seconds
+	
+	@Test
+	public void everyKeepsEveryNthSample() {
+		RecordingListener listener = new RecordingListener();
+		DataListener sampled = new Sampling(0, 3, 0).wrap(null, listener);
+		for (int i = 0; i < 9; i++) {
+			sampled.onDataReceived(null, record(START + i, i));
+		}
+		assertEquals(Arrays.asList(0.0, 3.0, 6.0), listener.values("x"));
+	}
+	
+	@Test
+	public void maxRateDropsSamplesTooCloseToTheLastDelivered() {
+		RecordingListener listener = new RecordingListener();
+		DataListener sampled = new Sampling(2, 1, 0).wrap(null, listener);
+		for (int i = 0; i < 20; i++) {
+			sampled.onDataReceived(null, record(START + i * 0.25, i));
+		}
+		assertEquals(10, listener.records.size());
+		assertEquals(Arrays.asList(0.0, 2.0, 4.0), listener.values("x").subList(0, 3));
+	}
+	
+	@Test
+	public void bucketAveragesSensorValuesOnly() {
+		RecordingListener listener = new RecordingListener();
+		DataListener sampled = new Sampling(0, 1, 1, Arrays.asList("x")).wrap(null, listener);
+		for (int i = 0; i < 8; i++) {
+			JsonObject data = json(START + i * 0.25, i);
+			data.addProperty("id", 100 + i);
+			data.addProperty("type", 2);
+			sampled.onDataReceived(null, IJsonObject.view(data));
+		}
+		sampled.onDataCompleted(null, null);
+		assertEquals(2, listener.records.size());
+		assertEquals(Arrays.asList(1.5, 5.5), listener.values("x"));
+		assertEquals(Arrays.asList(103.0, 107.0), listener.values("id")); // Latest, not averaged
+		assertEquals(Arrays.asList(2.0, 2.0), listener.values("type"));
+		assertEquals(Arrays.asList(START, START + 1), listener.values(SensorKeys.TIMESTAMP));
+	}
+	
+	@Test
+	public void bucketDoesNotAverageUnlistedNumbersByDefault() {
+		RecordingListener listener = new RecordingListener();
+		DataListener sampled = new Sampling(0, 1, 1).wrap(null, listener);
+		sampled.onDataReceived(null, record(START, 1));
+		sampled.onDataReceived(null, record(START + 0.5, 3));
+		sampled.onDataCompleted(null, null);
+		assertEquals(Arrays.asList(3.0), listener.values("x"));
+	}
+	
+	@Test
+	public void missingTimestampUsesTheSameClockAsTimestamps() {
+		RecordingListener listener = new RecordingListener();
+		DataListener sampled = new Sampling(1, 1, 0).wrap(null, listener);
+		double now = System.currentTimeMillis() / 1000.0;
+		JsonObject untimed = new JsonObject();
+		untimed.addProperty("x", 0);
+		sampled.onDataReceived(null, IJsonObject.view(untimed));
+		sampled.onDataReceived(null, record(now + 0.25, 1)); // Within a second of the untimed record
+		sampled.onDataReceived(null, record(now + 5, 2));
+		assertEquals(Arrays.asList(0.0, 2.0), listener.values("x"));
+	}
+	
+	@Test
+	public void missingTimestampFallsInTheCurrentBucket() {
+		RecordingListener listener = new RecordingListener();
+		DataListener sampled = new Sampling(0, 1, 3600, Arrays.asList("x")).wrap(null, listener);
+		double now = System.currentTimeMillis() / 1000.0;
+		sampled.onDataReceived(null, record(now, 1));
+		JsonObject untimed = new JsonObject();
+		untimed.addProperty("x", 3);
+		sampled.onDataReceived(null, IJsonObject.view(untimed));
+		sampled.onDataCompleted(null, null);
+		// Unless the hour turned over between the two records
+		assertEquals(1, listener.records.size());
+		assertEquals(Arrays.asList(2.0), listener.values("x"));
+	}
+	
+	@Test
+	public void sensorSamplesAreFilteredFromTheBuffer() {
+		AccelerometerSensorProbe probe = new AccelerometerSensorProbe();
+		SampleBuffer samples = new SampleBuffer(4, probe.getValueNames().length);
+		RecordingListener listener = new RecordingListener();
+		SensorDataListener sampled = (SensorDataListener)new Sampling(0, 2, 0).wrap(probe, listener);
+		for (int i = 0; i < 6; i++) {
+			int index = samples.put(i * 1000000L, 3, new float[] {i, 0, 0});
+			sampled.onSensorDataReceived(null, samples, index);
+		}
+		assertEquals(Arrays.asList(0.0, 2.0, 4.0), listener.values("x"));
+	}
+	
+	@Test
+	public void sensorBucketAveragesValuesAndKeepsLowestAccuracy() {
+		AccelerometerSensorProbe probe = new AccelerometerSensorProbe();
+		SampleBuffer samples = new SampleBuffer(4, probe.getValueNames().length);
+		RecordingListener listener = new RecordingListener();
+		SensorDataListener sampled = (SensorDataListener)new Sampling(0, 1, 1).wrap(probe, listener);
+		for (int i = 0; i < 4; i++) {
+			int index = samples.put(i * 250000000L, 3 - i % 2, new float[] {i, 2 * i, 1});
+			sampled.onSensorDataReceived(null, samples, index);
+		}
+		sampled.onDataCompleted(null, null);
+		assertEquals(1, listener.records.size());
+		assertEquals(Arrays.asList(1.5), listener.values("x"));
+		assertEquals(Arrays.asList(3.0), listener.values("y"));
+		assertEquals(Arrays.asList(1.0), listener.values("z"));
+		assertEquals(Arrays.asList(2.0), listener.values(SensorKeys.ACCURACY));
+	}
+	
+	private static IJsonObject record(double timestamp, double x) {
+		return IJsonObject.view(json(timestamp, x));
+	}
+	
+	private static JsonObject json(double timestamp, double x) {
+		JsonObject data = new JsonObject();
+		data.addProperty(SensorKeys.TIMESTAMP, timestamp);
+		data.addProperty("x", x);
+		return data;
+	}
+	
+	static class RecordingListener implements DataListener {
+		
+		final List<IJsonObject> records = new ArrayList<IJsonObject>();
+		
+		List<Double> values(String member) {
+			List<Double> values = new ArrayList<Double>();
+			for (IJsonObject record : records) {
+				values.add(record.get(member).getAsDouble());
+			}
+			return values;
+		}
+		
+		@Override
+		public void onDataReceived(IJsonObject probeConfig, IJsonObject data) {
+			records.add(data);
+		}
+
+		@Override
+		public void onDataCompleted(IJsonObject probeConfig, JsonElement checkpoint) {
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.probe.builtin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the streaming frame features against the original two pass computation,
+ * which is kept below with a direct DFT in place of the FFT.
+ */
+public class AccelerometerFeaturesProbeTest {
+
+	// Defaults of the probe
+	private static final int FRAME_BUFFER_SIZE = 100;
+	private static final int FFT_SIZE = 128;
+	private static final double[] FREQ_BAND_EDGES = {0,1,3,6,10};
+	private static final double SENSOR_MAX_RATE = 100.0;
+	
+	@Test
+	public void featuresMatchOriginalComputation() {
+		int[] bandIdx = getBandIndices();
+		AccelerometerFeaturesProbe.FeatureFrame frame = new AccelerometerFeaturesProbe.FeatureFrame(3, FRAME_BUFFER_SIZE, FFT_SIZE, bandIdx);
+		Random random = new Random(7);
+		double t = 0;
+		for (int f = 0; f < 200; f++) {
+			// Every length a frame can close at, from a single sample up to a full buffer
+			int n = 1 + (f % (FRAME_BUFFER_SIZE - 1));
+			double[][] samples = new double[n][3];
+			for (int j = 0; j < n; j++, t += 0.02) {
+				// Walking on a gravity offset, with sensor noise rounded to float
+				samples[j][0] = (float)(0.8 * Math.sin(2 * Math.PI * 2 * t) + 0.1 * random.nextGaussian());
+				samples[j][1] = (float)(0.4 * Math.sin(2 * Math.PI * 4 * t + 1) + 0.1 * random.nextGaussian());
+				samples[j][2] = (float)(9.81 + 0.6 * Math.cos(2 * Math.PI * 2 * t) + 0.1 * random.nextGaussian());
+				for (int i = 0; i < 3; i++) {
+					frame.add(i, samples[j][i]);
+				}
+				frame.commitSample();
+			}
+			assertEquals(n, frame.getCount());
+			frame.close();
+			for (int i = 0; i < 3; i++) {
+				ReferenceFeatures expected = new ReferenceFeatures(samples, n, i, bandIdx);
+				assertClose(expected.mean, frame.mean[i]);
+				assertClose(expected.absoluteCentralMoment, frame.absoluteCentralMoment[i]);
+				assertClose(expected.standardDeviation, frame.standardDeviation[i]);
+				assertClose(expected.maxDeviation, frame.maxDeviation[i]);
+				assertEquals(expected.psdAcrossFrequencyBands.length, frame.psdAcrossFrequencyBands[i].length);
+				for (int b = 0; b < expected.psdAcrossFrequencyBands.length; b++) {
+					assertClose(expected.psdAcrossFrequencyBands[b], frame.psdAcrossFrequencyBands[i][b]);
+				}
+			}
+			frame.reset();
+		}
+	}
+	
+	@Test
+	public void constantSignalHasNoDeviationOrPower() {
+		AccelerometerFeaturesProbe.FeatureFrame frame = new AccelerometerFeaturesProbe.FeatureFrame(1, FRAME_BUFFER_SIZE, FFT_SIZE, getBandIndices());
+		for (int j = 0; j < 50; j++) {
+			frame.add(0, 9.81);
+			frame.commitSample();
+		}
+		frame.close();
+		assertEquals(9.81, frame.mean[0], 1e-12);
+		assertEquals(0, frame.standardDeviation[0], 1e-12);
+		assertEquals(0, frame.absoluteCentralMoment[0], 1e-12);
+		assertEquals(0, frame.maxDeviation[0], 1e-12);
+		for (double power : frame.psdAcrossFrequencyBands[0]) {
+			assertEquals(0, power, 1e-20);
+		}
+	}
+	
+	@Test
+	public void resetClearsPreviousFrame() {
+		AccelerometerFeaturesProbe.FeatureFrame frame = new AccelerometerFeaturesProbe.FeatureFrame(1, FRAME_BUFFER_SIZE, FFT_SIZE, getBandIndices());
+		for (int j = 0; j < 80; j++) {
+			frame.add(0, j);
+			frame.commitSample();
+		}
+		frame.close();
+		frame.reset();
+		frame.add(0, -2);
+		frame.commitSample();
+		frame.add(0, 2);
+		frame.commitSample();
+		frame.close();
+		assertEquals(2, frame.getCount());
+		assertEquals(0, frame.mean[0], 1e-12);
+		assertEquals(2, frame.standardDeviation[0], 1e-12);
+		assertEquals(2, frame.maxDeviation[0], 1e-12);
+	}
+	
+	private static int[] getBandIndices() {
+		int[] freqBandIdx = new int[FREQ_BAND_EDGES.length];
+		for (int i = 0; i < FREQ_BAND_EDGES.length; i ++) {
+			freqBandIdx[i] = Math.round((float)FREQ_BAND_EDGES[i]*((float)FFT_SIZE/(float)SENSOR_MAX_RATE));
+		}
+		return freqBandIdx;
+	}
+	
+	private static void assertClose(double expected, double actual) {
+		assertTrue(expected + " != " + actual, Math.abs(expected - actual) <= 1e-9 * (Math.abs(expected) + 1));
+	}
+	
+	/**
+	 * The features of one axis as the probe computed them before they were streamed.
+	 */
+	private static class ReferenceFeatures {
+		double mean, absoluteCentralMoment, standardDeviation, maxDeviation;
+		double[] psdAcrossFrequencyBands;
+		
+		ReferenceFeatures(double[][] frameBuffer, int frameSamples, int i, int[] freqBandIdx) {
+			double fN = frameSamples;
+			mean = 0;
+			for (int j = 0; j < frameSamples; j ++)
+				mean += frameBuffer[j][i];
+			mean /= fN;
+			
+			double accum = 0;
+			for (int j = 0; j < frameSamples; j ++)
+				accum += Math.abs(frameBuffer[j][i] - mean);
+			absoluteCentralMoment = accum/fN;
+			
+			accum = 0;
+			for (int j = 0; j < frameSamples; j ++)
+				accum += (frameBuffer[j][i] - mean)*(frameBuffer[j][i] - mean);
+			standardDeviation = Math.sqrt(accum/fN);
+			
+			accum = 0;
+			for (int j = 0; j < frameSamples; j ++)
+				accum = Math.max(Math.abs(frameBuffer[j][i] - mean),accum);
+			maxDeviation = accum;
+			
+			// Hamming window over the frame buffer, zero padded to the FFT size
+			double[] buffer = new double[FFT_SIZE];
+			for (int j = 0; j < frameSamples; j++) {
+				double window = 0.54 - 0.46*Math.cos(2*Math.PI*(double)j/((double)FRAME_BUFFER_SIZE-1));
+				buffer[j] = (frameBuffer[j][i] - mean) * window;
+			}
+			
+			psdAcrossFrequencyBands = new double[freqBandIdx.length - 1];
+			for (int b = 0; b < psdAcrossFrequencyBands.length; b ++) {
+				int j = freqBandIdx[b];
+				int k = freqBandIdx[b+1];
+				accum = 0;
+				for (int h = j; h < k; h ++) {
+					double re = 0, im = 0;
+					for (int s = 0; s < FFT_SIZE; s++) {
+						double angle = -2 * Math.PI * h * s / FFT_SIZE;
+						re += buffer[s] * Math.cos(angle);
+						im += buffer[s] * Math.sin(angle);
+					}
+					accum += re*re + im*im;
+				}
+				psdAcrossFrequencyBands[b] = accum/((double)(k - j));
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.probe.builtin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import edu.mit.media.funf.probe.builtin.SensorProbe.SampleBuffer;
+
+/**
+ * Hands samples from a writer thread to a reader thread through a small {@link SampleBuffer},
+ * so that the writer keeps overwriting the slots the reader is copying.
+ * 
+ * Every field of a sample is derived from its sequence number, so any sample that 
+ * {@link SampleBuffer#copy(int, int, SampleBuffer, int)} reports as valid must be internally 
+ * consistent.  A torn sample mixes the fields of two writes.
+ */
+public class SampleBufferConcurrencyTest {
+
+	private static final int CAPACITY = 4;
+	private static final int VALUES = 8;
+	private static final long WRITES = 2000000L;
+	
+	@Test
+	public void testCopiedSamplesAreNeverTorn() throws InterruptedException {
+		final SampleBuffer samples = new SampleBuffer(CAPACITY, VALUES);
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicLong copied = new AtomicLong(), rejected = new AtomicLong(), torn = new AtomicLong();
+		
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				float[] values = new float[VALUES];
+				for (long sequence = 0; sequence < WRITES; sequence++) {
+					for (int i = 0; i < VALUES; i++) {
+						values[i] = (float)(sequence % 1000000L) + i;
+					}
+					samples.put(sequence, (int)sequence, values);
+				}
+				done.set(true);
+			}
+		});
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				SampleBuffer target = new SampleBuffer(1, VALUES);
+				while (!done.get()) {
+					for (int index = 0; index < CAPACITY; index++) {
+						long sequence = samples.getSequence(index);
+						if (sequence == SampleBuffer.WRITING) {
+							continue;
+						}
+						if (!samples.copy(index, (int)sequence, target, 0)) {
+							rejected.incrementAndGet();
+							continue;
+						}
+						copied.incrementAndGet();
+						if (!isConsistent(target, sequence)) {
+							torn.incrementAndGet();
+						}
+					}
+				}
+			}
+		});
+		reader.start();
+		writer.start();
+		writer.join();
+		reader.join();
+		
+		assertTrue("Reader never copied a sample", copied.get() > 0);
+		assertEquals("Torn samples out of " + copied.get() + " copied, " + rejected.get() + " rejected", 0L, torn.get());
+	}
+	
+	@Test
+	public void testCopyFailsForOverwrittenSample() {
+		SampleBuffer samples = new SampleBuffer(2, 1);
+		SampleBuffer target = new SampleBuffer(1, 1);
+		int first = samples.put(10L, 0, new float[] {1f});
+		samples.put(20L, 0, new float[] {2f});
+		assertTrue(samples.copy(first, 0, target, 0));
+		assertEquals(10L, target.getTimestampNanos(0));
+		assertEquals(1f, target.getValue(0, 0), 0f);
+		samples.put(30L, 0, new float[] {3f}); // Overwrites sequence 0 with 2
+		assertEquals(false, samples.copy(first, 0, target, 0));
+	}
+	
+	private static boolean isConsistent(SampleBuffer sample, long sequence) {
+		if (sample.getSequence(0) != sequence
+				|| sample.getTimestampNanos(0) != sequence
+				|| sample.getAccuracy(0) != (int)sequence
+				|| sample.getValueCount(0) != VALUES) {
+			return false;
+		}
+		for (int i = 0; i < VALUES; i++) {
+			if (sample.getValue(0, i) != (float)(sequence % 1000000L) + i) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
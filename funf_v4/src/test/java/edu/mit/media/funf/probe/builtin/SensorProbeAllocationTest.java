@@ -0,0 +1,131 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.probe.builtin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.reflect.Method;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+import edu.mit.media.funf.json.IJsonObject;
+import edu.mit.media.funf.probe.builtin.SensorProbe.SampleBuffer;
+
+/**
+ * Counts the bytes allocated for each sensor event on the primitive sample path of 
+ * {@link SensorProbe}, and on the JSON path used for listeners that need a JsonObject.
+ * 
+ * Both paths buffer the event and copy it out for dispatch.  The JSON path then builds the 
+ * sample as JSON, and wraps it in the IJsonObject view that sendData hands to listeners.
+ * 
+ * Allocations are counted with the ThreadMXBean of the HotSpot JVM the unit tests run on.  It is 
+ * looked up by reflection, since java.lang.management is not part of the Android API the tests 
+ * are compiled against.
+ */
+public class SensorProbeAllocationTest {
+
+	private static final int WARMUP_EVENTS = 20000;
+	private static final int EVENTS = 10000;
+	
+	private Object threads;
+	private Method getThreadAllocatedBytes;
+	private AccelerometerSensorProbe probe;
+	private SampleBuffer sampleBuffer, dispatchBuffer;
+	private float[] values = new float[] {0.1f, 9.8f, -0.3f};
+	private double primitiveSum;
+	private IJsonObject lastJson;
+	
+	@Before
+	public void setUp() throws Exception {
+		try {
+			threads = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+			Class<?> threadsClass = Class.forName("com.sun.management.ThreadMXBean");
+			assumeTrue(threadsClass.isInstance(threads) 
+					&& (Boolean)threadsClass.getMethod("isThreadAllocatedMemorySupported").invoke(threads));
+			threadsClass.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(threads, true);
+			getThreadAllocatedBytes = threadsClass.getMethod("getThreadAllocatedBytes", long.class);
+		} catch (ClassNotFoundException e) {
+			assumeTrue(false); // Not a HotSpot JVM
+		}
+		probe = new AccelerometerSensorProbe();
+		sampleBuffer = new SampleBuffer(256, probe.getValueNames().length);
+		dispatchBuffer = new SampleBuffer(1, probe.getValueNames().length);
+	}
+	
+	@Test
+	public void primitivePathDoesNotAllocate() throws Exception {
+		sendPrimitive(WARMUP_EVENTS);
+		sendJson(WARMUP_EVENTS);
+		long measurementOverhead = allocatedBytes() - allocatedBytes();
+		
+		long start = allocatedBytes();
+		sendPrimitive(EVENTS);
+		long primitiveBytes = allocatedBytes() - start - measurementOverhead;
+		
+		start = allocatedBytes();
+		sendJson(EVENTS);
+		long jsonBytes = allocatedBytes() - start - measurementOverhead;
+		
+		System.out.println(String.format("primitive: %.1f bytes/event, json: %.1f bytes/event", 
+				(double)primitiveBytes / EVENTS, (double)jsonBytes / EVENTS));
+		assertEquals(0, primitiveBytes / EVENTS);
+		assertTrue(jsonBytes / EVENTS > 100);
+	}
+	
+	private long allocatedBytes() throws Exception {
+		return (Long)getThreadAllocatedBytes.invoke(threads, Thread.currentThread().getId());
+	}
+	
+	private void sendPrimitive(int events) {
+		for (int i = 0; i < events; i++) {
+			int index = dispatch(i);
+			for (int v = 0; v < dispatchBuffer.getValueCount(index); v++) {
+				primitiveSum += dispatchBuffer.getValue(index, v);
+			}
+		}
+	}
+	
+	private void sendJson(int events) {
+		for (int i = 0; i < events; i++) {
+			int index = dispatch(i);
+			JsonObject data = probe.getSampleAsJson(dispatchBuffer, index);
+			lastJson = IJsonObject.view(data);
+		}
+	}
+	
+	/**
+	 * Buffers a sensor event as the sensor thread does, and copies it out as the probe thread does.
+	 */
+	private int dispatch(int event) {
+		values[0] = event;
+		int index = sampleBuffer.put(1000000L * event, 3, values);
+		assertTrue(sampleBuffer.copy(index, (int)sampleBuffer.getSequence(index), dispatchBuffer, 0));
+		return 0;
+	}
+}
@@ -0,0 +1,213 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AppendLogTest {
+
+	private File dir;
+	private File file;
+	
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("funf", "log");
+		dir.delete();
+		file = new File(dir, "active.log");
+	}
+	
+	@After
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+	
+	@Test
+	public void readsBackCommittedRecords() throws IOException {
+		AppendLog log = open();
+		log.append("probe.A", 1.5, "{\"a\":1}");
+		log.append("probe.B", 2.25, "{\"b\":\"\u00e9\"}");
+		log.commit();
+		log.close();
+		
+		AppendLogReader reader = new AppendLogReader(file);
+		try {
+			assertEquals("db", reader.getDatabaseName());
+			assertEquals(3, reader.getDatabaseVersion());
+			assertEquals("install", reader.getInstallationId());
+			assertTrue(reader.next());
+			assertEquals("probe.A", reader.getName());
+			assertEquals(1.5, reader.getTimestamp(), 0);
+			assertEquals("{\"a\":1}", reader.getValue());
+			assertTrue(reader.next());
+			assertEquals("probe.B", reader.getName());
+			assertEquals(2.25, reader.getTimestamp(), 0);
+			assertEquals("{\"b\":\"\u00e9\"}", reader.getValue());
+			assertFalse(reader.next());
+			assertEquals(file.length(), reader.getValidLength());
+		} finally {
+			reader.close();
+		}
+	}
+	
+	@Test
+	public void uncommittedRecordsAreNotWritten() throws IOException {
+		AppendLog log = open();
+		log.append("probe.A", 1, "committed");
+		log.commit();
+		log.append("probe.A", 2, "not committed");
+		log.close();
+		assertEquals(list("committed"), readValues());
+	}
+	
+	@Test
+	public void partiallyWrittenRecordIsTruncatedOnReopen() throws IOException {
+		AppendLog log = open();
+		for (int i = 0; i < 3; i++) {
+			log.append("probe.A", i + 1, "value" + i);
+			log.commit();
+		}
+		log.close();
+		truncate(file.length() - 3); // Crash in the middle of writing the last record
+		assertEquals(list("value0", "value1"), readValues());
+		
+		log = open();
+		log.append("probe.A", 4, "value3");
+		log.commit();
+		log.close();
+		assertEquals(list("value0", "value1", "value3"), readValues());
+	}
+	
+	@Test
+	public void readingStopsAtCorruptRecord() throws IOException {
+		AppendLog log = open();
+		log.append("probe.A", 1, "value0");
+		log.commit();
+		long corruptOffset = file.length() + AppendLog.RECORD_HEADER_LENGTH + 2;
+		log.append("probe.A", 2, "value1");
+		log.append("probe.A", 3, "value2");
+		log.commit();
+		log.close();
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(corruptOffset);
+			int b = raf.read();
+			raf.seek(corruptOffset);
+			raf.write(b ^ 0xff);
+		} finally {
+			raf.close();
+		}
+		assertEquals(list("value0"), readValues());
+		
+		// Reopening drops the corrupt record and everything after it
+		log = open();
+		log.append("probe.A", 4, "value3");
+		log.commit();
+		log.close();
+		assertEquals(list("value0", "value3"), readValues());
+	}
+	
+	@Test
+	public void corruptLengthIsNotTrusted() throws IOException {
+		AppendLog log = open();
+		log.append("probe.A", 1, "value0");
+		log.commit();
+		long lengthOffset = file.length();
+		log.append("probe.A", 2, "value1");
+		log.commit();
+		log.close();
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(lengthOffset);
+			raf.writeInt(Integer.MAX_VALUE);
+		} finally {
+			raf.close();
+		}
+		assertEquals(list("value0"), readValues());
+	}
+	
+	@Test
+	public void sealRenamesCommittedSegment() throws IOException {
+		AppendLog log = open();
+		log.append("probe.A", 1, "value0");
+		File sealed = new File(dir, "1.sealed.log");
+		assertTrue(log.seal(sealed));
+		assertFalse(file.exists());
+		file = sealed;
+		assertEquals(list("value0"), readValues());
+	}
+	
+	private AppendLog open() throws IOException {
+		return new AppendLog(file, "db", 3, "install");
+	}
+	
+	private void truncate(long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private List<String> readValues() throws IOException {
+		List<String> values = new ArrayList<String>();
+		AppendLogReader reader = new AppendLogReader(file);
+		try {
+			while (reader.next()) {
+				values.add(reader.getValue());
+			}
+		} finally {
+			reader.close();
+		}
+		return values;
+	}
+	
+	private static List<String> list(String... values) {
+		List<String> list = new ArrayList<String>();
+		for (String value : values) {
+			list.add(value);
+		}
+		return list;
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.mit.media.funf.storage.FileCopier.MovingFileCopier;
+import edu.mit.media.funf.storage.FileCopier.SimpleFileCopier;
+import edu.mit.media.funf.util.NameGenerator.IdentityNameGenerator;
+
+/**
+ * I/O for the archives DefaultArchive builds without compression or encryption, on one filesystem.
+ * Each cycle is the pipeline archiving a sealed database and deleting it, then the uploader 
+ * removing the uploaded file from the archive, which moves it into the rolling backup.
+ * 
+ * "copy" uses SimpleFileCopier for both, as DefaultArchive did before.  "move" uses 
+ * MovingFileCopier, as it does now.  Bytes written counts what the copiers stream, including 
+ * the move's fallback copy, which only runs across filesystems.
+ */
+public class ArchiveMoveBenchmark {
+
+	private static final int FILE_BYTES = 16 * 1024 * 1024;
+	private static final int CYCLES = 4;
+	
+	private File root;
+	
+	@Before
+	public void setUp() throws IOException {
+		root = File.createTempFile("funf", "archive");
+		root.delete();
+		root.mkdirs();
+	}
+	
+	@After
+	public void tearDown() {
+		delete(root);
+	}
+	
+	@Test
+	public void moveAgainstCopy() throws IOException {
+		CountingCopier copied = new CountingCopier(new SimpleFileCopier());
+		long copyNanos = archiveAndUpload("copy", copied);
+		CountingCopier moved = new CountingCopier(new SimpleFileCopier());
+		long moveNanos = archiveAndUpload("move", new MovingFileCopier(moved));
+		System.out.println(String.format("%d cycles of a %d MB file: copy %.1f ms, %d MB written; move %.1f ms, %d MB written", 
+				CYCLES, FILE_BYTES / (1024 * 1024), copyNanos / 1e6, copied.bytes / (1024 * 1024), 
+				moveNanos / 1e6, moved.bytes / (1024 * 1024)));
+		assertEquals(2L * CYCLES * FILE_BYTES, copied.bytes);
+		assertEquals(0, moved.bytes);
+		assertTrue(moveNanos < copyNanos / 2);
+	}
+	
+	/**
+	 * @return nanoseconds spent in the archives
+	 */
+	private long archiveAndUpload(String name, FileCopier copier) throws IOException {
+		File databases = new File(root, name + "/databases");
+		databases.mkdirs();
+		FileDirectoryArchive archive = new FileDirectoryArchive(new File(root, name + "/archive"), 
+				new IdentityNameGenerator(), copier, new DirectoryCleaner.KeepAll());
+		FileArchive uploaded = new BackedUpArchive(archive, 
+				FileDirectoryArchive.getRollingFileArchive(new File(root, name + "/backup"), copier));
+		long nanos = 0;
+		for (int i = 0; i < CYCLES; i++) {
+			File database = createFile(new File(databases, "db" + i), i);
+			long start = System.nanoTime();
+			assertTrue(archive.add(database));
+			database.delete(); // As the pipeline does once a database is archived
+			File archived = archive.getAll()[0];
+			assertTrue(uploaded.remove(archived));
+			nanos += System.nanoTime() - start;
+			assertFalse(database.exists());
+			assertEquals(0, archive.getAll().length);
+		}
+		return nanos;
+	}
+	
+	private static File createFile(File file, int seed) throws IOException {
+		byte[] bytes = new byte[FILE_BYTES];
+		new Random(seed).nextBytes(bytes);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+	
+	/**
+	 * Counts the bytes its copier writes.
+	 */
+	private static class CountingCopier implements FileCopier {
+		private final FileCopier copier;
+		private long bytes;
+		
+		private CountingCopier(FileCopier copier) {
+			this.copier = copier;
+		}
+		
+		@Override
+		public boolean copy(File sourceFile, File destinationFile) {
+			boolean copied = copier.copy(sourceFile, destinationFile);
+			if (copied) {
+				bytes += destinationFile.length();
+			}
+			return copied;
+		}
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
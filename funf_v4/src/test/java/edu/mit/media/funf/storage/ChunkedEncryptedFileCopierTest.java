@@ -0,0 +1,174 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.mit.media.funf.storage.FileCopier.ChunkedEncryptedFileCopier;
+
+public class ChunkedEncryptedFileCopierTest {
+
+	private static final int CHUNK_SIZE = 4096;
+	private static final int HEADER_LENGTH = 4 + 1 + 4 + 8;
+	
+	private final SecretKey key = new SecretKeySpec(new byte[16], "AES");
+	private File source, encrypted, decrypted;
+	
+	@Before
+	public void setUp() throws IOException {
+		source = File.createTempFile("funf", ".db");
+		encrypted = File.createTempFile("funf", ".enc");
+		decrypted = File.createTempFile("funf", ".dec");
+	}
+	
+	@After
+	public void tearDown() {
+		source.delete();
+		encrypted.delete();
+		decrypted.delete();
+	}
+	
+	@Test
+	public void roundTrips() throws IOException {
+		for (int length : new int[] {0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, 10 * CHUNK_SIZE + 7}) {
+			for (boolean compress : new boolean[] {false, true}) {
+				byte[] data = write(length);
+				assertTrue(new ChunkedEncryptedFileCopier(key, compress, CHUNK_SIZE).copy(source, encrypted));
+				assertTrue(ChunkedEncryptedFileCopier.decrypt(encrypted, decrypted, key));
+				assertArrayEquals(data, read(decrypted));
+			}
+		}
+	}
+	
+	@Test
+	public void rejectsWrongKey() throws IOException {
+		write(3 * CHUNK_SIZE);
+		assertTrue(new ChunkedEncryptedFileCopier(key, false, CHUNK_SIZE).copy(source, encrypted));
+		byte[] otherKey = new byte[16];
+		otherKey[0] = 1;
+		assertFalse(ChunkedEncryptedFileCopier.decrypt(encrypted, decrypted, new SecretKeySpec(otherKey, "AES")));
+	}
+	
+	@Test
+	public void rejectsModifiedFrame() throws IOException {
+		write(3 * CHUNK_SIZE);
+		assertTrue(new ChunkedEncryptedFileCopier(key, false, CHUNK_SIZE).copy(source, encrypted));
+		RandomAccessFile file = new RandomAccessFile(encrypted, "rw");
+		try {
+			file.seek(HEADER_LENGTH + 4 + 10);
+			int b = file.read();
+			file.seek(HEADER_LENGTH + 4 + 10);
+			file.write(b ^ 1);
+		} finally {
+			file.close();
+		}
+		assertFalse(ChunkedEncryptedFileCopier.decrypt(encrypted, decrypted, key));
+	}
+	
+	@Test
+	public void rejectsTruncatedFile() throws IOException {
+		write(3 * CHUNK_SIZE);
+		assertTrue(new ChunkedEncryptedFileCopier(key, false, CHUNK_SIZE).copy(source, encrypted));
+		byte[] bytes = read(encrypted);
+		int frameLength = 4 + (bytes.length - HEADER_LENGTH) / 3;
+		writeTo(encrypted, bytes, bytes.length - frameLength); // Drop the last frame
+		assertFalse(ChunkedEncryptedFileCopier.decrypt(encrypted, decrypted, key));
+	}
+	
+	@Test
+	public void rejectsReorderedFrames() throws IOException {
+		write(3 * CHUNK_SIZE);
+		assertTrue(new ChunkedEncryptedFileCopier(key, false, CHUNK_SIZE).copy(source, encrypted));
+		byte[] bytes = read(encrypted);
+		int frameLength = 4 + (bytes.length - HEADER_LENGTH) / 3;
+		byte[] swapped = bytes.clone();
+		System.arraycopy(bytes, HEADER_LENGTH, swapped, HEADER_LENGTH + frameLength, frameLength);
+		System.arraycopy(bytes, HEADER_LENGTH + frameLength, swapped, HEADER_LENGTH, frameLength);
+		writeTo(encrypted, swapped, swapped.length);
+		assertFalse(ChunkedEncryptedFileCopier.decrypt(encrypted, decrypted, key));
+	}
+	
+	@Test
+	public void rejectsOversizedFrameLength() throws IOException {
+		write(3 * CHUNK_SIZE);
+		assertTrue(new ChunkedEncryptedFileCopier(key, false, CHUNK_SIZE).copy(source, encrypted));
+		RandomAccessFile file = new RandomAccessFile(encrypted, "rw");
+		try {
+			file.seek(HEADER_LENGTH);
+			file.writeInt(Integer.MAX_VALUE);
+		} finally {
+			file.close();
+		}
+		assertFalse(ChunkedEncryptedFileCopier.decrypt(encrypted, decrypted, key));
+	}
+	
+	private byte[] write(int length) throws IOException {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		for (int i = 0; i < length; i += 3) {
+			data[i] = 0; // Partly compressible
+		}
+		writeTo(source, data, length);
+		return data;
+	}
+	
+	private static void writeTo(File file, byte[] data, int length) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data, 0, length);
+		} finally {
+			out.close();
+		}
+	}
+	
+	private static byte[] read(File file) throws IOException {
+		byte[] data = new byte[(int)file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int offset = 0, read;
+			while (offset < data.length && (read = in.read(data, offset, data.length - offset)) > 0) {
+				offset += read;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+}
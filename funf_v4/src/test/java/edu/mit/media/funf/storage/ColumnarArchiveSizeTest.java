@@ -0,0 +1,143 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.storage;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.mit.media.funf.storage.FileCopier.CompressedFileCopier;
+
+/**
+ * Compares the size of a columnar archive with the rows it holds as JSON, as they are stored in 
+ * the pipeline database, compressed with {@link CompressedFileCopier} the way compressed archives are.
+ * 
+ * The rows are an hour of 50 Hz accelerometer samples and a minute-by-minute battery probe, with 
+ * values quantized to the sensor resolution and timestamps with microsecond precision, as TimeUtil 
+ * produces them.  The database itself adds row ids and page overhead on top of the JSON, so the 
+ * gzipped JSON is a lower bound for a gzipped database file.
+ * 
+ * Sensor noise leaves most mantissa bits of consecutive values different, which limits what 
+ * XOR compression of the float columns can do.  Columnar files are about 8 times smaller than 
+ * the JSON, but a little larger than gzipped JSON, so archives should still set compress.
+ */
+public class ColumnarArchiveSizeTest {
+
+	private static final String 
+	ACCELEROMETER = "edu.mit.media.funf.probe.builtin.AccelerometerSensorProbe",
+	BATTERY = "edu.mit.media.funf.probe.builtin.BatteryProbe";
+	private static final int SECONDS = 3600;
+	private static final double RESOLUTION = 9.80665 / 1024; // 10 bits over +/- 2 g
+	
+	private File dir;
+	
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("columnar", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+	
+	@After
+	public void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+	
+	@Test
+	public void sizeAgainstGzippedRowJson() throws IOException {
+		File rowsFile = new File(dir, "rows.json");
+		File gzipFile = new File(dir, "rows.json.gz");
+		File columnarFile = new File(dir, "rows.fnfc");
+		File columnarGzipFile = new File(dir, "rows.fnfc.gz");
+		
+		Writer rows = new OutputStreamWriter(new FileOutputStream(rowsFile), "UTF-8");
+		ColumnarArchive.Writer columnar = new ColumnarArchive.Writer(new FileOutputStream(columnarFile), "db", "install", "uuid", 1400000000.0);
+		int rowCount = 0;
+		try {
+			// Ordered by name, as archives are written
+			Random random = new Random(1);
+			for (int i = 0; i < SECONDS * 50; i++) {
+				double t = 1400000000.0 + i * 0.02 + random.nextInt(500) / 1e6;
+				String value = "{\"accuracy\":3,\"timestamp\":" + timestamp(t)
+						+ ",\"x\":" + sensorValue(0.3 * Math.sin(i / 25.0) + random.nextGaussian() * 0.05)
+						+ ",\"y\":" + sensorValue(9.7 + random.nextGaussian() * 0.05)
+						+ ",\"z\":" + sensorValue(0.8 + random.nextGaussian() * 0.05) + "}";
+				addRow(rows, columnar, ACCELEROMETER, t, value);
+				rowCount++;
+			}
+			for (int i = 0; i < SECONDS / 60; i++) {
+				double t = 1400000000.0 + i * 60 + random.nextInt(1000000) / 1e6;
+				String value = "{\"health\":2,\"level\":" + (90 - i / 6) + ",\"plugged\":0,\"scale\":100,\"status\":3,"
+						+ "\"technology\":\"Li-ion\",\"temperature\":" + (300 + random.nextInt(5)) + ",\"timestamp\":" + timestamp(t)
+						+ ",\"voltage\":" + (4100 - i) + "}";
+				addRow(rows, columnar, BATTERY, t, value);
+				rowCount++;
+			}
+		} finally {
+			rows.close();
+			columnar.close();
+		}
+		assertTrue(new CompressedFileCopier().copy(rowsFile, gzipFile));
+		assertTrue(new CompressedFileCopier().copy(columnarFile, columnarGzipFile));
+		
+		System.out.println(String.format("%d rows: JSON %d bytes, gzipped JSON %d bytes, columnar %d bytes, gzipped columnar %d bytes", 
+				rowCount, rowsFile.length(), gzipFile.length(), columnarFile.length(), columnarGzipFile.length()));
+		System.out.println(String.format("JSON / columnar: %.1f, gzipped JSON / columnar: %.2f, gzipped JSON / gzipped columnar: %.2f", 
+				(double)rowsFile.length() / columnarFile.length(), (double)gzipFile.length() / columnarFile.length(),
+				(double)gzipFile.length() / columnarGzipFile.length()));
+		assertTrue(columnarFile.length() * 8 < rowsFile.length());
+		assertTrue(columnarGzipFile.length() < gzipFile.length());
+	}
+	
+	private static void addRow(Writer rows, ColumnarArchive.Writer columnar, String name, double timestamp, String value) throws IOException {
+		rows.write(name);
+		rows.write('\t');
+		rows.write(Double.toString(timestamp));
+		rows.write('\t');
+		rows.write(value);
+		rows.write('\n');
+		columnar.add(name, timestamp, value);
+	}
+	
+	private static String timestamp(double seconds) {
+		return BigDecimal.valueOf(seconds).setScale(6, BigDecimal.ROUND_HALF_EVEN).toString();
+	}
+	
+	private static String sensorValue(double value) {
+		return Float.toString((float)(Math.round(value / RESOLUTION) * RESOLUTION));
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ColumnarArchiveTest {
+
+	private static final String PROBE = "edu.mit.media.funf.probe.builtin.AccelerometerSensorProbe";
+	
+	@Test
+	public void readsBackHeader() throws IOException {
+		ColumnarArchive.Reader reader = read(write(new ArrayList<Row>()));
+		try {
+			assertEquals("db", reader.getDatabaseName());
+			assertEquals("install", reader.getInstallationId());
+			assertEquals("uuid", reader.getUuid());
+			assertEquals(1400000000.5, reader.getCreated(), 0);
+			assertFalse(reader.nextGroup());
+		} finally {
+			reader.close();
+		}
+	}
+	
+	@Test
+	public void numbersKeepTheirText() throws IOException {
+		assertRoundTrip(
+				"{\"count\":5,\"timestamp\":1400000000.123,\"x\":0.1,\"y\":1.0E-5}",
+				"{\"count\":-12345678901,\"timestamp\":1400000000.100,\"x\":0.25,\"y\":2}",
+				"{\"count\":0,\"timestamp\":1400000001.000,\"x\":9.80665,\"y\":-0.0}",
+				"{\"count\":7,\"timestamp\":1400000001.5,\"x\":1.1754944E-38,\"y\":12345678901234567890}");
+	}
+	
+	@Test
+	public void otherValuesKeepTheirText() throws IOException {
+		assertRoundTrip(
+				"{\"enabled\":true,\"list\":[1,2,{\"a\":\"b\"}],\"name\":\"wifi\",\"timestamp\":1400000000}",
+				"{\"enabled\":false,\"list\":[],\"name\":\"wi\\\"fi\",\"timestamp\":1400000001}",
+				"{\"enabled\":true,\"list\":[1],\"name\":\"\u00e9t\u00e9\",\"timestamp\":1400000002}");
+	}
+	
+	@Test
+	public void columnsMayBeMissingOrChangeType() throws IOException {
+		assertRoundTrip(
+				"{\"a\":1,\"timestamp\":1400000000}",
+				"{\"b\":\"text\",\"timestamp\":1400000001}",
+				"{\"a\":\"now text\",\"b\":2.5,\"timestamp\":1400000002}",
+				"{\"timestamp\":1400000003}");
+	}
+	
+	@Test
+	public void keepsRowOrderAcrossProbesAndGroups() throws IOException {
+		List<Row> rows = new ArrayList<Row>();
+		for (int i = 0; i < ColumnarArchive.MAX_GROUP_ROWS + 10; i++) {
+			double timestamp = 1400000000 + i * 0.005;
+			rows.add(new Row(PROBE, timestamp, "{\"timestamp\":" + timestamp + ",\"x\":" + (i * 0.01f) + "}"));
+		}
+		rows.add(new Row("BatteryProbe", 1500000000.25, "{\"level\":50,\"timestamp\":1500000000.25}"));
+		rows.add(new Row("BatteryProbe", Math.PI * 1e9, "{\"level\":49,\"timestamp\":3141592653.589793}"));
+		assertEquals(rows, readRows(write(rows)));
+	}
+	
+	private static void assertRoundTrip(String... values) throws IOException {
+		List<Row> rows = new ArrayList<Row>();
+		for (int i = 0; i < values.length; i++) {
+			rows.add(new Row(PROBE, 1400000000 + i, values[i]));
+		}
+		assertEquals(rows, readRows(write(rows)));
+	}
+	
+	private static byte[] write(List<Row> rows) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ColumnarArchive.Writer writer = new ColumnarArchive.Writer(bytes, "db", "install", "uuid", 1400000000.5);
+		for (Row row : rows) {
+			writer.add(row.name, row.timestamp, row.value);
+		}
+		writer.close();
+		return bytes.toByteArray();
+	}
+	
+	private static ColumnarArchive.Reader read(byte[] bytes) throws IOException {
+		return new ColumnarArchive.Reader(new ByteArrayInputStream(bytes));
+	}
+	
+	private static List<Row> readRows(byte[] bytes) throws IOException {
+		List<Row> rows = new ArrayList<Row>();
+		ColumnarArchive.Reader reader = read(bytes);
+		try {
+			while (reader.nextGroup()) {
+				assertTrue(reader.getRowCount() <= ColumnarArchive.MAX_GROUP_ROWS);
+				for (int i = 0; i < reader.getRowCount(); i++) {
+					rows.add(new Row(reader.getGroupName(), reader.getTimestamp(i), reader.getValue(i).toString()));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return rows;
+	}
+	
+	private static class Row {
+		private final String name;
+		private final double timestamp;
+		private final String value;
+		
+		private Row(String name, double timestamp, String value) {
+			this.name = name;
+			this.timestamp = timestamp;
+			this.value = value;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Row)) {
+				return false;
+			}
+			Row other = (Row)o;
+			return name.equals(other.name) && Double.doubleToLongBits(timestamp) == Double.doubleToLongBits(other.timestamp) 
+					&& value.equals(other.value);
+		}
+		
+		@Override
+		public int hashCode() {
+			return value.hashCode();
+		}
+		
+		@Override
+		public String toString() {
+			return name + " " + timestamp + " " + value;
+		}
+	}
+}
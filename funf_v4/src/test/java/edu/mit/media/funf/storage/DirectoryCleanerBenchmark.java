@@ -0,0 +1,130 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.mit.media.funf.util.NameGenerator.IdentityNameGenerator;
+
+/**
+ * Cost of each add to an archive directory that already holds 10k files and is at its storage limit, 
+ * so that every add also evicts the oldest file.  {@link DirectoryCleaner.KeepUnderStorageLimit} lists, 
+ * sorts and sizes the whole directory on each add, {@link DirectoryCleaner.KeepIndexed} updates its manifest.
+ */
+public class DirectoryCleanerBenchmark {
+
+	private static final int FILES = 10000;
+	private static final int FILE_SIZE = 100;
+	private static final int SCAN_ADDS = 20, INDEXED_ADDS = 200; // Scans take about half a second each
+	private static final long MODIFIED = 1400000000000L;
+	
+	private File root;
+	
+	@Before
+	public void setUp() throws IOException {
+		root = File.createTempFile("funf", "cleaner");
+		root.delete();
+		root.mkdirs();
+	}
+	
+	@After
+	public void tearDown() {
+		delete(root);
+	}
+	
+	@Test
+	public void indexedCleanerAgainstDirectoryScan() throws IOException {
+		long limit = (long)FILES * FILE_SIZE;
+		double scanMicros = measureAdds("scan", new DirectoryCleaner.KeepUnderStorageLimit(limit), SCAN_ADDS);
+		double indexedMicros = measureAdds("indexed", new DirectoryCleaner.KeepIndexed(limit, 0, 0), INDEXED_ADDS);
+		System.out.println(String.format("%d files: %.0f us per add with a directory scan, %.0f us indexed", 
+				FILES, scanMicros, indexedMicros));
+		assertTrue(indexedMicros * 5 < scanMicros);
+	}
+	
+	private double measureAdds(String name, DirectoryCleaner cleaner, int adds) throws IOException {
+		File archiveDir = new File(root, name);
+		File incomingDir = new File(root, name + "-incoming");
+		archiveDir.mkdirs();
+		incomingDir.mkdirs();
+		for (int i = 0; i < FILES; i++) {
+			createFile(archiveDir, "old" + i, MODIFIED + i * 1000L);
+		}
+		FileDirectoryArchive archive = new FileDirectoryArchive(archiveDir, new IdentityNameGenerator(), 
+				new FileCopier.MovingFileCopier(), cleaner);
+		// The first add builds the manifest of the indexed cleaner, which is kept from then on
+		assertTrue(archive.add(createFile(incomingDir, "first", MODIFIED + FILES * 1000L)));
+		
+		long elapsed = 0;
+		for (int i = 0; i < adds; i++) {
+			File file = createFile(incomingDir, "new" + i, MODIFIED + (FILES + 1 + i) * 1000L);
+			long start = System.nanoTime();
+			assertTrue(archive.add(file));
+			elapsed += System.nanoTime() - start;
+		}
+		assertEquals(FILES, countFiles(archiveDir));
+		return elapsed / 1000.0 / adds;
+	}
+	
+	private static int countFiles(File directory) {
+		int count = 0;
+		for (File file : directory.listFiles()) {
+			if (file.getName().startsWith("old") || file.getName().startsWith("new") || file.getName().equals("first")) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	private static File createFile(File directory, String name, long modified) throws IOException {
+		File file = new File(directory, name);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[FILE_SIZE]);
+		} finally {
+			out.close();
+		}
+		assertTrue(file.setLastModified(modified));
+		return file;
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
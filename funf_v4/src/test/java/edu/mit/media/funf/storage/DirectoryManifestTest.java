@@ -0,0 +1,245 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.mit.media.funf.util.NameGenerator.IdentityNameGenerator;
+
+public class DirectoryManifestTest {
+
+	private static final long MODIFIED = 1400000000000L;
+	
+	private File root, dir;
+	
+	@Before
+	public void setUp() throws IOException {
+		root = File.createTempFile("funf", "manifest");
+		root.delete();
+		dir = new File(root, "archive");
+		dir.mkdirs();
+	}
+	
+	@After
+	public void tearDown() {
+		delete(root);
+	}
+	
+	@Test
+	public void buildsIndexFromDirectory() throws IOException {
+		createFile("b", 20, MODIFIED + 2000);
+		createFile("a", 10, MODIFIED + 1000);
+		DirectoryManifest manifest = DirectoryManifest.load(dir);
+		assertEquals(2, manifest.size());
+		assertEquals(30, manifest.getTotalBytes());
+		assertEquals("a", manifest.getOldest().name);
+		assertEquals(10, manifest.getOldest().size);
+	}
+	
+	@Test
+	public void keepsChangesAcrossLoads() throws IOException {
+		DirectoryManifest manifest = DirectoryManifest.load(dir);
+		manifest.add(createFile("a", 10, MODIFIED));
+		manifest.add(createFile("b", 20, MODIFIED + 1000));
+		new File(dir, "a").delete();
+		manifest.remove("a");
+		
+		manifest = DirectoryManifest.load(dir);
+		assertEquals(1, manifest.size());
+		assertEquals(20, manifest.getTotalBytes());
+		assertEquals("b", manifest.getOldest().name);
+	}
+	
+	@Test
+	public void reconcilesWithDirectoryOnLoad() throws IOException {
+		DirectoryManifest manifest = DirectoryManifest.load(dir);
+		manifest.add(createFile("a", 10, MODIFIED));
+		manifest.add(createFile("b", 20, MODIFIED + 1000));
+		// Changed behind the manifest's back
+		new File(dir, "a").delete();
+		createFile("c", 5, MODIFIED + 2000);
+		
+		manifest = DirectoryManifest.load(dir);
+		assertEquals(2, manifest.size());
+		assertEquals(25, manifest.getTotalBytes());
+		assertEquals("b", manifest.getOldest().name);
+	}
+	
+	@Test
+	public void ignoresPartiallyWrittenJournalLine() throws IOException {
+		DirectoryManifest manifest = DirectoryManifest.load(dir);
+		manifest.add(createFile("a", 10, MODIFIED));
+		createFile("b", 20, MODIFIED + 1000);
+		FileWriter writer = new FileWriter(getJournal(), true);
+		try {
+			writer.write("+b\t2"); // Crash while appending
+		} finally {
+			writer.close();
+		}
+		manifest = DirectoryManifest.load(dir);
+		assertEquals(2, manifest.size());
+		assertEquals(30, manifest.getTotalBytes());
+	}
+	
+	@Test
+	public void compactsJournal() throws IOException {
+		DirectoryManifest manifest = DirectoryManifest.load(dir);
+		manifest.add(createFile("kept", 1, MODIFIED));
+		for (int i = 0; i < 500; i++) {
+			File file = createFile("file" + i, 1, MODIFIED + i);
+			manifest.add(file);
+			file.delete();
+			manifest.remove(file.getName());
+		}
+		assertTrue(countLines(getJournal()) <= 65);
+		manifest = DirectoryManifest.load(dir);
+		assertEquals(1, manifest.size());
+		assertEquals("kept", manifest.getOldest().name);
+	}
+	
+	@Test
+	public void emptyDirectory() {
+		DirectoryManifest manifest = DirectoryManifest.load(dir);
+		assertEquals(0, manifest.size());
+		assertEquals(0, manifest.getTotalBytes());
+		assertNull(manifest.getOldest());
+	}
+	
+	@Test
+	public void keepIndexedDeletesOldestFirst() throws IOException {
+		FileDirectoryArchive archive = new FileDirectoryArchive(dir, new IdentityNameGenerator(),
+				new TimestampPreservingCopier(), new DirectoryCleaner.KeepIndexed(0, 3, 0));
+		File sources = new File(root, "sources");
+		sources.mkdirs();
+		for (int i = 0; i < 5; i++) {
+			File source = createFile(sources, "file" + i, 10, MODIFIED + i * 1000);
+			assertTrue(archive.add(source));
+		}
+		assertEquals(Arrays.asList("file2", "file3", "file4"), sortedNames(dir));
+		assertTrue(archive.remove(new File(dir, "file3")));
+		assertFalse(new File(dir, "file3").exists());
+		
+		// Removal was recorded, so only the oldest file goes when the limit is reached again
+		assertTrue(archive.add(createFile(sources, "file5", 10, MODIFIED + 5000)));
+		assertTrue(archive.add(createFile(sources, "file6", 10, MODIFIED + 6000)));
+		assertEquals(Arrays.asList("file4", "file5", "file6"), sortedNames(dir));
+	}
+	
+	@Test
+	public void keepIndexedMatchesUnindexedCleaners() throws IOException {
+		for (int i = 0; i < 10; i++) {
+			createFile("file" + i, 100 + i, MODIFIED + (i * 7 % 10) * 1000);
+		}
+		File copy = new File(root, "copy");
+		copyDirectory(dir, copy);
+		
+		new DirectoryCleaner.KeepIndexed(650, 0, 0).clean(dir);
+		new DirectoryCleaner.KeepUnderStorageLimit(650).clean(copy);
+		assertEquals(sortedNames(copy), sortedNames(dir));
+		
+		new DirectoryCleaner.KeepIndexed(0, 3, 0).clean(dir);
+		new DirectoryCleaner.KeepMostRecent(3).clean(copy);
+		assertEquals(sortedNames(copy), sortedNames(dir));
+	}
+	
+	private static class TimestampPreservingCopier implements FileCopier {
+		@Override
+		public boolean copy(File sourceFile, File destinationFile) {
+			return new SimpleFileCopier().copy(sourceFile, destinationFile) 
+					&& destinationFile.setLastModified(sourceFile.lastModified());
+		}
+	}
+	
+	private File getJournal() {
+		return new File(root, ".archive.manifest");
+	}
+	
+	private File createFile(String name, int size, long modified) throws IOException {
+		return createFile(dir, name, size, modified);
+	}
+	
+	private static File createFile(File directory, String name, int size, long modified) throws IOException {
+		File file = new File(directory, name);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[size]);
+		} finally {
+			out.close();
+		}
+		assertTrue(file.setLastModified(modified));
+		return file;
+	}
+	
+	private static void copyDirectory(File from, File to) throws IOException {
+		to.mkdirs();
+		for (File file : from.listFiles()) {
+			createFile(to, file.getName(), (int)file.length(), file.lastModified());
+		}
+	}
+	
+	private static List<String> sortedNames(File directory) {
+		String[] names = directory.list();
+		Arrays.sort(names);
+		return Arrays.asList(names);
+	}
+	
+	private static int countLines(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			int lines = 0;
+			while (reader.readLine() != null) {
+				lines++;
+			}
+			return lines;
+		} finally {
+			reader.close();
+		}
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.storage;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.mit.media.funf.storage.FileCopier.ChunkedEncryptedFileCopier;
+import edu.mit.media.funf.storage.FileCopier.CompressedEncryptedFileCopier;
+import edu.mit.media.funf.storage.FileCopier.EncryptedFileCopier;
+import edu.mit.media.funf.storage.FileCopier.SimpleFileCopier;
+
+/**
+ * Throughput of the encrypting copiers on a large file shaped like a pipeline database: 
+ * JSON rows of sensor data, which compress about as well as the database pages holding them.
+ * 
+ * The DES copiers stream the file through one cipher on one thread.  The chunked copier 
+ * compresses and encrypts independent chunks with AES-GCM on a small pool, which only 
+ * speeds up compression when there is more than one core.
+ */
+public class FileCopierThroughputTest {
+
+	private static final long SOURCE_BYTES = 32L * 1024 * 1024;
+	private static final int RUNS = 3;
+	
+	private final SecretKey desKey = new SecretKeySpec(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}, "DES");
+	private final SecretKey aesKey = new SecretKeySpec(new byte[16], "AES");
+	private File source, destination;
+	
+	@Before
+	public void setUp() throws IOException {
+		source = File.createTempFile("funf", ".db");
+		destination = File.createTempFile("funf", ".enc");
+		Writer out = new OutputStreamWriter(new FileOutputStream(source), "UTF-8");
+		try {
+			Random random = new Random(1);
+			for (int i = 0; source.length() < SOURCE_BYTES || i % 1000 != 0; i++) {
+				out.write(i + "|edu.mit.media.funf.probe.builtin.AccelerometerSensorProbe|" + (1400000000 + i * 0.02) 
+						+ "|{\"accuracy\":3,\"timestamp\":" + (1400000000 + i * 0.02) + ",\"x\":" + (float)random.nextGaussian() 
+						+ ",\"y\":" + (float)(9.8 + random.nextGaussian() * 0.1) + ",\"z\":" + (float)random.nextGaussian() + "}\n");
+				if (i % 1000 == 0) {
+					out.flush();
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+	
+	@After
+	public void tearDown() {
+		source.delete();
+		destination.delete();
+	}
+	
+	@Test
+	public void chunkedCopierAgainstDesCopiers() {
+		throughput("plain copy", new SimpleFileCopier());
+		double des = throughput("DES", new EncryptedFileCopier(desKey, "DES"));
+		double gzipDes = throughput("gzip + DES", new CompressedEncryptedFileCopier(desKey, "DES"));
+		double gcm = throughput("chunked AES-GCM", new ChunkedEncryptedFileCopier(aesKey, false));
+		double gzipGcm = throughput("chunked gzip + AES-GCM", new ChunkedEncryptedFileCopier(aesKey, true));
+		System.out.println(String.format("chunked / DES: %.2f uncompressed, %.2f compressed, %d cores", 
+				gcm / des, gzipGcm / gzipDes, Runtime.getRuntime().availableProcessors()));
+		// Compression dominates, and only runs in parallel with more than one core
+		assumeTrue(Runtime.getRuntime().availableProcessors() > 1);
+		assertTrue(gzipGcm > gzipDes);
+	}
+	
+	/**
+	 * @return best throughput over the runs, in MB/s
+	 */
+	private double throughput(String name, FileCopier copier) {
+		assertTrue(copier.copy(source, destination)); // Warm up
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < RUNS; i++) {
+			long start = System.nanoTime();
+			assertTrue(copier.copy(source, destination));
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		double megabytesPerSecond = source.length() / (1024.0 * 1024.0) / (best / 1e9);
+		System.out.println(String.format("%-24s %6.1f MB/s, %5.1f MB to %5.1f MB", name, megabytesPerSecond, 
+				source.length() / (1024.0 * 1024.0), destination.length() / (1024.0 * 1024.0)));
+		return megabytesPerSecond;
+	}
+}
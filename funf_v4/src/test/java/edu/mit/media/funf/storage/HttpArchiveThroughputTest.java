@@ -0,0 +1,148 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Uploads a backlog of archive files to a local server through the shared {@link HttpArchive} client,
+ * one at a time and from a pool of upload threads like {@link UploadService}'s, and reports throughput.
+ * The server delays each response to stand in for the round trip of a mobile network.
+ */
+public class HttpArchiveThroughputTest {
+
+	private static final int FILES = 24;
+	private static final int FILE_SIZE = 64 * 1024;
+	private static final long ROUND_TRIP_MILLIS = 40;
+	
+	private File dir;
+	private List<File> files;
+	private LocalHttpServer server;
+	private final Map<String,Integer> received = new ConcurrentHashMap<String,Integer>();
+	
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("funf", "upload");
+		dir.delete();
+		dir.mkdirs();
+		files = new ArrayList<File>();
+		Random random = new Random(1);
+		byte[] data = new byte[FILE_SIZE];
+		for (int i = 0; i < FILES; i++) {
+			random.nextBytes(data);
+			File file = new File(dir, "archive" + i + ".db");
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			files.add(file);
+		}
+		server = new LocalHttpServer(new LocalHttpServer.Handler() {
+			@Override
+			public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+				received.put(request.path, request.body.length);
+				return new LocalHttpServer.Response(200, "");
+			}
+		});
+		server.setResponseDelay(ROUND_TRIP_MILLIS);
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		server.close();
+		for (File file : files) {
+			file.delete();
+		}
+		dir.delete();
+	}
+	
+	@Test
+	public void concurrentUploadsReuseConnections() throws Exception {
+		double sequential = upload(1);
+		int sequentialConnections = server.getConnectionCount();
+		received.clear();
+		double concurrent = upload(4);
+		int concurrentConnections = server.getConnectionCount() - sequentialConnections;
+		
+		System.out.println(String.format("%d files of %d KB, %d ms round trip", FILES, FILE_SIZE / 1024, ROUND_TRIP_MILLIS));
+		System.out.println(String.format("1 thread:  %.1f files/s, %d connections", sequential, sequentialConnections));
+		System.out.println(String.format("4 threads: %.1f files/s, %d connections", concurrent, concurrentConnections));
+		// Kept alive connections are reused across files
+		assertTrue(sequentialConnections <= 1);
+		assertTrue(concurrentConnections <= 4);
+		assertTrue(concurrent > 2 * sequential);
+	}
+	
+	/**
+	 * @return files uploaded per second
+	 */
+	private double upload(int threads) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		long start = System.nanoTime();
+		try {
+			for (final File file : files) {
+				results.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						return HttpArchive.uploadFile(file, server.getUrl("/upload/" + file.getName()));
+					}
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		} finally {
+			executor.shutdownNow();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		assertEquals(FILES, received.size());
+		for (File file : files) {
+			assertEquals(Integer.valueOf(FILE_SIZE), received.get("/upload/" + file.getName()));
+		}
+		return FILES / seconds;
+	}
+}
@@ -0,0 +1,272 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal HTTP/1.1 server on the loopback interface, for testing uploads without a network.
+ * Connections are kept alive, and request bodies may be chunked or sent with a Content-Length.
+ * 
+ * Written on plain sockets, since the JDK's embedded server is not part of the Android API 
+ * the tests are compiled against.
+ */
+class LocalHttpServer implements Closeable {
+
+	interface Handler {
+		Response handle(Request request) throws IOException;
+	}
+	
+	static class Request {
+		final String method, path;
+		final Map<String,String> parameters;
+		final byte[] body;
+		
+		private Request(String method, String path, Map<String,String> parameters, byte[] body) {
+			this.method = method;
+			this.path = path;
+			this.parameters = parameters;
+			this.body = body;
+		}
+	}
+	
+	static class Response {
+		final int status;
+		final String body;
+		
+		Response(int status, String body) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+	
+	private final ServerSocket serverSocket;
+	private final ExecutorService connectionThreads = Executors.newCachedThreadPool();
+	private final Handler handler;
+	private final Set<Socket> openSockets = Collections.synchronizedSet(new HashSet<Socket>());
+	private final AtomicInteger connections = new AtomicInteger(), requests = new AtomicInteger();
+	private volatile long responseDelayMillis = 0;
+	private volatile boolean closed = false;
+	
+	LocalHttpServer(Handler handler) throws IOException {
+		this.handler = handler;
+		this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		connectionThreads.execute(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		});
+	}
+	
+	String getUrl(String path) {
+		return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+	}
+	
+	/**
+	 * Delays every response, like the round trip of a mobile network.
+	 */
+	void setResponseDelay(long millis) {
+		this.responseDelayMillis = millis;
+	}
+	
+	/**
+	 * @return number of connections accepted so far
+	 */
+	int getConnectionCount() {
+		return connections.get();
+	}
+	
+	int getRequestCount() {
+		return requests.get();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		serverSocket.close();
+		synchronized (openSockets) {
+			for (Socket socket : openSockets) {
+				socket.close(); // Ends connections the client is keeping alive
+			}
+		}
+		connectionThreads.shutdownNow();
+	}
+	
+	private void accept() {
+		while (!closed) {
+			try {
+				final Socket socket = serverSocket.accept();
+				openSockets.add(socket);
+				connections.incrementAndGet();
+				connectionThreads.execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				});
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+	}
+	
+	private void serve(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			boolean keepAlive = true;
+			while (keepAlive && !closed) {
+				String requestLine = readLine(in);
+				if (requestLine == null) {
+					return;
+				}
+				String[] parts = requestLine.split(" ");
+				Map<String,String> headers = new HashMap<String,String>();
+				String line;
+				while ((line = readLine(in)) != null && line.length() > 0) {
+					int colon = line.indexOf(':');
+					headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+				}
+				if ("100-continue".equalsIgnoreCase(headers.get("expect"))) {
+					out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("US-ASCII"));
+					out.flush();
+				}
+				byte[] body = readBody(in, headers);
+				keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+				
+				String target = parts[1];
+				int query = target.indexOf('?');
+				Request request = new Request(parts[0], query < 0 ? target : target.substring(0, query), 
+						parseParameters(query < 0 ? "" : target.substring(query + 1)), body);
+				requests.incrementAndGet();
+				Response response = handler.handle(request);
+				if (responseDelayMillis > 0) {
+					Thread.sleep(responseDelayMillis);
+				}
+				byte[] responseBody = (response.body == null ? "" : response.body).getBytes("UTF-8");
+				String head = "HTTP/1.1 " + response.status + " " + (response.status == 200 ? "OK" : "Error") + "\r\n"
+						+ "Content-Type: text/plain\r\n"
+						+ "Content-Length: " + responseBody.length + "\r\n"
+						+ (keepAlive ? "" : "Connection: close\r\n")
+						+ "\r\n";
+				ByteArrayOutputStream message = new ByteArrayOutputStream();
+				message.write(head.getBytes("US-ASCII"));
+				message.write(responseBody);
+				message.writeTo(out); // In one write, so it is not split across delayed packets
+				out.flush();
+			}
+		} catch (SocketException e) {
+			// Client closed the connection
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			// Server closed
+		} finally {
+			openSockets.remove(socket);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Already closed
+			}
+		}
+	}
+	
+	private static byte[] readBody(InputStream in, Map<String,String> headers) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+			int chunkLength;
+			while ((chunkLength = Integer.parseInt(readLine(in).split(";")[0].trim(), 16)) > 0) {
+				copy(in, body, chunkLength);
+				readLine(in);
+			}
+			while (readLine(in).length() > 0) {
+				// Trailers
+			}
+		} else if (headers.containsKey("content-length")) {
+			copy(in, body, Integer.parseInt(headers.get("content-length")));
+		}
+		return body.toByteArray();
+	}
+	
+	private static void copy(InputStream in, ByteArrayOutputStream out, int length) throws IOException {
+		byte[] buffer = new byte[8192];
+		while (length > 0) {
+			int read = in.read(buffer, 0, Math.min(buffer.length, length));
+			if (read < 0) {
+				throw new IOException("Unexpected end of request body");
+			}
+			out.write(buffer, 0, read);
+			length -= read;
+		}
+	}
+	
+	/**
+	 * @return the line without its line break, or null at the end of the stream
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) >= 0) {
+			if (c == '\n') {
+				int length = line.length();
+				return (length > 0 && line.charAt(length - 1) == '\r') ? line.substring(0, length - 1) : line.toString();
+			}
+			line.append((char)c);
+		}
+		return line.length() == 0 ? null : line.toString();
+	}
+	
+	private static Map<String,String> parseParameters(String query) throws IOException {
+		Map<String,String> parameters = new HashMap<String,String>();
+		for (String parameter : query.split("&")) {
+			if (parameter.length() > 0) {
+				int equals = parameter.indexOf('=');
+				String name = equals < 0 ? parameter : parameter.substring(0, equals);
+				String value = equals < 0 ? "" : parameter.substring(equals + 1);
+				parameters.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+			}
+		}
+		return parameters;
+	}
+}
@@ -0,0 +1,174 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.storage;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.SharedPreferences;
+
+/**
+ * SharedPreferences kept in memory, for tests that cannot use the Android implementation.
+ * Edits are applied when they are committed.  Change listeners are not supported.
+ */
+class MemorySharedPreferences implements SharedPreferences {
+
+	private final Map<String,Object> values = new HashMap<String,Object>();
+	
+	@Override
+	public synchronized Map<String,?> getAll() {
+		return new HashMap<String,Object>(values);
+	}
+	
+	@Override
+	public synchronized String getString(String key, String defValue) {
+		return values.containsKey(key) ? (String)values.get(key) : defValue;
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+		return values.containsKey(key) ? (Set<String>)values.get(key) : defValues;
+	}
+	
+	@Override
+	public synchronized int getInt(String key, int defValue) {
+		return values.containsKey(key) ? (Integer)values.get(key) : defValue;
+	}
+	
+	@Override
+	public synchronized long getLong(String key, long defValue) {
+		return values.containsKey(key) ? (Long)values.get(key) : defValue;
+	}
+	
+	@Override
+	public synchronized float getFloat(String key, float defValue) {
+		return values.containsKey(key) ? (Float)values.get(key) : defValue;
+	}
+	
+	@Override
+	public synchronized boolean getBoolean(String key, boolean defValue) {
+		return values.containsKey(key) ? (Boolean)values.get(key) : defValue;
+	}
+	
+	@Override
+	public synchronized boolean contains(String key) {
+		return values.containsKey(key);
+	}
+	
+	@Override
+	public Editor edit() {
+		return new MemoryEditor();
+	}
+	
+	@Override
+	public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+		throw new UnsupportedOperationException();
+	}
+	
+	@Override
+	public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+		throw new UnsupportedOperationException();
+	}
+	
+	private class MemoryEditor implements Editor {
+		
+		private final Map<String,Object> changes = new HashMap<String,Object>();
+		private final Set<String> removals = new HashSet<String>();
+		private boolean clear = false;
+		
+		@Override
+		public Editor putString(String key, String value) {
+			return put(key, value);
+		}
+		
+		@Override
+		public Editor putStringSet(String key, Set<String> values) {
+			return put(key, values == null ? null : new HashSet<String>(values));
+		}
+		
+		@Override
+		public Editor putInt(String key, int value) {
+			return put(key, value);
+		}
+		
+		@Override
+		public Editor putLong(String key, long value) {
+			return put(key, value);
+		}
+		
+		@Override
+		public Editor putFloat(String key, float value) {
+			return put(key, value);
+		}
+		
+		@Override
+		public Editor putBoolean(String key, boolean value) {
+			return put(key, value);
+		}
+		
+		private Editor put(String key, Object value) {
+			if (value == null) {
+				return remove(key);
+			}
+			removals.remove(key);
+			changes.put(key, value);
+			return this;
+		}
+		
+		@Override
+		public Editor remove(String key) {
+			changes.remove(key);
+			removals.add(key);
+			return this;
+		}
+		
+		@Override
+		public Editor clear() {
+			clear = true;
+			return this;
+		}
+		
+		@Override
+		public boolean commit() {
+			synchronized (MemorySharedPreferences.this) {
+				if (clear) {
+					values.clear();
+				}
+				for (String key : removals) {
+					values.remove(key);
+				}
+				values.putAll(changes);
+			}
+			return true;
+		}
+		
+		@Override
+		public void apply() {
+			commit();
+		}
+	}
+}
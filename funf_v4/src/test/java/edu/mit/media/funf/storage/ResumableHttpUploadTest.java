@@ -0,0 +1,185 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+/**
+ * Uploads files end to end against {@link ResumableUploadServer}, with interrupted and failed uploads.
+ */
+public class ResumableHttpUploadTest {
+
+	private static final int CHUNK_SIZE = 16 * 1024;
+	private static final int FILE_SIZE = 10 * CHUNK_SIZE + 123;
+	
+	private ResumableUploadServer server;
+	private MemorySharedPreferences state;
+	private ResumableHttpUpload upload;
+	private File file;
+	private byte[] contents;
+	
+	@Before
+	public void setUp() throws IOException {
+		server = new ResumableUploadServer();
+		state = new MemorySharedPreferences();
+		upload = new ResumableHttpUpload(new ContextWrapper(null) {
+			@Override
+			public SharedPreferences getSharedPreferences(String name, int mode) {
+				return state;
+			}
+		}, HttpArchive.getHttpClient(), CHUNK_SIZE);
+		file = File.createTempFile("funf", ".db");
+		contents = write(1);
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		server.close();
+		file.delete();
+	}
+	
+	@Test
+	public void uploadsFileInChunks() {
+		assertTrue(upload.upload(file, server.getUrl()));
+		assertArrayEquals(contents, server.getCompleted(uploadId()));
+		assertEquals(11, server.getChunkOffsets().size());
+		assertTrue(state.getAll().isEmpty());
+	}
+	
+	@Test
+	public void resumesFromLastAcknowledgedChunk() {
+		server.failAfterChunks(3);
+		assertFalse(upload.upload(file, server.getUrl()));
+		assertEquals(3 * CHUNK_SIZE, state.getLong(uploadId(), 0));
+		
+		server.failAfterChunks(-1);
+		server.clearChunkOffsets();
+		assertTrue(upload.upload(file, server.getUrl()));
+		assertEquals(Long.valueOf(3 * CHUNK_SIZE), server.getChunkOffsets().get(0));
+		assertEquals(8, server.getChunkOffsets().size());
+		assertArrayEquals(contents, server.getCompleted(uploadId()));
+		assertTrue(state.getAll().isEmpty());
+	}
+	
+	@Test
+	public void resumesAfterLostAcknowledgement() {
+		server.loseAcknowledgements(1);
+		assertFalse(upload.upload(file, server.getUrl()));
+		assertEquals(0, state.getLong(uploadId(), 0));
+		
+		// The server already has the first chunk, and tells the client where to continue
+		server.clearChunkOffsets();
+		assertTrue(upload.upload(file, server.getUrl()));
+		assertEquals(Long.valueOf(0), server.getChunkOffsets().get(0));
+		assertEquals(Long.valueOf(CHUNK_SIZE), server.getChunkOffsets().get(1));
+		assertArrayEquals(contents, server.getCompleted(uploadId()));
+	}
+	
+	@Test
+	public void restartsWhenServerFailsToVerifyFile() {
+		server.corruptNextChunk();
+		assertFalse(upload.upload(file, server.getUrl()));
+		assertNull(server.getCompleted(uploadId()));
+		assertTrue(state.getAll().isEmpty());
+		
+		server.clearChunkOffsets();
+		assertTrue(upload.upload(file, server.getUrl()));
+		assertEquals(Long.valueOf(0), server.getChunkOffsets().get(0));
+		assertArrayEquals(contents, server.getCompleted(uploadId()));
+	}
+	
+	@Test
+	public void discardForgetsAcknowledgedOffset() {
+		server.failAfterChunks(2);
+		assertFalse(upload.upload(file, server.getUrl()));
+		assertFalse(state.getAll().isEmpty());
+		upload.discard(file);
+		assertTrue(state.getAll().isEmpty());
+	}
+	
+	@Test
+	public void rewrittenFileStartsOver() throws IOException {
+		server.failAfterChunks(2);
+		assertFalse(upload.upload(file, server.getUrl()));
+		String oldUploadId = uploadId();
+		
+		contents = write(2);
+		server.failAfterChunks(-1);
+		server.clearChunkOffsets();
+		assertTrue(upload.upload(file, server.getUrl()));
+		assertEquals(Long.valueOf(0), server.getChunkOffsets().get(0));
+		assertArrayEquals(contents, server.getCompleted(uploadId()));
+		assertFalse(state.contains(oldUploadId));
+		assertTrue(state.getAll().isEmpty());
+	}
+	
+	@Test
+	public void deletedFileEntriesArePruned() throws IOException {
+		server.failAfterChunks(2);
+		assertFalse(upload.upload(file, server.getUrl()));
+		File other = File.createTempFile("funf", ".db");
+		try {
+			file.delete();
+			file = other;
+			contents = write(3);
+			server.failAfterChunks(-1);
+			assertTrue(upload.upload(file, server.getUrl()));
+			assertTrue(state.getAll().isEmpty());
+		} finally {
+			other.delete();
+		}
+	}
+	
+	private String uploadId() {
+		return ResumableUploadServer.sha256(contents);
+	}
+	
+	private byte[] write(long seed) throws IOException {
+		byte[] data = new byte[FILE_SIZE];
+		new Random(seed).nextBytes(data);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		return data;
+	}
+}
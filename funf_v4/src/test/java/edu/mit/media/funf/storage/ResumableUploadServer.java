@@ -0,0 +1,171 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stand-in server for the {@link ResumableHttpUpload} protocol, on the loopback interface.
+ * 
+ * Chunks are accepted only at the offset the server has reached, and only if their SHA-256 matches.
+ * Completed uploads are kept by upload id once the whole file matches its SHA-256.  Failures can be 
+ * injected to test how clients recover from interrupted uploads.
+ */
+class ResumableUploadServer implements Closeable {
+
+	private static final int SUCCESS = 200, CONFLICT = 409, UNAVAILABLE = 503;
+	
+	private final LocalHttpServer server;
+	private final Map<String,ByteArrayOutputStream> uploads = new HashMap<String,ByteArrayOutputStream>();
+	private final Map<String,byte[]> completed = new HashMap<String,byte[]>();
+	private final List<Long> chunkOffsets = new ArrayList<Long>();
+	private int chunksBeforeFailure = -1;
+	private int lostAcknowledgements = 0;
+	private boolean corruptNextChunk = false;
+	
+	ResumableUploadServer() throws IOException {
+		server = new LocalHttpServer(new LocalHttpServer.Handler() {
+			@Override
+			public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+				synchronized (ResumableUploadServer.this) {
+					String uploadId = request.parameters.get("upload");
+					if (uploadId == null) {
+						return new LocalHttpServer.Response(400, "");
+					}
+					return request.parameters.containsKey("complete") 
+							? complete(uploadId, request.parameters.get("complete"), Long.parseLong(request.parameters.get("length")))
+							: chunk(uploadId, Long.parseLong(request.parameters.get("offset")), request.parameters.get("chunk"), request.body);
+				}
+			}
+		});
+	}
+	
+	String getUrl() {
+		return server.getUrl("/upload");
+	}
+	
+	/**
+	 * Responds 503 without storing anything to every chunk after the next count chunks, until reset with -1.
+	 */
+	synchronized void failAfterChunks(int count) {
+		chunksBeforeFailure = count;
+	}
+	
+	/**
+	 * Stores the next count chunks, but responds 503 as if the response was lost.
+	 */
+	synchronized void loseAcknowledgements(int count) {
+		lostAcknowledgements = count;
+	}
+	
+	/**
+	 * Stores the next chunk with a flipped bit, as if it was damaged on the server.
+	 */
+	synchronized void corruptNextChunk() {
+		corruptNextChunk = true;
+	}
+	
+	/**
+	 * @return the file uploaded with this id, or null if it has not been completed and verified
+	 */
+	synchronized byte[] getCompleted(String uploadId) {
+		return completed.get(uploadId);
+	}
+	
+	/**
+	 * @return the offset of every chunk request received, in order
+	 */
+	synchronized List<Long> getChunkOffsets() {
+		return new ArrayList<Long>(chunkOffsets);
+	}
+	
+	synchronized void clearChunkOffsets() {
+		chunkOffsets.clear();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		server.close();
+	}
+	
+	private LocalHttpServer.Response chunk(String uploadId, long offset, String chunkHash, byte[] chunk) {
+		chunkOffsets.add(offset);
+		if (chunksBeforeFailure == 0) {
+			return new LocalHttpServer.Response(UNAVAILABLE, "");
+		} else if (chunksBeforeFailure > 0) {
+			chunksBeforeFailure--;
+		}
+		ByteArrayOutputStream upload = uploads.get(uploadId);
+		if (upload == null) {
+			upload = new ByteArrayOutputStream();
+			uploads.put(uploadId, upload);
+		}
+		if (offset != upload.size() || !sha256(chunk).equals(chunkHash)) {
+			return new LocalHttpServer.Response(CONFLICT, String.valueOf(upload.size()));
+		}
+		if (corruptNextChunk) {
+			chunk = chunk.clone();
+			chunk[0] ^= 1;
+			corruptNextChunk = false;
+		}
+		upload.write(chunk, 0, chunk.length);
+		if (lostAcknowledgements > 0) {
+			lostAcknowledgements--;
+			return new LocalHttpServer.Response(UNAVAILABLE, "");
+		}
+		return new LocalHttpServer.Response(SUCCESS, String.valueOf(upload.size()));
+	}
+	
+	private LocalHttpServer.Response complete(String uploadId, String fileHash, long length) {
+		ByteArrayOutputStream upload = uploads.get(uploadId);
+		byte[] data = upload == null ? new byte[0] : upload.toByteArray();
+		if (data.length == length && sha256(data).equals(fileHash)) {
+			uploads.remove(uploadId);
+			completed.put(uploadId, data);
+			return new LocalHttpServer.Response(SUCCESS, String.valueOf(length));
+		}
+		uploads.remove(uploadId); // Start over
+		return new LocalHttpServer.Response(CONFLICT, "0");
+	}
+	
+	static String sha256(byte[] data) {
+		try {
+			StringBuilder hex = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,234 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.time;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives the scheduler with a simulated clock, which jumps to each alarm time as it goes off.
+ */
+public class WakeupSchedulerTest {
+
+	private static final long MINUTE = 60 * 1000L;
+	private static final long HOUR = 60 * MINUTE;
+	
+	private SimulatedDevice device;
+	private WakeupScheduler<String> scheduler;
+	
+	@Before
+	public void setUp() {
+		device = new SimulatedDevice();
+		scheduler = device.createScheduler(0);
+	}
+	
+	@Test
+	public void nearbyActionsShareWakeups() {
+		scheduler.setCoalescingWindowMillis(10 * 1000L);
+		scheduler.set("a", MINUTE, MINUTE, false);
+		scheduler.set("b", MINUTE + 2000, MINUTE, false);
+		scheduler.set("c", MINUTE + 5000, MINUTE, false);
+		device.runUntil(scheduler, HOUR);
+		assertEquals(60, scheduler.getWakeupCount());
+		assertEquals(60, device.getRunCount("a"));
+		assertEquals(60, device.getRunCount("b"));
+		assertEquals(60, device.getRunCount("c"));
+	}
+	
+	@Test
+	public void actionsWakeSeparatelyWithoutCoalescingWindow() {
+		scheduler.set("a", MINUTE, MINUTE, false);
+		scheduler.set("b", MINUTE + 2000, MINUTE, false);
+		scheduler.set("c", MINUTE + 5000, MINUTE, false);
+		device.runUntil(scheduler, HOUR + 5000);
+		assertEquals(180, scheduler.getWakeupCount());
+		assertEquals(60, device.getRunCount("a"));
+		assertEquals(60, device.getRunCount("b"));
+		assertEquals(60, device.getRunCount("c"));
+	}
+	
+	/**
+	 * Wakeups over a day for a config like the sample pipelines: a dozen probes and pipeline 
+	 * actions with 2 to 60 minute intervals, each first scheduled at an arbitrary time, 
+	 * without coalescing and with FunfManager's default 60 second window.
+	 */
+	@Test
+	public void wakeupsBeforeAndAfterCoalescing() {
+		long[] intervalMinutes = {2, 5, 5, 10, 10, 15, 15, 20, 30, 30, 60, 60};
+		int before = countDailyWakeups(intervalMinutes, 0);
+		int after = countDailyWakeups(intervalMinutes, MINUTE);
+		System.out.println("Wakeups per day for " + intervalMinutes.length + " actions: " 
+				+ before + " without coalescing, " + after + " with a 60s window");
+		assertTrue(after < before / 2);
+	}
+	
+	private static int countDailyWakeups(long[] intervalMinutes, long coalescingWindowMillis) {
+		SimulatedDevice device = new SimulatedDevice();
+		WakeupScheduler<String> scheduler = device.createScheduler(coalescingWindowMillis);
+		Random random = new Random(1);
+		for (int i = 0; i < intervalMinutes.length; i++) {
+			long interval = intervalMinutes[i] * MINUTE;
+			scheduler.set("action" + i, (long)(random.nextDouble() * interval), interval, false);
+		}
+		device.runUntil(scheduler, 24 * HOUR);
+		return scheduler.getWakeupCount();
+	}
+	
+	@Test
+	public void strictActionsKeepTheirPhase() {
+		scheduler.setCoalescingWindowMillis(10 * 1000L);
+		scheduler.set("strict", MINUTE, MINUTE, true);
+		scheduler.set("loose", MINUTE - 5000, MINUTE, false);
+		device.runUntil(scheduler, HOUR);
+		List<Long> runTimes = device.getRunTimes("strict");
+		assertEquals(60, runTimes.size());
+		for (int i = 0; i < runTimes.size(); i++) {
+			assertEquals((i + 1) * MINUTE, (long)runTimes.get(i));
+		}
+		assertEquals(60, device.getRunCount("loose"));
+		assertEquals(120, scheduler.getWakeupCount());
+	}
+	
+	@Test
+	public void looseActionRunsEarlyWithStrictAction() {
+		scheduler.setCoalescingWindowMillis(10 * 1000L);
+		scheduler.set("strict", MINUTE, MINUTE, true);
+		scheduler.set("loose", MINUTE + 5000, MINUTE, false);
+		device.runUntil(scheduler, HOUR);
+		assertEquals(60, scheduler.getWakeupCount());
+		assertEquals(device.getRunTimes("strict"), device.getRunTimes("loose"));
+	}
+	
+	@Test
+	public void missedRunsAreSkipped() {
+		scheduler.set("a", MINUTE, MINUTE, true);
+		device.alarmTime = -1;
+		device.now = 5 * MINUTE + 10 * 1000L; // Device was asleep past several runs
+		scheduler.onWakeup();
+		assertEquals(1, device.getRunCount("a"));
+		assertEquals(6 * MINUTE, device.alarmTime);
+	}
+	
+	@Test
+	public void runOnceActionIsRemoved() {
+		scheduler.set("once", MINUTE, 0, false);
+		assertTrue(scheduler.isScheduled("once"));
+		device.runUntil(scheduler, HOUR);
+		assertEquals(1, device.getRunCount("once"));
+		assertEquals(Long.valueOf(MINUTE), scheduler.getLastRunTime("once"));
+		assertFalse(scheduler.isScheduled("once"));
+		assertEquals(-1, device.alarmTime);
+	}
+	
+	@Test
+	public void cancelMovesAlarm() {
+		scheduler.set("a", MINUTE, MINUTE, false);
+		scheduler.set("b", 2 * MINUTE, MINUTE, false);
+		assertEquals(MINUTE, device.alarmTime);
+		scheduler.cancel("a");
+		assertEquals(2 * MINUTE, device.alarmTime);
+		scheduler.cancel("b");
+		assertEquals(-1, device.alarmTime);
+		assertEquals(2, device.alarmSets);
+	}
+	
+	@Test
+	public void rescheduleReplacesPreviousSchedule() {
+		scheduler.set("a", MINUTE, MINUTE, false);
+		scheduler.set("a", 30 * 1000L, 10 * MINUTE, false);
+		device.runUntil(scheduler, HOUR);
+		assertEquals(6, device.getRunCount("a"));
+	}
+	
+	/**
+	 * A clock and a single alarm, which records the actions that ran and when.
+	 */
+	static class SimulatedDevice implements WakeupScheduler.Clock, WakeupScheduler.Alarm, WakeupScheduler.ActionRunner<String> {
+		
+		long now = 0;
+		long alarmTime = -1;
+		int alarmSets = 0;
+		private final Map<String,List<Long>> runs = new HashMap<String,List<Long>>();
+		
+		WakeupScheduler<String> createScheduler(long coalescingWindowMillis) {
+			return new WakeupScheduler<String>(this, this, this, coalescingWindowMillis);
+		}
+		
+		/**
+		 * Fires the alarm until the next one would go off after the end time.
+		 */
+		void runUntil(WakeupScheduler<String> scheduler, long endTimeMillis) {
+			while (alarmTime >= 0 && alarmTime <= endTimeMillis) {
+				now = Math.max(now, alarmTime);
+				alarmTime = -1; // Fired, like a one shot system alarm
+				scheduler.onWakeup();
+			}
+		}
+		
+		int getRunCount(String key) {
+			return getRunTimes(key).size();
+		}
+		
+		List<Long> getRunTimes(String key) {
+			List<Long> times = runs.get(key);
+			return times == null ? new ArrayList<Long>() : times;
+		}
+		
+		@Override
+		public long currentTimeMillis() {
+			return now;
+		}
+		
+		@Override
+		public void set(long wakeupTimeMillis) {
+			alarmTime = wakeupTimeMillis;
+			alarmSets++;
+		}
+		
+		@Override
+		public void cancel() {
+			alarmTime = -1;
+		}
+		
+		@Override
+		public void run(String key) {
+			List<Long> times = runs.get(key);
+			if (times == null) {
+				times = new ArrayList<Long>();
+				runs.put(key, times);
+			}
+			times.add(now);
+		}
+	}
+}
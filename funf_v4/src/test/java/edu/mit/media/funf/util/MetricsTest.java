@@ -0,0 +1,166 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+import edu.mit.media.funf.util.Metrics.Histogram;
+
+public class MetricsTest {
+
+	@Test
+	public void percentileIsUpperBoundOfBucket() {
+		long[] values = {1, 2, 3, 7, 8, 100, 1000, 1023, 1024, 1025, 123456789};
+		for (long value : values) {
+			Histogram histogram = new Histogram();
+			histogram.record(value);
+			long bound = histogram.getPercentile(0.5);
+			assertTrue(value + " -> " + bound, bound > value && bound <= 2 * value);
+			assertEquals(bound, Long.highestOneBit(bound)); // Power of two
+		}
+	}
+	
+	@Test
+	public void zeroAndNegativeDurationsGoInFirstBucket() {
+		Histogram histogram = new Histogram();
+		histogram.record(0);
+		histogram.record(-5);
+		assertEquals(1, histogram.getPercentile(1.0));
+		assertEquals(2, histogram.getCount());
+	}
+	
+	@Test
+	public void longDurationsGoInLastBucket() {
+		Histogram histogram = new Histogram();
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(1L << 39, histogram.getPercentile(0.99));
+	}
+	
+	@Test
+	public void emptyHistogram() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.getPercentile(0.5));
+		JsonObject snapshot = new JsonObject();
+		histogram.snapshot("empty", snapshot);
+		assertEquals(0, snapshot.getAsJsonObject("empty").get("count").getAsLong());
+		assertEquals(0, snapshot.getAsJsonObject("empty").get("meanMicros").getAsLong());
+	}
+	
+	@Test
+	public void percentilesBoundExactPercentiles() {
+		Random random = new Random(42);
+		long[] values = new long[10000];
+		Histogram histogram = new Histogram();
+		for (int i = 0; i < values.length; i++) {
+			// Log normal, like real latencies
+			values[i] = (long)Math.exp(6 + 1.5 * random.nextGaussian());
+			histogram.record(values[i]);
+		}
+		Arrays.sort(values);
+		for (double fraction : new double[] {0.01, 0.1, 0.5, 0.9, 0.99, 0.999, 1.0}) {
+			long exact = values[(int)Math.ceil(values.length * fraction) - 1];
+			long reported = histogram.getPercentile(fraction);
+			assertTrue(fraction + ": " + exact + " -> " + reported, reported > exact && reported <= 2 * Math.max(1, exact));
+		}
+	}
+	
+	@Test
+	public void uniformPercentiles() {
+		Histogram histogram = new Histogram();
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i);
+		}
+		assertEquals(512, histogram.getPercentile(0.5));
+		assertEquals(1024, histogram.getPercentile(0.9));
+		assertEquals(1024, histogram.getPercentile(0.99));
+		assertEquals(2, histogram.getPercentile(0.001));
+	}
+	
+	@Test
+	public void snapshotReportsSummary() {
+		Histogram histogram = new Histogram();
+		histogram.record(10);
+		histogram.record(20);
+		histogram.record(3000);
+		JsonObject snapshot = new JsonObject();
+		histogram.snapshot("latency", snapshot);
+		JsonObject summary = snapshot.getAsJsonObject("latency");
+		assertEquals(3, summary.get("count").getAsLong());
+		assertEquals(1010, summary.get("meanMicros").getAsLong());
+		assertEquals(32, summary.get("p50Micros").getAsLong());
+		assertEquals(4096, summary.get("p90Micros").getAsLong());
+		assertEquals(4096, summary.get("p99Micros").getAsLong());
+		assertEquals(3000, summary.get("maxMicros").getAsLong());
+	}
+	
+	@Test
+	public void concurrentRecordsAreAllCounted() throws InterruptedException {
+		final Histogram histogram = new Histogram();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final int max = (i + 1) * 1000;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 100000; j++) {
+						histogram.record(j % max);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(400000, histogram.getCount());
+		JsonObject snapshot = new JsonObject();
+		histogram.snapshot("h", snapshot);
+		assertEquals(3999, snapshot.getAsJsonObject("h").get("maxMicros").getAsLong());
+	}
+	
+	@Test
+	public void metricsAreSharedByName() {
+		assertSame(Metrics.histogram("test.histogram"), Metrics.histogram("test.histogram"));
+		Metrics.counter("test.counter").add(3);
+		Metrics.counter("test.counter").increment();
+		assertEquals(Long.valueOf(4), Metrics.getCounts().get("test.counter"));
+		Metrics.gauge("test.gauge").set(7);
+		assertEquals(7, Metrics.snapshot().get("test.gauge").getAsLong());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void nameIsBoundToOneType() {
+		Metrics.counter("test.typed");
+		Metrics.histogram("test.typed");
+	}
+}
@@ -0,0 +1,218 @@
+/**
+ * 
+ * Funf: Open Sensing Framework
+ * Copyright (C) 2010-2011 Nadav Aharony, Wei Pan, Alex Pentland.
+ * Acknowledgments: Alan Gardner
+ * Contact: nadav@media.mit.edu
+ * 
+ * This file is part of Funf.
+ * 
+ * Funf is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Funf is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Funf. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package edu.mit.media.funf.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class SampleRingTest {
+
+	@Test
+	public void capacityIsRoundedUpToPowerOfTwo() {
+		assertEquals(1, new SampleRing(1, 10).getCapacity());
+		assertEquals(4, new SampleRing(3, 10).getCapacity());
+		assertEquals(8, new SampleRing(8, 10).getCapacity());
+		assertEquals(10, new SampleRing(8, 10).getBlockSize());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void blockCountMustBePositive() {
+		new SampleRing(0, 10);
+	}
+	
+	@Test
+	public void blocksArriveInOrder() {
+		SampleRing ring = new SampleRing(4, 2);
+		for (int i = 0; i < 3; i++) {
+			short[] block = ring.claim();
+			block[0] = (short)i;
+			ring.publish(i + 1);
+		}
+		for (int i = 0; i < 3; i++) {
+			short[] block = ring.take(0);
+			assertEquals(i, block[0]);
+			assertEquals(i + 1, ring.getCount());
+			assertEquals(0, ring.getDroppedBefore());
+			ring.release();
+		}
+		assertNull(ring.take(0));
+		assertEquals(3, ring.getMaxDepth());
+	}
+	
+	@Test
+	public void blocksAreReusedWithoutAllocating() {
+		SampleRing ring = new SampleRing(2, 4);
+		short[] first = ring.claim();
+		ring.publish(4);
+		short[] second = ring.claim();
+		ring.publish(4);
+		assertSame(first, ring.take(0));
+		ring.release();
+		assertSame(first, ring.claim());
+		ring.publish(4);
+		assertSame(second, ring.take(0));
+	}
+	
+	@Test
+	public void fullRingDropsAndReportsGap() {
+		SampleRing ring = new SampleRing(2, 4);
+		ring.claim();
+		ring.publish(4);
+		ring.claim();
+		ring.publish(4);
+		assertNull(ring.claim());
+		ring.drop(4);
+		assertNull(ring.claim());
+		ring.drop(3);
+		assertEquals(2, ring.getOverruns());
+		assertEquals(7, ring.getDroppedSamples());
+		
+		ring.take(0);
+		assertEquals(0, ring.getDroppedBefore());
+		ring.release();
+		assertNotNull(ring.claim());
+		ring.publish(4);
+		ring.take(0);
+		assertEquals(0, ring.getDroppedBefore());
+		ring.release();
+		// The gap is reported with the first block published after it
+		ring.take(0);
+		assertEquals(7, ring.getDroppedBefore());
+		ring.release();
+		assertEquals(2, ring.getMaxDepth());
+	}
+	
+	@Test
+	public void takeTimesOut() {
+		SampleRing ring = new SampleRing(2, 4);
+		long start = System.nanoTime();
+		assertNull(ring.take(50));
+		assertTrue(System.nanoTime() - start >= 50 * 1000000L);
+	}
+	
+	@Test
+	public void closeWakesWaitingConsumer() throws InterruptedException {
+		final SampleRing ring = new SampleRing(2, 4);
+		final AtomicReference<Long> waited = new AtomicReference<Long>();
+		Thread consumer = new Thread() {
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				ring.take(10000);
+				waited.set((System.nanoTime() - start) / 1000000L);
+			}
+		};
+		consumer.start();
+		Thread.sleep(50);
+		ring.close();
+		consumer.join(5000);
+		assertFalse(consumer.isAlive());
+		assertTrue(waited.get() < 5000);
+	}
+	
+	@Test
+	public void drainedOnceClosedAndEmpty() {
+		SampleRing ring = new SampleRing(2, 4);
+		ring.claim();
+		ring.publish(4);
+		ring.close();
+		assertFalse(ring.isDrained());
+		// Published blocks can still be taken after closing
+		assertNotNull(ring.take(1000));
+		assertFalse(ring.isDrained());
+		ring.release();
+		assertTrue(ring.isDrained());
+		assertNull(ring.take(1000));
+	}
+	
+	@Test
+	public void producerAndConsumerThreads() throws InterruptedException {
+		final int blocks = 200000;
+		final SampleRing ring = new SampleRing(8, 16);
+		final long[] dropped = new long[1];
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < blocks; i++) {
+					short[] block = ring.claim();
+					if (block == null) {
+						ring.drop(16);
+						dropped[0] += 16;
+						continue;
+					}
+					// Samples follow the block number, so the consumer can check order and gaps
+					for (int j = 0; j < block.length; j++) {
+						block[j] = (short)(i + j);
+					}
+					ring.publish(block.length);
+				}
+				ring.close();
+			}
+		};
+		final AtomicReference<String> error = new AtomicReference<String>();
+		final long[] received = new long[1];
+		Thread consumer = new Thread() {
+			@Override
+			public void run() {
+				int expected = 0;
+				while (!ring.isDrained()) {
+					short[] block = ring.take(100);
+					if (block == null) {
+						continue;
+					}
+					expected += ring.getDroppedBefore() / 16;
+					for (int j = 0; j < ring.getCount(); j++) {
+						if (block[j] != (short)(expected + j)) {
+							error.compareAndSet(null, "Block " + expected + " sample " + j + " was " + block[j]);
+						}
+					}
+					received[0] += ring.getCount();
+					expected++;
+					if (expected % 1000 == 0) {
+						Thread.yield(); // Let the producer overrun now and then
+					}
+					ring.release();
+				}
+			}
+		};
+		consumer.start();
+		producer.start();
+		producer.join(30000);
+		consumer.join(30000);
+		assertFalse(producer.isAlive());
+		assertFalse(consumer.isAlive());
+		assertNull(error.get());
+		assertEquals(blocks * 16L, received[0] + ring.getDroppedSamples());
+		assertEquals(dropped[0], ring.getDroppedSamples());
+		assertTrue(ring.getMaxDepth() <= ring.getCapacity());
+	}
+}